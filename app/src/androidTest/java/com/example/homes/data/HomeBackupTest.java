@@ -0,0 +1,273 @@
+package com.example.homes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that backups hold every row of the database even while it is written, that a backup
+ * starting from the previous one only writes what changed, and that a restore replaces every
+ * home or, given a broken or missing backup of any database, nothing.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HomeBackupTest {
+
+    private static final String DATABASE_NAME = "HomeBackupTest.db";
+    private static final int HOME_COUNT = 2000;
+
+    private Context mContext;
+    private File mDirectory;
+    private HomeDbHelper mDbHelper;
+    private HomeBackup mBackup;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDirectory = new File(mContext.getCacheDir(), "backup-test");
+        deleteRecursively(mDirectory);
+
+        mDbHelper = new HomeDbHelper(mContext, DATABASE_NAME);
+        mBackup = new HomeBackup(mContext, mDirectory);
+        insertHomes("Backup St", HOME_COUNT);
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+        deleteRecursively(mDirectory);
+    }
+
+    @Test
+    public void backUp_copiesEveryRowAndTheSchema() throws IOException {
+        HomeBackup.Report report = mBackup.backUp(database(), null);
+
+        assertTrue(report.mCompleted);
+        assertFalse(report.mIncremental);
+        assertEquals(1, report.mPasses);
+        assertTrue(report.mBytes > 0);
+        assertTrue(report.mMaxLockMillis <= report.mLockMillis);
+
+        SQLiteDatabase backup = openBackup();
+        try {
+            assertEquals(HOME_COUNT, countHomes(backup));
+            assertEquals(database().getVersion(), backup.getVersion());
+            assertEquals(countSchema(database(), "index"), countSchema(backup, "index"));
+            assertEquals(countSchema(database(), "trigger"), countSchema(backup, "trigger"));
+        } finally {
+            backup.close();
+        }
+    }
+
+    @Test
+    public void backUp_writesOnlyTheChunksChangedSince() throws IOException {
+        mBackup.backUp(database(), null);
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_INCOME, 4321);
+        assertEquals(1, database().update(HomeEntry.TABLE_NAME, values, HomeEntry._ID + "=?",
+                new String[] { "1000" }));
+
+        HomeBackup.Report report = mBackup.backUp(database(), null);
+        assertTrue(report.mCompleted);
+        assertTrue(report.mIncremental);
+        assertTrue(report.toString(), report.mChunksWritten > 0);
+        assertTrue(report.toString(), report.mChunksWritten < report.mChunks / 3);
+
+        SQLiteDatabase backup = openBackup();
+        try {
+            assertEquals(4321, DatabaseUtils.longForQuery(backup, "SELECT "
+                    + HomeEntry.COLUMN_HOME_INCOME + " FROM " + HomeEntry.TABLE_NAME
+                    + " WHERE " + HomeEntry._ID + " = 1000", null));
+        } finally {
+            backup.close();
+        }
+    }
+
+    @Test
+    public void backUp_goesOnWhereItStopped() throws IOException {
+        HomeBackup.Report report = mBackup.backUp(database(), new HomeBackup.Pacer() {
+            private int mChunks;
+
+            @Override
+            public boolean shouldContinue() {
+                return mChunks++ < 3;
+            }
+        });
+        assertFalse(report.mCompleted);
+        assertEquals(3, report.mChunks);
+        assertFalse(mBackup.getBackupFile(DATABASE_NAME).exists());
+
+        report = mBackup.backUp(database(), null);
+        assertTrue(report.mCompleted);
+        SQLiteDatabase backup = openBackup();
+        try {
+            assertEquals(HOME_COUNT, countHomes(backup));
+        } finally {
+            backup.close();
+        }
+    }
+
+    @Test
+    public void backUp_holdsTheHomesWrittenWhileItRuns() throws IOException {
+        // Every chunk is followed by a write, until the last pass holds the lock
+        HomeBackup.Report report = mBackup.backUp(database(), new HomeBackup.Pacer() {
+            @Override
+            public boolean shouldContinue() {
+                insertHomes("Race St", 1);
+                return true;
+            }
+        });
+
+        assertTrue(report.mCompleted);
+        assertEquals(HomeBackup.MAX_PASSES + 1, report.mPasses);
+        assertTrue(report.mLockedPass);
+        SQLiteDatabase backup = openBackup();
+        try {
+            assertEquals(countHomes(database()), countHomes(backup));
+        } finally {
+            backup.close();
+        }
+    }
+
+    @Test
+    public void restore_replacesEveryHome() throws IOException {
+        mBackup.backUp(database(), null);
+        database().delete(HomeEntry.TABLE_NAME, null, null);
+        insertHomes("Other St", 10);
+
+        assertTrue(mBackup.restore(mDbHelper) >= HOME_COUNT);
+        assertEquals(HOME_COUNT, countHomes(database()));
+        assertEquals(0, DatabaseUtils.longForQuery(database(), "SELECT COUNT(*) FROM "
+                + HomeEntry.TABLE_NAME + " WHERE " + HomeEntry.COLUMN_HOME_ADDRESS
+                + " LIKE 'Other St%'", null));
+
+        // The triggers are back, and ids are handed out again from the last one restored
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_INCOME, 99);
+        database().update(HomeEntry.TABLE_NAME, values, HomeEntry._ID + " = 1", null);
+        assertEquals(2, DatabaseUtils.longForQuery(database(), "SELECT "
+                + HomeEntry.COLUMN_HOME_VERSION + " FROM " + HomeEntry.TABLE_NAME
+                + " WHERE " + HomeEntry._ID + " = 1", null));
+        assertEquals(HOME_COUNT + 1, insertHomes("New St", 1));
+    }
+
+    @Test
+    public void restore_leavesTheHomesAloneWithoutASoundBackup() throws IOException {
+        try {
+            mBackup.restore(mDbHelper);
+            fail("Restored without a backup");
+        } catch (FileNotFoundException expected) {
+        }
+
+        mDirectory.mkdirs();
+        FileOutputStream out = new FileOutputStream(mBackup.getBackupFile(DATABASE_NAME));
+        try {
+            out.write(new byte[8192]);
+        } finally {
+            out.close();
+        }
+        try {
+            mBackup.restore(mDbHelper);
+            fail("Restored a broken backup");
+        } catch (IOException expected) {
+        }
+        assertEquals(HOME_COUNT, countHomes(database()));
+    }
+
+    @Test
+    public void restore_ofSeveralDatabases_checksEveryBackupFirst() throws IOException {
+        String otherName = "HomeBackupTest-other.db";
+        mContext.deleteDatabase(otherName);
+        HomeDbHelper other = new HomeDbHelper(mContext, otherName);
+        try {
+            mBackup.backUp(database(), null);
+            database().delete(HomeEntry.TABLE_NAME, null, null);
+            insertHomes("Other St", 10);
+
+            // The second database has no backup, so the first isn't restored either
+            try {
+                mBackup.restore(mDbHelper, other);
+                fail("Restored without a backup of every database");
+            } catch (FileNotFoundException expected) {
+            }
+            assertEquals(10, countHomes(database()));
+
+            mBackup.backUp(other.getWritableDatabase(), null);
+            assertTrue(mBackup.restore(mDbHelper, other) >= HOME_COUNT);
+            assertEquals(HOME_COUNT, countHomes(database()));
+            assertEquals(0, countHomes(other.getWritableDatabase()));
+        } finally {
+            other.close();
+            mContext.deleteDatabase(otherName);
+        }
+    }
+
+    private SQLiteDatabase database() {
+        return mDbHelper.getWritableDatabase();
+    }
+
+    /**
+     * Insert homes with numbered addresses, and return the id of the last one.
+     */
+    private long insertHomes(String street, int count) {
+        SQLiteDatabase database = database();
+        long id = -1;
+        database.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < count; i++) {
+                values.put(HomeEntry.COLUMN_HOME_ADDRESS, street + " " + i);
+                values.put(HomeEntry.COLUMN_HOME_COUNTY, "County " + (i % 7));
+                values.put(HomeEntry.COLUMN_HOME_TYPE, HomeEntry.TYPE_SINGLE);
+                values.put(HomeEntry.COLUMN_HOME_INCOME, 1000 + i);
+                id = database.insert(HomeEntry.TABLE_NAME, null, values);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        return id;
+    }
+
+    private SQLiteDatabase openBackup() {
+        return SQLiteDatabase.openDatabase(mBackup.getBackupFile(DATABASE_NAME).getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+    }
+
+    private static long countHomes(SQLiteDatabase database) {
+        return DatabaseUtils.queryNumEntries(database, HomeEntry.TABLE_NAME);
+    }
+
+    private static long countSchema(SQLiteDatabase database, String type) {
+        return DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM sqlite_master"
+                + " WHERE type = ? AND name NOT LIKE 'sqlite%'", new String[] { type });
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.homes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips and latency of reading a screen of homes with their totals, and of a large
+ * query, one provider call each against a single {@link HomeBatch}.
+ *
+ * The homes are inserted through the provider under a county of their own, and deleted
+ * again afterwards. The test runs in the process of the app, so the calls don't cross Binder
+ * and the gap measured is a lower bound of the one seen by another process, which pays a
+ * transaction per round trip on top. The results are logged under the tag of this class,
+ * e.g. "adb logcat -s HomeBatchBenchmark".
+ */
+@RunWith(AndroidJUnit4.class)
+public class HomeBatchBenchmark {
+
+    private static final String LOG_TAG = HomeBatchBenchmark.class.getSimpleName();
+
+    private static final String COUNTY = "HomeBatchBenchmark";
+    private static final String SELECTION = HomeEntry.COLUMN_HOME_COUNTY + "=?";
+    private static final String[] SELECTION_ARGS = { COUNTY };
+
+    private static final int HOMES = 20000;
+
+    /** Homes looked up per screen */
+    private static final int SCREEN_HOMES = 50;
+
+    private static final int RUNS = 20;
+
+    private ContentResolver mResolver;
+    private long[] mIds;
+
+    @Before
+    public void setUp() {
+        mResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+        mResolver.delete(HomeEntry.CONTENT_URI, SELECTION, SELECTION_ARGS);
+
+        // Insert in batches, which also checks that upserts return the ids
+        mIds = new long[HOMES];
+        for (int start = 0; start < HOMES; start += 500) {
+            HomeBatch batch = new HomeBatch();
+            for (int i = start; i < start + 500; i++) {
+                ContentValues values = new ContentValues();
+                values.put(HomeEntry.COLUMN_HOME_ADDRESS, i + " Batch St");
+                values.put(HomeEntry.COLUMN_HOME_COUNTY, COUNTY);
+                values.put(HomeEntry.COLUMN_HOME_TYPE, HomeEntry.TYPE_SINGLE);
+                values.put(HomeEntry.COLUMN_HOME_INCOME, i % 5000);
+                batch.upsert(values);
+            }
+            HomeBatch.Results results = batch.execute(mResolver);
+            for (int i = 0; i < 500; i++) {
+                mIds[start + i] = results.getId(i);
+                assertTrue(mIds[start + i] > 0);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mResolver.delete(HomeEntry.CONTENT_URI, SELECTION, SELECTION_ARGS);
+    }
+
+    @Test
+    public void screenWithTotals() {
+        // The ids of a screen, spread over the homes and in no particular order
+        long[] ids = new long[SCREEN_HOMES];
+        for (int i = 0; i < SCREEN_HOMES; i++) {
+            ids[i] = mIds[(i * 7919) % HOMES];
+        }
+
+        long perCallNanos = 0;
+        long batchNanos = 0;
+        int perCallRoundTrips = 0;
+        for (int run = 0; run < RUNS; run++) {
+            // One query per home, and one for the totals
+            long start = System.nanoTime();
+            long perCallSum = 0;
+            for (long id : ids) {
+                Cursor cursor = mResolver.query(ContentUris.withAppendedId(HomeEntry.CONTENT_URI, id),
+                        HomeContract.BatchEntry.ROW_COLUMNS, null, null, null);
+                try {
+                    assertTrue(cursor.moveToFirst());
+                } finally {
+                    cursor.close();
+                }
+            }
+            Cursor totals = mResolver.query(HomeEntry.CONTENT_URI,
+                    new String[] { HomeEntry.COLUMN_HOME_INCOME }, SELECTION, SELECTION_ARGS, null);
+            try {
+                while (totals.moveToNext()) {
+                    perCallSum += totals.getLong(0);
+                }
+            } finally {
+                totals.close();
+            }
+            perCallNanos += System.nanoTime() - start;
+            perCallRoundTrips = ids.length + 1;
+
+            // The same in one call
+            start = System.nanoTime();
+            HomeBatch batch = new HomeBatch();
+            int lookup = batch.lookup(ids);
+            int aggregate = batch.aggregate(SELECTION, SELECTION_ARGS);
+            HomeBatch.Results results = batch.execute(mResolver);
+            Cursor rows = results.getRows(lookup);
+            try {
+                assertEquals(SCREEN_HOMES, rows.getCount());
+                for (long id : ids) {
+                    assertTrue(rows.moveToNext());
+                    assertEquals(id, rows.getLong(0));
+                }
+            } finally {
+                rows.close();
+            }
+            batchNanos += System.nanoTime() - start;
+
+            assertEquals(HOMES, results.getCount(aggregate));
+            assertEquals(perCallSum, results.getSum(aggregate));
+        }
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "Screen of %d homes with totals: %d round trips in %.2f ms, 1 in %.2f ms",
+                SCREEN_HOMES, perCallRoundTrips, perCallNanos / 1e6 / RUNS,
+                batchNanos / 1e6 / RUNS));
+    }
+
+    @Test
+    public void largeQuery() {
+        long cursorNanos = 0;
+        long batchNanos = 0;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            Cursor cursor = mResolver.query(HomeEntry.CONTENT_URI,
+                    HomeContract.BatchEntry.ROW_COLUMNS, SELECTION, SELECTION_ARGS, null);
+            try {
+                assertEquals(HOMES, readAll(cursor));
+            } finally {
+                cursor.close();
+            }
+            cursorNanos += System.nanoTime() - start;
+
+            // Too large to return inline, so it streams through the pipe
+            start = System.nanoTime();
+            HomeBatch batch = new HomeBatch();
+            int query = batch.query(SELECTION, SELECTION_ARGS, null, -1);
+            Cursor rows = batch.execute(mResolver).getRows(query);
+            try {
+                assertEquals(HOMES, readAll(rows));
+            } finally {
+                rows.close();
+            }
+            batchNanos += System.nanoTime() - start;
+        }
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "Query of %d homes: %.2f ms through a cursor, %.2f ms through a batch",
+                HOMES, cursorNanos / 1e6 / RUNS, batchNanos / 1e6 / RUNS));
+    }
+
+    private static int readAll(Cursor cursor) {
+        int rows = 0;
+        while (cursor.moveToNext()) {
+            cursor.getLong(0);
+            cursor.getString(1);
+            cursor.getString(2);
+            cursor.getInt(3);
+            cursor.getLong(4);
+            rows++;
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,198 @@
+package com.example.homes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a batch with an invalid operation writes nothing through the provider, and that
+ * the rows streamed to a reader that stops reading are given up instead of holding the writer.
+ *
+ * The homes are inserted under a county of their own, and deleted again afterwards.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HomeBatchTest {
+
+    private static final String COUNTY = "HomeBatchTest";
+    private static final String SELECTION = HomeEntry.COLUMN_HOME_COUNTY + "=?";
+    private static final String[] SELECTION_ARGS = { COUNTY };
+
+    /** Far more than the pipe buffer, so the writer has to wait for the reader */
+    private static final int STREAM_BYTES = 1024 * 1024;
+    private static final long STALL_TIMEOUT_MILLIS = 200;
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+        mResolver.delete(HomeEntry.CONTENT_URI, SELECTION, SELECTION_ARGS);
+    }
+
+    @After
+    public void tearDown() {
+        mResolver.delete(HomeEntry.CONTENT_URI, SELECTION, SELECTION_ARGS);
+    }
+
+    @Test
+    public void batch_withAnInvalidOperation_rollsBackTheWritesBeforeIt() {
+        Uri updated = insertHome("1 Batch St", 1000);
+        Uri deleted = insertHome("2 Batch St", 1000);
+
+        HomeBatch batch = new HomeBatch();
+        batch.upsert(home("3 Batch St", 1200));
+        batch.update(ContentUris.parseId(updated), income(1500), 1);
+        batch.delete(ContentUris.parseId(deleted), 1);
+        batch.update(ContentUris.parseId(updated), income(-5), HomeBatch.ANY_VERSION);
+        try {
+            batch.execute(mResolver);
+            fail("Ran a batch with an invalid income");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        assertEquals(2, countHomes());
+        assertEquals(1000, queryIncome(updated));
+        assertEquals(1000, queryIncome(deleted));
+
+        // The shards are left unlocked, so the next batch applies
+        batch = new HomeBatch();
+        int upsert = batch.upsert(home("3 Batch St", 1200));
+        batch.delete(ContentUris.parseId(deleted), 1);
+        HomeBatch.Results results = batch.execute(mResolver);
+        assertFalse(results.hasConflict());
+        assertTrue(results.getId(upsert) > 0);
+        assertEquals(2, countHomes());
+        assertEquals(-1, queryIncome(deleted));
+    }
+
+    @Test
+    public void stream_readInTime_deliversEveryRow() throws IOException {
+        byte[] rows = new byte[STREAM_BYTES];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = (byte) i;
+        }
+        ParcelFileDescriptor pipe = HomeBatchRows.stream(Collections.singletonList(rows), false,
+                STALL_TIMEOUT_MILLIS);
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pipe);
+        try {
+            byte[] buffer = new byte[8 * 1024];
+            int total = 0;
+            int reads = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    assertEquals(rows[total + i], buffer[i]);
+                }
+                total += read;
+                // Slower than the writer, though never for the whole timeout
+                if (++reads % 8 == 0) {
+                    sleep(STALL_TIMEOUT_MILLIS / 4);
+                }
+            }
+            assertEquals(STREAM_BYTES, total);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void stream_notRead_isGivenUp() throws IOException {
+        List<byte[]> rows = Collections.singletonList(new byte[STREAM_BYTES]);
+        ParcelFileDescriptor pipe = HomeBatchRows.stream(rows, false, STALL_TIMEOUT_MILLIS);
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pipe);
+        try {
+            sleep(STALL_TIMEOUT_MILLIS * 5);
+
+            // The read side was closed under the reader that left the pipe full
+            try {
+                byte[] buffer = new byte[STREAM_BYTES];
+                int total = 0;
+                int read;
+                while ((read = in.read(buffer, total, buffer.length - total)) > 0) {
+                    total += read;
+                }
+                assertTrue("Read " + total + " bytes of a stream given up",
+                        total < STREAM_BYTES);
+            } catch (IOException expected) {
+            }
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Closed already by the watchdog
+            }
+        }
+    }
+
+    private Uri insertHome(String address, int income) {
+        Uri uri = mResolver.insert(HomeEntry.CONTENT_URI, home(address, income));
+        assertNotNull(uri);
+        return uri;
+    }
+
+    private static ContentValues home(String address, int income) {
+        ContentValues values = income(income);
+        values.put(HomeEntry.COLUMN_HOME_ADDRESS, address);
+        values.put(HomeEntry.COLUMN_HOME_COUNTY, COUNTY);
+        values.put(HomeEntry.COLUMN_HOME_TYPE, HomeEntry.TYPE_SINGLE);
+        return values;
+    }
+
+    private static ContentValues income(int income) {
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_INCOME, income);
+        return values;
+    }
+
+    private int countHomes() {
+        Cursor cursor = mResolver.query(HomeEntry.CONTENT_URI, new String[] { HomeEntry._ID },
+                SELECTION, SELECTION_ARGS, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the income of the home, or -1 if it is gone.
+     */
+    private long queryIncome(Uri uri) {
+        Cursor cursor = mResolver.query(uri, new String[] { HomeEntry.COLUMN_HOME_INCOME },
+                null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
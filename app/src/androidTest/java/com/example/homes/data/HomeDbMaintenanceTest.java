@@ -0,0 +1,208 @@
+package com.example.homes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the vacuum job gives free pages back one step at a time, stops between steps on
+ * a foreground query or once its budget is spent, and leaves the full vacuum of a database
+ * made before incremental vacuum for when the device charges. Also that the jobs of each shard
+ * are due for the writes to that shard only.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HomeDbMaintenanceTest {
+
+    private HomeDbHelper mDbHelper;
+    private HomeDbMaintenance mMaintenance;
+    private SQLiteDatabase mDatabase;
+    private boolean mCharging;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mDbHelper = new HomeDbHelper(context, null, 0);
+        mMaintenance = new HomeDbMaintenance(context, mDbHelper) {
+            @Override
+            boolean isCharging() {
+                return mCharging;
+            }
+        };
+        mDatabase = mDbHelper.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mMaintenance.shutdown();
+        mDbHelper.close();
+    }
+
+    @Test
+    public void newDatabase_tracksFreePagesFromTheStart() {
+        assertEquals(HomeDbMaintenance.AUTO_VACUUM_INCREMENTAL, pragmaLong("auto_vacuum"));
+    }
+
+    @Test
+    public void vacuum_givesBackFreePagesOneStepAtATime() {
+        long freePages = makeFreePages();
+
+        // Let a single step run
+        HomeDbMaintenance.Report report = runVacuum(mMaintenance.new Session(
+                SystemClock.uptimeMillis(), 60000) {
+            private int mCalls;
+
+            @Override
+            boolean shouldStop() {
+                return ++mCalls > 1 || super.shouldStop();
+            }
+        });
+        assertFalse(report.mCompleted);
+        long stepPages = freePages - pragmaLong("freelist_count");
+        assertTrue(stepPages > 0);
+        assertTrue(pragmaLong("freelist_count") > 0);
+
+        report = runVacuum(mMaintenance.new Session(SystemClock.uptimeMillis(), 60000));
+        assertTrue(report.mCompleted);
+        assertEquals(0, pragmaLong("freelist_count"));
+        assertEquals(report.mPagesBefore - freePages + stepPages, report.mPagesAfter);
+    }
+
+    @Test
+    public void vacuum_stopsOnForegroundQuery() {
+        long freePages = makeFreePages();
+        HomeDbMaintenance.Session session = mMaintenance.new Session(
+                SystemClock.uptimeMillis() - 1, 60000);
+        assertFalse(session.shouldStop());
+
+        mMaintenance.noteQuery();
+        assertFalse(runVacuum(session).mCompleted);
+        assertTrue(session.isInterrupted());
+        assertEquals(freePages, pragmaLong("freelist_count"));
+    }
+
+    @Test
+    public void vacuum_stopsOnceItsBudgetIsSpent() {
+        long freePages = makeFreePages();
+        HomeDbMaintenance.Session session = mMaintenance.new Session(
+                SystemClock.uptimeMillis() - 1000, 500);
+
+        assertFalse(runVacuum(session).mCompleted);
+        assertEquals(freePages, pragmaLong("freelist_count"));
+    }
+
+    @Test
+    public void databaseBeforeIncrementalVacuum_isOnlyVacuumedWhileCharging() {
+        // As made by the versions of the app before incremental vacuum
+        mDatabase.execSQL("PRAGMA auto_vacuum = NONE");
+        mDatabase.execSQL("VACUUM");
+        assertEquals(0, pragmaLong("auto_vacuum"));
+        long freePages = makeFreePages();
+
+        mCharging = false;
+        assertTrue(runVacuum(mMaintenance.new Session(
+                SystemClock.uptimeMillis(), 60000)).mCompleted);
+        assertEquals(0, pragmaLong("auto_vacuum"));
+        assertEquals(freePages, pragmaLong("freelist_count"));
+
+        // Charging, but the provider got a query
+        mCharging = true;
+        HomeDbMaintenance.Session session = mMaintenance.new Session(
+                SystemClock.uptimeMillis() - 1, 60000);
+        mMaintenance.noteQuery();
+        assertFalse(runVacuum(session).mCompleted);
+        assertEquals(0, pragmaLong("auto_vacuum"));
+
+        assertTrue(runVacuum(mMaintenance.new Session(
+                SystemClock.uptimeMillis(), 60000)).mCompleted);
+        assertEquals(HomeDbMaintenance.AUTO_VACUUM_INCREMENTAL, pragmaLong("auto_vacuum"));
+        assertEquals(0, pragmaLong("freelist_count"));
+    }
+
+    /**
+     * Fill the database with homes and delete them for good, returning the free pages left.
+     */
+    private long makeFreePages() {
+        char[] padding = new char[1000];
+        Arrays.fill(padding, 'x');
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_COUNTY, "Springfield");
+        values.put(HomeEntry.COLUMN_HOME_TYPE, HomeEntry.TYPE_SINGLE);
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < 2000; i++) {
+                values.put(HomeEntry.COLUMN_HOME_ADDRESS, i + " Oak St " + new String(padding));
+                mDatabase.insert(HomeEntry.TABLE_NAME, null, values);
+            }
+            mDatabase.delete(HomeEntry.TABLE_NAME, null, null);
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        long freePages = pragmaLong("freelist_count");
+        // More than a single step of the job
+        assertTrue(freePages > 500);
+        return freePages;
+    }
+
+    @Test
+    public void writes_makeOnlyTheJobsOfTheirShardDue() {
+        HomeDbHelper other = new HomeDbHelper(InstrumentationRegistry.getTargetContext(), null, 1);
+        HomeDbMaintenance maintenance = new HomeDbMaintenance(
+                InstrumentationRegistry.getTargetContext(), mDbHelper, other);
+        try {
+            SQLiteDatabase otherDatabase = other.getWritableDatabase();
+            HomeDbMaintenance.Job analyze = maintenance.getJob("analyze");
+            HomeDbMaintenance.Job vacuum = maintenance.getJob("vacuum");
+
+            maintenance.noteWrite(1, 1000);
+            assertFalse(analyze.isDue(mDatabase, 0));
+            assertTrue(analyze.isDue(otherDatabase, 0));
+
+            // Writes to every shard count for each
+            maintenance.noteWrite(HomeDbMaintenance.ALL_SHARDS, 1000);
+            assertTrue(analyze.isDue(mDatabase, 0));
+            assertTrue(maintenance.runJob("first", mDatabase, analyze).mCompleted);
+            assertFalse(analyze.isDue(mDatabase, 0));
+            // Analyzing the first shard leaves the second one due
+            assertTrue(analyze.isDue(otherDatabase, 0));
+            assertTrue(maintenance.runJob("other", otherDatabase, analyze).mCompleted);
+            assertFalse(analyze.isDue(otherDatabase, 0));
+
+            maintenance.requestVacuum(1);
+            assertFalse(vacuum.isDue(mDatabase, 0));
+            assertTrue(vacuum.isDue(otherDatabase, 0));
+            // Vacuuming the first shard leaves the request of the second one
+            assertTrue(maintenance.runJob("first", mDatabase, vacuum).mCompleted);
+            assertTrue(vacuum.isDue(otherDatabase, 0));
+            assertTrue(maintenance.runJob("other", otherDatabase, vacuum).mCompleted);
+            assertFalse(vacuum.isDue(otherDatabase, 0));
+        } finally {
+            maintenance.shutdown();
+            other.close();
+        }
+    }
+
+    private HomeDbMaintenance.Report runVacuum(HomeDbMaintenance.Session session) {
+        return mMaintenance.runJob(mDbHelper.getDatabaseName(), mDatabase,
+                mMaintenance.getJob("vacuum"), session);
+    }
+
+    private long pragmaLong(String pragma) {
+        return DatabaseUtils.longForQuery(mDatabase, "PRAGMA " + pragma, null);
+    }
+}
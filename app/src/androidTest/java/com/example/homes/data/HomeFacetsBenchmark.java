@@ -0,0 +1,145 @@
+package com.example.homes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.homes.HomeFilter;
+import com.example.homes.data.HomeContract.FacetEntry;
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * What it takes to redraw the catalog after picking a facet at {@link #HOMES} homes: reading
+ * the facet counts, then the first screen of the homes matching the filter.
+ *
+ * The facet counts are compared with counting the live homes with GROUP BY, which is what the
+ * counts table replaces. The results are logged under the tag of this class, e.g.
+ * "adb logcat -s HomeFacetsBenchmark".
+ */
+@RunWith(AndroidJUnit4.class)
+public class HomeFacetsBenchmark {
+
+    private static final String LOG_TAG = HomeFacetsBenchmark.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "benchmark-facets";
+
+    private static final int HOMES = 1000000;
+    private static final int COUNTIES = 64;
+    private static final int RUNS = 20;
+
+    /** Rows read by one catalog read, about one screen of the list */
+    private static final int ROWS_PER_READ = 50;
+
+    /** Redraw budget of a facet change */
+    private static final long TARGET_MILLIS = 50;
+
+    @Test
+    public void facetChange_at1MHomes() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DATABASE_NAME + ".db");
+
+        HomeDbHelper[] dbHelpers = HomeShards.createDbHelpers(context, DATABASE_NAME, 1);
+        HomeShards shards = new HomeShards(dbHelpers, new HomeDbMaintenance(context, dbHelpers));
+        try {
+            preload(dbHelpers[0].getWritableDatabase());
+
+            Random random = new Random(3);
+            String orderBy = HomeProvider.resolveSortOrder(HomeEntry.SORT_DEFAULT);
+            long facetNanos = 0;
+            long filteredNanos = 0;
+            long worstNanos = 0;
+            for (int run = 0; run < RUNS; run++) {
+                HomeFilter filter = new HomeFilter();
+                filter.setCounty("County " + random.nextInt(COUNTIES));
+                if (run % 2 == 1) {
+                    filter.setType(HomeEntry.TYPE_SINGLE);
+                    filter.setIncomeBand(random.nextInt(FacetEntry.getIncomeBandCount()));
+                }
+
+                long start = System.nanoTime();
+                readAll(shards.queryFacets());
+                long facetsDone = System.nanoTime();
+                readFirstScreen(shards.query(null, filter.getSelection(),
+                        filter.getSelectionArgs(), orderBy, true));
+                long end = System.nanoTime();
+
+                facetNanos += facetsDone - start;
+                filteredNanos += end - facetsDone;
+                worstNanos = Math.max(worstNanos, end - start);
+            }
+
+            long start = System.nanoTime();
+            readAll(dbHelpers[0].getReadableDatabase().rawQuery("SELECT "
+                    + HomeEntry.COLUMN_HOME_COUNTY + ", COUNT(*) FROM " + HomeEntry.TABLE_NAME
+                    + " WHERE " + HomeEntry.COLUMN_HOME_DELETED + " = 0 GROUP BY "
+                    + HomeEntry.COLUMN_HOME_COUNTY, null));
+            long groupByNanos = System.nanoTime() - start;
+
+            Log.i(LOG_TAG, String.format(Locale.US,
+                    "%d homes: facets %.2f ms, filtered first screen %.2f ms, worst redraw"
+                            + " %.2f ms (GROUP BY of one facet: %.2f ms)",
+                    HOMES, facetNanos / 1e6 / RUNS, filteredNanos / 1e6 / RUNS, worstNanos / 1e6,
+                    groupByNanos / 1e6));
+
+            assertTrue("Worst redraw took " + worstNanos / 1000000 + " ms",
+                    worstNanos / 1000000 < TARGET_MILLIS);
+        } finally {
+            dbHelpers[0].close();
+            context.deleteDatabase(DATABASE_NAME + ".db");
+        }
+    }
+
+    private static void preload(SQLiteDatabase database) {
+        Random random = new Random(-1);
+        ContentValues values = new ContentValues();
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < HOMES; i++) {
+                String address = random.nextInt(10000) + " Elm St";
+                values.put(HomeEntry.COLUMN_HOME_ADDRESS, address);
+                values.put(HomeEntry.COLUMN_HOME_COUNTY, "County " + random.nextInt(COUNTIES));
+                values.put(HomeEntry.COLUMN_HOME_TYPE, random.nextInt(3));
+                values.put(HomeEntry.COLUMN_HOME_INCOME, random.nextInt(8000));
+                values.put(HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS,
+                        AddressNormalizer.normalize(address));
+                database.insertOrThrow(HomeEntry.TABLE_NAME, null, values);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        database.execSQL("ANALYZE;");
+    }
+
+    private static void readAll(Cursor cursor) {
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getString(0);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void readFirstScreen(Cursor cursor) {
+        try {
+            for (int i = 0; i < ROWS_PER_READ && cursor.moveToNext(); i++) {
+                cursor.getLong(cursor.getColumnIndex(HomeEntry._ID));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
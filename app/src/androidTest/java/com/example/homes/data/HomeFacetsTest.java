@@ -0,0 +1,194 @@
+package com.example.homes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.homes.HomeFilter;
+import com.example.homes.data.HomeContract.FacetEntry;
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the facet counts stay equal to a count of the live homes through every kind of
+ * write, and that the selection of a filter returns the homes its count promised.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HomeFacetsTest {
+
+    private static final int SHARD_COUNT = 2;
+
+    private static final String[] COUNTIES = { "Springfield", "Shelbyville", "Ogdenville", null };
+
+    private InMemoryShards mDatabases;
+    private HomeShards mShards;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mDatabases = new InMemoryShards(context, SHARD_COUNT);
+        mShards = mDatabases.mShards;
+
+        Random random = new Random(7);
+        for (int i = 0; i < 200; i++) {
+            insert(COUNTIES[random.nextInt(COUNTIES.length)], random.nextInt(3),
+                    random.nextInt(8000));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mDatabases.close();
+    }
+
+    @Test
+    public void counts_matchLiveHomesAfterInserts() {
+        assertEquals(countLiveHomes(), readFacets());
+    }
+
+    @Test
+    public void counts_followUpdates() {
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_COUNTY, "Capital City");
+        values.put(HomeEntry.COLUMN_HOME_INCOME, 1500);
+        mShards.update(values, HomeEntry.COLUMN_HOME_TYPE + " = ?",
+                new String[] { String.valueOf(HomeEntry.TYPE_MULTI) });
+
+        assertEquals(countLiveHomes(), readFacets());
+    }
+
+    @Test
+    public void counts_followDeletesAndUndo() {
+        assertTrue(mShards.delete(HomeEntry.COLUMN_HOME_INCOME + " < ?",
+                new String[] { "1000" }) > 0);
+        long deletionId = lastDeletionId();
+        assertEquals(countLiveHomes(), readFacets());
+
+        assertEquals(1, mShards.undo(deletionId));
+        assertEquals(countLiveHomes(), readFacets());
+    }
+
+    @Test
+    public void counts_followDeleteAll() {
+        mShards.delete(null, null);
+        assertTrue(readFacets().isEmpty());
+
+        // Homes added while the deletion can still be undone are counted on their own
+        insert("Springfield", HomeEntry.TYPE_SINGLE, 700);
+        insert(null, HomeEntry.TYPE_UNKNOWN, 9000);
+        assertEquals(countLiveHomes(), readFacets());
+
+        assertEquals(1, mShards.undo(lastDeletionId()));
+        assertEquals(countLiveHomes(), readFacets());
+    }
+
+    @Test
+    public void filterSelection_returnsTheCountedHomes() {
+        Cursor cursor = mShards.queryFacets();
+        try {
+            assertTrue(cursor.getCount() > 0);
+            while (cursor.moveToNext()) {
+                // Each value on its own matches as many homes as its count
+                HomeFilter filter = new HomeFilter();
+                filter.setFacet(cursor.getString(0), cursor.getString(1));
+                assertEquals(cursor.getString(0) + " " + cursor.getString(1),
+                        cursor.getLong(2), queryCount(filter));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long insert(String county, int type, int income) {
+        String address = income + " Elm St";
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_ADDRESS, address);
+        values.put(HomeEntry.COLUMN_HOME_COUNTY, county);
+        values.put(HomeEntry.COLUMN_HOME_TYPE, type);
+        values.put(HomeEntry.COLUMN_HOME_INCOME, income);
+        values.put(HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS, AddressNormalizer.normalize(address));
+        return mShards.insert(mShards.shardOfCounty(county), values);
+    }
+
+    private long lastDeletionId() {
+        Cursor deletions = mShards.queryDeletions(null, null, null);
+        try {
+            assertTrue(deletions.moveToFirst());
+            return deletions.getLong(deletions.getColumnIndex(HomeContract.DeletionEntry._ID));
+        } finally {
+            deletions.close();
+        }
+    }
+
+    /**
+     * Returns the facet counts as "facet/value" to count.
+     */
+    private Map<String, Long> readFacets() {
+        Map<String, Long> counts = new HashMap<>();
+        Cursor cursor = mShards.queryFacets();
+        try {
+            while (cursor.moveToNext()) {
+                counts.put(cursor.getString(0) + "/" + cursor.getString(1), cursor.getLong(2));
+            }
+        } finally {
+            cursor.close();
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the counts the facets should have, from the live homes themselves.
+     */
+    private Map<String, Long> countLiveHomes() {
+        Map<String, Long> counts = new HashMap<>();
+        Cursor cursor = mShards.query(new String[] {
+                        HomeEntry.COLUMN_HOME_COUNTY,
+                        HomeEntry.COLUMN_HOME_TYPE,
+                        HomeEntry.COLUMN_HOME_INCOME },
+                null, null, HomeProvider.resolveSortOrder(null), true);
+        try {
+            while (cursor.moveToNext()) {
+                String county = cursor.isNull(0) ? "" : cursor.getString(0);
+                int income = cursor.getInt(2);
+                int band = 0;
+                while (band < FacetEntry.INCOME_BAND_BOUNDS.length
+                        && income >= FacetEntry.INCOME_BAND_BOUNDS[band]) {
+                    band++;
+                }
+                increment(counts, FacetEntry.FACET_COUNTY + "/" + county);
+                increment(counts, FacetEntry.FACET_TYPE + "/" + cursor.getInt(1));
+                increment(counts, FacetEntry.FACET_INCOME_BAND + "/" + band);
+            }
+        } finally {
+            cursor.close();
+        }
+        return counts;
+    }
+
+    private long queryCount(HomeFilter filter) {
+        Cursor cursor = mShards.query(null, filter.getSelection(), filter.getSelectionArgs(),
+                HomeProvider.resolveSortOrder(null), true);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void increment(Map<String, Long> counts, String key) {
+        Long count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.homes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Single-row write throughput with 1, 8 and 32 concurrent writers, committing every write on
+ * its own and with group commit.
+ *
+ * Every run starts from a fresh database file, so commits really wait for the disk. Half of
+ * the writes insert a home, the other half update the income of a home inserted earlier by
+ * the same writer. The results are logged under the tag of this class, e.g.
+ * "adb logcat -s HomeGroupCommitBenchmark".
+ */
+@RunWith(AndroidJUnit4.class)
+public class HomeGroupCommitBenchmark {
+
+    private static final String LOG_TAG = HomeGroupCommitBenchmark.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "benchmark-group-commit";
+    private static final long DURATION_MILLIS = 3000;
+    private static final long GROUP_COMMIT_WINDOW_MILLIS = 2;
+
+    @Test
+    public void writes_1Writer() throws InterruptedException {
+        compare(1);
+    }
+
+    @Test
+    public void writes_8Writers() throws InterruptedException {
+        compare(8);
+    }
+
+    @Test
+    public void writes_32Writers() throws InterruptedException {
+        compare(32);
+    }
+
+    private void compare(int writers) throws InterruptedException {
+        double separate = runWrites(writers, HomeShards.GROUP_COMMIT_OFF);
+        double grouped = runWrites(writers, GROUP_COMMIT_WINDOW_MILLIS);
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%d writers: %.0f writes/s on their own, %.0f writes/s with group commit (%.1fx)",
+                writers, separate, grouped, grouped / separate));
+    }
+
+    /**
+     * Returns the writes per second the writers reached together.
+     */
+    private double runWrites(int writers, long groupCommitWindowMillis)
+            throws InterruptedException {
+        Context context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DATABASE_NAME + ".db");
+
+        HomeDbHelper[] dbHelpers = HomeShards.createDbHelpers(context, DATABASE_NAME, 1);
+        final HomeShards shards = new HomeShards(dbHelpers,
+                new HomeDbMaintenance(context, dbHelpers), groupCommitWindowMillis);
+        try {
+            final AtomicLong writes = new AtomicLong();
+            final CountDownLatch start = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(writers);
+
+            for (int w = 0; w < writers; w++) {
+                final Random random = new Random(w);
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            long lastId = -1;
+                            long deadline = System.currentTimeMillis() + DURATION_MILLIS;
+                            while (System.currentTimeMillis() < deadline) {
+                                if (lastId == -1 || random.nextBoolean()) {
+                                    lastId = shards.insert(0, newHome(random));
+                                } else {
+                                    ContentValues values = new ContentValues();
+                                    values.put(HomeEntry.COLUMN_HOME_INCOME, random.nextInt(5000));
+                                    shards.update(0, values, HomeEntry._ID + "=?",
+                                            new String[] { String.valueOf(lastId) });
+                                }
+                                writes.incrementAndGet();
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }).start();
+            }
+
+            start.countDown();
+            done.await();
+
+            assertTrue(writes.get() > 0);
+            return writes.get() / (DURATION_MILLIS / 1000.0);
+        } finally {
+            dbHelpers[0].close();
+            context.deleteDatabase(DATABASE_NAME + ".db");
+        }
+    }
+
+    private static ContentValues newHome(Random random) {
+        String address = random.nextInt(10000) + " Elm St";
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_ADDRESS, address);
+        values.put(HomeEntry.COLUMN_HOME_TYPE, HomeEntry.TYPE_SINGLE);
+        values.put(HomeEntry.COLUMN_HOME_INCOME, random.nextInt(5000));
+        values.put(HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS, AddressNormalizer.normalize(address));
+        return values;
+    }
+}
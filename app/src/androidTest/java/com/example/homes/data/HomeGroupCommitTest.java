@@ -0,0 +1,127 @@
+package com.example.homes.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that group commit applies every write once, shares commits between concurrent
+ * writers, and reports a failing write to its own caller only.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HomeGroupCommitTest {
+
+    private static final int WRITERS = 8;
+    private static final int WRITES_PER_WRITER = 50;
+
+    private HomeDbHelper mDbHelper;
+    private HomeGroupCommit mGroupCommit;
+
+    @Before
+    public void setUp() {
+        mDbHelper = new HomeDbHelper(InstrumentationRegistry.getTargetContext(), null, 0);
+        mGroupCommit = new HomeGroupCommit(mDbHelper, 5);
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+    }
+
+    @Test
+    public void concurrentWrites_shareCommits() throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(WRITERS);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < WRITES_PER_WRITER; i++) {
+                            if (mGroupCommit.write(insert(writer + "-" + i + " Elm St")) == -1) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+
+        assertEquals(0, failures.get());
+        assertEquals(WRITERS * WRITES_PER_WRITER, DatabaseUtils.queryNumEntries(
+                mDbHelper.getReadableDatabase(), HomeEntry.TABLE_NAME));
+        assertEquals(WRITERS * WRITES_PER_WRITER, mGroupCommit.getWriteCount());
+        assertTrue(mGroupCommit.getBatchCount() < mGroupCommit.getWriteCount());
+    }
+
+    @Test
+    public void failingWrite_failsAlone() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final long[] otherId = { -1 };
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                otherId[0] = mGroupCommit.write(insert("1 Main St"));
+                done.countDown();
+            }
+        });
+        other.start();
+
+        try {
+            mGroupCommit.write(new HomeGroupCommit.Write() {
+                @Override
+                public long apply(SQLiteDatabase database) {
+                    database.execSQL("INSERT INTO no_such_table VALUES (1)");
+                    return 0;
+                }
+            });
+            fail("The failing write returned");
+        } catch (SQLiteException expected) {
+            // Only this caller sees the failure
+        }
+        done.await();
+
+        assertTrue(otherId[0] > 0);
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDbHelper.getReadableDatabase(),
+                HomeEntry.TABLE_NAME));
+    }
+
+    private static HomeGroupCommit.Write insert(final String address) {
+        return new HomeGroupCommit.Write() {
+            @Override
+            public long apply(SQLiteDatabase database) {
+                ContentValues values = new ContentValues();
+                values.put(HomeEntry.COLUMN_HOME_ADDRESS, address);
+                values.put(HomeEntry.COLUMN_HOME_TYPE, HomeEntry.TYPE_SINGLE);
+                values.put(HomeEntry.COLUMN_HOME_INCOME, 100);
+                values.put(HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS,
+                        AddressNormalizer.normalize(address));
+                return database.insert(HomeEntry.TABLE_NAME, null, values);
+            }
+        };
+    }
+}
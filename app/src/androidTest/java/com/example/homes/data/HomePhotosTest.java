@@ -0,0 +1,249 @@
+package com.example.homes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.ParcelFileDescriptor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that photos are stored as files and replaced atomically, that thumbnails come out
+ * at the size asked for and are served from the disk cache, and that the cache and the sweep
+ * keep the storage bounded.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HomePhotosTest {
+
+    private static final int LIST_THUMBNAIL_SIZE = 48;
+
+    private File mDirectory;
+    private InMemoryShards mDatabases;
+    private HomeShards mShards;
+    private HomeThumbnailCache mThumbnails;
+    private HomePhotos mPhotos;
+
+    /** Versions reported to the listener, by home */
+    private final List<long[]> mChanges = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mDirectory = new File(context.getCacheDir(), "photos-test");
+        deleteRecursively(mDirectory);
+
+        mDatabases = new InMemoryShards(context, 1);
+        mShards = mDatabases.mShards;
+        mThumbnails = new HomeThumbnailCache(new File(mDirectory, "thumbnails"), 1024 * 1024);
+        mPhotos = new HomePhotos(new File(mDirectory, "photos"), mThumbnails, mShards,
+                mDatabases.mMaintenance, LIST_THUMBNAIL_SIZE, new HomePhotos.Listener() {
+                    @Override
+                    public void onPhotoChanged(long id, long version) {
+                        mChanges.add(new long[] { id, version });
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() {
+        mDatabases.close();
+        deleteRecursively(mDirectory);
+    }
+
+    @Test
+    public void writePhoto_isReadBackAsWritten() throws IOException {
+        long id = insertHome();
+        byte[] photo = encode(640, 480, Bitmap.CompressFormat.JPEG);
+
+        long version = mPhotos.writePhoto(id, new ByteArrayInputStream(photo));
+        assertTrue(version > 0);
+        assertEquals(1, mChanges.size());
+        assertEquals(id, mChanges.get(0)[0]);
+        assertEquals(version, mChanges.get(0)[1]);
+
+        ParcelFileDescriptor descriptor = mPhotos.openPhoto(id);
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+        try {
+            assertArrayEquals(photo, readAll(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void writePhoto_dropsWhatIsNotAnImage() throws IOException {
+        long id = insertHome();
+        mPhotos.writePhoto(id, new ByteArrayInputStream(encode(64, 64, Bitmap.CompressFormat.PNG)));
+        mChanges.clear();
+
+        try {
+            mPhotos.writePhoto(id, new ByteArrayInputStream("not a photo".getBytes("UTF-8")));
+            fail("Wrote a photo that isn't an image");
+        } catch (IOException expected) {
+        }
+        // The previous photo is still there, and nothing half written was left behind
+        assertTrue(mChanges.isEmpty());
+        mPhotos.openPhoto(id).close();
+        assertEquals(1, new File(mDirectory, "photos").list().length);
+    }
+
+    @Test
+    public void getThumbnail_isCroppedToTheSizeAskedFor() throws IOException {
+        long id = insertHome();
+        mPhotos.writePhoto(id, new ByteArrayInputStream(encode(1600, 900, Bitmap.CompressFormat.JPEG)));
+
+        // The list thumbnail was made with the write
+        assertEquals(1, mThumbnails.getEntryCount());
+        long misses = mThumbnails.getMissCount();
+        assertSize(LIST_THUMBNAIL_SIZE, mPhotos.getThumbnail(id, LIST_THUMBNAIL_SIZE));
+        assertEquals(misses, mThumbnails.getMissCount());
+
+        assertSize(200, mPhotos.getThumbnail(id, 200));
+        assertEquals(2, mThumbnails.getEntryCount());
+    }
+
+    @Test
+    public void writePhoto_replacesTheThumbnails() throws IOException {
+        long id = insertHome();
+        mPhotos.writePhoto(id, new ByteArrayInputStream(encode(300, 300, Bitmap.CompressFormat.JPEG)));
+        File before = mPhotos.getThumbnail(id, 100);
+        assertEquals(2, mThumbnails.getEntryCount());
+
+        mPhotos.writePhoto(id, new ByteArrayInputStream(encode(200, 400, Bitmap.CompressFormat.PNG)));
+        assertFalse(before.exists());
+        // Only the list thumbnail of the new photo
+        assertEquals(1, mThumbnails.getEntryCount());
+
+        assertTrue(mPhotos.deletePhoto(id));
+        assertEquals(0, mThumbnails.getEntryCount());
+        try {
+            mPhotos.openPhoto(id);
+            fail("Opened a deleted photo");
+        } catch (FileNotFoundException expected) {
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getThumbnail_rejectsSizesOutOfBounds() throws IOException {
+        long id = insertHome();
+        mPhotos.writePhoto(id, new ByteArrayInputStream(encode(64, 64, Bitmap.CompressFormat.PNG)));
+        mPhotos.getThumbnail(id, HomePhotos.MAX_THUMBNAIL_SIZE + 1);
+    }
+
+    @Test
+    public void thumbnailCache_evictsTheLeastRecentlyUsed() throws IOException {
+        HomeThumbnailCache cache = new HomeThumbnailCache(new File(mDirectory, "lru"), 2500);
+        cache.put("a", tempFile(cache, 1000));
+        cache.put("b", tempFile(cache, 1000));
+        assertNotNull(cache.get("a"));
+
+        cache.put("c", tempFile(cache, 1000));
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(2000, cache.getSizeBytes());
+        assertEquals(1, cache.getEvictionCount());
+
+        // A cache opened on the same directory finds the files again
+        HomeThumbnailCache reopened = new HomeThumbnailCache(new File(mDirectory, "lru"), 2500);
+        assertEquals(2, reopened.getEntryCount());
+        assertEquals(2000, reopened.getSizeBytes());
+    }
+
+    @Test
+    public void sweep_deletesThePhotosOfPurgedHomes() throws IOException {
+        long kept = insertHome();
+        long purged = insertHome();
+        mPhotos.writePhoto(kept, new ByteArrayInputStream(encode(64, 64, Bitmap.CompressFormat.PNG)));
+        mPhotos.writePhoto(purged, new ByteArrayInputStream(encode(64, 64, Bitmap.CompressFormat.PNG)));
+
+        // A home deleted but still in its undo window keeps its photo
+        mShards.delete(0, HomeEntry._ID + "=?", new String[] { String.valueOf(kept) });
+        mDatabases.mDbHelpers[0].getWritableDatabase().delete(HomeEntry.TABLE_NAME,
+                HomeEntry._ID + "=?", new String[] { String.valueOf(purged) });
+
+        assertEquals(1, mPhotos.sweep());
+        mPhotos.openPhoto(kept).close();
+        try {
+            mPhotos.openPhoto(purged);
+            fail("Kept the photo of a purged home");
+        } catch (FileNotFoundException expected) {
+        }
+        assertEquals(0, mPhotos.sweep());
+    }
+
+    private long insertHome() {
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_ADDRESS, "742 Evergreen Terrace");
+        values.put(HomeEntry.COLUMN_HOME_TYPE, HomeEntry.TYPE_SINGLE);
+        return mShards.insert(0, values);
+    }
+
+    private static byte[] encode(int width, int height, Bitmap.CompressFormat format) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(0xFF3366CC);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(format, 90, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
+    private static void assertSize(int size, File thumbnail) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(thumbnail.getPath(), options);
+        assertEquals(size, options.outWidth);
+        assertEquals(size, options.outHeight);
+    }
+
+    private static File tempFile(HomeThumbnailCache cache, int length) throws IOException {
+        File file = cache.createTempFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[length]);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.homes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Latency of reading, inserting and updating single homes through the ContentResolver against
+ * {@link HomeRepository}, which skips the URI, the ContentValues and the Strings of the
+ * selection.
+ *
+ * The homes are written under a county of their own, and deleted again afterwards. The test
+ * runs in the process of the app, like the editor, so neither path crosses Binder. The results
+ * are logged under the tag of this class, e.g. "adb logcat -s HomeRepositoryBenchmark".
+ */
+@RunWith(AndroidJUnit4.class)
+public class HomeRepositoryBenchmark {
+
+    private static final String LOG_TAG = HomeRepositoryBenchmark.class.getSimpleName();
+
+    private static final String COUNTY = "HomeRepositoryBenchmark";
+    private static final String SELECTION = HomeEntry.COLUMN_HOME_COUNTY + "=?";
+    private static final String[] SELECTION_ARGS = { COUNTY };
+
+    private static final String[] PROJECTION = {
+            HomeEntry._ID,
+            HomeEntry.COLUMN_HOME_VERSION,
+            HomeEntry.COLUMN_HOME_ADDRESS,
+            HomeEntry.COLUMN_HOME_COUNTY,
+            HomeEntry.COLUMN_HOME_TYPE,
+            HomeEntry.COLUMN_HOME_INCOME };
+
+    /** Homes written per run and path */
+    private static final int HOMES = 500;
+
+    private static final int RUNS = 10;
+
+    private ContentResolver mResolver;
+    private HomeRepository mRepository;
+
+    @Before
+    public void setUp() {
+        mResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+        mResolver.delete(HomeEntry.CONTENT_URI, SELECTION, SELECTION_ARGS);
+        mRepository = HomeRepository.get(InstrumentationRegistry.getTargetContext());
+    }
+
+    @After
+    public void tearDown() {
+        mResolver.delete(HomeEntry.CONTENT_URI, SELECTION, SELECTION_ARGS);
+    }
+
+    @Test
+    public void singleHomes() {
+        long[] ids = new long[HOMES];
+        long resolverInsertNanos = 0;
+        long repositoryInsertNanos = 0;
+        long resolverGetNanos = 0;
+        long repositoryGetNanos = 0;
+        long resolverUpdateNanos = 0;
+        long repositoryUpdateNanos = 0;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < HOMES; i++) {
+                ContentValues values = new ContentValues();
+                values.put(HomeEntry.COLUMN_HOME_ADDRESS, i + " Resolver St");
+                values.put(HomeEntry.COLUMN_HOME_COUNTY, COUNTY);
+                values.put(HomeEntry.COLUMN_HOME_TYPE, HomeEntry.TYPE_SINGLE);
+                values.put(HomeEntry.COLUMN_HOME_INCOME, i);
+                ids[i] = ContentUris.parseId(mResolver.insert(HomeEntry.CONTENT_URI, values));
+            }
+            resolverInsertNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (long id : ids) {
+                Cursor cursor = mResolver.query(ContentUris.withAppendedId(HomeEntry.CONTENT_URI,
+                        id), PROJECTION, null, null, null);
+                try {
+                    assertTrue(cursor.moveToFirst());
+                    cursor.getString(2);
+                } finally {
+                    cursor.close();
+                }
+            }
+            resolverGetNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (long id : ids) {
+                ContentValues values = new ContentValues();
+                values.put(HomeEntry.COLUMN_HOME_INCOME, run);
+                assertEquals(1, mResolver.update(ContentUris.withAppendedId(
+                        HomeEntry.CONTENT_URI, id), values, null, null));
+            }
+            resolverUpdateNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < HOMES; i++) {
+                ids[i] = mRepository.insertHome(new Home(i + " Repository St", COUNTY,
+                        HomeEntry.TYPE_SINGLE, i));
+            }
+            repositoryInsertNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Home[] homes = new Home[HOMES];
+            for (int i = 0; i < HOMES; i++) {
+                homes[i] = mRepository.getHome(ids[i]);
+                assertNotNull(homes[i]);
+            }
+            repositoryGetNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (Home home : homes) {
+                assertTrue(mRepository.updateHome(new Home(home.getId(), home.getVersion(),
+                        home.getAddress(), home.getCounty(), home.getType(), run)) > 0);
+            }
+            repositoryUpdateNanos += System.nanoTime() - start;
+        }
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "Per home, resolver against repository: insert %.1f us / %.1f us,"
+                        + " get %.1f us / %.1f us, update %.1f us / %.1f us",
+                perHomeMicros(resolverInsertNanos), perHomeMicros(repositoryInsertNanos),
+                perHomeMicros(resolverGetNanos), perHomeMicros(repositoryGetNanos),
+                perHomeMicros(resolverUpdateNanos), perHomeMicros(repositoryUpdateNanos)));
+    }
+
+    private static double perHomeMicros(long nanos) {
+        return nanos / 1e3 / RUNS / HOMES;
+    }
+}
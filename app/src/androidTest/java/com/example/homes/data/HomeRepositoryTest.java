@@ -0,0 +1,180 @@
+package com.example.homes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that homes written through {@link HomeRepository} are the homes callers of the
+ * provider see, with the same checks, versions and notifications, and the other way around.
+ *
+ * The homes are inserted under a county of their own, and deleted again afterwards.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HomeRepositoryTest {
+
+    private static final String COUNTY = "HomeRepositoryTest";
+    private static final String SELECTION = HomeEntry.COLUMN_HOME_COUNTY + "=?";
+    private static final String[] SELECTION_ARGS = { COUNTY };
+
+    private ContentResolver mResolver;
+    private HomeRepository mRepository;
+
+    @Before
+    public void setUp() {
+        mResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+        mResolver.delete(HomeEntry.CONTENT_URI, SELECTION, SELECTION_ARGS);
+        mRepository = HomeRepository.get(InstrumentationRegistry.getTargetContext());
+    }
+
+    @After
+    public void tearDown() {
+        mResolver.delete(HomeEntry.CONTENT_URI, SELECTION, SELECTION_ARGS);
+    }
+
+    @Test
+    public void insertedHome_isSeenByTheProvider() {
+        long id = mRepository.insertHome(new Home("1 Repository St", COUNTY,
+                HomeEntry.TYPE_MULTI, 1500));
+        assertTrue(id > 0);
+
+        Cursor cursor = mResolver.query(ContentUris.withAppendedId(HomeEntry.CONTENT_URI, id),
+                new String[] { HomeEntry.COLUMN_HOME_ADDRESS, HomeEntry.COLUMN_HOME_TYPE,
+                        HomeEntry.COLUMN_HOME_INCOME, HomeEntry.COLUMN_HOME_VERSION },
+                null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("1 Repository St", cursor.getString(0));
+            assertEquals(HomeEntry.TYPE_MULTI, cursor.getInt(1));
+            assertEquals(1500, cursor.getInt(2));
+            assertEquals(1, cursor.getLong(3));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void homeFromTheProvider_isReadBack() {
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_ADDRESS, "2 Repository St");
+        values.put(HomeEntry.COLUMN_HOME_COUNTY, COUNTY);
+        values.put(HomeEntry.COLUMN_HOME_TYPE, HomeEntry.TYPE_SINGLE);
+        values.put(HomeEntry.COLUMN_HOME_INCOME, 2100);
+        long id = ContentUris.parseId(mResolver.insert(HomeEntry.CONTENT_URI, values));
+
+        Home home = mRepository.getHome(id);
+        assertNotNull(home);
+        assertEquals(id, home.getId());
+        assertEquals(1, home.getVersion());
+        assertEquals("2 Repository St", home.getAddress());
+        assertEquals(COUNTY, home.getCounty());
+        assertEquals(HomeEntry.TYPE_SINGLE, home.getType());
+        assertEquals(2100, home.getIncome());
+
+        assertNull(mRepository.getHome(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void invalidHome_isRejectedLikeThroughTheProvider() {
+        try {
+            mRepository.insertHome(new Home(null, COUNTY, HomeEntry.TYPE_SINGLE, 0));
+            fail("Inserted a home without an address");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            mRepository.insertHome(new Home("3 Repository St", COUNTY, 42, 0));
+            fail("Inserted a home of no type");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            mRepository.insertHome(new Home("3 Repository St", COUNTY, HomeEntry.TYPE_SINGLE,
+                    -1));
+            fail("Inserted a home with a negative income");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            mRepository.updateHome(new Home("3 Repository St", COUNTY, HomeEntry.TYPE_SINGLE,
+                    0));
+            fail("Updated a home without an id");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(0, countHomes());
+    }
+
+    @Test
+    public void update_appliesOnlyAtTheExpectedVersion() {
+        long id = mRepository.insertHome(new Home("4 Repository St", COUNTY,
+                HomeEntry.TYPE_SINGLE, 1000));
+        assertEquals(2, mRepository.updateHome(new Home(id, 1, "4 Repository St", COUNTY,
+                HomeEntry.TYPE_SINGLE, 1200)));
+
+        // Someone read version 1 before the update above
+        assertEquals(-1, mRepository.updateHome(new Home(id, 1, "4 Repository St", COUNTY,
+                HomeEntry.TYPE_SINGLE, 900)));
+        assertFalse(mRepository.deleteHome(id, 1));
+        Home home = mRepository.getHome(id);
+        assertEquals(2, home.getVersion());
+        assertEquals(1200, home.getIncome());
+
+        assertEquals(3, mRepository.updateHome(new Home(id, HomeBatch.ANY_VERSION,
+                "4 Repository St", COUNTY, HomeEntry.TYPE_SINGLE, 900)));
+        assertTrue(mRepository.deleteHome(id, 3));
+        assertNull(mRepository.getHome(id));
+        assertEquals(-1, mRepository.updateHome(new Home(id, HomeBatch.ANY_VERSION,
+                "4 Repository St", COUNTY, HomeEntry.TYPE_SINGLE, 900)));
+    }
+
+    @Test
+    public void writes_notifyTheObserversOfTheHomes() throws InterruptedException {
+        HandlerThread thread = new HandlerThread("HomeRepositoryTest");
+        thread.start();
+        final CountDownLatch changes = new CountDownLatch(3);
+        ContentObserver observer = new ContentObserver(new Handler(thread.getLooper())) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                changes.countDown();
+            }
+        };
+        mResolver.registerContentObserver(HomeEntry.CONTENT_URI, true, observer);
+        try {
+            long id = mRepository.insertHome(new Home("5 Repository St", COUNTY,
+                    HomeEntry.TYPE_SINGLE, 1000));
+            mRepository.updateHome(new Home(id, HomeBatch.ANY_VERSION, "5 Repository St",
+                    COUNTY, HomeEntry.TYPE_SINGLE, 1100));
+            mRepository.deleteHome(id, HomeBatch.ANY_VERSION);
+            assertTrue(changes.await(5, TimeUnit.SECONDS));
+        } finally {
+            mResolver.unregisterContentObserver(observer);
+            thread.quit();
+        }
+    }
+
+    private int countHomes() {
+        Cursor cursor = mResolver.query(HomeEntry.CONTENT_URI, new String[] { HomeEntry._ID },
+                SELECTION, SELECTION_ARGS, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.homes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Throughput of sharded storage under a mixed read/write load, at 1, 4 and 8 shards.
+ *
+ * Every run starts from {@link #PRELOADED_HOMES} homes in fresh database files, then
+ * {@link #THREADS} threads each loop for {@link #DURATION_MILLIS}: one time in
+ * {@link #WRITE_PERCENT} percent they insert a home, otherwise they read the first screen of
+ * the catalog sorted by address. The results are logged under the tag of this class, e.g.
+ * "adb logcat -s HomeShardsBenchmark".
+ */
+@RunWith(AndroidJUnit4.class)
+public class HomeShardsBenchmark {
+
+    private static final String LOG_TAG = HomeShardsBenchmark.class.getSimpleName();
+
+    private static final int PRELOADED_HOMES = 20000;
+    private static final int COUNTIES = 64;
+    private static final int THREADS = 4;
+    private static final long DURATION_MILLIS = 5000;
+    private static final int WRITE_PERCENT = 20;
+
+    /** Rows read by one catalog read, about one screen of the list */
+    private static final int ROWS_PER_READ = 50;
+
+    @Test
+    public void mixedLoad_1Shard() throws InterruptedException {
+        runMixedLoad(1);
+    }
+
+    @Test
+    public void mixedLoad_4Shards() throws InterruptedException {
+        runMixedLoad(4);
+    }
+
+    @Test
+    public void mixedLoad_8Shards() throws InterruptedException {
+        runMixedLoad(8);
+    }
+
+    private void runMixedLoad(int shardCount) throws InterruptedException {
+        Context context = InstrumentationRegistry.getTargetContext();
+        String baseName = "benchmark-" + shardCount;
+        deleteDatabases(context, baseName, shardCount);
+
+        HomeDbHelper[] dbHelpers = HomeShards.createDbHelpers(context, baseName, shardCount);
+        final HomeShards shards = new HomeShards(dbHelpers,
+                new HomeDbMaintenance(context, dbHelpers));
+        try {
+            preload(shards);
+
+            final String orderBy = HomeProvider.resolveSortOrder(HomeEntry.SORT_ADDRESS);
+            final String[] projection = {
+                    HomeEntry._ID,
+                    HomeEntry.COLUMN_HOME_ADDRESS,
+                    HomeEntry.COLUMN_HOME_COUNTY,
+                    HomeEntry.COLUMN_HOME_INCOME };
+            final AtomicLong reads = new AtomicLong();
+            final AtomicLong writes = new AtomicLong();
+            final CountDownLatch start = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(THREADS);
+
+            for (int t = 0; t < THREADS; t++) {
+                final Random random = new Random(t);
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            long deadline = System.currentTimeMillis() + DURATION_MILLIS;
+                            while (System.currentTimeMillis() < deadline) {
+                                if (random.nextInt(100) < WRITE_PERCENT) {
+                                    insert(shards, random);
+                                    writes.incrementAndGet();
+                                } else {
+                                    readFirstScreen(shards.query(projection, null, null, orderBy,
+                                            true));
+                                    reads.incrementAndGet();
+                                }
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }).start();
+            }
+
+            start.countDown();
+            done.await();
+
+            double seconds = DURATION_MILLIS / 1000.0;
+            Log.i(LOG_TAG, String.format(Locale.US,
+                    "%d shards: %.0f ops/s (%.0f reads/s, %.0f writes/s) with %d threads",
+                    shardCount, (reads.get() + writes.get()) / seconds, reads.get() / seconds,
+                    writes.get() / seconds, THREADS));
+
+            assertTrue(reads.get() > 0);
+            assertTrue(writes.get() > 0);
+        } finally {
+            for (HomeDbHelper dbHelper : dbHelpers) {
+                dbHelper.close();
+            }
+            deleteDatabases(context, baseName, shardCount);
+        }
+    }
+
+    private static void preload(HomeShards shards) {
+        Random random = new Random(-1);
+        for (int shard = 0; shard < shards.getCount(); shard++) {
+            shards.getDbHelper(shard).getWritableDatabase().beginTransaction();
+        }
+        try {
+            for (int i = 0; i < PRELOADED_HOMES; i++) {
+                insert(shards, random);
+            }
+            for (int shard = 0; shard < shards.getCount(); shard++) {
+                shards.getDbHelper(shard).getWritableDatabase().setTransactionSuccessful();
+            }
+        } finally {
+            for (int shard = shards.getCount() - 1; shard >= 0; shard--) {
+                shards.getDbHelper(shard).getWritableDatabase().endTransaction();
+            }
+        }
+    }
+
+    private static void insert(HomeShards shards, Random random) {
+        String address = random.nextInt(10000) + " Elm St";
+        String county = "County " + random.nextInt(COUNTIES);
+
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_ADDRESS, address);
+        values.put(HomeEntry.COLUMN_HOME_COUNTY, county);
+        values.put(HomeEntry.COLUMN_HOME_TYPE, HomeEntry.TYPE_SINGLE);
+        values.put(HomeEntry.COLUMN_HOME_INCOME, random.nextInt(5000));
+        values.put(HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS, AddressNormalizer.normalize(address));
+
+        SQLiteDatabase database = shards.getDbHelper(shards.shardOfCounty(county))
+                .getWritableDatabase();
+        database.insertOrThrow(HomeEntry.TABLE_NAME, null, values);
+    }
+
+    private static void readFirstScreen(Cursor cursor) {
+        try {
+            for (int i = 0; i < ROWS_PER_READ && cursor.moveToNext(); i++) {
+                cursor.getLong(0);
+                cursor.getString(1);
+                cursor.getString(2);
+                cursor.getInt(3);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void deleteDatabases(Context context, String baseName, int shardCount) {
+        for (int shard = 0; shard < shardCount; shard++) {
+            context.deleteDatabase(shard == 0 ? baseName + ".db" : baseName + "-shard" + shard + ".db");
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.example.homes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that sharded storage routes homes by county and id, merges queries in the order a
+ * single database would return, and keeps deletions across shards undoable as one.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HomeShardsTest {
+
+    private static final int SHARD_COUNT = 4;
+
+    private static final String[] COUNTIES = {
+            "Springfield", "shelbyville", "Ogdenville", "north Haverbrook", "Capital City", null };
+
+    private InMemoryShards mSingleDatabases;
+    private InMemoryShards mShardedDatabases;
+    private HomeShards mSingle;
+    private HomeShards mSharded;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mSingleDatabases = new InMemoryShards(context, 1);
+        mShardedDatabases = new InMemoryShards(context, SHARD_COUNT);
+        mSingle = mSingleDatabases.mShards;
+        mSharded = mShardedDatabases.mShards;
+
+        // The same homes in both, with unique addresses and incomes so every order is strict
+        Random random = new Random(42);
+        for (int i = 0; i < 300; i++) {
+            String address = (i % 2 == 0 ? "" : "apt ") + random.nextInt(1000) + " Elm St #" + i;
+            String county = COUNTIES[random.nextInt(COUNTIES.length)];
+            insert(mSingle, address, county, i * 7);
+            insert(mSharded, address, county, i * 7);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mSingleDatabases.close();
+        mShardedDatabases.close();
+    }
+
+    @Test
+    public void homes_areRoutedByCountyAndId() {
+        for (String county : COUNTIES) {
+            int shard = mSharded.shardOfCounty(county);
+            long id = insert(mSharded, "1 Main St", county, 1);
+            assertEquals(shard, mSharded.shardOfId(id));
+            assertTrue(id >= HomeShards.firstIdOf(shard));
+        }
+        assertEquals(mSharded.shardOfCounty("Springfield"), mSharded.shardOfCounty(" SPRINGFIELD "));
+    }
+
+    @Test
+    public void mergedQuery_matchesSingleDatabaseOrder() {
+        String[] sortOrders = {
+                HomeEntry.SORT_ADDRESS,
+                HomeEntry.SORT_ADDRESS_NOCASE,
+                HomeEntry.SORT_COUNTY,
+                HomeEntry.SORT_COUNTY_NOCASE,
+                HomeEntry.SORT_INCOME_HIGH,
+                HomeEntry.SORT_INCOME_LOW };
+        for (String sortOrder : sortOrders) {
+            String orderBy = HomeProvider.resolveSortOrder(sortOrder);
+            // The projection leaves out the sort columns, the merge must add them itself
+            String[] projection = { HomeEntry.COLUMN_HOME_TYPE, HomeEntry.COLUMN_HOME_ADDRESS };
+            assertEquals(sortOrder, readAddresses(mSingle.query(projection, null, null, orderBy, false)),
+                    readAddresses(mSharded.query(projection, null, null, orderBy, true)));
+        }
+    }
+
+    @Test
+    public void mergedQuery_hidesAddedSortColumns() {
+        Cursor cursor = mSharded.query(new String[] { HomeEntry.COLUMN_HOME_ADDRESS }, null, null,
+                HomeProvider.resolveSortOrder(HomeEntry.SORT_COUNTY), true);
+        try {
+            assertEquals(1, cursor.getColumnCount());
+            assertEquals(-1, cursor.getColumnIndex(HomeEntry.COLUMN_HOME_COUNTY));
+            assertEquals(300, cursor.getCount());
+            // Moving back and forth returns the same rows
+            assertTrue(cursor.moveToPosition(250));
+            String address = cursor.getString(0);
+            assertTrue(cursor.moveToPosition(3));
+            assertTrue(cursor.moveToPosition(250));
+            assertEquals(address, cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void deleteAcrossShards_isUndoneAsOne() {
+        int rowsDeleted = mSharded.delete(null, null);
+        assertEquals(300, rowsDeleted);
+        assertEquals(0, count(mSharded.query(null, null, null, HomeProvider.resolveSortOrder(null), true)));
+
+        Cursor deletions = mSharded.queryDeletions(null, null, null);
+        long deletionId;
+        try {
+            assertEquals(1, deletions.getCount());
+            assertTrue(deletions.moveToFirst());
+            deletionId = deletions.getLong(deletions.getColumnIndex(HomeContract.DeletionEntry._ID));
+            assertEquals(300, deletions.getLong(
+                    deletions.getColumnIndex(HomeContract.DeletionEntry.COLUMN_DELETION_COUNT)));
+        } finally {
+            deletions.close();
+        }
+
+        assertEquals(1, mSharded.undo(deletionId));
+        assertEquals(300, count(mSharded.query(null, null, null, HomeProvider.resolveSortOrder(null), true)));
+    }
+
+    private static long insert(HomeShards shards, String address, String county, int income) {
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_ADDRESS, address);
+        values.put(HomeEntry.COLUMN_HOME_COUNTY, county);
+        values.put(HomeEntry.COLUMN_HOME_TYPE, HomeEntry.TYPE_SINGLE);
+        values.put(HomeEntry.COLUMN_HOME_INCOME, income);
+        values.put(HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS, AddressNormalizer.normalize(address));
+        return shards.getDbHelper(shards.shardOfCounty(county)).getWritableDatabase()
+                .insertOrThrow(HomeEntry.TABLE_NAME, null, values);
+    }
+
+    private static List<String> readAddresses(Cursor cursor) {
+        List<String> addresses = new ArrayList<>();
+        try {
+            int addressColumnIndex = cursor.getColumnIndexOrThrow(HomeEntry.COLUMN_HOME_ADDRESS);
+            while (cursor.moveToNext()) {
+                addresses.add(cursor.getString(addressColumnIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        return addresses;
+    }
+
+    private static int count(Cursor cursor) {
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
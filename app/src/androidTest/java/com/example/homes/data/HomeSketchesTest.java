@@ -0,0 +1,237 @@
+package com.example.homes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+import com.example.homes.data.HomeContract.StatsEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the statistics of the sketches follow the live homes through every kind of
+ * write, within the error bounds of {@link StatsEntry}, and that single writes are applied
+ * without summarizing a shard again.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HomeSketchesTest {
+
+    private static final int SHARD_COUNT = 2;
+
+    private static final String[] COUNTIES = {
+            "Springfield", "Springfield", "Springfield", "Shelbyville", "Shelbyville",
+            "Ogdenville", "North Haverbrook", "Capital City", null };
+
+    private Context mContext;
+    private InMemoryShards mDatabases;
+    private HomeDbMaintenance mMaintenance;
+    private HomeShards mShards;
+    private HomeSketches mSketches;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mDatabases = new InMemoryShards(mContext, SHARD_COUNT);
+        mMaintenance = mDatabases.mMaintenance;
+        mShards = mDatabases.mShards;
+        mSketches = new HomeSketches(mContext, mShards, mMaintenance);
+
+        Random random = new Random(13);
+        for (int i = 0; i < 500; i++) {
+            insert(COUNTIES[random.nextInt(COUNTIES.length)], random.nextInt(20000));
+        }
+        // The first update summarizes every shard
+        assertTrue(mSketches.update());
+        assertEquals(SHARD_COUNT, mSketches.getRebuildCount());
+    }
+
+    @After
+    public void tearDown() {
+        mDatabases.close();
+    }
+
+    @Test
+    public void stats_matchLiveHomesAfterSummary() {
+        assertStatsMatchLiveHomes();
+    }
+
+    @Test
+    public void stats_followSingleWritesIncrementally() {
+        long id = insert("Capital City", 2500);
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_COUNTY, "Springfield");
+        values.put(HomeEntry.COLUMN_HOME_INCOME, 3100);
+        mShards.update(mShards.shardOfId(id), values, HomeEntry._ID + "=?",
+                new String[] { String.valueOf(id) });
+        assertEquals(1, mShards.delete(mShards.shardOfId(1), HomeEntry._ID + "=?",
+                new String[] { "1" }));
+
+        assertTrue(mSketches.update());
+        assertEquals(SHARD_COUNT, mSketches.getRebuildCount());
+        assertStatsMatchLiveHomes();
+
+        // Nothing left to apply
+        assertFalse(mSketches.update());
+    }
+
+    @Test
+    public void stats_followUpdatesAndDeletesOfManyHomes() {
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_COUNTY, "Ogdenville");
+        mShards.update(values, HomeEntry.COLUMN_HOME_COUNTY + " = ?",
+                new String[] { "Shelbyville" });
+        assertTrue(mShards.delete(HomeEntry.COLUMN_HOME_INCOME + " < ?",
+                new String[] { "5000" }) > 0);
+
+        mSketches.update();
+        assertStatsMatchLiveHomes();
+    }
+
+    @Test
+    public void stats_followDeleteAllAndUndo() {
+        mShards.delete(null, null);
+        insert("Springfield", 700);
+        mSketches.update();
+        // A deletion of all homes summarizes the shards again
+        assertEquals(2 * SHARD_COUNT, mSketches.getRebuildCount());
+        assertStatsMatchLiveHomes();
+
+        assertEquals(1, mShards.undo(lastDeletionId()));
+        mSketches.update();
+        assertEquals(3 * SHARD_COUNT, mSketches.getRebuildCount());
+        assertStatsMatchLiveHomes();
+    }
+
+    @Test
+    public void storedSketches_areReadBackWithoutSummary() {
+        insert("Shelbyville", 1800);
+        mSketches.update();
+
+        HomeSketches sketches = new HomeSketches(mContext, mShards, mMaintenance);
+        // Served before any update, from the stored sketches
+        assertArrayEquals(readStats(mSketches), readStats(sketches));
+        assertFalse(sketches.update());
+        assertEquals(0, sketches.getRebuildCount());
+
+        insert("Ogdenville", 900);
+        assertTrue(sketches.update());
+        assertEquals(0, sketches.getRebuildCount());
+        mSketches = sketches;
+        assertStatsMatchLiveHomes();
+    }
+
+    private long insert(String county, int income) {
+        String address = income + " Elm St";
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_ADDRESS, address);
+        values.put(HomeEntry.COLUMN_HOME_COUNTY, county);
+        values.put(HomeEntry.COLUMN_HOME_TYPE, HomeEntry.TYPE_SINGLE);
+        values.put(HomeEntry.COLUMN_HOME_INCOME, income);
+        values.put(HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS, AddressNormalizer.normalize(address));
+        return mShards.insert(mShards.shardOfCounty(county), values);
+    }
+
+    private long lastDeletionId() {
+        Cursor deletions = mShards.queryDeletions(null, null, null);
+        try {
+            assertTrue(deletions.moveToFirst());
+            return deletions.getLong(deletions.getColumnIndex(HomeContract.DeletionEntry._ID));
+        } finally {
+            deletions.close();
+        }
+    }
+
+    /**
+     * Compute the statistics of the live homes exactly, and compare with those of the
+     * sketches within their error bounds.
+     */
+    private void assertStatsMatchLiveHomes() {
+        List<Long> incomes = new ArrayList<>();
+        Map<String, Integer> counties = new HashMap<>();
+        Cursor cursor = mShards.query(new String[] {
+                        HomeEntry.COLUMN_HOME_COUNTY,
+                        HomeEntry.COLUMN_HOME_INCOME },
+                null, null, HomeProvider.resolveSortOrder(null), true);
+        try {
+            while (cursor.moveToNext()) {
+                incomes.add(cursor.getLong(1));
+                if (!cursor.isNull(0) && !cursor.getString(0).isEmpty()) {
+                    Integer count = counties.get(cursor.getString(0));
+                    counties.put(cursor.getString(0), count == null ? 1 : count + 1);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        Collections.sort(incomes);
+
+        long[] stats = readStats(mSketches);
+        assertEquals(incomes.size(), stats[0]);
+        // So few counties are counted exactly
+        assertEquals(counties.size(), stats[1]);
+        double[] quantiles = { 0.5, 0.9, 0.99 };
+        for (int i = 0; i < quantiles.length; i++) {
+            long exact = incomes.isEmpty() ? 0
+                    : incomes.get((int) (quantiles[i] * (incomes.size() - 1)));
+            assertEquals(exact, stats[2 + i],
+                    Math.max(1, exact * StatsEntry.INCOME_RELATIVE_ERROR));
+        }
+
+        Set<String> seen = new HashSet<>();
+        cursor = mSketches.queryCounties(new String[] {
+                StatsEntry.COLUMN_COUNTY,
+                StatsEntry.COLUMN_HOME_COUNT });
+        try {
+            assertEquals(Math.min(counties.size(), StatsEntry.TOP_COUNTIES), cursor.getCount());
+            int lastCount = Integer.MAX_VALUE;
+            while (cursor.moveToNext()) {
+                // The county with the most homes first, and counted exactly
+                assertTrue(cursor.getInt(1) <= lastCount);
+                lastCount = cursor.getInt(1);
+                assertEquals(counties.get(cursor.getString(0)), (Integer) cursor.getInt(1));
+                assertTrue(seen.add(cursor.getString(0)));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the number of homes and of counties, followed by the income percentiles.
+     */
+    private static long[] readStats(HomeSketches sketches) {
+        Cursor cursor = sketches.queryStats(new String[] {
+                StatsEntry.COLUMN_HOME_COUNT,
+                StatsEntry.COLUMN_DISTINCT_COUNTIES,
+                StatsEntry.COLUMN_INCOME_P50,
+                StatsEntry.COLUMN_INCOME_P90,
+                StatsEntry.COLUMN_INCOME_P99 });
+        try {
+            assertTrue(cursor.moveToFirst());
+            long[] stats = new long[cursor.getColumnCount()];
+            for (int i = 0; i < stats.length; i++) {
+                stats[i] = cursor.getLong(i);
+            }
+            return stats;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.homes.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.TextUtils;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks with EXPLAIN QUERY PLAN that every sort mode of the catalog is served by an index,
+ * including when the filter leaving out deleted homes is applied.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HomeSortOrderTest {
+
+    private static final String[] CATALOG_PROJECTION = {
+            HomeEntry._ID,
+            HomeEntry.COLUMN_HOME_ADDRESS,
+            HomeEntry.COLUMN_HOME_COUNTY,
+            HomeEntry.COLUMN_HOME_INCOME };
+
+    /** Pretend all homes up to this id were deleted, to include the id range in the plan */
+    private static final long DELETED_THROUGH_ID = 42;
+
+    private HomeDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        // A null name gives an in-memory database with the same schema as shelter.db
+        mDbHelper = new HomeDbHelper(InstrumentationRegistry.getTargetContext(), null);
+        mDatabase = mDbHelper.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+    }
+
+    @Test
+    public void defaultSort_usesRowidOrder() {
+        assertNoTempSort(HomeEntry.SORT_DEFAULT, null);
+        assertNoTempSort(null, null);
+    }
+
+    @Test
+    public void addressSort_usesAddressIndex() {
+        assertNoTempSort(HomeEntry.SORT_ADDRESS, HomeDbHelper.INDEX_ADDRESS_LOCALIZED);
+        assertNoTempSort(HomeEntry.SORT_ADDRESS_NOCASE, HomeDbHelper.INDEX_ADDRESS_NOCASE);
+    }
+
+    @Test
+    public void countySort_usesCountyIndex() {
+        assertNoTempSort(HomeEntry.SORT_COUNTY, HomeDbHelper.INDEX_COUNTY_LOCALIZED);
+        assertNoTempSort(HomeEntry.SORT_COUNTY_NOCASE, HomeDbHelper.INDEX_COUNTY_NOCASE);
+    }
+
+    @Test
+    public void incomeSort_usesIncomeIndex() {
+        assertNoTempSort(HomeEntry.SORT_INCOME_HIGH, HomeDbHelper.INDEX_INCOME);
+        assertNoTempSort(HomeEntry.SORT_INCOME_LOW, HomeDbHelper.INDEX_INCOME);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownSort_isRejected() {
+        HomeProvider.resolveSortOrder(HomeEntry.COLUMN_HOME_INCOME + "; DROP TABLE homes");
+    }
+
+    /**
+     * Explain the catalog query for the given sort mode, and check that the plan never sorts in
+     * a temporary B-tree and walks the expected index (if any).
+     */
+    private void assertNoTempSort(String sortOrder, String expectedIndex) {
+        String sql = "EXPLAIN QUERY PLAN SELECT " + TextUtils.join(", ", CATALOG_PROJECTION)
+                + " FROM " + HomeEntry.TABLE_NAME
+                + " WHERE " + HomeTombstones.liveSelection(DELETED_THROUGH_ID)
+                + " ORDER BY " + HomeProvider.resolveSortOrder(sortOrder);
+
+        StringBuilder plan = new StringBuilder();
+        Cursor cursor = mDatabase.rawQuery(sql, null);
+        try {
+            int detailColumnIndex = cursor.getColumnIndex("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detailColumnIndex)).append('\n');
+            }
+        } finally {
+            cursor.close();
+        }
+
+        String detail = plan.toString();
+        assertFalse("Sort " + sortOrder + " uses a temp B-tree:\n" + detail,
+                detail.contains("TEMP B-TREE"));
+        if (expectedIndex != null) {
+            assertTrue("Sort " + sortOrder + " does not use " + expectedIndex + ":\n" + detail,
+                    detail.contains(expectedIndex));
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.homes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.homes.data.HomeContract.DeletionEntry;
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that deletions hide their homes until they are undone or purged, that a deletion
+ * covered by a later deletion of all homes can't lose its homes to an undo, and that a purge
+ * removes exactly the homes of the expired deletions.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HomeTombstonesTest {
+
+    private static final int SHARD_COUNT = 2;
+
+    private static final String[] COUNTIES = { "Springfield", "North Haverbrook" };
+
+    private InMemoryShards mDatabases;
+    private HomeShards mShards;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mDatabases = new InMemoryShards(context, SHARD_COUNT);
+        mShards = mDatabases.mShards;
+
+        // The counties land in different shards
+        assertNotEquals(mShards.shardOfCounty(COUNTIES[0]), mShards.shardOfCounty(COUNTIES[1]));
+        for (int i = 0; i < 10; i++) {
+            insert(COUNTIES[i % COUNTIES.length], i);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mDatabases.close();
+    }
+
+    @Test
+    public void singleDelete_hidesTheHomeUntilUndone() {
+        long id = insert("Springfield", 100);
+        int shard = mShards.shardOfId(id);
+        assertEquals(1, deleteHome(id));
+        assertFalse(isLive(id));
+        assertEquals(10, countLiveHomes());
+
+        assertEquals(1, mShards.undo(lastDeletionId()));
+        assertTrue(isLive(id));
+        assertEquals(11, countLiveHomes());
+        assertEquals(0, countRows(shard, DeletionEntry.TABLE_NAME));
+
+        // Undone deletions are gone
+        assertEquals(0, mShards.undo(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void deleteAll_hidesTheHomesOfThatTimeOnly() {
+        assertEquals(10, mShards.delete(null, null));
+        assertEquals(0, countLiveHomes());
+        long id = insert("North Haverbrook", 100);
+        assertTrue(isLive(id));
+        assertEquals(1, countLiveHomes());
+
+        assertEquals(1, mShards.undo(lastDeletionId()));
+        assertEquals(11, countLiveHomes());
+    }
+
+    @Test
+    public void deletionCoveredByDeleteAll_isNotUndoneOnItsOwn() {
+        long id = insert("Springfield", 100);
+        assertEquals(1, deleteHome(id));
+        long homeDeletionId = lastDeletionId();
+        assertEquals(10, mShards.delete(null, null));
+        long allDeletionId = lastDeletionId();
+
+        // The home would stay hidden by the later deletion, and be purged with it
+        assertEquals(0, mShards.undo(homeDeletionId));
+        assertFalse(isLive(id));
+
+        assertEquals(1, mShards.undo(allDeletionId));
+        assertEquals(10, countLiveHomes());
+        assertEquals(1, mShards.undo(homeDeletionId));
+        assertTrue(isLive(id));
+        assertEquals(11, countLiveHomes());
+    }
+
+    @Test
+    public void deletionCoveredInOneShard_isUndoneInNone() {
+        // One deletion across both shards
+        assertEquals(4, mShards.delete(HomeEntry.COLUMN_HOME_INCOME + " < ?",
+                new String[] { "4" }));
+        long deletionId = lastDeletionId();
+        // Then all homes of a single shard
+        int shard = mShards.shardOfCounty("Springfield");
+        assertTrue(mShards.delete(shard, null, null) > 0);
+
+        assertEquals(0, mShards.undo(deletionId));
+        for (int income = 0; income < 4; income++) {
+            assertEquals(0, countLiveHomes(HomeEntry.COLUMN_HOME_INCOME + " = " + income));
+        }
+    }
+
+    @Test
+    public void purge_removesTheHomesOfExpiredDeletions() throws InterruptedException {
+        long id = insert("Springfield", 100);
+        assertEquals(1, deleteHome(id));
+        assertEquals(10, mShards.delete(null, null));
+        long survivor = insert("North Haverbrook", 200);
+
+        int rowsPurged = 0;
+        for (int shard = 0; shard < SHARD_COUNT; shard++) {
+            rowsPurged += mShards.getTombstones(shard).purge(Long.MAX_VALUE);
+        }
+        assertEquals(11, rowsPurged);
+        for (int shard = 0; shard < SHARD_COUNT; shard++) {
+            assertEquals(0, countRows(shard, DeletionEntry.TABLE_NAME));
+        }
+        assertEquals(1, countRows(mShards.shardOfId(survivor), HomeEntry.TABLE_NAME));
+        assertTrue(isLive(survivor));
+        assertEquals(1, countLiveHomes());
+    }
+
+    @Test
+    public void purge_leavesUndoneAndPendingDeletions() throws InterruptedException {
+        long undone = insert("Springfield", 100);
+        assertEquals(1, deleteHome(undone));
+        assertEquals(1, mShards.undo(lastDeletionId()));
+        long pending = insert("Springfield", 200);
+        assertEquals(1, deleteHome(pending));
+
+        // Only deletions made before the given time are purged
+        int shard = mShards.shardOfId(pending);
+        assertEquals(0, mShards.getTombstones(shard).purge(0));
+        assertEquals(1, countRows(shard, DeletionEntry.TABLE_NAME));
+        assertTrue(isLive(undone));
+
+        assertEquals(1, mShards.undo(lastDeletionId()));
+        assertTrue(isLive(pending));
+        assertEquals(12, countLiveHomes());
+    }
+
+    private long insert(String county, int income) {
+        String address = income + " Birch St";
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_ADDRESS, address);
+        values.put(HomeEntry.COLUMN_HOME_COUNTY, county);
+        values.put(HomeEntry.COLUMN_HOME_TYPE, HomeEntry.TYPE_SINGLE);
+        values.put(HomeEntry.COLUMN_HOME_INCOME, income);
+        values.put(HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS, AddressNormalizer.normalize(address));
+        return mShards.insert(mShards.shardOfCounty(county), values);
+    }
+
+    private int deleteHome(long id) {
+        return mShards.delete(mShards.shardOfId(id), HomeEntry._ID + "=?",
+                new String[] { String.valueOf(id) });
+    }
+
+    private long lastDeletionId() {
+        Cursor deletions = mShards.queryDeletions(null, null, null);
+        try {
+            assertTrue(deletions.moveToFirst());
+            return deletions.getLong(deletions.getColumnIndex(DeletionEntry._ID));
+        } finally {
+            deletions.close();
+        }
+    }
+
+    private boolean isLive(long id) {
+        return countLiveHomes(HomeEntry._ID + " = " + id) == 1;
+    }
+
+    private long countLiveHomes() {
+        return countLiveHomes(null);
+    }
+
+    private long countLiveHomes(String selection) {
+        long count = 0;
+        for (int shard = 0; shard < SHARD_COUNT; shard++) {
+            SQLiteDatabase db = mDatabases.mDbHelpers[shard].getReadableDatabase();
+            count += DatabaseUtils.queryNumEntries(db, HomeEntry.TABLE_NAME,
+                    HomeTombstones.appendSelection(selection,
+                            mShards.getTombstones(shard).liveSelection(db)));
+        }
+        return count;
+    }
+
+    private long countRows(int shard, String table) {
+        return DatabaseUtils.queryNumEntries(mDatabases.mDbHelpers[shard].getReadableDatabase(),
+                table);
+    }
+}
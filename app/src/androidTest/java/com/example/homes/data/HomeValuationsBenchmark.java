@@ -0,0 +1,114 @@
+package com.example.homes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * What it takes to keep the valuations fresh at {@link #HOMES} homes: a full pass over every
+ * home, against updates valuing only the homes changed by single writes.
+ *
+ * The results are logged under the tag of this class, e.g.
+ * "adb logcat -s HomeValuationsBenchmark".
+ */
+@RunWith(AndroidJUnit4.class)
+public class HomeValuationsBenchmark {
+
+    private static final String LOG_TAG = HomeValuationsBenchmark.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "benchmark-valuations";
+
+    private static final int HOMES = 500000;
+    private static final int COUNTIES = 64;
+    private static final int RUNS = 50;
+
+    /** Budget of the update after a single write */
+    private static final long TARGET_MILLIS = 20;
+
+    @Test
+    public void incrementalUpdate_at500kHomes() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DATABASE_NAME + ".db");
+
+        HomeDbHelper[] dbHelpers = HomeShards.createDbHelpers(context, DATABASE_NAME, 1);
+        HomeDbMaintenance maintenance = new HomeDbMaintenance(context, dbHelpers);
+        HomeShards shards = new HomeShards(dbHelpers, maintenance);
+        HomeValuations valuations = new HomeValuations(context, shards, maintenance);
+        try {
+            preload(dbHelpers[0].getWritableDatabase());
+
+            long start = System.nanoTime();
+            valuations.update();
+            long fullPassNanos = System.nanoTime() - start;
+            assertEquals(1, valuations.getFullPassCount());
+
+            Random random = new Random(5);
+            long updateNanos = 0;
+            long worstNanos = 0;
+            for (int run = 0; run < RUNS; run++) {
+                ContentValues values = new ContentValues();
+                values.put(HomeEntry.COLUMN_HOME_INCOME, random.nextInt(8000));
+                shards.update(0, values, HomeEntry._ID + "=?",
+                        new String[] { String.valueOf(1 + random.nextInt(HOMES)) });
+
+                start = System.nanoTime();
+                assertTrue(valuations.update());
+                long nanos = System.nanoTime() - start;
+                updateNanos += nanos;
+                worstNanos = Math.max(worstNanos, nanos);
+            }
+            assertEquals(1, valuations.getFullPassCount());
+
+            Log.i(LOG_TAG, String.format(Locale.US,
+                    "%d homes: full pass %.0f ms, update after a single write %.2f ms"
+                            + " (worst %.2f ms)",
+                    HOMES, fullPassNanos / 1e6, updateNanos / 1e6 / RUNS, worstNanos / 1e6));
+
+            assertTrue("Worst update took " + worstNanos / 1000000 + " ms",
+                    worstNanos / 1000000 < TARGET_MILLIS);
+        } finally {
+            dbHelpers[0].close();
+            context.deleteDatabase(DATABASE_NAME + ".db");
+        }
+    }
+
+    /**
+     * Insert the homes and drop the queue the triggers filled, so the first update is the
+     * full pass of a database that was never valued.
+     */
+    private static void preload(SQLiteDatabase database) {
+        Random random = new Random(-1);
+        ContentValues values = new ContentValues();
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < HOMES; i++) {
+                String address = random.nextInt(10000) + " Elm St";
+                values.put(HomeEntry.COLUMN_HOME_ADDRESS, address);
+                values.put(HomeEntry.COLUMN_HOME_COUNTY, "County " + random.nextInt(COUNTIES));
+                values.put(HomeEntry.COLUMN_HOME_TYPE, random.nextInt(3));
+                values.put(HomeEntry.COLUMN_HOME_INCOME, random.nextInt(8000));
+                values.put(HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS,
+                        AddressNormalizer.normalize(address));
+                database.insertOrThrow(HomeEntry.TABLE_NAME, null, values);
+            }
+            database.delete(HomeValuations.QUEUE_TABLE_NAME, null, null);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        database.execSQL("ANALYZE;");
+    }
+}
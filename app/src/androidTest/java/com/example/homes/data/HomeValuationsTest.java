@@ -0,0 +1,262 @@
+package com.example.homes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+import com.example.homes.data.HomeContract.ValuationEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the valuations stay equal to valuing the live homes from scratch through every
+ * kind of write, and that single writes are valued without a full pass.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HomeValuationsTest {
+
+    private static final int SHARD_COUNT = 2;
+
+    private static final String[] COUNTIES = { "Springfield", "Shelbyville", "Ogdenville", null };
+
+    private InMemoryShards mDatabases;
+    private HomeShards mShards;
+    private HomeValuations mValuations;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mDatabases = new InMemoryShards(context, SHARD_COUNT);
+        mShards = mDatabases.mShards;
+        mValuations = new HomeValuations(context, mShards, mDatabases.mMaintenance);
+
+        Random random = new Random(11);
+        for (int i = 0; i < 300; i++) {
+            insert(COUNTIES[random.nextInt(COUNTIES.length)], random.nextInt(3),
+                    random.nextInt(8000));
+        }
+        // The first update values every shard
+        assertTrue(mValuations.update());
+        assertEquals(SHARD_COUNT, mValuations.getFullPassCount());
+    }
+
+    @After
+    public void tearDown() {
+        mDatabases.close();
+    }
+
+    @Test
+    public void value_followsTheModel() {
+        long[] amounts = new long[HomeValuations.AMOUNT_COUNT];
+        HomeValuations.value(HomeEntry.TYPE_SINGLE, 1000, amounts);
+        // 12000 a year, let 95% of the time, at 12 times the yearly rent
+        assertEquals(1140000, amounts[HomeValuations.AMOUNT_REVENUE]);
+        assertEquals(Math.round(1140000 * 0.65) - 120000,
+                amounts[HomeValuations.AMOUNT_NET_INCOME]);
+        assertEquals(14400000, amounts[HomeValuations.AMOUNT_VALUE]);
+        assertTrue(amounts[HomeValuations.AMOUNT_PROJECTION]
+                > 5 * amounts[HomeValuations.AMOUNT_REVENUE]);
+
+        HomeValuations.value(HomeEntry.TYPE_MULTI, 0, amounts);
+        assertEquals(0, amounts[HomeValuations.AMOUNT_VALUE]);
+        assertTrue(amounts[HomeValuations.AMOUNT_NET_INCOME] < 0);
+    }
+
+    @Test
+    public void valuations_matchLiveHomesAfterFullPass() {
+        assertValuationsMatchLiveHomes();
+    }
+
+    @Test
+    public void valuations_followSingleWritesIncrementally() {
+        long id = insert("Capital City", HomeEntry.TYPE_MULTI, 2500);
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_COUNTY, "Springfield");
+        values.put(HomeEntry.COLUMN_HOME_INCOME, 3100);
+        mShards.update(mShards.shardOfId(id), values, HomeEntry._ID + "=?",
+                new String[] { String.valueOf(id) });
+        assertEquals(1, mShards.delete(mShards.shardOfId(1), HomeEntry._ID + "=?",
+                new String[] { "1" }));
+
+        assertTrue(mValuations.update());
+        assertEquals(SHARD_COUNT, mValuations.getFullPassCount());
+        assertValuationsMatchLiveHomes();
+
+        // Nothing left to value
+        assertFalse(mValuations.update());
+    }
+
+    @Test
+    public void valuations_followUpdatesDeletesAndUndo() {
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_COUNTY, "Capital City");
+        values.put(HomeEntry.COLUMN_HOME_INCOME, 1500);
+        mShards.update(values, HomeEntry.COLUMN_HOME_TYPE + " = ?",
+                new String[] { String.valueOf(HomeEntry.TYPE_MULTI) });
+        mValuations.update();
+        assertValuationsMatchLiveHomes();
+
+        assertTrue(mShards.delete(HomeEntry.COLUMN_HOME_INCOME + " < ?",
+                new String[] { "3000" }) > 0);
+        long deletionId = lastDeletionId();
+        mValuations.update();
+        assertValuationsMatchLiveHomes();
+
+        assertEquals(1, mShards.undo(deletionId));
+        mValuations.update();
+        assertEquals(SHARD_COUNT, mValuations.getFullPassCount());
+        assertValuationsMatchLiveHomes();
+    }
+
+    @Test
+    public void valuations_followDeleteAll() {
+        mShards.delete(null, null);
+        insert("Springfield", HomeEntry.TYPE_SINGLE, 700);
+        mValuations.update();
+        assertValuationsMatchLiveHomes();
+        assertEquals(1, readCounties().size());
+
+        assertEquals(1, mShards.undo(lastDeletionId()));
+        mValuations.update();
+        assertValuationsMatchLiveHomes();
+    }
+
+    @Test
+    public void recomputeAll_changesNothing() {
+        Map<String, long[]> before = readCounties();
+        mValuations.recomputeAll();
+        assertEquals(before.keySet(), readCounties().keySet());
+        for (Map.Entry<String, long[]> county : readCounties().entrySet()) {
+            assertArrayEquals(before.get(county.getKey()), county.getValue());
+        }
+    }
+
+    private long insert(String county, int type, int income) {
+        String address = income + " Oak St";
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_ADDRESS, address);
+        values.put(HomeEntry.COLUMN_HOME_COUNTY, county);
+        values.put(HomeEntry.COLUMN_HOME_TYPE, type);
+        values.put(HomeEntry.COLUMN_HOME_INCOME, income);
+        values.put(HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS, AddressNormalizer.normalize(address));
+        return mShards.insert(mShards.shardOfCounty(county), values);
+    }
+
+    private long lastDeletionId() {
+        Cursor deletions = mShards.queryDeletions(null, null, null);
+        try {
+            assertTrue(deletions.moveToFirst());
+            return deletions.getLong(deletions.getColumnIndex(HomeContract.DeletionEntry._ID));
+        } finally {
+            deletions.close();
+        }
+    }
+
+    /**
+     * Value the live homes from scratch, and compare with the valuations of the homes and
+     * the rollups of the engine.
+     */
+    private void assertValuationsMatchLiveHomes() {
+        Map<Long, long[]> expectedHomes = new HashMap<>();
+        Map<String, long[]> expectedCounties = new HashMap<>();
+        Cursor cursor = mShards.query(new String[] {
+                        HomeEntry._ID,
+                        HomeEntry.COLUMN_HOME_COUNTY,
+                        HomeEntry.COLUMN_HOME_TYPE,
+                        HomeEntry.COLUMN_HOME_INCOME },
+                null, null, HomeProvider.resolveSortOrder(null), true);
+        try {
+            while (cursor.moveToNext()) {
+                long[] amounts = new long[HomeValuations.AMOUNT_COUNT];
+                HomeValuations.value(cursor.getInt(2), cursor.getLong(3), amounts);
+                expectedHomes.put(cursor.getLong(0), amounts);
+
+                String county = cursor.isNull(1) ? "" : cursor.getString(1);
+                long[] rollup = expectedCounties.get(county);
+                if (rollup == null) {
+                    rollup = new long[1 + HomeValuations.AMOUNT_COUNT];
+                    expectedCounties.put(county, rollup);
+                }
+                rollup[0]++;
+                for (int i = 0; i < amounts.length; i++) {
+                    rollup[1 + i] += amounts[i];
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Map<Long, long[]> homes = new HashMap<>();
+        long lastId = 0;
+        cursor = mValuations.queryHomes(new String[] {
+                ValuationEntry.COLUMN_HOME_ID,
+                ValuationEntry.COLUMN_REVENUE,
+                ValuationEntry.COLUMN_NET_INCOME,
+                ValuationEntry.COLUMN_VALUE,
+                ValuationEntry.COLUMN_PROJECTION }, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                assertTrue(cursor.getLong(0) > lastId);
+                lastId = cursor.getLong(0);
+                homes.put(cursor.getLong(0), new long[] {
+                        cursor.getLong(1), cursor.getLong(2), cursor.getLong(3), cursor.getLong(4) });
+            }
+        } finally {
+            cursor.close();
+        }
+        assertEquals(expectedHomes.keySet(), homes.keySet());
+        for (Map.Entry<Long, long[]> home : homes.entrySet()) {
+            assertArrayEquals("Home " + home.getKey(), expectedHomes.get(home.getKey()),
+                    home.getValue());
+        }
+
+        Map<String, long[]> counties = readCounties();
+        assertEquals(expectedCounties.keySet(), counties.keySet());
+        for (Map.Entry<String, long[]> county : counties.entrySet()) {
+            assertEquals(county.getKey() + " " + Arrays.toString(county.getValue()),
+                    Arrays.toString(expectedCounties.get(county.getKey())),
+                    Arrays.toString(county.getValue()));
+        }
+    }
+
+    /**
+     * Returns the rollups as county to the number of homes followed by the amounts.
+     */
+    private Map<String, long[]> readCounties() {
+        Map<String, long[]> counties = new HashMap<>();
+        Cursor cursor = mValuations.queryCounties(new String[] {
+                ValuationEntry.COLUMN_COUNTY,
+                ValuationEntry.COLUMN_HOME_COUNT,
+                ValuationEntry.COLUMN_REVENUE,
+                ValuationEntry.COLUMN_NET_INCOME,
+                ValuationEntry.COLUMN_VALUE,
+                ValuationEntry.COLUMN_PROJECTION });
+        try {
+            long lastValue = Long.MAX_VALUE;
+            while (cursor.moveToNext()) {
+                // The county with the highest value first
+                assertTrue(cursor.getLong(4) <= lastValue);
+                lastValue = cursor.getLong(4);
+                counties.put(cursor.getString(0), new long[] {
+                        cursor.getLong(1), cursor.getLong(2), cursor.getLong(3),
+                        cursor.getLong(4), cursor.getLong(5) });
+            }
+        } finally {
+            cursor.close();
+        }
+        return counties;
+    }
+}
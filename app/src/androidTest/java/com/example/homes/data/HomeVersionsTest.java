@@ -0,0 +1,166 @@
+package com.example.homes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that every write of a home bumps its version, and that updates and deletes expecting
+ * a version only apply while the home still has it, through the provider like the editor.
+ *
+ * The homes are inserted under a county of their own, and deleted again afterwards.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HomeVersionsTest {
+
+    private static final String COUNTY = "HomeVersionsTest";
+    private static final String SELECTION = HomeEntry.COLUMN_HOME_COUNTY + "=?";
+    private static final String[] SELECTION_ARGS = { COUNTY };
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+        mResolver.delete(HomeEntry.CONTENT_URI, SELECTION, SELECTION_ARGS);
+    }
+
+    @After
+    public void tearDown() {
+        mResolver.delete(HomeEntry.CONTENT_URI, SELECTION, SELECTION_ARGS);
+    }
+
+    @Test
+    public void write_bumpsTheVersion() {
+        Uri uri = insertHome("1 Version St");
+        assertEquals(1, queryVersion(uri));
+
+        assertEquals(1, mResolver.update(uri, income(1200), null, null));
+        assertEquals(2, queryVersion(uri));
+
+        // The version can't be written by callers
+        ContentValues values = income(1300);
+        values.put(HomeEntry.COLUMN_HOME_VERSION, 40);
+        assertEquals(1, mResolver.update(uri, values, null, null));
+        assertEquals(3, queryVersion(uri));
+    }
+
+    @Test
+    public void update_appliesOnlyAtTheExpectedVersion() {
+        Uri uri = insertHome("2 Version St");
+        assertEquals(1, mResolver.update(uri, income(1200), null, null));
+
+        // Someone read version 1 before the update above
+        assertEquals(0, mResolver.update(expecting(uri, 1), income(900), null, null));
+        assertEquals(2, queryVersion(uri));
+        assertEquals(0, mResolver.delete(expecting(uri, 1), null, null));
+
+        assertEquals(1, mResolver.update(expecting(uri, 2), income(900), null, null));
+        assertEquals(3, queryVersion(uri));
+        assertEquals(1, mResolver.delete(expecting(uri, 3), null, null));
+        assertEquals(-1, queryVersion(uri));
+    }
+
+    @Test
+    public void batch_reportsTheConflictAndWritesNothing() {
+        Uri kept = insertHome("3 Version St");
+        Uri stale = insertHome("4 Version St");
+        assertEquals(1, mResolver.update(stale, income(1200), null, null));
+
+        HomeBatch batch = new HomeBatch();
+        int update = batch.update(ContentUris.parseId(kept), income(700), 1);
+        int conflict = batch.update(ContentUris.parseId(stale), income(800), 1);
+        HomeBatch.Results results = batch.execute(mResolver);
+
+        assertTrue(results.hasConflict());
+        assertFalse(results.isConflict(update));
+        assertTrue(results.isConflict(conflict));
+        assertEquals(2, results.getVersion(conflict));
+        // The update that did match was rolled back with the rest
+        assertEquals(0, results.getCount(update));
+        assertEquals(1, results.getVersion(update));
+        assertEquals(1, queryVersion(kept));
+
+        // Merged and retried at the version reported, both apply
+        batch = new HomeBatch();
+        update = batch.update(ContentUris.parseId(kept), income(700), 1);
+        int delete = batch.delete(ContentUris.parseId(stale), results.getVersion(conflict));
+        results = batch.execute(mResolver);
+
+        assertFalse(results.hasConflict());
+        assertEquals(1, results.getCount(update));
+        assertEquals(2, results.getVersion(update));
+        assertEquals(1, results.getCount(delete));
+        assertEquals(-1, results.getVersion(delete));
+        assertEquals(-1, queryVersion(stale));
+    }
+
+    @Test
+    public void batch_reportsADeletedHomeAsAConflict() {
+        Uri uri = insertHome("5 Version St");
+        assertEquals(1, mResolver.delete(uri, null, null));
+
+        HomeBatch batch = new HomeBatch();
+        int expected = batch.update(ContentUris.parseId(uri), income(700), 1);
+        HomeBatch.Results results = batch.execute(mResolver);
+        assertTrue(results.isConflict(expected));
+        assertEquals(-1, results.getVersion(expected));
+
+        // Without an expected version, there is just nothing to write
+        batch = new HomeBatch();
+        int any = batch.update(ContentUris.parseId(uri), income(700), HomeBatch.ANY_VERSION);
+        results = batch.execute(mResolver);
+        assertFalse(results.hasConflict());
+        assertEquals(0, results.getCount(any));
+    }
+
+    private Uri insertHome(String address) {
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_ADDRESS, address);
+        values.put(HomeEntry.COLUMN_HOME_COUNTY, COUNTY);
+        values.put(HomeEntry.COLUMN_HOME_TYPE, HomeEntry.TYPE_SINGLE);
+        Uri uri = mResolver.insert(HomeEntry.CONTENT_URI, values);
+        assertNotNull(uri);
+        return uri;
+    }
+
+    private static ContentValues income(int income) {
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_INCOME, income);
+        return values;
+    }
+
+    private static Uri expecting(Uri uri, long version) {
+        return uri.buildUpon()
+                .appendQueryParameter(HomeEntry.QUERY_PARAMETER_EXPECTED_VERSION,
+                        String.valueOf(version))
+                .build();
+    }
+
+    /**
+     * Returns the version of the home, or -1 if it is gone.
+     */
+    private long queryVersion(Uri uri) {
+        Cursor cursor = mResolver.query(uri, new String[] { HomeEntry.COLUMN_HOME_VERSION },
+                null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.homes.data;
+
+import android.content.Context;
+
+/**
+ * Shard databases in memory for the tests, with their maintenance and the shards over them.
+ * Close it in the tearDown of the test, which stops the maintenance thread too.
+ */
+final class InMemoryShards {
+
+    final HomeDbHelper[] mDbHelpers;
+    final HomeDbMaintenance mMaintenance;
+    final HomeShards mShards;
+
+    InMemoryShards(Context context, int shardCount) {
+        mDbHelpers = new HomeDbHelper[shardCount];
+        for (int shard = 0; shard < shardCount; shard++) {
+            mDbHelpers[shard] = new HomeDbHelper(context, null, shard);
+        }
+        mMaintenance = new HomeDbMaintenance(context, mDbHelpers);
+        mShards = new HomeShards(mDbHelpers, mMaintenance);
+    }
+
+    void close() {
+        mMaintenance.shutdown();
+        for (HomeDbHelper dbHelper : mDbHelpers) {
+            dbHelper.close();
+        }
+    }
+}
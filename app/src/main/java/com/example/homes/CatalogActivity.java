@@ -1,23 +1,38 @@
 package com.example.homes;
 
+import android.app.AlertDialog;
 import android.app.LoaderManager;
 import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.CursorLoader;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.design.widget.FloatingActionButton;
+import android.support.design.widget.Snackbar;
 import android.support.v7.app.AppCompatActivity;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ListView;
+import android.widget.Toast;
 
+import com.example.homes.data.Home;
+import com.example.homes.data.HomeContract.DeletionEntry;
+import com.example.homes.data.HomeContract.FacetEntry;
 import com.example.homes.data.HomeContract.HomeEntry;
+import com.example.homes.data.HomeRepository;
+import com.example.homes.watchdog.UiWatchdog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Displays list of homes that were entered and stored in the app.
@@ -26,8 +41,41 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
 
     private static final int HOME_LOADER = 0;
 
+    /** Loader of the facet counts shown in the filter dialogs */
+    private static final int FACET_LOADER = 1;
+
+    /** Key for remembering the chosen sort mode between launches */
+    private static final String PREF_SORT_ORDER = "sort_order";
+
+    /** Prefix of the keys for remembering the chosen filter between launches */
+    private static final String PREF_FILTER_PREFIX = "filter_";
+
     HomeCursorAdapter mCursorAdapter;
 
+    /** Loads the thumbnails of the list in the background */
+    private HomePhotoLoader mPhotoLoader;
+
+    /** Lays out the texts of the list ahead of the scroll */
+    private HomeRowPrefetcher mRowPrefetcher;
+
+    /** Sort mode of the catalog, one of the SORT_ keys in {@link HomeEntry} */
+    private String mSortOrder = HomeEntry.SORT_DEFAULT;
+
+    /** Facets the catalog is filtered by */
+    private final HomeFilter mFilter = new HomeFilter();
+
+    /** Latest facet counts, null until they are loaded */
+    private Cursor mFacetCursor;
+
+    /** Writes the dummy homes off the main thread, in the order they were asked for */
+    private final ExecutorService mInsertExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "CatalogActivity-insert");
+                }
+            });
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -52,8 +100,15 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
 
         // Setup an Adapter to create a list item for each row of home data in the Cursor.
         // There is no home data yet (until the loader finishes) so pass in null for the Cursor.
-        mCursorAdapter = new HomeCursorAdapter(this, null);
+        mPhotoLoader = new HomePhotoLoader(this,
+                getResources().getDimensionPixelSize(R.dimen.list_item_photo_size));
+        mRowPrefetcher = new HomeRowPrefetcher(this);
+        mCursorAdapter = new HomeCursorAdapter(this, null, mPhotoLoader, mRowPrefetcher);
         homeListView.setAdapter(mCursorAdapter);
+        // Cancel the thumbnails of the rows that scroll off screen
+        homeListView.setRecyclerListener(mCursorAdapter);
+        // Lay out the rows about to scroll on screen in the background
+        homeListView.setOnScrollListener(mRowPrefetcher);
 
         // Setup the item click listener
         homeListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
@@ -77,27 +132,54 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             }
         });
 
-        // Kick off the loader
+        // Restore the sort mode the user picked last time
+        mSortOrder = getPreferences(MODE_PRIVATE).getString(PREF_SORT_ORDER, HomeEntry.SORT_DEFAULT);
+
+        // Restore the filter the user picked last time
+        restoreFilter();
+
+        // Kick off the loaders
         getLoaderManager().initLoader(HOME_LOADER, null, this);
+        getLoaderManager().initLoader(FACET_LOADER, null, this);
 
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mPhotoLoader.shutdown();
+        mRowPrefetcher.shutdown();
+        mInsertExecutor.shutdown();
+    }
+
+    /**
+     * Drop the decoded thumbnails when the system runs low on memory, they are cached on disk,
+     * and the layouts made ahead of the scroll.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            mPhotoLoader.evictAll();
+            mRowPrefetcher.evictAll();
+        }
+    }
+
     private void insertHome(){
-        // Create a ContentValues object where column names are the keys,
-        // and Toto's home attributes are the values.
-        ContentValues values = new ContentValues();
-        values.put(HomeEntry.COLUMN_HOME_ADDRESS, "123 Fake Street");
-        values.put(HomeEntry.COLUMN_HOME_COUNTY, "Springfield");
-        values.put(HomeEntry.COLUMN_HOME_TYPE, HomeEntry.TYPE_SINGLE);
-        values.put(HomeEntry.COLUMN_HOME_INCOME, 1337);
+        // Create a Home with Toto's home attributes.
+        final Home home = new Home("123 Fake Street", "Springfield", HomeEntry.TYPE_SINGLE, 1337);
+        final HomeRepository repository = HomeRepository.get(this);
 
-        // Insert a new row for Toto into the provider using the ContentResolver.
-        // Use the HomeEntry CONTENT_URI to indicate that we want to insert
-        // into the homes database table.
-        // Receive the new content URI that will allow us to access Toto's data in the future.
-        Uri newUri = getContentResolver().insert(HomeEntry.CONTENT_URI, values);
+        // Insert a new row for Toto straight into the provider, which runs in this process, on
+        // a background thread. The list shows the new row once the provider notifies it.
+        mInsertExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long newRowId = repository.insertHome(home);
 
-        //Log.v("CatalogActivity", "newRodId: " + newRowId);
+                //Log.v("CatalogActivity", "newRodId: " + newRowId);
+            }
+        });
     }
 
     @Override
@@ -108,6 +190,27 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         return true;
     }
 
+    /**
+     * Check the sort mode that is currently applied to the catalog.
+     */
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        MenuItem sortItem = menu.findItem(getSortMenuItemId(mSortOrder));
+        if (sortItem != null) {
+            sortItem.setChecked(true);
+        }
+
+        // Clearing the filter only makes sense while there is one
+        menu.findItem(R.id.action_filter_clear).setVisible(!mFilter.isEmpty());
+
+        // The watchdog is a tool for developers, keep it out of release builds
+        MenuItem watchdogItem = menu.findItem(R.id.action_watchdog);
+        watchdogItem.setVisible(BuildConfig.DEBUG);
+        watchdogItem.setChecked(UiWatchdog.isEnabled());
+        return true;
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
@@ -120,46 +223,333 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             case R.id.action_delete_all_entries:
                 deleteAllHomes();
                 return true;
+            // Respond to a click on the "Remove duplicates" menu option
+            case R.id.action_remove_duplicates:
+                removeDuplicateHomes();
+                return true;
+            // Respond to a click on one of the "Filter" menu options
+            case R.id.action_filter_county:
+                showFacetDialog(FacetEntry.FACET_COUNTY, R.string.filter_county);
+                return true;
+            case R.id.action_filter_type:
+                showFacetDialog(FacetEntry.FACET_TYPE, R.string.filter_type);
+                return true;
+            case R.id.action_filter_income:
+                showFacetDialog(FacetEntry.FACET_INCOME_BAND, R.string.filter_income);
+                return true;
+            case R.id.action_filter_clear:
+                mFilter.clear();
+                applyFilter();
+                return true;
+            // Respond to a click on the "Performance Watchdog" menu option
+            case R.id.action_watchdog:
+                toggleWatchdog();
+                return true;
+            // Respond to a click on one of the "Sort By" menu options
+            case R.id.action_sort_default:
+                setSortOrder(HomeEntry.SORT_DEFAULT);
+                return true;
+            case R.id.action_sort_address:
+                setSortOrder(HomeEntry.SORT_ADDRESS);
+                return true;
+            case R.id.action_sort_county:
+                setSortOrder(HomeEntry.SORT_COUNTY);
+                return true;
+            case R.id.action_sort_income_high:
+                setSortOrder(HomeEntry.SORT_INCOME_HIGH);
+                return true;
+            case R.id.action_sort_income_low:
+                setSortOrder(HomeEntry.SORT_INCOME_LOW);
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        if (id == FACET_LOADER) {
+            // The counts are a small table kept up to date by the provider, and reload
+            // whenever a home changes
+            return new CursorLoader(this, FacetEntry.CONTENT_URI, null, null, null, null);
+        }
+
         // Define a projection that specifies the columns from the table we care about.
         String[] projection = {
                 HomeEntry._ID,
                 HomeEntry.COLUMN_HOME_ADDRESS,
                 HomeEntry.COLUMN_HOME_COUNTY,
-                HomeEntry.COLUMN_HOME_INCOME};
+                HomeEntry.COLUMN_HOME_INCOME,
+                HomeEntry.COLUMN_HOME_PHOTO_VERSION};
+
+        // Keep the rows of about a few screens ready at a time
+        Uri uri = HomeEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(HomeEntry.QUERY_PARAMETER_WINDOW_ROWS,
+                        String.valueOf(getResources().getInteger(R.integer.catalog_window_rows)))
+                .build();
 
         // This loader will execute the ContentProvider's query method on a background thread
-        return new CursorLoader(this,   // Parent activity context
-                HomeEntry.CONTENT_URI,   // Provider content URI to query
-                projection,             // Columns to include in the resulting Cursor
-                null,                   // No selection clause
-                null,                   // No selection arguments
-                null); // Default sort order
+        boolean traced = UiWatchdog.beginSection("CatalogActivity.onCreateLoader");
+        try {
+            return new CursorLoader(this,   // Parent activity context
+                    uri,                    // Provider content URI to query
+                    projection,             // Columns to include in the resulting Cursor
+                    mFilter.getSelection(), // Facets picked from the menu, if any
+                    mFilter.getSelectionArgs(),
+                    mSortOrder);            // Sort mode picked from the menu
+        } finally {
+            UiWatchdog.endSection(traced);
+        }
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        // Update HomeCursorAdapter with this new cursor containing updated home data
-        mCursorAdapter.swapCursor(data);
+        if (loader.getId() == FACET_LOADER) {
+            mFacetCursor = data;
+            return;
+        }
+        boolean traced = UiWatchdog.beginSection("CatalogActivity.onLoadFinished");
+        try {
+            // Update HomeCursorAdapter with this new cursor containing updated home data
+            mCursorAdapter.swapCursor(data);
+        } finally {
+            UiWatchdog.endSection(traced);
+        }
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
-        // Callback called when the data needs to be deleted
-        mCursorAdapter.swapCursor(null);
+        if (loader.getId() == FACET_LOADER) {
+            mFacetCursor = null;
+            return;
+        }
+        boolean traced = UiWatchdog.beginSection("CatalogActivity.onLoaderReset");
+        try {
+            // Callback called when the data needs to be deleted
+            mCursorAdapter.swapCursor(null);
+        } finally {
+            UiWatchdog.endSection(traced);
+        }
+    }
+
+    /**
+     * Apply a new sort mode to the catalog, remember it and reload the list with it.
+     */
+    private void setSortOrder(String sortOrder) {
+        if (sortOrder.equals(mSortOrder)) {
+            return;
+        }
+        mSortOrder = sortOrder;
+
+        SharedPreferences.Editor editor = getPreferences(MODE_PRIVATE).edit();
+        editor.putString(PREF_SORT_ORDER, sortOrder);
+        editor.apply();
+
+        invalidateOptionsMenu();
+        getLoaderManager().restartLoader(HOME_LOADER, null, this);
+    }
+
+    /**
+     * Show the values of the given facet with the number of homes for each, and filter the
+     * catalog by the one the user picks.
+     */
+    private void showFacetDialog(final String facet, int titleId) {
+        // The first choice leaves the facet open
+        final List<String> values = new ArrayList<>();
+        List<String> labels = new ArrayList<>();
+        values.add(null);
+        labels.add(getString(R.string.filter_any));
+
+        String current = mFilter.getFacet(facet);
+        int checked = 0;
+        if (mFacetCursor != null) {
+            int facetColumnIndex = mFacetCursor.getColumnIndex(FacetEntry.COLUMN_FACET);
+            int valueColumnIndex = mFacetCursor.getColumnIndex(FacetEntry.COLUMN_FACET_VALUE);
+            int countColumnIndex = mFacetCursor.getColumnIndex(FacetEntry.COLUMN_FACET_COUNT);
+            mFacetCursor.moveToPosition(-1);
+            while (mFacetCursor.moveToNext()) {
+                if (!facet.equals(mFacetCursor.getString(facetColumnIndex))) {
+                    continue;
+                }
+                String value = mFacetCursor.getString(valueColumnIndex);
+                if (value.equals(current)) {
+                    checked = values.size();
+                }
+                values.add(value);
+                labels.add(getString(R.string.facet_count, getFacetLabel(facet, value),
+                        mFacetCursor.getInt(countColumnIndex)));
+            }
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle(titleId)
+                .setSingleChoiceItems(labels.toArray(new String[labels.size()]), checked,
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                mFilter.setFacet(facet, values.get(which));
+                                applyFilter();
+                                dialog.dismiss();
+                            }
+                        })
+                .show();
+    }
+
+    /**
+     * Return the text shown for a value of a facet.
+     */
+    private String getFacetLabel(String facet, String value) {
+        switch (facet) {
+            case FacetEntry.FACET_COUNTY:
+                return value.isEmpty() ? getString(R.string.unknown_county) : value;
+            case FacetEntry.FACET_TYPE:
+                switch (Integer.parseInt(value)) {
+                    case HomeEntry.TYPE_SINGLE:
+                        return getString(R.string.type_single);
+                    case HomeEntry.TYPE_MULTI:
+                        return getString(R.string.type_multi);
+                    default:
+                        return getString(R.string.type_unknown);
+                }
+            default:
+                int band = Integer.parseInt(value);
+                int end = FacetEntry.getIncomeBandEnd(band);
+                return end == -1
+                        ? getString(R.string.income_band_open, FacetEntry.getIncomeBandMin(band))
+                        : getString(R.string.income_band, FacetEntry.getIncomeBandMin(band), end - 1);
+        }
+    }
+
+    /**
+     * Remember the filter and reload the list with it.
+     */
+    private void applyFilter() {
+        SharedPreferences.Editor editor = getPreferences(MODE_PRIVATE).edit();
+        for (String facet : new String[] {
+                FacetEntry.FACET_COUNTY, FacetEntry.FACET_TYPE, FacetEntry.FACET_INCOME_BAND }) {
+            String value = mFilter.getFacet(facet);
+            if (value == null) {
+                editor.remove(PREF_FILTER_PREFIX + facet);
+            } else {
+                editor.putString(PREF_FILTER_PREFIX + facet, value);
+            }
+        }
+        editor.apply();
+
+        invalidateOptionsMenu();
+        getLoaderManager().restartLoader(HOME_LOADER, null, this);
+    }
+
+    /**
+     * Restore the filter saved by {@link #applyFilter()}.
+     */
+    private void restoreFilter() {
+        SharedPreferences preferences = getPreferences(MODE_PRIVATE);
+        for (String facet : new String[] {
+                FacetEntry.FACET_COUNTY, FacetEntry.FACET_TYPE, FacetEntry.FACET_INCOME_BAND }) {
+            try {
+                mFilter.setFacet(facet, preferences.getString(PREF_FILTER_PREFIX + facet, null));
+            } catch (IllegalArgumentException e) {
+                // Saved by a version with other types or bands, leave the facet open
+                mFilter.setFacet(facet, null);
+            }
+        }
+    }
+
+    /**
+     * Return the id of the menu item for the given sort mode.
+     */
+    private static int getSortMenuItemId(String sortOrder) {
+        switch (sortOrder) {
+            case HomeEntry.SORT_ADDRESS:
+                return R.id.action_sort_address;
+            case HomeEntry.SORT_COUNTY:
+                return R.id.action_sort_county;
+            case HomeEntry.SORT_INCOME_HIGH:
+                return R.id.action_sort_income_high;
+            case HomeEntry.SORT_INCOME_LOW:
+                return R.id.action_sort_income_low;
+            default:
+                return R.id.action_sort_default;
+        }
+    }
+
+    /**
+     * Switch the UI watchdog on or off. Switching it off logs what it recorded and starts over.
+     */
+    private void toggleWatchdog() {
+        if (UiWatchdog.isEnabled()) {
+            UiWatchdog.setEnabled(false);
+            UiWatchdog.dump();
+            UiWatchdog.reset();
+        } else {
+            UiWatchdog.setEnabled(true);
+        }
     }
 
     /**
      * Helper method to delete all homes in the database.
      */
     private void deleteAllHomes() {
-        int rowsDeleted = getContentResolver().delete(HomeEntry.CONTENT_URI, null, null);
+        Bundle result = deleteHomes(HomeEntry.CONTENT_URI);
         //Log.v("CatalogActivity", rowsDeleted + " rows deleted from home database");
+        showUndoSnackbar(R.plurals.homes_deleted, result);
+    }
+
+    /**
+     * Helper method to delete the homes that have the same address as an older home.
+     */
+    private void removeDuplicateHomes() {
+        Bundle result = deleteHomes(HomeEntry.DUPLICATES_URI);
+        if (result.getInt(DeletionEntry.KEY_COUNT) == 0) {
+            Toast.makeText(this, R.string.no_duplicates, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        showUndoSnackbar(R.plurals.duplicates_deleted, result);
+    }
+
+    /**
+     * Helper method to delete the homes at the given URI, returning the id of the deletion
+     * along with the number of homes deleted.
+     */
+    private Bundle deleteHomes(Uri uri) {
+        Bundle result = getContentResolver().call(DeletionEntry.CONTENT_URI,
+                DeletionEntry.METHOD_DELETE, uri.toString(), null);
+        return result != null ? result : new Bundle();
+    }
+
+    /**
+     * Helper method to tell the user how many homes were deleted, and offer to bring them back.
+     */
+    private void showUndoSnackbar(int messageId, Bundle result) {
+        int rowsDeleted = result.getInt(DeletionEntry.KEY_COUNT);
+        if (rowsDeleted == 0) {
+            return;
+        }
+
+        // Undo the deletion just made, not whichever deletion is the most recent by then
+        final long deletionId = result.getLong(DeletionEntry.KEY_DELETION_ID);
+
+        // The provider keeps the homes around for a little while, so offer to bring them back
+        String message = getResources().getQuantityString(messageId, rowsDeleted, rowsDeleted);
+        Snackbar.make(findViewById(R.id.list), message, (int) DeletionEntry.UNDO_WINDOW_MILLIS)
+                .setAction(R.string.undo, new View.OnClickListener() {
+                    @Override
+                    public void onClick(View view) {
+                        undoDeletion(deletionId);
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * Helper method to undo the given deletion, if it is still inside its undo window and
+     * all homes weren't deleted since.
+     */
+    private void undoDeletion(long deletionId) {
+        Uri deletionUri = ContentUris.withAppendedId(DeletionEntry.CONTENT_URI, deletionId);
+        if (getContentResolver().delete(deletionUri, null, null) == 0) {
+            Toast.makeText(this, R.string.undo_failed, Toast.LENGTH_SHORT).show();
+        }
     }
 
 }
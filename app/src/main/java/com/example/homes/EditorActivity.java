@@ -2,7 +2,8 @@ package com.example.homes;
 
 import android.app.AlertDialog;
 import android.app.LoaderManager;
-import android.content.ContentValues;
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -23,7 +24,18 @@ import android.widget.EditText;
 import android.widget.Spinner;
 import android.widget.Toast;
 
+import com.example.homes.data.Home;
+import com.example.homes.data.HomeBatch;
 import com.example.homes.data.HomeContract.HomeEntry;
+import com.example.homes.data.HomeRepository;
+import com.example.homes.watchdog.UiWatchdog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Allows user to create a new home or edit an existing one.
@@ -45,12 +57,36 @@ public class EditorActivity extends AppCompatActivity implements
     /** Identifier for the home data loader */
     private static final int EXISTING_HOME_LOADER = 0;
 
+    /** Request code of the picker for the photo of the home */
+    private static final int REQUEST_CHOOSE_PHOTO = 1;
+
     /** Content URI for the existing home (null if it's a new home) */
     private Uri mCurrentHomeUri;
 
     /** Boolean flag that keeps track of whether the home has been edited (true) or not (false) */
     private boolean mHomeHasChanged = false;
 
+    /**
+     * Version of the existing home shown in the editor. Saving only overwrites the home if it
+     * still has this version, so changes saved elsewhere meanwhile aren't lost silently.
+     */
+    private long mVersion = HomeBatch.ANY_VERSION;
+
+    /**
+     * Writes the home to the repository off the main thread. One thread, so saves run in the
+     * order they were made.
+     */
+    private final ExecutorService mSaveExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "EditorActivity-save");
+                }
+            });
+
+    /** Whether a save is running, further taps on "Save" are ignored until it is done */
+    private boolean mSaving = false;
+
     /**
      * OnTouchListener that listens for any user touches on a View, implying that they are modifying
      * the view, and we change the mHomeHasChanged boolean to true.
@@ -108,6 +144,13 @@ public class EditorActivity extends AppCompatActivity implements
         setupSpinner();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // A save that already started still completes
+        mSaveExecutor.shutdown();
+    }
+
 
 
     /**
@@ -149,8 +192,14 @@ public class EditorActivity extends AppCompatActivity implements
         });
     }
 
-    // Get user input from editor and save into database.
+    // Get user input from editor and save into database, then close the editor. The home is
+    // written on a background thread. If it was changed elsewhere meanwhile, the user is asked
+    // what to do instead, and the editor stays.
     private void saveHome(){
+        if (mSaving) {
+            return;
+        }
+
         // Read from EditText fields
         String addressString = mAddressEditText.getText().toString().trim();
         String countyString = mCountyEditText.getText().toString().trim();
@@ -163,32 +212,79 @@ public class EditorActivity extends AppCompatActivity implements
                 TextUtils.isEmpty(incomeString) && mType == HomeEntry.TYPE_UNKNOWN) {
             // Since no fields were modified, we can return early without creating a new home.
             // No need to create ContentValues and no need to do any ContentProvider operations.
+            finish();
             return;
         }
 
-        // Create a ContentValues object where column names are the keys,
-        // and Toto's home attributes are the values.
-        ContentValues values = new ContentValues();
-        values.put(HomeEntry.COLUMN_HOME_ADDRESS, addressString);
-        values.put(HomeEntry.COLUMN_HOME_COUNTY, countyString);
-        values.put(HomeEntry.COLUMN_HOME_TYPE, mType);
         // If the income is not provided by the user, don't try to parse the string into an
         // integer value. Use 0 by default.
         int income = 0;
         if (!TextUtils.isEmpty(incomeString)) {
             income = Integer.parseInt(incomeString);
         }
-        values.put(HomeEntry.COLUMN_HOME_INCOME, income);
 
-        // Determine if this is a new or existing home by checking if mCurrentHomeUri is null or not
-        if (mCurrentHomeUri == null) {
-            // This is a NEW home, so insert a new home into the provider,
-            // returning the content URI for the new home.
-            Uri newUri = getContentResolver().insert(HomeEntry.CONTENT_URI, values);
+        // The app runs in the process of the provider, so the home goes straight to it
+        final HomeRepository repository = HomeRepository.get(this);
+
+        // Determine if this is a new or existing home by checking if mCurrentHomeUri is null or
+        // not. An existing home is only updated as long as it still has the version the editor
+        // loaded.
+        final boolean isNew = mCurrentHomeUri == null;
+        final Home home = isNew
+                ? new Home(addressString, countyString, mType, income)
+                : new Home(ContentUris.parseId(mCurrentHomeUri), mVersion, addressString,
+                        countyString, mType, income);
+        final boolean expectsVersion = mVersion != HomeBatch.ANY_VERSION;
+
+        mSaving = true;
+        mSaveExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // The id of the new home, or the version of the updated one, -1 if it failed
+                final long result;
+                Home current = null;
+                if (isNew) {
+                    result = repository.insertHome(home);
+                } else {
+                    result = repository.updateHome(home);
+                    // Reading the home again tells a home changed meanwhile apart from one
+                    // that is gone
+                    if (result == -1 && expectsVersion) {
+                        current = repository.getHome(home.getId());
+                    }
+                }
 
+                final Home conflict = current;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mSaving = false;
+                        onHomeSaved(isNew, result, conflict);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Tell the user how the save went, on the main thread, and close the editor unless the
+     * home was changed elsewhere meanwhile.
+     *
+     * @param result the id of the new home or the version of the updated one, -1 if it failed
+     * @param conflict the home as it is now if it was changed elsewhere, null otherwise
+     */
+    private void onHomeSaved(boolean isNew, long result, Home conflict) {
+        if (conflict != null) {
+            if (!isFinishing()) {
+                showConflictDialog(conflict.getVersion());
+            }
+            return;
+        }
+
+        if (isNew) {
             // Show a toast message depending on whether or not the insertion was successful.
-            if (newUri == null) {
-                // If the new content URI is null, then there was an error with insertion.
+            if (result == -1) {
+                // If the new id is -1, then there was an error with insertion.
                 Toast.makeText(this, getString(R.string.editor_insert_home_failed),
                         Toast.LENGTH_SHORT).show();
             } else {
@@ -197,14 +293,8 @@ public class EditorActivity extends AppCompatActivity implements
                         Toast.LENGTH_SHORT).show();
             }
         } else {
-            // Otherwise this is an EXISTING home, so update the home with content URI: mCurrentHomeUri
-            // and pass in the new ContentValues. Pass in null for the selection and selection args
-            // because mCurrentHomeUri will already identify the correct row in the database that
-            // we want to modify.
-            int rowsAffected = getContentResolver().update(mCurrentHomeUri, values, null, null);
-
             // Show a toast message depending on whether or not the update was successful.
-            if (rowsAffected == 0) {
+            if (result == -1) {
                 // If no rows were affected, then there was an error with the update.
                 Toast.makeText(this, getString(R.string.editor_update_home_failed),
                         Toast.LENGTH_SHORT).show();
@@ -212,8 +302,10 @@ public class EditorActivity extends AppCompatActivity implements
                 // Otherwise, the update was successful and we can display a toast.
                 Toast.makeText(this, getString(R.string.editor_update_home_successful),
                         Toast.LENGTH_SHORT).show();
+                mVersion = result;
             }
         }
+        finish();
     }
 
     @Override
@@ -230,16 +322,26 @@ public class EditorActivity extends AppCompatActivity implements
         switch (item.getItemId()) {
             // Respond to a click on the "Save" menu option
             case R.id.action_save:
-                // Save info to database
+                // Save info to database, and exit activity unless the home needs merging first
                 saveHome();
-                // Exit activity
-                finish();
                 return true;
             // Respond to a click on the "Delete" menu option
             case R.id.action_delete:
                 // Pop up confirmation dialog for deletion
                 showDeleteConfirmationDialog();
                 return true;
+            // Respond to a click on the "Choose photo" menu option
+            case R.id.action_choose_photo:
+                Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+                intent.setType("image/*");
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                startActivityForResult(intent, REQUEST_CHOOSE_PHOTO);
+                return true;
+            // Respond to a click on the "Remove photo" menu option
+            case R.id.action_remove_photo:
+                getContentResolver().delete(
+                        HomeEntry.buildPhotoUri(ContentUris.parseId(mCurrentHomeUri)), null, null);
+                return true;
             // Respond to a click on the "Up" arrow button in the app bar
             case android.R.id.home:
                 // If the home hasn't changed, continue with navigating up to parent activity
@@ -275,14 +377,79 @@ public class EditorActivity extends AppCompatActivity implements
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
         super.onPrepareOptionsMenu(menu);
-        // If this is a new home, hide the "Delete" menu item.
+        // If this is a new home, hide the "Delete" menu item, and the photo items: the photo
+        // is stored under the id of the home, which it doesn't have yet.
         if (mCurrentHomeUri == null) {
             MenuItem menuItem = menu.findItem(R.id.action_delete);
             menuItem.setVisible(false);
+            menu.findItem(R.id.action_choose_photo).setVisible(false);
+            menu.findItem(R.id.action_remove_photo).setVisible(false);
         }
         return true;
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode != REQUEST_CHOOSE_PHOTO) {
+            super.onActivityResult(requestCode, resultCode, data);
+            return;
+        }
+        if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+            savePhoto(data.getData());
+        }
+    }
+
+    /**
+     * Copy the picked image into the photo of the home. The image may be large, or come from
+     * another app or the network, so it is copied on a background thread, and the list picks
+     * the new photo up once the provider has stored it.
+     */
+    private void savePhoto(final Uri imageUri) {
+        final ContentResolver resolver = getContentResolver();
+        final Uri photoUri = HomeEntry.buildPhotoUri(ContentUris.parseId(mCurrentHomeUri));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    copy(resolver, imageUri, photoUri);
+                } catch (IOException | RuntimeException e) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(EditorActivity.this,
+                                    getString(R.string.editor_photo_failed),
+                                    Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                }
+            }
+        }, "EditorActivity-photo").start();
+    }
+
+    private static void copy(ContentResolver resolver, Uri from, Uri to) throws IOException {
+        InputStream in = resolver.openInputStream(from);
+        if (in == null) {
+            throw new IOException("Cannot read " + from);
+        }
+        try {
+            OutputStream out = resolver.openOutputStream(to);
+            if (out == null) {
+                throw new IOException("Cannot write " + to);
+            }
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         // Since the editor shows all home attributes, define a projection that contains
@@ -292,19 +459,42 @@ public class EditorActivity extends AppCompatActivity implements
                 HomeEntry.COLUMN_HOME_ADDRESS,
                 HomeEntry.COLUMN_HOME_COUNTY,
                 HomeEntry.COLUMN_HOME_TYPE,
-                HomeEntry.COLUMN_HOME_INCOME };
+                HomeEntry.COLUMN_HOME_INCOME,
+                HomeEntry.COLUMN_HOME_VERSION };
 
         // This loader will execute the ContentProvider's query method on a background thread
-        return new CursorLoader(this,   // Parent activity context
-                mCurrentHomeUri,         // Query the content URI for the current home
-                projection,             // Columns to include in the resulting Cursor
-                null,                   // No selection clause
-                null,                   // No selection arguments
-                null); // Default sort order
+        boolean traced = UiWatchdog.beginSection("EditorActivity.onCreateLoader");
+        try {
+            return new CursorLoader(this,   // Parent activity context
+                    mCurrentHomeUri,         // Query the content URI for the current home
+                    projection,             // Columns to include in the resulting Cursor
+                    null,                   // No selection clause
+                    null,                   // No selection arguments
+                    null); // Default sort order
+        } finally {
+            UiWatchdog.endSection(traced);
+        }
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+        boolean traced = UiWatchdog.beginSection("EditorActivity.onLoadFinished");
+        try {
+            // The loader delivers the home again whenever it is written. Keep the user's edits
+            // and the version they started from, so saving them finds out about the write.
+            if (mHomeHasChanged && mVersion != HomeBatch.ANY_VERSION) {
+                return;
+            }
+            displayHome(cursor);
+        } finally {
+            UiWatchdog.endSection(traced);
+        }
+    }
+
+    /**
+     * Fill the input fields with the home the cursor points to.
+     */
+    private void displayHome(Cursor cursor) {
         // Bail early if the cursor is null or there is less than 1 row in the cursor
         if (cursor == null || cursor.getCount() < 1) {
             return;
@@ -318,12 +508,14 @@ public class EditorActivity extends AppCompatActivity implements
             int countyColumnIndex = cursor.getColumnIndex(HomeEntry.COLUMN_HOME_COUNTY);
             int typeColumnIndex = cursor.getColumnIndex(HomeEntry.COLUMN_HOME_TYPE);
             int incomeColumnIndex = cursor.getColumnIndex(HomeEntry.COLUMN_HOME_INCOME);
+            int versionColumnIndex = cursor.getColumnIndex(HomeEntry.COLUMN_HOME_VERSION);
 
             // Extract out the value from the Cursor for the given column index
             String name = cursor.getString(nameColumnIndex);
             String county = cursor.getString(countyColumnIndex);
             int type = cursor.getInt(typeColumnIndex);
             int income = cursor.getInt(incomeColumnIndex);
+            mVersion = cursor.getLong(versionColumnIndex);
 
             // Update the views on the screen with the values from the database
             mAddressEditText.setText(name);
@@ -349,11 +541,16 @@ public class EditorActivity extends AppCompatActivity implements
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
-        // If the loader is invalidated, clear out all the data from the input fields.
-        mAddressEditText.setText("");
-        mCountyEditText.setText("");
-        mIncomeEditText.setText("");
-        mTypeSpinner.setSelection(0); // Select "Unknown" type
+        boolean traced = UiWatchdog.beginSection("EditorActivity.onLoaderReset");
+        try {
+            // If the loader is invalidated, clear out all the data from the input fields.
+            mAddressEditText.setText("");
+            mCountyEditText.setText("");
+            mIncomeEditText.setText("");
+            mTypeSpinner.setSelection(0); // Select "Unknown" type
+        } finally {
+            UiWatchdog.endSection(traced);
+        }
     }
 
     /**
@@ -385,6 +582,38 @@ public class EditorActivity extends AppCompatActivity implements
         alertDialog.show();
     }
 
+    /**
+     * Show a dialog telling the user the home was saved elsewhere since the editor loaded it,
+     * and let them either save their changes over it, or reload it and drop their changes.
+     *
+     * @param version the home has now
+     */
+    private void showConflictDialog(final long version) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(R.string.conflict_dialog_msg);
+        builder.setPositiveButton(R.string.overwrite, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                // User clicked the "Overwrite" button, so save again over the version seen now.
+                // If the home changed yet again, the dialog comes back.
+                mVersion = version;
+                saveHome();
+            }
+        });
+        builder.setNegativeButton(R.string.reload, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                // User clicked the "Reload" button, so drop the edits and show the home as
+                // it is now.
+                mHomeHasChanged = false;
+                getLoaderManager().restartLoader(EXISTING_HOME_LOADER, null,
+                        EditorActivity.this);
+            }
+        });
+
+        // Create and show the AlertDialog
+        AlertDialog alertDialog = builder.create();
+        alertDialog.show();
+    }
+
     /**
      * This method is called when the back button is pressed.
      */
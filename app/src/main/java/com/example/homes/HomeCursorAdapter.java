@@ -2,28 +2,48 @@ package com.example.homes;
 
 import android.content.Context;
 import android.database.Cursor;
-import android.text.TextUtils;
+import android.text.Layout;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.CursorAdapter;
-import android.widget.TextView;
+import android.widget.ImageView;
 
 import com.example.homes.data.HomeContract.HomeEntry;
+import com.example.homes.watchdog.UiWatchdog;
 
 /**
  * An adapter for a list or grid view
  * that uses a Cursor of home data as its data source.
  * This adapter knows how to create list items for each
  * row of home data in the Cursor.
+ *
+ * The thumbnails of the photos are loaded in the background by a {@link HomePhotoLoader}. Set
+ * the adapter as the recycler listener of its list, so their loading is cancelled once their
+ * row scrolls off screen.
+ *
+ * The texts of the rows are laid out ahead of the scroll by a {@link HomeRowPrefetcher}, set as
+ * the scroll listener of the list. A row whose layouts are ready is bound by handing them to
+ * its views, the others are laid out by their views as usual.
  */
-public class HomeCursorAdapter extends CursorAdapter {
+public class HomeCursorAdapter extends CursorAdapter implements AbsListView.RecyclerListener {
+
+    /** Name of the adapter in the watchdog histograms */
+    private static final String WATCHDOG_NAME = HomeCursorAdapter.class.getSimpleName();
+
+    private final HomePhotoLoader mPhotoLoader;
+
+    private final HomeRowPrefetcher mRowPrefetcher;
 
     /**
      * Constructs a new HomeCursorAdapter.
      */
-    public HomeCursorAdapter(Context context, Cursor c) {
+    public HomeCursorAdapter(Context context, Cursor c, HomePhotoLoader photoLoader,
+            HomeRowPrefetcher rowPrefetcher) {
         super(context, c, 0 /* flags */);
+        mPhotoLoader = photoLoader;
+        mRowPrefetcher = rowPrefetcher;
     }
 
     /**
@@ -31,7 +51,12 @@ public class HomeCursorAdapter extends CursorAdapter {
      */
     @Override
     public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        return LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
+        long start = UiWatchdog.startTiming();
+        View view = LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
+        // Find the views once, binding only sets them
+        view.setTag(new ViewHolder(view));
+        UiWatchdog.recordNewView(WATCHDOG_NAME, start);
+        return view;
     }
 
     /**
@@ -41,32 +66,72 @@ public class HomeCursorAdapter extends CursorAdapter {
      */
     @Override
     public void bindView(View view, Context context, Cursor cursor) {
-        // Find individual views that we want to modify in the list item layout
-        TextView nameTextView = (TextView) view.findViewById(R.id.name);
-        TextView summaryTextView = (TextView) view.findViewById(R.id.summary);
-        TextView rentalTextView = (TextView) view.findViewById(R.id.rental);
+        long start = UiWatchdog.startTiming();
+
+        ViewHolder holder = (ViewHolder) view.getTag();
 
         // Find the columns of home attributes that we're interested in
         int nameColumnIndex = cursor.getColumnIndex(HomeEntry.COLUMN_HOME_ADDRESS);
         int countyColumnIndex = cursor.getColumnIndex(HomeEntry.COLUMN_HOME_COUNTY);
-        int rentalColumnIndex = cursor.getColumnIndex(HomeEntry.COLUMN_HOME_INCOME);
+        int incomeColumnIndex = cursor.getColumnIndex(HomeEntry.COLUMN_HOME_INCOME);
+        int idColumnIndex = cursor.getColumnIndex(HomeEntry._ID);
+        int photoVersionColumnIndex = cursor.getColumnIndex(HomeEntry.COLUMN_HOME_PHOTO_VERSION);
 
         // Read the home attributes from the Cursor for the current home
+        long homeId = cursor.getLong(idColumnIndex);
         String homeAddress = cursor.getString(nameColumnIndex);
         String homeCounty = cursor.getString(countyColumnIndex);
-        String rentalCounty = cursor.getString(rentalColumnIndex);
+        // The income is an integer column, read it as one instead of converting it to text
+        int homeIncome = cursor.getInt(incomeColumnIndex);
 
-        // If the home county is empty string or null, then use some default text
-        // that says "Unknown county", so the TextView isn't blank.
-        if (TextUtils.isEmpty(homeCounty)) {
-            homeCounty = context.getString(R.string.unknown_county);
+        Layout[] layouts = mRowPrefetcher.getLayouts(homeId, homeAddress, homeCounty, homeIncome);
+        if (layouts != null) {
+            // Laid out ahead of the scroll, nothing left to measure
+            holder.mNameTextView.setPrecomputedLayout(layouts[HomeRowPrefetcher.TEXT_ADDRESS]);
+            holder.mSummaryTextView.setPrecomputedLayout(layouts[HomeRowPrefetcher.TEXT_COUNTY]);
+            holder.mRentalTextView.setPrecomputedLayout(layouts[HomeRowPrefetcher.TEXT_INCOME]);
+        } else {
+            // Update the TextViews with the attributes for the current home. An empty county
+            // shows as "Unknown county", so the TextView isn't blank.
+            holder.mNameTextView.setPlainText(homeAddress);
+            holder.mSummaryTextView.setPlainText(mRowPrefetcher.getCountyText(homeCounty));
+            holder.mRentalTextView.setPlainText(mRowPrefetcher.getIncomeText(homeIncome));
         }
 
-        String unitString = context.getString(R.string.unit_home_income);
+        // Show the thumbnail if it is in memory, or start loading it
+        mPhotoLoader.bind(holder.mPhotoImageView, homeId,
+                cursor.getLong(photoVersionColumnIndex));
 
-        // Update the TextViews with the attributes for the current home
-        nameTextView.setText(homeAddress);
-        summaryTextView.setText(homeCounty);
-        rentalTextView.setText(rentalCounty + unitString);
+        UiWatchdog.recordBindView(WATCHDOG_NAME, start);
+    }
+
+    /**
+     * Stop loading the thumbnail of a row that scrolled off screen, it would only be replaced
+     * when the row is bound again.
+     */
+    @Override
+    public void onMovedToScrapHeap(View view) {
+        Object tag = view.getTag();
+        if (tag instanceof ViewHolder) {
+            mPhotoLoader.cancel(((ViewHolder) tag).mPhotoImageView);
+        }
+    }
+
+    /**
+     * The views of a list item, kept as the tag of the item.
+     */
+    private static final class ViewHolder {
+
+        final LayoutTextView mNameTextView;
+        final LayoutTextView mSummaryTextView;
+        final LayoutTextView mRentalTextView;
+        final ImageView mPhotoImageView;
+
+        ViewHolder(View view) {
+            mNameTextView = (LayoutTextView) view.findViewById(R.id.name);
+            mSummaryTextView = (LayoutTextView) view.findViewById(R.id.summary);
+            mRentalTextView = (LayoutTextView) view.findViewById(R.id.rental);
+            mPhotoImageView = (ImageView) view.findViewById(R.id.photo);
+        }
     }
 }
\ No newline at end of file
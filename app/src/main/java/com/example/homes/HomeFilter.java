@@ -0,0 +1,163 @@
+package com.example.homes;
+
+import com.example.homes.data.HomeContract.FacetEntry;
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The facets the catalog is filtered by: a county, a type and an income band, each of which
+ * may be left open. Turns them into the selection of the catalog query, which the indexes on
+ * county, type and income serve.
+ */
+public class HomeFilter {
+
+    /** Value of an open type or income band */
+    public static final int ANY = -1;
+
+    /** County to show, "" for the homes without one, or null for any county */
+    private String mCounty;
+
+    /** Type to show, or {@link #ANY} */
+    private int mType = ANY;
+
+    /** Index of the income band to show, or {@link #ANY} */
+    private int mIncomeBand = ANY;
+
+    public String getCounty() {
+        return mCounty;
+    }
+
+    public void setCounty(String county) {
+        mCounty = county;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public void setType(int type) {
+        if (type != ANY && !HomeEntry.isValidType(type)) {
+            throw new IllegalArgumentException("Invalid type " + type);
+        }
+        mType = type;
+    }
+
+    public int getIncomeBand() {
+        return mIncomeBand;
+    }
+
+    public void setIncomeBand(int incomeBand) {
+        if (incomeBand != ANY && (incomeBand < 0 || incomeBand >= FacetEntry.getIncomeBandCount())) {
+            throw new IllegalArgumentException("Invalid income band " + incomeBand);
+        }
+        mIncomeBand = incomeBand;
+    }
+
+    /**
+     * Set the facet of a row of {@link FacetEntry#CONTENT_URI} to its value.
+     */
+    public void setFacet(String facet, String value) {
+        switch (facet) {
+            case FacetEntry.FACET_COUNTY:
+                setCounty(value);
+                break;
+            case FacetEntry.FACET_TYPE:
+                setType(value == null ? ANY : Integer.parseInt(value));
+                break;
+            case FacetEntry.FACET_INCOME_BAND:
+                setIncomeBand(value == null ? ANY : Integer.parseInt(value));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown facet " + facet);
+        }
+    }
+
+    /**
+     * Returns the value of the given facet as in {@link FacetEntry#COLUMN_FACET_VALUE}, or
+     * null if it's open.
+     */
+    public String getFacet(String facet) {
+        switch (facet) {
+            case FacetEntry.FACET_COUNTY:
+                return mCounty;
+            case FacetEntry.FACET_TYPE:
+                return mType == ANY ? null : String.valueOf(mType);
+            case FacetEntry.FACET_INCOME_BAND:
+                return mIncomeBand == ANY ? null : String.valueOf(mIncomeBand);
+            default:
+                throw new IllegalArgumentException("Unknown facet " + facet);
+        }
+    }
+
+    /**
+     * Whether every facet is open.
+     */
+    public boolean isEmpty() {
+        return mCounty == null && mType == ANY && mIncomeBand == ANY;
+    }
+
+    public void clear() {
+        mCounty = null;
+        mType = ANY;
+        mIncomeBand = ANY;
+    }
+
+    /**
+     * Returns the selection of the homes matching the filter, or null if every facet is open.
+     * The terms are plain comparisons of the columns, in the order of the index on county,
+     * type and income.
+     */
+    public String getSelection() {
+        List<String> terms = new ArrayList<>();
+        if (mCounty != null) {
+            terms.add(mCounty.isEmpty()
+                    ? "(" + HomeEntry.COLUMN_HOME_COUNTY + " IS NULL OR "
+                            + HomeEntry.COLUMN_HOME_COUNTY + " = '')"
+                    : HomeEntry.COLUMN_HOME_COUNTY + " = ?");
+        }
+        if (mType != ANY) {
+            terms.add(HomeEntry.COLUMN_HOME_TYPE + " = ?");
+        }
+        if (mIncomeBand != ANY) {
+            terms.add(HomeEntry.COLUMN_HOME_INCOME + " >= ?");
+            if (FacetEntry.getIncomeBandEnd(mIncomeBand) != -1) {
+                terms.add(HomeEntry.COLUMN_HOME_INCOME + " < ?");
+            }
+        }
+        if (terms.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder selection = new StringBuilder();
+        for (String term : terms) {
+            if (selection.length() > 0) {
+                selection.append(" AND ");
+            }
+            selection.append(term);
+        }
+        return selection.toString();
+    }
+
+    /**
+     * Returns the arguments of {@link #getSelection()}, or null if there are none.
+     */
+    public String[] getSelectionArgs() {
+        List<String> args = new ArrayList<>();
+        if (mCounty != null && !mCounty.isEmpty()) {
+            args.add(mCounty);
+        }
+        if (mType != ANY) {
+            args.add(String.valueOf(mType));
+        }
+        if (mIncomeBand != ANY) {
+            args.add(String.valueOf(FacetEntry.getIncomeBandMin(mIncomeBand)));
+            int end = FacetEntry.getIncomeBandEnd(mIncomeBand);
+            if (end != -1) {
+                args.add(String.valueOf(end));
+            }
+        }
+        return args.isEmpty() ? null : args.toArray(new String[args.size()]);
+    }
+}
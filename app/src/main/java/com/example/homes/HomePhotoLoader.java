@@ -0,0 +1,223 @@
+package com.example.homes;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the thumbnails of the photos of the homes into the list, off the UI thread.
+ *
+ * Thumbnails come from two levels of cache: decoded bitmaps in memory, keyed by the id of the
+ * home and the version of its photo, and the JPEG files the provider keeps on disk. A bitmap in
+ * memory is set while binding, anything else is read and decoded by a background thread and
+ * set once ready, if the view still shows the same home.
+ *
+ * The most recent request runs first, and the request of a view is cancelled when the view
+ * is bound to another home or scrolls off screen, so a fling doesn't leave a queue of
+ * thumbnails nobody will see in front of the ones on screen.
+ */
+class HomePhotoLoader {
+
+    private static final String LOG_TAG = HomePhotoLoader.class.getSimpleName();
+
+    /** Threads reading the thumbnails, the provider may have to generate them first */
+    private static final int THREAD_COUNT = 2;
+
+    /** Share of the heap of the app the decoded thumbnails may take */
+    private static final int MEMORY_CACHE_HEAP_DIVISOR = 8;
+
+    private final ContentResolver mResolver;
+
+    /** Width and height of the thumbnails, in pixels */
+    private final int mSize;
+
+    /** Decoded thumbnails by {@link #key(long, long)}, sized in bytes */
+    private final LruCache<String, Bitmap> mMemoryCache;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    HomePhotoLoader(Context context, int size) {
+        mResolver = context.getContentResolver();
+        mSize = size;
+
+        int maxBytes = (int) Math.min(Integer.MAX_VALUE,
+                Runtime.getRuntime().maxMemory() / MEMORY_CACHE_HEAP_DIVISOR);
+        mMemoryCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+
+        // A deque taking new requests at its head makes the executor run the newest first
+        mExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 10, TimeUnit.SECONDS,
+                new LinkedBlockingDeque<Runnable>() {
+                    @Override
+                    public boolean offer(Runnable runnable) {
+                        return offerFirst(runnable);
+                    }
+                }, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                // Decoding shouldn't take the CPU from the UI
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "HomePhotoLoader");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private String key(long id, long version) {
+        return id + ":" + version + ":" + mSize;
+    }
+
+    /**
+     * Show the thumbnail of the given home in the view, replacing whatever it was loading
+     * before. Called on the UI thread while binding.
+     *
+     * @param version of the photo of the home, 0 if it has none
+     */
+    void bind(ImageView view, long id, long version) {
+        cancel(view);
+        if (version == 0) {
+            view.setImageDrawable(null);
+            return;
+        }
+
+        String key = key(id, version);
+        Bitmap bitmap = mMemoryCache.get(key);
+        if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+            return;
+        }
+
+        // Leave the background showing until the thumbnail is ready, rather than the photo
+        // of the home the view showed before
+        view.setImageDrawable(null);
+        Request request = new Request(view, id, key);
+        view.setTag(request);
+        mExecutor.execute(request);
+    }
+
+    /**
+     * Cancel the request of the view, if it still has one. Called on the UI thread.
+     */
+    void cancel(ImageView view) {
+        Object tag = view.getTag();
+        if (tag instanceof Request) {
+            Request request = (Request) tag;
+            request.mCancelled = true;
+            mExecutor.remove(request);
+            view.setTag(null);
+        }
+    }
+
+    /**
+     * Drop the decoded thumbnails, e.g. when the system runs low on memory.
+     */
+    void evictAll() {
+        mMemoryCache.evictAll();
+    }
+
+    /**
+     * Stop the loading threads and drop the decoded thumbnails. Requests still queued are
+     * dropped, and those running have no effect anymore.
+     */
+    void shutdown() {
+        mExecutor.shutdownNow();
+        mMemoryCache.evictAll();
+    }
+
+    /**
+     * Read and decode a thumbnail for one view, and set it on the UI thread.
+     */
+    private final class Request implements Runnable {
+
+        private final ImageView mView;
+        private final long mId;
+        private final String mKey;
+
+        /** Set on the UI thread once the view doesn't want the thumbnail anymore */
+        volatile boolean mCancelled;
+
+        Request(ImageView view, long id, String key) {
+            mView = view;
+            mId = id;
+            mKey = key;
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            final Bitmap bitmap = decode(mId);
+            if (bitmap == null) {
+                return;
+            }
+            mMemoryCache.put(mKey, bitmap);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // The view may have been bound to another home meanwhile
+                    if (mCancelled || mView.getTag() != Request.this) {
+                        return;
+                    }
+                    mView.setTag(null);
+                    mView.setImageBitmap(bitmap);
+                }
+            });
+        }
+    }
+
+    /**
+     * Read the thumbnail of the given home from the provider, or null if there is none.
+     */
+    private Bitmap decode(long id) {
+        InputStream in;
+        try {
+            in = mResolver.openInputStream(HomeEntry.buildThumbnailUri(id, mSize));
+        } catch (FileNotFoundException e) {
+            // The home or its photo was deleted since the list was loaded
+            return null;
+        }
+        if (in == null) {
+            return null;
+        }
+        try {
+            return BitmapFactory.decodeStream(in);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to close the thumbnail of home " + id, e);
+            }
+        }
+    }
+}
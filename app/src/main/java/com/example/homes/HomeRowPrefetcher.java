@@ -0,0 +1,427 @@
+package com.example.homes;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.text.TextUtils;
+import android.util.LruCache;
+import android.view.View;
+import android.widget.AbsListView;
+import android.widget.CursorAdapter;
+import android.widget.ListAdapter;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lays out the text of the rows of the list of homes ahead of the scroll, off the UI thread,
+ * so that binding a row during a fling only hands finished layouts to its views.
+ *
+ * Set it as the scroll listener of the list. It follows the speed of the scroll in rows per
+ * second and, past the last row on screen in the direction of the scroll, reads the rows about
+ * to come on screen from the cursor of the list. Their text is laid out by a background thread
+ * into a {@link StaticLayout} per {@link LayoutTextView}, with copies of the paints and the
+ * widths of the views of a row already laid out. The faster the scroll, the further ahead.
+ *
+ * The cursor of the list copies its rows ahead of the scroll itself, so reading them is an
+ * array access. The layouts are kept by home id, with the values they were made from: a row
+ * whose home changed since, or whose views changed size, is laid out by its views as usual.
+ */
+class HomeRowPrefetcher implements AbsListView.OnScrollListener {
+
+    /** Index of the layout of each text of a row */
+    static final int TEXT_ADDRESS = 0;
+    static final int TEXT_COUNTY = 1;
+    static final int TEXT_INCOME = 2;
+    private static final int TEXT_COUNT = 3;
+
+    /** Ids of the views of the texts, by index */
+    private static final int[] TEXT_VIEW_IDS = { R.id.name, R.id.summary, R.id.rental };
+
+    /** How far ahead of the scroll the rows are laid out, in time at its current speed */
+    private static final long LOOKAHEAD_MILLIS = 300;
+
+    /** Rows laid out ahead at least, about a screen, and at most */
+    private static final int MIN_LOOKAHEAD_ROWS = 8;
+    private static final int MAX_LOOKAHEAD_ROWS = 64;
+
+    /** Weight of the latest speed in the smoothed speed of the scroll */
+    private static final float SPEED_SMOOTHING = 0.5f;
+
+    /** Rows whose layouts are kept, a few screens on either side */
+    private static final int CACHE_ROWS = 256;
+
+    /** Shown instead of an empty county */
+    private final String mUnknownCounty;
+
+    /** Appended to the income */
+    private final String mIncomeUnit;
+
+    /** Layouts of the rows by home id, only used on the UI thread */
+    private final LruCache<Long, Row> mRows = new LruCache<>(CACHE_ROWS);
+
+    /** Ids of the homes being laid out, only used on the UI thread */
+    private final Set<Long> mPending = new HashSet<>();
+
+    private final ExecutorService mExecutor;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Paints and widths of the texts, null until a row is laid out */
+    private Geometry mGeometry;
+
+    /** Width of the list when the geometry was read */
+    private int mListWidth;
+
+    /** Position and time of the first row on screen at the last scroll */
+    private int mLastFirstPosition = -1;
+    private long mLastScrollMillis;
+
+    /** Smoothed speed of the scroll in rows per second, negative towards the top */
+    private float mRowsPerSecond;
+
+    /** Positions read for the current cursor and geometry, from first to last */
+    private Cursor mReadCursor;
+    private int mReadFirst;
+    private int mReadLast = -1;
+
+    HomeRowPrefetcher(Context context) {
+        this(context, createExecutor());
+    }
+
+    /**
+     * @param executor running the layouts of the rows, one batch at a time
+     */
+    HomeRowPrefetcher(Context context, ExecutorService executor) {
+        mUnknownCounty = context.getString(R.string.unknown_county);
+        mIncomeUnit = context.getString(R.string.unit_home_income);
+        mExecutor = executor;
+    }
+
+    private static ExecutorService createExecutor() {
+        // A deque taking new batches at its head lays out the rows of the latest scroll first
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                new LinkedBlockingDeque<Runnable>() {
+                    @Override
+                    public boolean offer(Runnable runnable) {
+                        return offerFirst(runnable);
+                    }
+                }, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                // Layouts shouldn't take the CPU from the UI
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "HomeRowPrefetcher");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Returns the text shown for the county of a home.
+     */
+    String getCountyText(String county) {
+        return TextUtils.isEmpty(county) ? mUnknownCounty : county;
+    }
+
+    /**
+     * Returns the text shown for the income of a home.
+     */
+    String getIncomeText(int income) {
+        return income + mIncomeUnit;
+    }
+
+    /**
+     * Returns the layouts of the texts of the given home, by TEXT_ index, or null if they
+     * aren't ready or were made from other values or for views of another size. Called on the
+     * UI thread while binding.
+     */
+    Layout[] getLayouts(long id, String address, String county, int income) {
+        Row row = mRows.get(id);
+        if (row == null || row.mGeometry != mGeometry || row.mIncome != income
+                || !TextUtils.equals(row.mAddress, address)
+                || !TextUtils.equals(row.mCounty, county)) {
+            return null;
+        }
+        return row.mLayouts;
+    }
+
+    /**
+     * Drop the layouts, e.g. when the system runs low on memory.
+     */
+    void evictAll() {
+        mRows.evictAll();
+        mReadLast = -1;
+    }
+
+    /**
+     * Stop the layout thread and drop the layouts.
+     */
+    void shutdown() {
+        mExecutor.shutdownNow();
+        evictAll();
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if (scrollState == SCROLL_STATE_IDLE) {
+            mRowsPerSecond = 0;
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        if (visibleItemCount == 0 || !updateGeometry(view)) {
+            return;
+        }
+
+        updateSpeed(firstVisibleItem, SystemClock.uptimeMillis());
+        int[] ahead = getRowsAhead(firstVisibleItem, visibleItemCount, totalItemCount);
+        if (ahead[0] <= ahead[1]) {
+            prefetch(view.getAdapter(), ahead[0], ahead[1]);
+        }
+    }
+
+    /**
+     * Follow the speed of the scroll, each time another row is the first on screen.
+     */
+    void updateSpeed(int firstVisibleItem, long now) {
+        if (mLastFirstPosition >= 0 && firstVisibleItem != mLastFirstPosition) {
+            long elapsed = Math.max(1, now - mLastScrollMillis);
+            float rowsPerSecond = (firstVisibleItem - mLastFirstPosition) * 1000f / elapsed;
+            mRowsPerSecond += SPEED_SMOOTHING * (rowsPerSecond - mRowsPerSecond);
+        }
+        if (firstVisibleItem != mLastFirstPosition) {
+            mLastFirstPosition = firstVisibleItem;
+            mLastScrollMillis = now;
+        }
+    }
+
+    /**
+     * Returns the smoothed speed of the scroll in rows per second, negative towards the top.
+     */
+    float getRowsPerSecond() {
+        return mRowsPerSecond;
+    }
+
+    /**
+     * Returns the first and last positions to lay out ahead of the rows on screen, in the
+     * direction of the scroll and as far as its speed goes. The first is past the last if
+     * there is none.
+     */
+    int[] getRowsAhead(int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        int lookahead = (int) Math.min(MAX_LOOKAHEAD_ROWS, Math.max(MIN_LOOKAHEAD_ROWS,
+                Math.abs(mRowsPerSecond) * LOOKAHEAD_MILLIS / 1000));
+        if (mRowsPerSecond < 0) {
+            return new int[] { Math.max(0, firstVisibleItem - lookahead), firstVisibleItem - 1 };
+        }
+        int first = firstVisibleItem + visibleItemCount;
+        return new int[] { first, Math.min(totalItemCount - 1, first + lookahead - 1) };
+    }
+
+    /**
+     * Read the paints and the widths of the texts from a row on screen, unless the list kept
+     * its width since. Returns whether the geometry is known.
+     */
+    private boolean updateGeometry(AbsListView list) {
+        if (mGeometry != null && mListWidth == list.getWidth()) {
+            return true;
+        }
+        View row = list.getChildAt(0);
+        if (row == null) {
+            return false;
+        }
+        TextPaint[] paints = new TextPaint[TEXT_COUNT];
+        int[] widths = new int[TEXT_COUNT];
+        for (int text = 0; text < TEXT_COUNT; text++) {
+            View child = row.findViewById(TEXT_VIEW_IDS[text]);
+            if (!(child instanceof LayoutTextView)) {
+                return false;
+            }
+            LayoutTextView textView = (LayoutTextView) child;
+            widths[text] = textView.getTextWidth();
+            if (widths[text] == 0) {
+                return false;
+            }
+            // The layout thread gets its own paints, with the color the TextView sets on draw
+            paints[text] = new TextPaint(textView.getPaint());
+            paints[text].setColor(textView.getCurrentTextColor());
+            paints[text].drawableState = textView.getDrawableState();
+            paints[text].density = textView.getPaint().density;
+        }
+        setGeometry(paints, widths);
+        mListWidth = list.getWidth();
+        return true;
+    }
+
+    /**
+     * Lay out the texts with the given paints and widths from now on, by TEXT_ index.
+     */
+    void setGeometry(TextPaint[] paints, int[] widths) {
+        mGeometry = new Geometry(paints, widths);
+        // The rows read so far were laid out for the former geometry
+        mReadLast = -1;
+    }
+
+    /**
+     * Read the rows at the given positions of the cursor that aren't laid out yet, and lay
+     * them out in the background.
+     */
+    void prefetch(ListAdapter adapter, int first, int last) {
+        if (!(adapter instanceof CursorAdapter)) {
+            return;
+        }
+        Cursor cursor = ((CursorAdapter) adapter).getCursor();
+        if (cursor == null || cursor.isClosed()) {
+            return;
+        }
+        if (cursor != mReadCursor) {
+            mReadCursor = cursor;
+            mReadLast = -1;
+        }
+
+        int idColumnIndex = cursor.getColumnIndex(HomeEntry._ID);
+        int addressColumnIndex = cursor.getColumnIndex(HomeEntry.COLUMN_HOME_ADDRESS);
+        int countyColumnIndex = cursor.getColumnIndex(HomeEntry.COLUMN_HOME_COUNTY);
+        int incomeColumnIndex = cursor.getColumnIndex(HomeEntry.COLUMN_HOME_INCOME);
+
+        Geometry geometry = mGeometry;
+        List<Row> rows = new ArrayList<>();
+        int position = cursor.getPosition();
+        try {
+            for (int i = first; i <= last; i++) {
+                // Read at the last scroll already
+                if (i >= mReadFirst && i <= mReadLast) {
+                    continue;
+                }
+                if (!cursor.moveToPosition(i)) {
+                    break;
+                }
+                long id = cursor.getLong(idColumnIndex);
+                String address = cursor.getString(addressColumnIndex);
+                String county = cursor.getString(countyColumnIndex);
+                int income = cursor.getInt(incomeColumnIndex);
+                if (mPending.contains(id) || getLayouts(id, address, county, income) != null) {
+                    continue;
+                }
+                mPending.add(id);
+                rows.add(new Row(geometry, id, address, county, income));
+            }
+        } finally {
+            // The adapter moves the cursor before every use, but leave it where it was
+            cursor.moveToPosition(position);
+        }
+        if (mReadLast < first - 1 || last + 1 < mReadFirst) {
+            mReadFirst = first;
+            mReadLast = last;
+        } else {
+            mReadFirst = Math.min(mReadFirst, first);
+            mReadLast = Math.max(mReadLast, last);
+        }
+
+        if (!rows.isEmpty() && !mExecutor.isShutdown()) {
+            mExecutor.execute(new Batch(rows));
+        }
+    }
+
+    /**
+     * Paints and widths in pixels of the texts of a row, by TEXT_ index. Replaced rather than
+     * changed, the layouts made with other ones aren't used anymore.
+     */
+    private static final class Geometry {
+
+        final TextPaint[] mPaints;
+        final int[] mWidths;
+
+        Geometry(TextPaint[] paints, int[] widths) {
+            mPaints = paints;
+            mWidths = widths;
+        }
+    }
+
+    /**
+     * The values of a home and the layouts of its texts, set by the layout thread.
+     */
+    private static final class Row {
+
+        final Geometry mGeometry;
+        final long mId;
+        final String mAddress;
+        final String mCounty;
+        final int mIncome;
+
+        Layout[] mLayouts;
+
+        Row(Geometry geometry, long id, String address, String county, int income) {
+            mGeometry = geometry;
+            mId = id;
+            mAddress = address;
+            mCounty = county;
+            mIncome = income;
+        }
+    }
+
+    /**
+     * Lay out the texts of some rows, and keep them on the UI thread.
+     */
+    private final class Batch implements Runnable {
+
+        private final List<Row> mBatchRows;
+
+        Batch(List<Row> rows) {
+            mBatchRows = rows;
+        }
+
+        @Override
+        public void run() {
+            for (Row row : mBatchRows) {
+                CharSequence[] texts = new CharSequence[TEXT_COUNT];
+                texts[TEXT_ADDRESS] = row.mAddress == null ? "" : row.mAddress;
+                texts[TEXT_COUNTY] = getCountyText(row.mCounty);
+                texts[TEXT_INCOME] = getIncomeText(row.mIncome);
+
+                Layout[] layouts = new Layout[TEXT_COUNT];
+                for (int text = 0; text < TEXT_COUNT; text++) {
+                    // As the TextView lays out plain text by default
+                    layouts[text] = new StaticLayout(texts[text], row.mGeometry.mPaints[text],
+                            row.mGeometry.mWidths[text], Layout.Alignment.ALIGN_NORMAL, 1, 0,
+                            true);
+                }
+                row.mLayouts = layouts;
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Row row : mBatchRows) {
+                        mPending.remove(row.mId);
+                        mRows.put(row.mId, row);
+                    }
+                }
+            });
+        }
+    }
+}
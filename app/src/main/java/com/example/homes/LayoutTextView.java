@@ -0,0 +1,154 @@
+package com.example.homes;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.support.v7.widget.AppCompatTextView;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.util.AttributeSet;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+/**
+ * A TextView that can show a {@link Layout} laid out ahead of time, off the UI thread, instead
+ * of laying out its text itself.
+ *
+ * {@link #setPrecomputedLayout(Layout)} only keeps the layout: it is measured by its height and
+ * drawn as it is, and a layout as tall as the previous one doesn't even ask for a new layout
+ * pass. The layout must be made with the paint of the view and its width inside the padding;
+ * if the view turns out to be of another width, the text is laid out again on measure. Calling
+ * {@link #setPlainText(CharSequence)} goes back to the usual TextView.
+ *
+ * Accessibility services are given the text of the layout, as they would the text of the
+ * TextView. Only plain text without compound drawables is supported, as in the list of homes.
+ */
+public class LayoutTextView extends AppCompatTextView {
+
+    /** Layout shown instead of the one of the TextView, null to show the TextView as usual */
+    private Layout mPrecomputedLayout;
+
+    public LayoutTextView(Context context) {
+        super(context);
+    }
+
+    public LayoutTextView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public LayoutTextView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+    }
+
+    /**
+     * Show the given layout instead of laying out text. Called on the UI thread while binding.
+     */
+    public void setPrecomputedLayout(Layout layout) {
+        Layout previous = mPrecomputedLayout;
+        mPrecomputedLayout = layout;
+        if (previous == null && getText().length() > 0) {
+            // Recycled from plain text, which mustn't be read out for the new layout
+            setText(null);
+        }
+        if (previous == null || previous.getHeight() != layout.getHeight()
+                || previous.getWidth() != layout.getWidth()) {
+            requestLayout();
+        }
+        invalidate();
+    }
+
+    /**
+     * Show the given text, laid out by the TextView as usual.
+     */
+    public void setPlainText(CharSequence text) {
+        if (mPrecomputedLayout != null) {
+            mPrecomputedLayout = null;
+            requestLayout();
+        }
+        setText(text);
+    }
+
+    /**
+     * Returns the width the text of the view is laid out in, 0 until the view is laid out.
+     */
+    public int getTextWidth() {
+        return Math.max(0, getWidth() - getPaddingLeft() - getPaddingRight());
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        if (mPrecomputedLayout == null) {
+            super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+            return;
+        }
+
+        int widthMode = MeasureSpec.getMode(widthMeasureSpec);
+        int widthSize = MeasureSpec.getSize(widthMeasureSpec);
+        int horizontalPadding = getPaddingLeft() + getPaddingRight();
+        if (widthMode != MeasureSpec.UNSPECIFIED) {
+            int textWidth = Math.max(0, widthSize - horizontalPadding);
+            if (textWidth != mPrecomputedLayout.getWidth()) {
+                // Laid out for another width, e.g. before a rotation
+                mPrecomputedLayout = new StaticLayout(mPrecomputedLayout.getText(), getPaint(),
+                        textWidth, Layout.Alignment.ALIGN_NORMAL, 1, 0, true);
+            }
+        }
+
+        int width;
+        if (widthMode == MeasureSpec.EXACTLY) {
+            width = widthSize;
+        } else {
+            float lineWidth = 0;
+            for (int line = 0; line < mPrecomputedLayout.getLineCount(); line++) {
+                lineWidth = Math.max(lineWidth, mPrecomputedLayout.getLineWidth(line));
+            }
+            width = (int) Math.ceil(lineWidth) + horizontalPadding;
+            if (widthMode == MeasureSpec.AT_MOST) {
+                width = Math.min(width, widthSize);
+            }
+        }
+        int height = mPrecomputedLayout.getHeight() + getPaddingTop() + getPaddingBottom();
+        setMeasuredDimension(width, resolveSize(Math.max(height, getSuggestedMinimumHeight()),
+                heightMeasureSpec));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mPrecomputedLayout == null) {
+            super.onDraw(canvas);
+            return;
+        }
+        if (mPrecomputedLayout.getPaint() == getPaint()) {
+            // Laid out again on measure, the TextView only sets the color of its paint on draw
+            getPaint().setColor(getCurrentTextColor());
+            getPaint().drawableState = getDrawableState();
+        }
+        canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        mPrecomputedLayout.draw(canvas);
+        canvas.restore();
+    }
+
+    @Override
+    public void onInitializeAccessibilityNodeInfo(AccessibilityNodeInfo info) {
+        super.onInitializeAccessibilityNodeInfo(info);
+        if (mPrecomputedLayout != null) {
+            info.setText(mPrecomputedLayout.getText());
+        }
+    }
+
+    @Override
+    public void onPopulateAccessibilityEvent(AccessibilityEvent event) {
+        super.onPopulateAccessibilityEvent(event);
+        if (mPrecomputedLayout != null) {
+            event.getText().add(mPrecomputedLayout.getText());
+        }
+    }
+
+    @Override
+    public int getBaseline() {
+        if (mPrecomputedLayout == null) {
+            return super.getBaseline();
+        }
+        return getPaddingTop() + mPrecomputedLayout.getLineBaseline(0);
+    }
+}
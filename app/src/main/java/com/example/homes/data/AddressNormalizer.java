@@ -0,0 +1,95 @@
+package com.example.homes.data;
+
+import java.text.Normalizer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Turns a street address into a canonical form, so that spellings of the same address like
+ * "123 Fake St" and "123 fake street." compare equal.
+ *
+ * The address is lower-cased, accents are stripped, punctuation becomes whitespace, runs of
+ * whitespace collapse into one space, and common street suffixes, directions and unit
+ * designators are replaced by their postal abbreviation.
+ */
+public final class AddressNormalizer {
+
+    /** Full words and common variants, mapped to their postal abbreviation */
+    private static final Map<String, String> ABBREVIATIONS = new HashMap<>();
+
+    static {
+        abbreviate("st", "street", "str");
+        abbreviate("ave", "avenue", "av", "aven");
+        abbreviate("rd", "road");
+        abbreviate("dr", "drive", "drv");
+        abbreviate("blvd", "boulevard", "boul");
+        abbreviate("ln", "lane");
+        abbreviate("ct", "court");
+        abbreviate("pl", "place");
+        abbreviate("ter", "terrace");
+        abbreviate("cir", "circle");
+        abbreviate("hwy", "highway");
+        abbreviate("pkwy", "parkway");
+        abbreviate("sq", "square");
+        abbreviate("trl", "trail");
+        abbreviate("n", "north");
+        abbreviate("s", "south");
+        abbreviate("e", "east");
+        abbreviate("w", "west");
+        abbreviate("ne", "northeast");
+        abbreviate("nw", "northwest");
+        abbreviate("se", "southeast");
+        abbreviate("sw", "southwest");
+        abbreviate("apt", "apartment");
+        abbreviate("ste", "suite");
+        abbreviate("fl", "floor");
+    }
+
+    private static void abbreviate(String abbreviation, String... words) {
+        for (String word : words) {
+            ABBREVIATIONS.put(word, abbreviation);
+        }
+    }
+
+    private AddressNormalizer() {}
+
+    /**
+     * Returns the canonical form of the address, or null if the address is null. An address
+     * without any letter or digit becomes the empty string.
+     */
+    public static String normalize(String address) {
+        if (address == null) {
+            return null;
+        }
+
+        // Split accented letters into the letter and its accent, so the accent can be dropped
+        String decomposed = Normalizer.normalize(address, Normalizer.Form.NFD)
+                .toLowerCase(Locale.US);
+
+        StringBuilder canonical = new StringBuilder(decomposed.length());
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i <= decomposed.length(); i++) {
+            char c = i < decomposed.length() ? decomposed.charAt(i) : ' ';
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                token.append(c);
+                continue;
+            }
+
+            // Anything else ends the current word
+            if (token.length() > 0) {
+                String word = token.toString();
+                String abbreviation = ABBREVIATIONS.get(word);
+                if (canonical.length() > 0) {
+                    canonical.append(' ');
+                }
+                canonical.append(abbreviation != null ? abbreviation : word);
+                token.setLength(0);
+            }
+        }
+        return canonical.toString();
+    }
+}
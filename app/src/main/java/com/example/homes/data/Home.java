@@ -0,0 +1,99 @@
+package com.example.homes.data;
+
+/**
+ * A home as read and written through {@link HomeRepository}: the columns of the homes table
+ * that callers see, in fields of their own types instead of a Cursor or ContentValues.
+ *
+ * Homes are immutable. A home read from the repository has its id and version, and writing
+ * it back only applies while the home still has that version, see
+ * {@link HomeContract.HomeEntry#COLUMN_HOME_VERSION}.
+ */
+public final class Home {
+
+    /** Id of a home that hasn't been inserted yet */
+    public static final long NO_ID = -1;
+
+    private final long mId;
+    private final long mVersion;
+    private final String mAddress;
+    private final String mCounty;
+    private final int mType;
+    private final int mIncome;
+    private final long mPhotoVersion;
+
+    /**
+     * A new home, to insert.
+     *
+     * @param county of the home, or null
+     * @param type one of the TYPE_ values of {@link HomeContract.HomeEntry}
+     * @param income per month, 0 or more
+     */
+    public Home(String address, String county, int type, int income) {
+        this(NO_ID, HomeBatch.ANY_VERSION, address, county, type, income, 0);
+    }
+
+    /**
+     * An existing home with new values, to update.
+     *
+     * @param version the version the values were based on, or {@link HomeBatch#ANY_VERSION}
+     *                to overwrite whatever version the home has
+     */
+    public Home(long id, long version, String address, String county, int type, int income) {
+        this(id, version, address, county, type, income, 0);
+    }
+
+    Home(long id, long version, String address, String county, int type, int income,
+         long photoVersion) {
+        mId = id;
+        mVersion = version;
+        mAddress = address;
+        mCounty = county;
+        mType = type;
+        mIncome = income;
+        mPhotoVersion = photoVersion;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    /**
+     * Returns the version of the home when it was read, or the version its values are based on.
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Returns the county of the home, or null if it has none.
+     */
+    public String getCounty() {
+        return mCounty;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public int getIncome() {
+        return mIncome;
+    }
+
+    /**
+     * Returns the version of the photo of the home, 0 if it has none. Only set on homes read
+     * from the repository.
+     */
+    public long getPhotoVersion() {
+        return mPhotoVersion;
+    }
+
+    @Override
+    public String toString() {
+        return "Home{id=" + mId + ", version=" + mVersion + ", address=" + mAddress
+                + ", county=" + mCounty + ", type=" + mType + ", income=" + mIncome + "}";
+    }
+}
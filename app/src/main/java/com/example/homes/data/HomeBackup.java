@@ -0,0 +1,820 @@
+package com.example.homes.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseErrorHandler;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Backups of the home databases taken while the provider keeps reading and writing, and
+ * restores from them.
+ *
+ * SQLite's online backup API isn't exposed by the framework, and copying the file of a
+ * database in write-ahead logging mode isn't consistent: commits may still sit in the log, and
+ * checkpoints rewrite the file while it is copied. Instead every table is copied in chunks of
+ * {@link #CHUNK_ROWS} rows, by rowid, into a database file of its own. Each chunk is read in a
+ * short transaction, so foreground writers wait at most for one chunk and readers don't wait
+ * at all, and the backup pauses after each chunk for as long as the chunk held the lock. A
+ * backup starts from a copy of the previous one and compares every chunk before writing it,
+ * so only the chunks changed since are written again.
+ *
+ * The chunks of one pass are read at different times. The count of changes of the connection
+ * every write goes through, total_changes(), tells whether anything was written between two
+ * chunks; passes are repeated until one reads every chunk without any write in between, and
+ * then the backup holds the database as it was during that pass. If writes keep coming for
+ * {@link #MAX_PASSES} passes, the last pass holds the lock throughout, which only costs the
+ * time to read the database once as nearly every chunk is already in the backup.
+ *
+ * The finished backup is checked and renamed over the previous one, which stays intact until
+ * then. A backup that is stopped between chunks goes on from there on the next call.
+ *
+ * A restore checks the backup, upgrades a copy of it like any database of an older version,
+ * and then replaces the rows of every table in a single transaction, so readers of the
+ * database see either all its homes as they were or all the homes of its backup. With several
+ * databases, each commits on its own once all are replaced: a reader of every database may
+ * see some restored and others not for as long as the commits take, and a commit that fails
+ * leaves the databases committed before it restored.
+ *
+ * Photos are files of their own, see {@link HomePhotos}, and aren't part of the backup.
+ */
+final class HomeBackup {
+
+    private static final String LOG_TAG = HomeBackup.class.getSimpleName();
+
+    /** Rows read per chunk, a chunk holds the write lock of the database while it is read */
+    static final int CHUNK_ROWS = 256;
+
+    /** Passes racing with foreground writes before a pass holds the lock throughout */
+    static final int MAX_PASSES = 4;
+
+    /** Backups are written next to the database first, and renamed once finished */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** Name suffix of the copy of a backup that a restore upgrades and reads from */
+    private static final String RESTORE_SUFFIX = "-restore";
+
+    /** Path of in-memory databases, which have nothing to back up */
+    private static final String MEMORY_DB_PATH = ":memory:";
+
+    /** Table of the last ids handed out by AUTOINCREMENT, which is copied like the others */
+    private static final String SEQUENCE_TABLE = "sqlite_sequence";
+
+    /** Count of changes before the first chunk of a pass has been read */
+    private static final long UNKNOWN_CHANGES = -1;
+
+    private final Context mContext;
+    private final File mDirectory;
+
+    /** Backups stopped between two chunks, by database file name */
+    private final Map<String, Run> mRuns = new HashMap<>();
+
+    /**
+     * @param directory where the backups are kept, one file per database
+     */
+    HomeBackup(Context context, File directory) {
+        mContext = context;
+        mDirectory = directory;
+    }
+
+    /**
+     * Returns whether the database is kept in a file that can be backed up.
+     */
+    static boolean canBackUp(SQLiteDatabase database) {
+        return !MEMORY_DB_PATH.equals(database.getPath());
+    }
+
+    /**
+     * Returns the backup of the database with the given file name, which may not exist yet.
+     */
+    File getBackupFile(String databaseName) {
+        return new File(mDirectory, databaseName);
+    }
+
+    /**
+     * Back up the database, or go on with the backup stopped on the last call. Runs until the
+     * backup is finished, or until the pacer asks to stop between two chunks.
+     *
+     * @param pacer asked before every chunk, or null to run to the end
+     * @return what the backup did so far; it is complete once finished
+     * @throws IOException if the backup can't be written or fails its check, the previous
+     *                     backup is still there
+     */
+    synchronized Report backUp(SQLiteDatabase source, Pacer pacer) throws IOException {
+        String name = new File(source.getPath()).getName();
+        Run run = mRuns.remove(name);
+        // A database opened again started counting its changes over
+        if (run != null && run.mSource != source) {
+            run.discard();
+            run = null;
+        }
+        if (run == null) {
+            run = start(name, source);
+        }
+
+        long start = SystemClock.uptimeMillis();
+        boolean finished = false;
+        try {
+            while (!finished && (run.mLocked || pacer == null || pacer.shouldContinue())) {
+                long lockMillis = copyChunk(run);
+                finished = advance(run);
+                // Leave the lock to foreground writers for at least as long as the chunk held it
+                if (!finished && !run.mLocked && lockMillis > 0) {
+                    SystemClock.sleep(lockMillis);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            run.discard();
+            throw e;
+        } finally {
+            run.mReport.mDurationMillis += SystemClock.uptimeMillis() - start;
+        }
+
+        if (!finished) {
+            mRuns.put(name, run);
+        }
+        Log.i(LOG_TAG, run.mReport.toString());
+        return run.mReport;
+    }
+
+    /**
+     * Open the file the backup is written to, starting from a copy of the previous backup if it
+     * has the same schema version as the database, and list the tables to copy.
+     */
+    private Run start(String name, SQLiteDatabase source) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + mDirectory);
+        }
+        File backup = getBackupFile(name);
+        File temp = new File(mDirectory, name + TEMP_SUFFIX);
+        deleteDatabaseFiles(temp);
+
+        SQLiteDatabase target = null;
+        boolean incremental = false;
+        if (backup.isFile()) {
+            copyFile(backup, temp);
+            try {
+                target = SQLiteDatabase.openOrCreateDatabase(temp, null);
+                incremental = target.getVersion() == source.getVersion();
+            } catch (SQLiteException e) {
+                Log.w(LOG_TAG, "Starting over from an empty backup of " + name, e);
+            }
+            if (!incremental) {
+                if (target != null) {
+                    target.close();
+                }
+                deleteDatabaseFiles(temp);
+            }
+        }
+        if (!incremental) {
+            target = SQLiteDatabase.openOrCreateDatabase(temp, null);
+        }
+
+        Run run = new Run(name, source, target, temp);
+        try {
+            // Copying the rows would fire the triggers, e.g. bump the versions of the homes.
+            // They are created again once the rows are in.
+            for (String[] trigger : readSchema(target, "trigger")) {
+                target.execSQL("DROP TRIGGER " + quote(trigger[0]));
+            }
+            for (String[] table : readSchema(source, "table")) {
+                if (!incremental) {
+                    target.execSQL(table[1]);
+                }
+            }
+            target.setVersion(source.getVersion());
+
+            for (String table : readTables(source)) {
+                run.mTables.add(table);
+                run.mColumns.add(readColumns(source, table));
+            }
+        } catch (RuntimeException e) {
+            run.discard();
+            throw e;
+        }
+        run.mReport.mIncremental = incremental;
+        return run;
+    }
+
+    /**
+     * Read the next chunk of rows from the database in a short transaction, and write it to
+     * the backup if the backup holds anything else in the same range of rowids.
+     *
+     * @return how long the chunk held the write lock of the database
+     */
+    private static long copyChunk(Run run) {
+        String table = run.mTables.get(run.mTable);
+        String[] columns = run.mColumns.get(run.mTable);
+        String after = "rowid > " + run.mAfterRowid;
+
+        long lockStart = SystemClock.uptimeMillis();
+        List<Object[]> rows;
+        run.mSource.beginTransaction();
+        try {
+            // Every write goes through the connection the transaction holds, and adds to its
+            // count of changes
+            long changes = DatabaseUtils.longForQuery(run.mSource, "SELECT total_changes()", null);
+            if (run.mChanges != UNKNOWN_CHANGES && run.mChanges != changes) {
+                run.mPassClean = false;
+            }
+            run.mChanges = changes;
+            rows = readRows(run.mSource, table, columns, after, CHUNK_ROWS);
+            run.mSource.setTransactionSuccessful();
+        } finally {
+            run.mSource.endTransaction();
+        }
+        long lockMillis = SystemClock.uptimeMillis() - lockStart;
+
+        Report report = run.mReport;
+        report.mChunks++;
+        report.mRowsRead += rows.size();
+        if (!run.mLocked) {
+            report.mLockMillis += lockMillis;
+            report.mMaxLockMillis = Math.max(report.mMaxLockMillis, lockMillis);
+        }
+
+        // The last chunk of the table also covers whatever the backup has past its last row
+        run.mLastChunk = rows.size() < CHUNK_ROWS;
+        String range = after;
+        if (!run.mLastChunk) {
+            run.mAfterRowid = (Long) rows.get(rows.size() - 1)[0];
+            range += " AND rowid <= " + run.mAfterRowid;
+        }
+
+        List<Object[]> backedUp = readRows(run.mTarget, table, columns, range, rows.size() + 1);
+        if (!sameRows(rows, backedUp)) {
+            replaceRows(run.mTarget, table, columns, range, rows);
+            report.mChunksWritten++;
+            report.mRowsWritten += rows.size();
+        }
+        return lockMillis;
+    }
+
+    /**
+     * Move on past the chunk just copied. At the end of a pass, start the next one if anything
+     * was written during the pass, or finish the backup.
+     *
+     * @return whether the backup is finished
+     */
+    private boolean advance(Run run) throws IOException {
+        if (!run.mLastChunk) {
+            return false;
+        }
+        run.mTable++;
+        run.mAfterRowid = Long.MIN_VALUE;
+        if (run.mTable < run.mTables.size()) {
+            return false;
+        }
+
+        Report report = run.mReport;
+        report.mPasses++;
+        if (run.mLocked) {
+            run.mSource.setTransactionSuccessful();
+            run.mSource.endTransaction();
+            run.mLocked = false;
+            long lockMillis = SystemClock.uptimeMillis() - run.mLockedSince;
+            report.mLockMillis += lockMillis;
+            report.mMaxLockMillis = Math.max(report.mMaxLockMillis, lockMillis);
+        } else if (!run.mPassClean) {
+            run.mTable = 0;
+            run.mPassClean = true;
+            run.mChanges = UNKNOWN_CHANGES;
+            if (report.mPasses >= MAX_PASSES) {
+                // Nested in this transaction, the chunks of the next pass can't see any write
+                run.mSource.beginTransaction();
+                run.mLocked = true;
+                run.mLockedSince = SystemClock.uptimeMillis();
+                report.mLockedPass = true;
+            }
+            return false;
+        }
+
+        finish(run);
+        return true;
+    }
+
+    /**
+     * Create the indexes and the triggers of the database in the backup, check it, and put it
+     * in place of the previous backup.
+     */
+    private void finish(Run run) throws IOException {
+        SQLiteDatabase target = run.mTarget;
+        Set<String> indexes = new HashSet<>();
+        for (String[] index : readSchema(target, "index")) {
+            indexes.add(index[0]);
+        }
+        for (String[] index : readSchema(run.mSource, "index")) {
+            if (!indexes.contains(index[0])) {
+                target.execSQL(index[1]);
+            }
+        }
+        for (String[] trigger : readSchema(run.mSource, "trigger")) {
+            target.execSQL(trigger[1]);
+        }
+        checkIntegrity(target, run.mName);
+        target.close();
+
+        File backup = getBackupFile(run.mName);
+        if (!run.mTempFile.renameTo(backup)) {
+            throw new IOException("Cannot rename " + run.mTempFile + " to " + backup);
+        }
+        deleteDatabaseFiles(run.mTempFile);
+        run.mReport.mBytes = backup.length();
+        run.mReport.mCompleted = true;
+    }
+
+    /**
+     * Replace every row of the databases with the rows of their backups. Every backup is
+     * checked before anything is replaced, then the databases are locked in order and their
+     * rows replaced, each in a single transaction committed on its own. Backups under way are
+     * dropped, they would go on from rows that are no longer there.
+     *
+     * @return the number of rows restored
+     * @throws FileNotFoundException if a database has no backup
+     * @throws IOException if a backup can't be read or fails its check, or the rows can't be
+     *                     replaced, the databases are then left as they were; or if a
+     *                     database fails to commit, the others may then be restored
+     */
+    synchronized long restore(HomeDbHelper... dbHelpers) throws IOException {
+        long start = SystemClock.uptimeMillis();
+        SQLiteDatabase[] databases = new SQLiteDatabase[dbHelpers.length];
+        String[] copyNames = new String[dbHelpers.length];
+        HomeDbHelper[] copyHelpers = new HomeDbHelper[dbHelpers.length];
+        long count = 0;
+        int locked = 0;
+        SQLiteException commitFailure = null;
+        try {
+            for (int i = 0; i < dbHelpers.length; i++) {
+                databases[i] = dbHelpers[i].getWritableDatabase();
+                String name = new File(databases[i].getPath()).getName();
+                File backup = getBackupFile(name);
+                if (!backup.isFile()) {
+                    throw new FileNotFoundException("No backup of " + name);
+                }
+                Run run = mRuns.remove(name);
+                if (run != null) {
+                    run.discard();
+                }
+
+                copyNames[i] = name + RESTORE_SUFFIX;
+                mContext.deleteDatabase(copyNames[i]);
+                copyFile(backup, mContext.getDatabasePath(copyNames[i]));
+                checkBackup(mContext.getDatabasePath(copyNames[i]), name);
+
+                // A backup of an older version is upgraded like the database was
+                copyHelpers[i] = new HomeDbHelper(mContext, copyNames[i], dbHelpers[i].getShard());
+                copyHelpers[i].getWritableDatabase();
+            }
+
+            // Like a batch, the databases are locked in order and committed once all are replaced
+            for (; locked < databases.length; locked++) {
+                databases[locked].beginTransaction();
+            }
+            for (int i = 0; i < databases.length; i++) {
+                count += replaceContent(copyHelpers[i].getWritableDatabase(), databases[i]);
+            }
+            for (SQLiteDatabase database : databases) {
+                database.setTransactionSuccessful();
+            }
+        } catch (SQLiteException e) {
+            throw new IOException("Restore failed", e);
+        } finally {
+            // Every transaction is ended, even after one failed to commit, so no database is
+            // left locked
+            while (locked > 0) {
+                try {
+                    databases[--locked].endTransaction();
+                } catch (SQLiteException e) {
+                    Log.e(LOG_TAG, "Failed to commit the restore of "
+                            + databases[locked].getPath(), e);
+                    commitFailure = e;
+                }
+            }
+            for (int i = 0; i < dbHelpers.length; i++) {
+                if (copyHelpers[i] != null) {
+                    copyHelpers[i].close();
+                }
+                if (copyNames[i] != null) {
+                    mContext.deleteDatabase(copyNames[i]);
+                }
+            }
+        }
+        if (commitFailure != null) {
+            throw new IOException("Restore failed to commit, other databases may be restored",
+                    commitFailure);
+        }
+        Log.i(LOG_TAG, "Restored " + count + " rows in " + dbHelpers.length + " databases in "
+                + (SystemClock.uptimeMillis() - start) + " ms");
+        return count;
+    }
+
+    /**
+     * Check that the file is a sound database with a schema version, before a database helper
+     * opens it: the helper would replace a corrupt file with an empty database.
+     */
+    private static void checkBackup(File file, String name) throws IOException {
+        SQLiteDatabase database;
+        try {
+            database = SQLiteDatabase.openDatabase(file.getPath(), null,
+                    SQLiteDatabase.OPEN_READONLY, new DatabaseErrorHandler() {
+                        @Override
+                        public void onCorruption(SQLiteDatabase database) {
+                            // Keep the file, the exception is reported below
+                        }
+                    });
+        } catch (SQLiteException e) {
+            throw new IOException("Backup of " + name + " can't be opened", e);
+        }
+        try {
+            if (database.getVersion() <= 0) {
+                throw new IOException("Backup of " + name + " has no schema version");
+            }
+            checkIntegrity(database, name);
+        } catch (SQLiteException e) {
+            throw new IOException("Backup of " + name + " can't be read", e);
+        } finally {
+            database.close();
+        }
+    }
+
+    /**
+     * Delete every row of the database and copy in the rows of the backup, with the triggers
+     * dropped meanwhile, in one transaction.
+     */
+    private static long replaceContent(SQLiteDatabase backup, SQLiteDatabase database) {
+        List<String[]> triggers = readSchema(database, "trigger");
+        long count = 0;
+        database.beginTransaction();
+        try {
+            for (String[] trigger : triggers) {
+                database.execSQL("DROP TRIGGER " + quote(trigger[0]));
+            }
+            for (String table : readTables(database)) {
+                String[] columns = readColumns(database, table);
+                database.execSQL("DELETE FROM " + quote(table));
+                SQLiteStatement insert = database.compileStatement(insertSql(table, columns));
+                try {
+                    long afterRowid = Long.MIN_VALUE;
+                    List<Object[]> rows;
+                    do {
+                        rows = readRows(backup, table, columns, "rowid > " + afterRowid,
+                                CHUNK_ROWS);
+                        for (Object[] row : rows) {
+                            bindRow(insert, row);
+                            insert.executeInsert();
+                        }
+                        count += rows.size();
+                        if (!rows.isEmpty()) {
+                            afterRowid = (Long) rows.get(rows.size() - 1)[0];
+                        }
+                    } while (rows.size() == CHUNK_ROWS);
+                } finally {
+                    insert.close();
+                }
+            }
+            for (String[] trigger : triggers) {
+                database.execSQL(trigger[1]);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the name and the SQL of every table, index or trigger of the database that was
+     * created by the app, sorted by name.
+     */
+    private static List<String[]> readSchema(SQLiteDatabase database, String type) {
+        List<String[]> entries = new ArrayList<>();
+        // Automatic indexes have no SQL, and the framework keeps the locale in android_metadata
+        Cursor cursor = database.rawQuery("SELECT name, sql FROM sqlite_master"
+                + " WHERE type = ? AND sql IS NOT NULL AND name NOT LIKE 'sqlite%'"
+                + " AND name != 'android_metadata' ORDER BY name", new String[] { type });
+        try {
+            while (cursor.moveToNext()) {
+                entries.add(new String[] { cursor.getString(0), cursor.getString(1) });
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the tables whose rows are copied: the tables of the app, then the last ids handed
+     * out by AUTOINCREMENT. Those go last, as copying rows with their ids into a table raises
+     * them.
+     */
+    private static List<String> readTables(SQLiteDatabase database) {
+        List<String> tables = new ArrayList<>();
+        for (String[] table : readSchema(database, "table")) {
+            tables.add(table[0]);
+        }
+        if (DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM sqlite_master"
+                + " WHERE type = 'table' AND name = ?", new String[] { SEQUENCE_TABLE }) > 0) {
+            tables.add(SEQUENCE_TABLE);
+        }
+        return tables;
+    }
+
+    private static String[] readColumns(SQLiteDatabase database, String table) {
+        List<String> columns = new ArrayList<>();
+        Cursor cursor = database.rawQuery("PRAGMA table_info(" + quote(table) + ")", null);
+        try {
+            int nameIndex = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(nameIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        return columns.toArray(new String[columns.size()]);
+    }
+
+    /**
+     * Returns the rows of the table in the given range of rowids, in rowid order, each as its
+     * rowid followed by the values of the columns.
+     */
+    private static List<Object[]> readRows(SQLiteDatabase database, String table,
+                                           String[] columns, String range, int limit) {
+        StringBuilder sql = new StringBuilder("SELECT rowid");
+        for (String column : columns) {
+            sql.append(", ").append(quote(column));
+        }
+        sql.append(" FROM ").append(quote(table)).append(" WHERE ").append(range)
+                .append(" ORDER BY rowid LIMIT ").append(limit);
+
+        List<Object[]> rows = new ArrayList<>();
+        Cursor cursor = database.rawQuery(sql.toString(), null);
+        try {
+            int columnCount = cursor.getColumnCount();
+            while (cursor.moveToNext()) {
+                Object[] row = new Object[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    switch (cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row[i] = cursor.getLong(i);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            row[i] = cursor.getDouble(i);
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            row[i] = cursor.getString(i);
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            row[i] = cursor.getBlob(i);
+                            break;
+                        default:
+                            row[i] = null;
+                    }
+                }
+                rows.add(row);
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    private static boolean sameRows(List<Object[]> rows, List<Object[]> otherRows) {
+        if (rows.size() != otherRows.size()) {
+            return false;
+        }
+        for (int i = 0; i < rows.size(); i++) {
+            if (!Arrays.deepEquals(rows.get(i), otherRows.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replace the rows of the table in the given range of rowids, in one transaction.
+     */
+    private static void replaceRows(SQLiteDatabase database, String table, String[] columns,
+                                    String range, List<Object[]> rows) {
+        database.beginTransaction();
+        try {
+            database.execSQL("DELETE FROM " + quote(table) + " WHERE " + range);
+            SQLiteStatement insert = database.compileStatement(insertSql(table, columns));
+            try {
+                for (Object[] row : rows) {
+                    bindRow(insert, row);
+                    insert.executeInsert();
+                }
+            } finally {
+                insert.close();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the statement inserting a row read by {@link #readRows}, with its rowid.
+     */
+    private static String insertSql(String table, String[] columns) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(quote(table))
+                .append(" (rowid");
+        for (String column : columns) {
+            sql.append(", ").append(quote(column));
+        }
+        sql.append(") VALUES (?");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(", ?");
+        }
+        return sql.append(')').toString();
+    }
+
+    private static void bindRow(SQLiteStatement statement, Object[] row) {
+        for (int i = 0; i < row.length; i++) {
+            Object value = row[i];
+            if (value == null) {
+                statement.bindNull(i + 1);
+            } else if (value instanceof Long) {
+                statement.bindLong(i + 1, (Long) value);
+            } else if (value instanceof Double) {
+                statement.bindDouble(i + 1, (Double) value);
+            } else if (value instanceof byte[]) {
+                statement.bindBlob(i + 1, (byte[]) value);
+            } else {
+                statement.bindString(i + 1, (String) value);
+            }
+        }
+    }
+
+    private static String quote(String name) {
+        return '"' + name.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Throws if PRAGMA quick_check finds anything wrong with the database.
+     */
+    private static void checkIntegrity(SQLiteDatabase database, String name) throws IOException {
+        String result = DatabaseUtils.stringForQuery(database, "PRAGMA quick_check", null);
+        if (!"ok".equals(result)) {
+            throw new IOException("Backup of " + name + " failed its check: " + result);
+        }
+    }
+
+    private static void copyFile(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Delete a database file and the journal files SQLite keeps next to it.
+     */
+    private static void deleteDatabaseFiles(File file) {
+        file.delete();
+        new File(file.getPath() + "-journal").delete();
+        new File(file.getPath() + "-wal").delete();
+        new File(file.getPath() + "-shm").delete();
+    }
+
+    /**
+     * Decides whether a backup goes on with its next chunk.
+     */
+    interface Pacer {
+        /**
+         * Returns false to stop the backup before its next chunk, it goes on from there on the
+         * next call.
+         */
+        boolean shouldContinue();
+    }
+
+    /**
+     * A backup under way.
+     */
+    private static final class Run {
+        final String mName;
+        final SQLiteDatabase mSource;
+        final SQLiteDatabase mTarget;
+        final File mTempFile;
+        final Report mReport;
+
+        /** Tables to copy, and their columns */
+        final List<String> mTables = new ArrayList<>();
+        final List<String[]> mColumns = new ArrayList<>();
+
+        /** Position of the next chunk: the table, and the last rowid copied from it */
+        int mTable;
+        long mAfterRowid = Long.MIN_VALUE;
+        boolean mLastChunk;
+
+        /** Count of changes of the database when the last chunk was read */
+        long mChanges = UNKNOWN_CHANGES;
+        /** Whether nothing was written since the first chunk of the pass was read */
+        boolean mPassClean = true;
+
+        /** Whether the pass holds the write lock of the database throughout, and since when */
+        boolean mLocked;
+        long mLockedSince;
+
+        Run(String name, SQLiteDatabase source, SQLiteDatabase target, File tempFile) {
+            mName = name;
+            mSource = source;
+            mTarget = target;
+            mTempFile = tempFile;
+            mReport = new Report(name);
+        }
+
+        /**
+         * Give up on the backup, the previous one stays.
+         */
+        void discard() {
+            if (mLocked) {
+                mSource.endTransaction();
+                mLocked = false;
+            }
+            if (mTarget.isOpen()) {
+                mTarget.close();
+            }
+            deleteDatabaseFiles(mTempFile);
+        }
+    }
+
+    /**
+     * What a backup did, over every call it took.
+     */
+    static final class Report {
+        final String mDatabaseName;
+        boolean mCompleted;
+        /** Whether the backup started from the previous one */
+        boolean mIncremental;
+        int mPasses;
+        /** Whether the last pass held the write lock throughout, as writes kept coming */
+        boolean mLockedPass;
+        long mChunks;
+        long mChunksWritten;
+        long mRowsRead;
+        long mRowsWritten;
+        /** Size of the finished backup */
+        long mBytes;
+        long mDurationMillis;
+        /**
+         * Time the backup held the write lock of the database, in total and at most at once:
+         * how long foreground writes may have waited for it.
+         */
+        long mLockMillis;
+        long mMaxLockMillis;
+
+        Report(String databaseName) {
+            mDatabaseName = databaseName;
+        }
+
+        /**
+         * Returns the rows read per second of running.
+         */
+        long getRowsPerSecond() {
+            return mRowsRead * 1000 / Math.max(1, mDurationMillis);
+        }
+
+        @Override
+        public String toString() {
+            return "backup of " + mDatabaseName + (mCompleted ? " completed" : " interrupted")
+                    + (mIncremental ? " incrementally" : "") + " in " + mDurationMillis + " ms"
+                    + ", " + mPasses + (mLockedPass ? " passes, the last one locked" : " passes")
+                    + ", " + mChunksWritten + " of " + mChunks + " chunks written"
+                    + ", " + mRowsWritten + " of " + mRowsRead + " rows written"
+                    + ", " + getRowsPerSecond() + " rows/s"
+                    + ", lock held " + mLockMillis + " ms, at most " + mMaxLockMillis + " ms"
+                    + (mCompleted ? ", " + mBytes + " bytes" : "");
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.example.homes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+
+import com.example.homes.data.HomeContract.BatchEntry;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch of lookups, queries, writes and aggregates on homes, sent to the provider in a
+ * single call instead of one call each. Across processes every call is a Binder transaction,
+ * and every cursor a CursorWindow copied over, so a screen that needs a few dozen homes and
+ * totals pays for one round trip instead of dozens. See {@link BatchEntry} for the protocol.
+ *
+ * Each method adding an operation returns its index, to read its result from the
+ * {@link Results} of {@link #execute}. For example:
+ *
+ * <pre>
+ * HomeBatch batch = new HomeBatch();
+ * int homes = batch.lookup(ids);
+ * int totals = batch.aggregate(HomeEntry.COLUMN_HOME_COUNTY + "=?", new String[] { county });
+ * HomeBatch.Results results = batch.execute(getContentResolver());
+ * Cursor cursor = results.getRows(homes);
+ * long sum = results.getSum(totals);
+ * </pre>
+ *
+ * Updates and deletes can expect the version a home had when it was read, so that a home
+ * written by someone else since isn't overwritten. If any of them finds another version, the
+ * batch writes nothing and {@link Results#hasConflict()} tells so:
+ *
+ * <pre>
+ * HomeBatch batch = new HomeBatch();
+ * int update = batch.update(id, values, versionRead);
+ * HomeBatch.Results results = batch.execute(getContentResolver());
+ * if (results.isConflict(update)) {
+ *     // Someone else saved the home, it is now at results.getVersion(update)
+ * }
+ * </pre>
+ *
+ * A batch can be executed again, e.g. to refresh the same homes.
+ */
+public final class HomeBatch {
+
+    /** Expected version of an update or delete that writes whatever the version of the home */
+    public static final long ANY_VERSION = -1;
+
+    private final ArrayList<Bundle> mOperations = new ArrayList<>();
+
+    /**
+     * Add a lookup of the live homes with the given ids. Its rows are the homes found, in the
+     * order of the ids.
+     */
+    public int lookup(long... ids) {
+        Bundle operation = newOperation(BatchEntry.OPERATION_LOOKUP);
+        operation.putLongArray(BatchEntry.KEY_IDS, ids.clone());
+        return add(operation);
+    }
+
+    /**
+     * Add a query of the live homes matching the selection, in one of the sort modes of
+     * {@link HomeContract.HomeEntry}, or null for the default one. Its rows are at most the
+     * given number of homes, or all of them if negative.
+     */
+    public int query(String selection, String[] selectionArgs, String sortOrder, int limit) {
+        Bundle operation = newOperation(BatchEntry.OPERATION_QUERY);
+        operation.putString(BatchEntry.KEY_SELECTION, selection);
+        operation.putStringArray(BatchEntry.KEY_SELECTION_ARGS, selectionArgs);
+        operation.putString(BatchEntry.KEY_SORT_ORDER, sortOrder);
+        if (limit >= 0) {
+            operation.putInt(BatchEntry.KEY_LIMIT, limit);
+        }
+        return add(operation);
+    }
+
+    /**
+     * Add an upsert of the home: it is merged into the live home with the same address, or
+     * inserted if there is none. Its result is the id of the home.
+     */
+    public int upsert(ContentValues values) {
+        Bundle operation = newOperation(BatchEntry.OPERATION_UPSERT);
+        operation.putParcelable(BatchEntry.KEY_VALUES, new ContentValues(values));
+        return add(operation);
+    }
+
+    /**
+     * Add an update of the live home with the given id, applied only if it still has the
+     * expected version, or whatever its version for {@link #ANY_VERSION}. Its results are the
+     * number of homes written, and the version of the home.
+     */
+    public int update(long id, ContentValues values, long expectedVersion) {
+        Bundle operation = newWrite(BatchEntry.OPERATION_UPDATE, id, expectedVersion);
+        operation.putParcelable(BatchEntry.KEY_VALUES, new ContentValues(values));
+        return add(operation);
+    }
+
+    /**
+     * Add a delete of the live home with the given id, applied only if it still has the
+     * expected version, or whatever its version for {@link #ANY_VERSION}. Like deleting its
+     * URI, the deletion can be undone. Its result is the number of homes deleted.
+     */
+    public int delete(long id, long expectedVersion) {
+        return add(newWrite(BatchEntry.OPERATION_DELETE, id, expectedVersion));
+    }
+
+    /**
+     * Add an aggregate of the live homes matching the selection. Its results are their number,
+     * and the sum, lowest and highest of their incomes.
+     */
+    public int aggregate(String selection, String[] selectionArgs) {
+        Bundle operation = newOperation(BatchEntry.OPERATION_AGGREGATE);
+        operation.putString(BatchEntry.KEY_SELECTION, selection);
+        operation.putStringArray(BatchEntry.KEY_SELECTION_ARGS, selectionArgs);
+        return add(operation);
+    }
+
+    /**
+     * Returns the number of operations in the batch.
+     */
+    public int size() {
+        return mOperations.size();
+    }
+
+    /**
+     * Run every operation of the batch in one call to the provider, and return their results.
+     *
+     * @throws IllegalArgumentException if an operation is invalid, in which case none of the
+     *                                  writes of the batch are applied
+     */
+    public Results execute(ContentResolver resolver) {
+        Bundle request = new Bundle();
+        request.putParcelableArrayList(BatchEntry.KEY_OPERATIONS, mOperations);
+        Bundle response = resolver.call(BatchEntry.CONTENT_URI, BatchEntry.METHOD_BATCH, null,
+                request);
+        if (response == null) {
+            throw new IllegalStateException("The provider doesn't support batches");
+        }
+        return new Results(mOperations, response);
+    }
+
+    private static Bundle newOperation(String kind) {
+        Bundle operation = new Bundle();
+        operation.putString(BatchEntry.KEY_OPERATION, kind);
+        return operation;
+    }
+
+    private static Bundle newWrite(String kind, long id, long expectedVersion) {
+        if (expectedVersion != ANY_VERSION && expectedVersion < 1) {
+            throw new IllegalArgumentException("Invalid expected version " + expectedVersion);
+        }
+        Bundle operation = newOperation(kind);
+        operation.putLong(BatchEntry.KEY_ID, id);
+        if (expectedVersion != ANY_VERSION) {
+            operation.putLong(BatchEntry.KEY_EXPECTED_VERSION, expectedVersion);
+        }
+        return operation;
+    }
+
+    private int add(Bundle operation) {
+        if (mOperations.size() == BatchEntry.MAX_OPERATIONS) {
+            throw new IllegalStateException("A batch holds at most "
+                    + BatchEntry.MAX_OPERATIONS + " operations");
+        }
+        mOperations.add(operation);
+        return mOperations.size() - 1;
+    }
+
+    /**
+     * Returns whether the operation has rows as its result.
+     */
+    static boolean hasRows(String kind) {
+        return BatchEntry.OPERATION_LOOKUP.equals(kind) || BatchEntry.OPERATION_QUERY.equals(kind);
+    }
+
+    /**
+     * The results of the operations of a batch, by index of the operation.
+     */
+    public static final class Results {
+        private final List<Bundle> mResults;
+        private final Cursor[] mRows;
+        private final boolean mConflict;
+
+        private Results(List<Bundle> operations, Bundle response) {
+            mConflict = response.getBoolean(BatchEntry.KEY_CONFLICT);
+            mResults = response.getParcelableArrayList(BatchEntry.KEY_RESULTS);
+            if (mResults == null || mResults.size() != operations.size()) {
+                throw new IllegalStateException("Malformed batch response");
+            }
+
+            mRows = new Cursor[operations.size()];
+            ParcelFileDescriptor pipe = response.getParcelable(BatchEntry.KEY_PIPE);
+            DataInputStream in = pipe == null ? null : new DataInputStream(
+                    new BufferedInputStream(new ParcelFileDescriptor.AutoCloseInputStream(pipe)));
+            try {
+                for (int i = 0; i < operations.size(); i++) {
+                    if (!hasRows(operations.get(i).getString(BatchEntry.KEY_OPERATION))) {
+                        continue;
+                    }
+                    // Small results come inline, large ones one after the other in the pipe
+                    if (in != null) {
+                        mRows[i] = HomeBatchRows.read(in);
+                    } else {
+                        mRows[i] = HomeBatchRows.read(new DataInputStream(new ByteArrayInputStream(
+                                mResults.get(i).getByteArray(BatchEntry.KEY_ROWS))));
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to read the batch results", e);
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // Everything needed was read already
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the rows of a lookup or query, with the columns of
+         * {@link BatchEntry#ROW_COLUMNS}.
+         */
+        public Cursor getRows(int operation) {
+            if (mRows[operation] == null) {
+                throw new IllegalArgumentException("Operation " + operation + " has no rows");
+            }
+            return mRows[operation];
+        }
+
+        /**
+         * Returns the id of the home of an upsert, or -1 if its insertion failed or the batch
+         * had a conflict.
+         */
+        public long getId(int operation) {
+            return mResults.get(operation).getLong(BatchEntry.KEY_ID, -1);
+        }
+
+        /**
+         * Returns whether an update or delete found its home at another version than
+         * expected, or deleted.
+         */
+        public boolean isConflict(int operation) {
+            return mResults.get(operation).getBoolean(BatchEntry.KEY_CONFLICT);
+        }
+
+        /**
+         * Returns whether any update or delete had a conflict, in which case the batch wrote
+         * nothing.
+         */
+        public boolean hasConflict() {
+            return mConflict;
+        }
+
+        /**
+         * Returns the version of the home of an update or delete once the batch ran, or -1 if
+         * there is no live home with its id. On a conflict, the version the home has now.
+         */
+        public long getVersion(int operation) {
+            return mResults.get(operation).getLong(BatchEntry.KEY_VERSION, -1);
+        }
+
+        /**
+         * Returns the number of homes of an aggregate, or the number of homes written by an
+         * update or delete.
+         */
+        public long getCount(int operation) {
+            return mResults.get(operation).getLong(BatchEntry.KEY_COUNT);
+        }
+
+        /**
+         * Returns the sum of the incomes of an aggregate.
+         */
+        public long getSum(int operation) {
+            return mResults.get(operation).getLong(BatchEntry.KEY_SUM);
+        }
+
+        /**
+         * Returns the lowest income of an aggregate, or 0 if it matched no home.
+         */
+        public long getMin(int operation) {
+            return mResults.get(operation).getLong(BatchEntry.KEY_MIN);
+        }
+
+        /**
+         * Returns the highest income of an aggregate, or 0 if it matched no home.
+         */
+        public long getMax(int operation) {
+            return mResults.get(operation).getLong(BatchEntry.KEY_MAX);
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package com.example.homes.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.homes.data.HomeContract.BatchEntry;
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The rows of a lookup or query result of a batch, with the columns of
+ * {@link BatchEntry#ROW_COLUMNS}, and their encoding.
+ *
+ * The rows are encoded column by column: the ids as differences from the previous id, the
+ * counties as references to the first row with the same county, and every number as a
+ * variable length integer. A screen of homes then takes a few bytes per row on top of the
+ * addresses, instead of the cells of a CursorWindow.
+ */
+final class HomeBatchRows {
+
+    private static final String LOG_TAG = HomeBatchRows.class.getSimpleName();
+
+    /** Column indexes of {@link BatchEntry#ROW_COLUMNS} */
+    private static final int ID = 0;
+    private static final int ADDRESS = 1;
+    private static final int COUNTY = 2;
+    private static final int TYPE = 3;
+    private static final int INCOME = 4;
+
+    /** How long the reader may leave a pipe full before the stream is given up */
+    static final long STALL_TIMEOUT_MILLIS = 30 * 1000;
+
+    /** Bytes written into a pipe at a time, each write counting as progress of the reader */
+    private static final int CHUNK_BYTES = 16 * 1024;
+
+    /** Writes the streamed rows into their pipes, one thread per stream being read */
+    private static final ExecutorService sPipeExecutor =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "HomeBatchRows-pipe");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** Gives up the streams whose reader stopped reading */
+    private static final ScheduledExecutorService sStallWatchdog =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "HomeBatchRows-watchdog");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private int mSize;
+    private long[] mIds = new long[16];
+    private String[] mAddresses = new String[16];
+    private String[] mCounties = new String[16];
+    private int[] mTypes = new int[16];
+    private long[] mIncomes = new long[16];
+
+    int size() {
+        return mSize;
+    }
+
+    long getId(int position) {
+        return mIds[position];
+    }
+
+    /**
+     * Add the rows of the cursor, up to the given number of rows or all of them if negative.
+     * The cursor must have the columns of {@link BatchEntry#ROW_COLUMNS}, in any order.
+     */
+    void addAll(Cursor cursor, int limit) {
+        int idColumnIndex = cursor.getColumnIndexOrThrow(HomeEntry._ID);
+        int addressColumnIndex = cursor.getColumnIndexOrThrow(HomeEntry.COLUMN_HOME_ADDRESS);
+        int countyColumnIndex = cursor.getColumnIndexOrThrow(HomeEntry.COLUMN_HOME_COUNTY);
+        int typeColumnIndex = cursor.getColumnIndexOrThrow(HomeEntry.COLUMN_HOME_TYPE);
+        int incomeColumnIndex = cursor.getColumnIndexOrThrow(HomeEntry.COLUMN_HOME_INCOME);
+        while ((limit < 0 || mSize < limit) && cursor.moveToNext()) {
+            add(cursor.getLong(idColumnIndex),
+                    cursor.getString(addressColumnIndex),
+                    cursor.isNull(countyColumnIndex) ? null : cursor.getString(countyColumnIndex),
+                    cursor.getInt(typeColumnIndex),
+                    cursor.getLong(incomeColumnIndex));
+        }
+    }
+
+    /**
+     * Add the row at the given position of other rows.
+     */
+    void add(HomeBatchRows rows, int position) {
+        add(rows.mIds[position], rows.mAddresses[position], rows.mCounties[position],
+                rows.mTypes[position], rows.mIncomes[position]);
+    }
+
+    private void add(long id, String address, String county, int type, long income) {
+        if (mSize == mIds.length) {
+            int capacity = mSize * 2;
+            mIds = Arrays.copyOf(mIds, capacity);
+            mAddresses = Arrays.copyOf(mAddresses, capacity);
+            mCounties = Arrays.copyOf(mCounties, capacity);
+            mTypes = Arrays.copyOf(mTypes, capacity);
+            mIncomes = Arrays.copyOf(mIncomes, capacity);
+        }
+        mIds[mSize] = id;
+        mAddresses[mSize] = address;
+        mCounties[mSize] = county;
+        mTypes[mSize] = type;
+        mIncomes[mSize] = income;
+        mSize++;
+    }
+
+    /**
+     * Returns the encoded rows.
+     */
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + mSize * 24);
+        try {
+            writeTo(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            // A ByteArrayOutputStream doesn't fail
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void writeTo(DataOutputStream out) throws IOException {
+        writeVarLong(out, mSize);
+
+        long previousId = 0;
+        for (int i = 0; i < mSize; i++) {
+            writeVarLong(out, zigZag(mIds[i] - previousId));
+            previousId = mIds[i];
+        }
+
+        for (int i = 0; i < mSize; i++) {
+            writeString(out, mAddresses[i]);
+        }
+
+        // 0 for no county, then either the number of a county already written, or the next
+        // number followed by the county itself
+        Map<String, Integer> counties = new HashMap<>();
+        for (int i = 0; i < mSize; i++) {
+            if (mCounties[i] == null) {
+                writeVarLong(out, 0);
+                continue;
+            }
+            Integer number = counties.get(mCounties[i]);
+            if (number != null) {
+                writeVarLong(out, number);
+            } else {
+                number = counties.size() + 1;
+                counties.put(mCounties[i], number);
+                writeVarLong(out, number);
+                writeString(out, mCounties[i]);
+            }
+        }
+
+        for (int i = 0; i < mSize; i++) {
+            writeVarLong(out, zigZag(mTypes[i]));
+        }
+        for (int i = 0; i < mSize; i++) {
+            writeVarLong(out, zigZag(mIncomes[i]));
+        }
+        out.flush();
+    }
+
+    /**
+     * Read rows written by {@link #encode()} into a cursor with the columns of
+     * {@link BatchEntry#ROW_COLUMNS}.
+     */
+    static MatrixCursor read(DataInputStream in) throws IOException {
+        int size = (int) readVarLong(in);
+        if (size < 0) {
+            throw new IOException("Invalid row count " + size);
+        }
+        Object[][] rows = new Object[size][BatchEntry.ROW_COLUMNS.length];
+
+        long id = 0;
+        for (int i = 0; i < size; i++) {
+            id += unZigZag(readVarLong(in));
+            rows[i][ID] = id;
+        }
+
+        for (int i = 0; i < size; i++) {
+            rows[i][ADDRESS] = readString(in);
+        }
+
+        List<String> counties = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            int number = (int) readVarLong(in);
+            if (number == 0) {
+                continue;
+            }
+            if (number == counties.size() + 1) {
+                counties.add(readString(in));
+            } else if (number < 1 || number > counties.size()) {
+                throw new IOException("Invalid county reference " + number);
+            }
+            rows[i][COUNTY] = counties.get(number - 1);
+        }
+
+        for (int i = 0; i < size; i++) {
+            rows[i][TYPE] = (int) unZigZag(readVarLong(in));
+        }
+        for (int i = 0; i < size; i++) {
+            rows[i][INCOME] = unZigZag(readVarLong(in));
+        }
+
+        MatrixCursor cursor = new MatrixCursor(BatchEntry.ROW_COLUMNS, size);
+        for (Object[] row : rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns the read side of a pipe the encoded rows are written to one after the other,
+     * from a background thread as the reader consumes them.
+     *
+     * If the reader leaves the pipe full for {@link #STALL_TIMEOUT_MILLIS}, this process'
+     * copy of the read side is closed. A reader in this process then fails to read the rest,
+     * and the writer fails to write it, unless a reader in another process still holds its
+     * own copy: the writer is then released when that reader closes it or its process dies.
+     *
+     * @param closeReadSide whether the writer should also close this process' copy of the
+     *                      read side once done. Only for a reader in another process, which
+     *                      got its own copy when the response was sent: the writer can't be
+     *                      done before then, as the rows are larger than the pipe buffer.
+     */
+    static ParcelFileDescriptor stream(List<byte[]> encodedRows, boolean closeReadSide)
+            throws IOException {
+        return stream(encodedRows, closeReadSide, STALL_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Like {@link #stream(List, boolean)}, giving up after the given time without progress.
+     */
+    static ParcelFileDescriptor stream(final List<byte[]> encodedRows,
+                                       final boolean closeReadSide, final long stallTimeoutMillis)
+            throws IOException {
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        // Time of the last write, or -1 once the writer is done
+        final AtomicLong lastProgress = new AtomicLong(SystemClock.uptimeMillis());
+        sPipeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+                try {
+                    for (byte[] rows : encodedRows) {
+                        for (int offset = 0; offset < rows.length; offset += CHUNK_BYTES) {
+                            out.write(rows, offset, Math.min(CHUNK_BYTES, rows.length - offset));
+                            lastProgress.set(SystemClock.uptimeMillis());
+                        }
+                    }
+                } catch (IOException e) {
+                    // The reader went away before reading everything
+                    Log.w(LOG_TAG, "Failed to stream batch results", e);
+                } finally {
+                    lastProgress.set(-1);
+                    closeQuietly(out);
+                    if (closeReadSide) {
+                        closeQuietly(pipe[0]);
+                    }
+                }
+            }
+        });
+        sStallWatchdog.schedule(new Runnable() {
+            @Override
+            public void run() {
+                long last = lastProgress.get();
+                if (last == -1) {
+                    return;
+                }
+                long stalledMillis = SystemClock.uptimeMillis() - last;
+                if (stalledMillis < stallTimeoutMillis) {
+                    sStallWatchdog.schedule(this, stallTimeoutMillis - stalledMillis,
+                            TimeUnit.MILLISECONDS);
+                    return;
+                }
+                // Without a reader left, the write fails instead of waiting for one
+                Log.w(LOG_TAG, "Batch results not read for " + stalledMillis + " ms, giving up");
+                closeQuietly(pipe[0]);
+            }
+        }, stallTimeoutMillis, TimeUnit.MILLISECONDS);
+        return pipe[0];
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to close batch results pipe", e);
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    /**
+     * Write a string as its UTF-8 length plus one, 0 for null, and its UTF-8 bytes.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        writeVarLong(out, bytes.length + 1L);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        long length = readVarLong(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[(int) length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -1,6 +1,7 @@
 package com.example.homes.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
@@ -37,6 +38,13 @@ public final class HomeContract{
      */
     public static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
 
+    /**
+     * Permission other apps need to use the content provider, only granted to apps signed
+     * with the same key. It also covers the batches of {@link BatchEntry}; backups and restores
+     * are left to the app itself.
+     */
+    public static final String PERMISSION_ACCESS = "com.example.homes.permission.ACCESS_HOMES";
+
     /**
      * Possible path (appended to base content URI for possible URI's)
      * For instance, content://com.example.android.homes/homes/ is a valid path for
@@ -45,6 +53,18 @@ public final class HomeContract{
      */
     public static final String PATH_HOMES = "homes";
 
+    /**
+     * Path for the deletions that can still be undone, e.g.
+     * content://com.example.android.homes/deletions/
+     */
+    public static final String PATH_DELETIONS = "deletions";
+
+    /**
+     * Path for debugging information about the provider itself, e.g.
+     * content://com.example.android.homes/debug/query_cache
+     */
+    public static final String PATH_DEBUG = "debug";
+
 
     /**
      * Inner class that defines constant values for database table.
@@ -53,6 +73,35 @@ public final class HomeContract{
         /** The content URI to access the home data in the provider */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_HOMES);
 
+        /**
+         * Deleting this URI removes every live home whose address is a duplicate of an older
+         * one. The duplicates are removed as one deletion, which can be undone.
+         */
+        public static final Uri DUPLICATES_URI = Uri.withAppendedPath(CONTENT_URI, "duplicates");
+
+        /**
+         * Query parameter for an insert on {@link #CONTENT_URI}. When "true", a home with the
+         * same canonical address as a live home is merged into it instead of being inserted
+         * as a duplicate, and the URI of the existing home is returned.
+         */
+        public static final String QUERY_PARAMETER_UPSERT = "upsert";
+
+        /**
+         * Query parameter for a query on {@link #CONTENT_URI} listing homes: the number of rows
+         * the result keeps ready at a time, and copies ahead of the scroll position. From 16
+         * to 4096, 256 if left out, any other value is rejected. Only used when every column of
+         * the projection is one of _ID, address, county, type, income and photo version.
+         */
+        public static final String QUERY_PARAMETER_WINDOW_ROWS = "window_rows";
+
+        /**
+         * Query parameter for an update or delete of a single home: the
+         * {@link #COLUMN_HOME_VERSION} the caller read. The home is only written if it still has this version, otherwise
+         * nothing is written and 0 is returned, as if the home was gone. Use the update and
+         * delete operations of {@link BatchEntry} to learn which one it was.
+         */
+        public static final String QUERY_PARAMETER_EXPECTED_VERSION = "expected_version";
+
         /** Name of database table for homes */
         public final static String TABLE_NAME = "homes";
 
@@ -62,6 +111,79 @@ public final class HomeContract{
         public final static String COLUMN_HOME_TYPE = "type";
         public final static String COLUMN_HOME_INCOME = "income";
 
+        /**
+         * Id of the {@link DeletionEntry} that deleted the home, or 0 while the home is live.
+         * Deleted homes are never returned by the provider, and are purged for good once the
+         * undo window of their deletion has passed.
+         */
+        public final static String COLUMN_HOME_DELETED = "deleted";
+
+        /**
+         * Canonical form of the address, computed by the provider on every insert and update
+         * with {@link AddressNormalizer}. Values given by callers are ignored.
+         */
+        public final static String COLUMN_HOME_CANONICAL_ADDRESS = "canonical_address";
+
+        /**
+         * Version of the photo of the home: the time it was last written, in milliseconds
+         * since the epoch, or 0 while the home has no photo. Set by the provider whenever a
+         * photo is written or deleted through {@link #buildPhotoUri(long)}, values given by
+         * callers are ignored. Caches of the photo are keyed by it.
+         */
+        public final static String COLUMN_HOME_PHOTO_VERSION = "photo_version";
+
+        /**
+         * Version of the home, 1 when inserted and bumped by every write of its address,
+         * county, type or income. Set by the database itself, values given by callers are
+         * ignored. A caller that read a home can write it back only if nobody wrote it since,
+         * see {@link #QUERY_PARAMETER_EXPECTED_VERSION}.
+         */
+        public final static String COLUMN_HOME_VERSION = "version";
+
+        /**
+         * Path segments of the photo of a home and of its thumbnails, below the URI of the home.
+         */
+        public static final String PATH_PHOTO = "photo";
+        public static final String PATH_THUMBNAIL = "thumbnail";
+
+        /**
+         * Query parameter for {@link #buildThumbnailUri(long, int)}: the width and height of
+         * the thumbnail in pixels, from 16 to 1024.
+         */
+        public static final String QUERY_PARAMETER_SIZE = "size";
+
+        /**
+         * Returns the URI of the photo of the given home. Opening it for reading returns the
+         * photo as stored, opening it for writing replaces it with the JPEG, PNG or WebP image
+         * written to the stream, once the stream is closed. Deleting it removes the photo.
+         */
+        public static Uri buildPhotoUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendPath(PATH_PHOTO)
+                    .build();
+        }
+
+        /**
+         * Returns the URI of a thumbnail of the photo of the given home: a JPEG of the given
+         * size in pixels, cropped to a square from the center of the photo. Read only.
+         */
+        public static Uri buildThumbnailUri(long id, int size) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendPath(PATH_THUMBNAIL)
+                    .appendQueryParameter(QUERY_PARAMETER_SIZE, String.valueOf(size))
+                    .build();
+        }
+
+        /**
+         * The MIME type of the photo of a home, which is kept in the format it was written in.
+         */
+        public static final String PHOTO_TYPE = "image/*";
+
+        /**
+         * The MIME type of the thumbnails of a photo.
+         */
+        public static final String THUMBNAIL_TYPE = "image/jpeg";
+
         /**
          * Possible values for the type of the home.
          */
@@ -79,6 +201,20 @@ public final class HomeContract{
             return false;
         }
 
+        /**
+         * Sort modes accepted as the sortOrder argument when querying {@link #CONTENT_URI}.
+         * The provider only accepts these keys (or null for {@link #SORT_DEFAULT}) and turns
+         * them into ORDER BY clauses that are backed by an index, so raw SQL is never passed
+         * through.
+         */
+        public static final String SORT_DEFAULT = "default";
+        public static final String SORT_ADDRESS = "address";
+        public static final String SORT_ADDRESS_NOCASE = "address_nocase";
+        public static final String SORT_COUNTY = "county";
+        public static final String SORT_COUNTY_NOCASE = "county_nocase";
+        public static final String SORT_INCOME_HIGH = "income_desc";
+        public static final String SORT_INCOME_LOW = "income_asc";
+
         /**
          * The MIME type of the link for a list of homes.
          */
@@ -93,4 +229,514 @@ public final class HomeContract{
 
 
     }
+
+    /**
+     * Inner class that defines constant values for the deletions table. Every delete on
+     * {@link HomeEntry#CONTENT_URI} is recorded as one deletion, which can be undone by
+     * deleting its content URI until {@link #UNDO_WINDOW_MILLIS} has passed, unless all homes
+     * were deleted after it. Undoing the deletion of all homes first makes it undoable again.
+     *
+     * A delete on the URI doesn't tell which deletion it made. To undo it later, delete the
+     * homes with a {@link ContentResolver#call} on {@link #CONTENT_URI} with
+     * {@link #METHOD_DELETE} instead, which returns the id of the deletion along with the
+     * number of homes deleted.
+     */
+    public static final class DeletionEntry implements BaseColumns {
+        /** The content URI to access the pending deletions in the provider */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_DELETIONS);
+
+        /**
+         * Method of the call deleting homes. The argument is the URI of the homes to delete,
+         * {@link HomeEntry#CONTENT_URI}, the URI of a home or {@link HomeEntry#DUPLICATES_URI},
+         * and the extras may hold a selection like a delete on that URI.
+         */
+        public static final String METHOD_DELETE = "delete";
+
+        /** Selection of the homes to delete, and its arguments */
+        public static final String KEY_SELECTION = "selection";
+        public static final String KEY_SELECTION_ARGS = "selection_args";
+
+        /**
+         * Result of a delete: the id of the deletion, and the number of homes deleted. The id
+         * is only that of a deletion to undo if the number isn't 0.
+         */
+        public static final String KEY_DELETION_ID = "deletion_id";
+        public static final String KEY_COUNT = "count";
+
+        /** Name of database table for deletions */
+        public final static String TABLE_NAME = "deletions";
+
+        public final static String _ID = BaseColumns._ID;
+
+        /** Time of the deletion, in milliseconds since the epoch */
+        public final static String COLUMN_DELETION_TIME = "time";
+
+        /**
+         * For a deletion of all homes, the highest home id at the time of the deletion. Every
+         * home up to this id is deleted without touching its row. 0 for any other deletion.
+         */
+        public final static String COLUMN_DELETION_MAX_HOME_ID = "max_home_id";
+
+        /** Number of homes removed by the deletion */
+        public final static String COLUMN_DELETION_COUNT = "count";
+
+        /** How long a deletion can be undone before its homes are purged */
+        public static final long UNDO_WINDOW_MILLIS = 10000;
+
+        /**
+         * The MIME type of the link for a list of deletions.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_DELETIONS;
+
+        /**
+         * The MIME type of the link for a single deletion.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_DELETIONS;
+    }
+
+    /**
+     * Inner class that defines constant values for the facet counts: the number of live homes
+     * per county, per type and per income band, kept up to date on every write. Querying
+     * {@link #CONTENT_URI} returns one row per facet value with at least one home, the
+     * values of a facet with the most homes first.
+     */
+    public static final class FacetEntry {
+        /** The content URI to access the facet counts in the provider */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(HomeEntry.CONTENT_URI, "facets");
+
+        /** Name of database table for facet counts */
+        public final static String TABLE_NAME = "facet_counts";
+
+        /** Facet of the row, one of the FACET_ values */
+        public final static String COLUMN_FACET = "facet";
+
+        /**
+         * Value of the facet: the county ("" for homes without one), the type, or the index of
+         * the income band in {@link #INCOME_BAND_BOUNDS}
+         */
+        public final static String COLUMN_FACET_VALUE = "value";
+
+        /** Number of live homes with the value */
+        public final static String COLUMN_FACET_COUNT = "count";
+
+        /**
+         * Possible facets.
+         */
+        public static final String FACET_COUNTY = "county";
+        public static final String FACET_TYPE = "type";
+        public static final String FACET_INCOME_BAND = "income_band";
+
+        /**
+         * Lower bounds of the income bands after the first one. Band 0 holds the incomes below
+         * the first bound, band i the incomes from bound i - 1 up to bound i, and the last
+         * band every income from the last bound on.
+         */
+        public static final int[] INCOME_BAND_BOUNDS = { 500, 1000, 2000, 5000 };
+
+        /**
+         * Returns the number of income bands.
+         */
+        public static int getIncomeBandCount() {
+            return INCOME_BAND_BOUNDS.length + 1;
+        }
+
+        /**
+         * Returns the lowest income of the given band.
+         */
+        public static int getIncomeBandMin(int band) {
+            return band == 0 ? 0 : INCOME_BAND_BOUNDS[band - 1];
+        }
+
+        /**
+         * Returns the lowest income above the given band, or -1 for the last band.
+         */
+        public static int getIncomeBandEnd(int band) {
+            return band < INCOME_BAND_BOUNDS.length ? INCOME_BAND_BOUNDS[band] : -1;
+        }
+
+        /**
+         * The MIME type of the link for the facet counts.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOMES
+                        + "/facets";
+    }
+
+    /**
+     * Inner class that defines constant values for the valuations derived from the income of
+     * the homes: per home, and rolled up per county. They are computed in the background by
+     * {@link HomeValuations}, shortly after every write, so they can lag the homes by a moment.
+     *
+     * Every amount is yearly, in cents. The model takes the monthly income of a home as its
+     * rent: the revenue is that rent over a year at the occupancy of its type, the net income
+     * is the revenue less the expenses of its type, and the value is the yearly rent times the
+     * gross rent multiplier of its type. The yield is the net income over the value, and the
+     * projection the revenue of the coming {@link #PROJECTION_YEARS} years, growing every year.
+     */
+    public static final class ValuationEntry {
+        /**
+         * The content URI to access the valuation of every live home in the provider, in the
+         * order of the home ids
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(HomeEntry.CONTENT_URI, "valuations");
+
+        /**
+         * The content URI to access the valuations rolled up per county, the county with the
+         * highest value first
+         */
+        public static final Uri COUNTIES_URI = Uri.withAppendedPath(CONTENT_URI, "counties");
+
+        /** Name of database table for the valuations of the homes */
+        public final static String TABLE_NAME = "home_valuations";
+
+        /** Name of database table for the valuations per county */
+        public final static String COUNTY_TABLE_NAME = "county_valuations";
+
+        /** Id of the home, only for the valuations of homes */
+        public final static String COLUMN_HOME_ID = "home_id";
+
+        /** County of the home or of the rollup, "" for homes without one */
+        public final static String COLUMN_COUNTY = "county";
+
+        /** Number of live homes in the county, only for the rollups */
+        public final static String COLUMN_HOME_COUNT = "home_count";
+
+        /** Yearly revenue at the occupancy of the type, in cents */
+        public final static String COLUMN_REVENUE = "revenue";
+
+        /** Yearly revenue less the expenses, in cents, below 0 when they exceed the revenue */
+        public final static String COLUMN_NET_INCOME = "net_income";
+
+        /** Value of the home, or of the homes of the county, in cents */
+        public final static String COLUMN_VALUE = "value";
+
+        /** Net income over the value, null when the value is 0 */
+        public final static String COLUMN_YIELD = "yield";
+
+        /** Revenue of the coming {@link #PROJECTION_YEARS} years, in cents */
+        public final static String COLUMN_PROJECTION = "projection";
+
+        /**
+         * Assumptions of the model, indexed by the type of the home: the share of the year a
+         * home is let, the share of the revenue going to expenses, the expenses that don't
+         * depend on the revenue (in cents per year), and the value as a multiple of the yearly
+         * rent.
+         */
+        public static final double[] OCCUPANCY_BY_TYPE = { 0.90, 0.95, 0.92 };
+        public static final double[] EXPENSE_RATIO_BY_TYPE = { 0.40, 0.35, 0.45 };
+        public static final long[] FIXED_EXPENSES_BY_TYPE = { 120000, 120000, 240000 };
+        public static final double[] GROSS_RENT_MULTIPLIER_BY_TYPE = { 10, 12, 9 };
+
+        /** Yearly growth of the revenue in the projection */
+        public static final double REVENUE_GROWTH = 0.03;
+
+        /** Number of years of the projection */
+        public static final int PROJECTION_YEARS = 5;
+
+        /**
+         * The MIME type of the link for the valuations of the homes.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOMES
+                        + "/valuations";
+
+        /**
+         * The MIME type of the link for the valuations per county.
+         */
+        public static final String COUNTIES_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOMES
+                        + "/valuations/counties";
+    }
+
+    /**
+     * Inner class that defines the statistics of the live homes. They are estimated from
+     * sketches kept up to date in the background after every write, so reading them takes
+     * the same short time however many homes there are, but they lag the writes by a moment
+     * and are only as exact as told below.
+     */
+    public static final class StatsEntry {
+        /**
+         * The content URI to access the statistics of all homes, a single row with the
+         * number of homes, the number of distinct counties and the percentiles of the income
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(HomeEntry.CONTENT_URI, "stats");
+
+        /**
+         * The content URI to access the {@link #TOP_COUNTIES} counties with the most homes,
+         * the heaviest first
+         */
+        public static final Uri COUNTIES_URI = Uri.withAppendedPath(CONTENT_URI, "counties");
+
+        /**
+         * Number of live homes, exact. For the counties, an estimate that is never below the
+         * actual number, and above it by at most a share of 0.3% of all homes in 98% of the
+         * cases.
+         */
+        public final static String COLUMN_HOME_COUNT = "home_count";
+
+        /**
+         * Estimated number of distinct counties of the homes, homes without a county left
+         * out. The standard error is 1.6%, and counties whose homes were all removed may be
+         * counted for a while.
+         */
+        public final static String COLUMN_DISTINCT_COUNTIES = "distinct_counties";
+
+        /**
+         * Incomes below which half, 90% and 99% of the homes are, within
+         * {@link #INCOME_RELATIVE_ERROR} of an actual income of a home
+         */
+        public final static String COLUMN_INCOME_P50 = "income_p50";
+        public final static String COLUMN_INCOME_P90 = "income_p90";
+        public final static String COLUMN_INCOME_P99 = "income_p99";
+
+        /** County of the home, only for the counties */
+        public final static String COLUMN_COUNTY = "county";
+
+        /** Most error of the percentiles of the income, relative to the income */
+        public static final double INCOME_RELATIVE_ERROR = 0.01;
+
+        /** Number of counties returned by {@link #COUNTIES_URI} at most */
+        public static final int TOP_COUNTIES = 10;
+
+        /**
+         * The MIME type of the link for the statistics of all homes.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOMES
+                        + "/stats";
+
+        /**
+         * The MIME type of the link for the counties with the most homes.
+         */
+        public static final String COUNTIES_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOMES
+                        + "/stats/counties";
+    }
+
+    /**
+     * Inner class that defines the batch protocol of the provider: many lookups, writes and
+     * aggregates carried by a single {@link ContentResolver#call} on {@link #CONTENT_URI}
+     * with {@link #METHOD_BATCH}, and answered in the same round trip. {@link HomeBatch}
+     * builds the requests and reads the responses.
+     *
+     * The request holds a list of operations under {@link #KEY_OPERATIONS}, each a Bundle
+     * with its kind under {@link #KEY_OPERATION}. They run in order, and if any of them writes
+     * the whole batch runs in one transaction, so it either applies completely or not at all.
+     * The response holds one result Bundle per operation under {@link #KEY_RESULTS}.
+     *
+     * Updates and deletes may expect a version of their home, see
+     * {@link HomeEntry#COLUMN_HOME_VERSION}. If any of them finds another version, none of the
+     * writes of the batch are applied, and the response holds {@link #KEY_CONFLICT}. Their
+     * results tell which homes were written since, and their current versions, so the caller
+     * can merge and retry without holding any lock in between.
+     *
+     * Rows are encoded column by column into a compact byte array. When the rows of all the
+     * results are too large for a Binder transaction, the response holds a pipe under
+     * {@link #KEY_PIPE} instead, which streams the rows of every result one after the other.
+     *
+     * The selections of queries and aggregates are held to the same rules as those of a query
+     * on {@link HomeEntry#CONTENT_URI}, and are all checked before any operation runs: a batch
+     * of another app with a selection reading every home may wait for another one to finish,
+     * or fail as a whole.
+     */
+    public static final class BatchEntry {
+        /** The content URI to call the batch methods on */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI;
+
+        /** Method of the call running a batch */
+        public static final String METHOD_BATCH = "batch";
+
+        /** Operations of the request, an ArrayList of Bundles */
+        public static final String KEY_OPERATIONS = "operations";
+
+        /** Kind of an operation, one of the OPERATION_ values */
+        public static final String KEY_OPERATION = "operation";
+
+        /**
+         * Possible operations. A lookup reads the homes with the given ids, a query the homes
+         * matching a selection, an upsert merges a home into the one with the same address
+         * or inserts it, and an aggregate summarizes the incomes of the matching homes. An
+         * update writes the values into the home with the given id, and a delete deletes it,
+         * both only if the home still has the expected version when there is one.
+         */
+        public static final String OPERATION_LOOKUP = "lookup";
+        public static final String OPERATION_QUERY = "query";
+        public static final String OPERATION_UPSERT = "upsert";
+        public static final String OPERATION_AGGREGATE = "aggregate";
+        public static final String OPERATION_UPDATE = "update";
+        public static final String OPERATION_DELETE = "delete";
+
+        /** Ids of a lookup, a long array. The homes found are returned in this order. */
+        public static final String KEY_IDS = "ids";
+
+        /** Selection of a query or aggregate */
+        public static final String KEY_SELECTION = "selection";
+
+        /** Selection arguments of a query or aggregate */
+        public static final String KEY_SELECTION_ARGS = "selection_args";
+
+        /** Sort mode of a query, one of the SORT_ keys in {@link HomeEntry} */
+        public static final String KEY_SORT_ORDER = "sort_order";
+
+        /** Maximum number of rows of a query, all of them if left out */
+        public static final String KEY_LIMIT = "limit";
+
+        /** Home of an upsert, or the values of an update, a ContentValues */
+        public static final String KEY_VALUES = "values";
+
+        /** Version an update or delete expects its home to have, a long. Any if left out. */
+        public static final String KEY_EXPECTED_VERSION = "expected_version";
+
+        /** Results of the response, an ArrayList of Bundles */
+        public static final String KEY_RESULTS = "results";
+
+        /** Encoded rows of a lookup or query result, when not streamed */
+        public static final String KEY_ROWS = "rows";
+
+        /**
+         * Read side of the pipe streaming the rows of every result, a ParcelFileDescriptor.
+         * Left unread for 30 seconds, the rest of the rows is dropped.
+         */
+        public static final String KEY_PIPE = "pipe";
+
+        /**
+         * Id of the home merged or inserted by an upsert, or -1 if the insertion failed. Also
+         * the id of the home of an update or delete.
+         */
+        public static final String KEY_ID = "id";
+
+        /**
+         * Version of the home of an update or delete once the batch ran, or -1 if there is no
+         * live home with its id. On a conflict, the version the home has instead of the
+         * expected one.
+         */
+        public static final String KEY_VERSION = "version";
+
+        /**
+         * Whether an update or delete found its home at another version than expected, a
+         * boolean. In the response, whether any of them did, so nothing was written.
+         */
+        public static final String KEY_CONFLICT = "conflict";
+
+        /**
+         * Number of homes matched by an aggregate, and the sum, lowest and highest income. Also
+         * the number of homes written by an update or delete, 0 or 1.
+         */
+        public static final String KEY_COUNT = "count";
+        public static final String KEY_SUM = "sum";
+        public static final String KEY_MIN = "min";
+        public static final String KEY_MAX = "max";
+
+        /** Columns of the rows returned by lookups and queries */
+        public static final String[] ROW_COLUMNS = {
+                HomeEntry._ID,
+                HomeEntry.COLUMN_HOME_ADDRESS,
+                HomeEntry.COLUMN_HOME_COUNTY,
+                HomeEntry.COLUMN_HOME_TYPE,
+                HomeEntry.COLUMN_HOME_INCOME };
+
+        /** Most operations a batch may hold */
+        public static final int MAX_OPERATIONS = 1000;
+    }
+
+    /**
+     * Inner class that defines the backup protocol of the provider. The databases are backed
+     * up in the background once enough homes were written, see {@link #BACKUP_WRITE_THRESHOLD};
+     * a {@link ContentResolver#call} on {@link #CONTENT_URI} with {@link #METHOD_BACKUP} backs
+     * them up right away, and one with {@link #METHOD_RESTORE} replaces every home with those
+     * of the last backup. Both return once done, and must not be called on the main thread.
+     *
+     * Reads keep going during both. The homes of one shard are restored in one transaction,
+     * so reads see them either as they were or as restored; the shards commit one after
+     * another, so a read across shards may briefly see some of them restored and others not.
+     * Photos aren't part of the backup. Only the app itself may call either method.
+     */
+    public static final class BackupEntry {
+        /** The content URI to call the backup methods on */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI;
+
+        /** Method of the call backing up the homes */
+        public static final String METHOD_BACKUP = "backup";
+
+        /** Method of the call restoring the homes of the last backup */
+        public static final String METHOD_RESTORE = "restore";
+
+        /** Homes written after which they are backed up in the background */
+        public static final int BACKUP_WRITE_THRESHOLD = 500;
+
+        /**
+         * Result of a backup: rows read and rows written to the backup, which only holds the
+         * rows changed since the previous one, and the size of the backup in bytes. Also the
+         * rows of a restore.
+         */
+        public static final String KEY_ROWS_READ = "rows_read";
+        public static final String KEY_ROWS_WRITTEN = "rows_written";
+        public static final String KEY_BYTES = "bytes";
+
+        /** How long the call took */
+        public static final String KEY_DURATION_MILLIS = "duration_millis";
+
+        /**
+         * How long a backup held the write lock of the databases, in total and at most at once:
+         * how long writes of the app may have waited for it
+         */
+        public static final String KEY_LOCK_MILLIS = "lock_millis";
+        public static final String KEY_MAX_LOCK_MILLIS = "max_lock_millis";
+    }
+
+    /**
+     * Inner class that defines the URIs and columns of the debugging information exposed by
+     * the provider. Every debug URI returns a single row, except the slow query log.
+     */
+    public static final class DebugEntry {
+        /** Statistics of the query result cache */
+        public static final Uri QUERY_CACHE_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_DEBUG + "/query_cache");
+
+        public final static String COLUMN_HITS = "hits";
+        public final static String COLUMN_MISSES = "misses";
+        /** Hits divided by lookups, between 0 and 1 */
+        public final static String COLUMN_HIT_RATE = "hit_rate";
+        public final static String COLUMN_EVICTIONS = "evictions";
+        public final static String COLUMN_ENTRIES = "entries";
+        public final static String COLUMN_SIZE_BYTES = "size_bytes";
+        /** Number of writes that invalidated the cache so far */
+        public final static String COLUMN_GENERATION = "generation";
+
+        /**
+         * The most recent queries, updates and deletes of homes by selection that took longer
+         * than the slow threshold, one row each, the oldest first.
+         */
+        public static final Uri SLOW_QUERIES_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_DEBUG + "/slow_queries");
+
+        /** "query", "update" or "delete" */
+        public final static String COLUMN_OPERATION = "operation";
+        /** The selection, with its literals replaced by "?" */
+        public final static String COLUMN_SELECTION_SHAPE = "selection_shape";
+        /** The steps of the plan SQLite picked for the selection, one per line */
+        public final static String COLUMN_PLAN = "plan";
+        /** 1 if the plan reads every home, 0 otherwise */
+        public final static String COLUMN_FULL_SCAN = "full_scan";
+        /** 1 if the caller was another process, 0 otherwise */
+        public final static String COLUMN_EXTERNAL = "external";
+        public final static String COLUMN_DURATION_MILLIS = "duration_millis";
+        /** When the run finished, in milliseconds since the epoch */
+        public final static String COLUMN_TIME = "time";
+
+        /**
+         * The MIME type of the link for debugging information.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_DEBUG;
+
+        /**
+         * The MIME type of the slow query log.
+         */
+        public static final String SLOW_QUERIES_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_DEBUG
+                        + "/slow_queries";
+    }
 }
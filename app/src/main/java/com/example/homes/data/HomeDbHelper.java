@@ -1,9 +1,14 @@
 package com.example.homes.data;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 
+import com.example.homes.data.HomeContract.DeletionEntry;
 import com.example.homes.data.HomeContract.HomeEntry;
 
 public class HomeDbHelper extends SQLiteOpenHelper {
@@ -16,7 +21,30 @@ public class HomeDbHelper extends SQLiteOpenHelper {
     /**
      * Database version. If you change the database schema, you must increment the database version.
      */
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 9;
+
+    /**
+     * Indexes backing the sort modes in {@link HomeEntry}. Each one matches the collation used
+     * by the ORDER BY clause in {@link HomeProvider}, and since every index implicitly ends with
+     * the rowid, the _ID tie-breaker in those clauses is covered as well.
+     */
+    static final String INDEX_ADDRESS_LOCALIZED = "homes_address_localized_idx";
+    static final String INDEX_ADDRESS_NOCASE = "homes_address_nocase_idx";
+    static final String INDEX_COUNTY_LOCALIZED = "homes_county_localized_idx";
+    static final String INDEX_COUNTY_NOCASE = "homes_county_nocase_idx";
+    static final String INDEX_INCOME = "homes_income_idx";
+
+    /** Index used to find the tombstones of a deletion when purging or restoring them */
+    static final String INDEX_DELETED = "homes_deleted_idx";
+
+    /** Index used to find the homes with the same canonical address */
+    static final String INDEX_CANONICAL_ADDRESS = "homes_canonical_address_idx";
+
+    /** Trigger bumping the version of a home whenever its data is written */
+    static final String TRIGGER_VERSION = "homes_version_update";
+
+    /** Shard of {@link HomeShards} this database holds, 0 when the storage isn't sharded */
+    private final int mShard;
 
     /**
      * Constructs a new instance of {@link HomeDbHelper}.
@@ -24,7 +52,67 @@ public class HomeDbHelper extends SQLiteOpenHelper {
      * @param context of the app
      */
     public HomeDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Constructs a new instance of {@link HomeDbHelper} backed by the given database file.
+     *
+     * @param context of the app
+     * @param name of the database file, or null for an in-memory database
+     */
+    public HomeDbHelper(Context context, String name) {
+        this(context, name, 0);
+    }
+
+    /**
+     * Constructs a new instance of {@link HomeDbHelper} backed by the given database file,
+     * holding the given shard of {@link HomeShards}.
+     *
+     * @param context of the app
+     * @param name of the database file, or null for an in-memory database
+     * @param shard index of the shard, which decides the range of the ids of its homes
+     */
+    HomeDbHelper(Context context, String name, int shard) {
+        super(context, name, null, DATABASE_VERSION);
+        mShard = shard;
+
+        // Write-ahead logging lets readers keep going while a writer, like the background
+        // maintenance, holds the lock
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    /**
+     * This is called when the database is opened, before it is created or upgraded. Only
+     * called from Jelly Bean on; before that, new databases are switched over to incremental
+     * vacuum by {@link HomeDbMaintenance} like those of older versions of the app.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        // Free pages can only be given back a few at a time if the database tracks them from
+        // before its first table. Opening the file already made the locale table, so the new
+        // database is vacuumed once to apply the setting, while it is still empty and cheap.
+        if (db.getVersion() == 0 && !db.isReadOnly()
+                && DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                        != HomeDbMaintenance.AUTO_VACUUM_INCREMENTAL) {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+        }
+    }
+
+    /**
+     * This is called every time the database is opened.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // Before Jelly Bean write-ahead logging can only be turned on once the database is open
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
     }
 
     /**
@@ -38,10 +126,36 @@ public class HomeDbHelper extends SQLiteOpenHelper {
                 + HomeEntry.COLUMN_HOME_ADDRESS + " TEXT NOT NULL, "
                 + HomeEntry.COLUMN_HOME_COUNTY + " TEXT, "
                 + HomeEntry.COLUMN_HOME_TYPE + " INTEGER NOT NULL, "
-                + HomeEntry.COLUMN_HOME_INCOME + " INTEGER NOT NULL DEFAULT 0);";
+                + HomeEntry.COLUMN_HOME_INCOME + " INTEGER NOT NULL DEFAULT 0, "
+                + HomeEntry.COLUMN_HOME_DELETED + " INTEGER NOT NULL DEFAULT 0, "
+                + HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS + " TEXT, "
+                + HomeEntry.COLUMN_HOME_PHOTO_VERSION + " INTEGER NOT NULL DEFAULT 0, "
+                + HomeEntry.COLUMN_HOME_VERSION + " INTEGER NOT NULL DEFAULT 1);";
 
         // Execute the SQL statement
         db.execSQL(SQL_CREATE_HOMES_TABLE);
+
+        createSortIndexes(db);
+        createDeletionsTable(db);
+        createCanonicalAddressIndex(db);
+        createVersionTrigger(db);
+        HomeFacets.create(db);
+        HomeValuations.create(db);
+        HomeSketches.create(db);
+
+        // Every shard hands out home ids from its own range, so an id is unique across shards
+        // and tells which shard holds the home
+        if (mShard > 0) {
+            db.execSQL("INSERT INTO sqlite_sequence (name, seq) VALUES ('"
+                    + HomeEntry.TABLE_NAME + "', " + HomeShards.firstIdOf(mShard) + " - 1);");
+        }
+    }
+
+    /**
+     * Returns the shard of {@link HomeShards} this database holds.
+     */
+    int getShard() {
+        return mShard;
     }
 
     /**
@@ -49,6 +163,136 @@ public class HomeDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // The database is still at version 1, so there's nothing to do be done here.
+        // Version 2 added the indexes used for sorting the catalog.
+        if (oldVersion < 2) {
+            createSortIndexes(db);
+        }
+        // Version 3 replaced hard deletes with tombstones that can be undone.
+        if (oldVersion < 3) {
+            db.execSQL("ALTER TABLE " + HomeEntry.TABLE_NAME + " ADD COLUMN "
+                    + HomeEntry.COLUMN_HOME_DELETED + " INTEGER NOT NULL DEFAULT 0;");
+            createDeletionsTable(db);
+        }
+        // Version 4 added the canonical address used to find duplicate homes.
+        if (oldVersion < 4) {
+            db.execSQL("ALTER TABLE " + HomeEntry.TABLE_NAME + " ADD COLUMN "
+                    + HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS + " TEXT;");
+            fillCanonicalAddresses(db);
+            createCanonicalAddressIndex(db);
+        }
+        // Version 5 added the facet counts, kept by triggers, and the indexes for filtering.
+        if (oldVersion < 5) {
+            HomeFacets.create(db);
+        }
+        // Version 6 added the valuations derived from the incomes, kept by HomeValuations.
+        if (oldVersion < 6) {
+            HomeValuations.create(db);
+        }
+        // Version 7 added the version of the photo, whose file is kept by HomePhotos.
+        if (oldVersion < 7) {
+            db.execSQL("ALTER TABLE " + HomeEntry.TABLE_NAME + " ADD COLUMN "
+                    + HomeEntry.COLUMN_HOME_PHOTO_VERSION + " INTEGER NOT NULL DEFAULT 0;");
+        }
+        // Version 8 added the version of the home, bumped by a trigger on every write.
+        if (oldVersion < 8) {
+            db.execSQL("ALTER TABLE " + HomeEntry.TABLE_NAME + " ADD COLUMN "
+                    + HomeEntry.COLUMN_HOME_VERSION + " INTEGER NOT NULL DEFAULT 1;");
+            createVersionTrigger(db);
+        }
+        // Version 9 added the sketches of the statistics, kept by HomeSketches.
+        if (oldVersion < 9) {
+            HomeSketches.create(db);
+        }
+    }
+
+    /**
+     * Create one index per sort mode, so that sorting the catalog walks an index in order
+     * instead of sorting the whole table in a temporary B-tree.
+     */
+    private static void createSortIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_ADDRESS_LOCALIZED + " ON "
+                + HomeEntry.TABLE_NAME + " ("
+                + HomeEntry.COLUMN_HOME_ADDRESS + " COLLATE LOCALIZED);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_ADDRESS_NOCASE + " ON "
+                + HomeEntry.TABLE_NAME + " ("
+                + HomeEntry.COLUMN_HOME_ADDRESS + " COLLATE NOCASE);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_COUNTY_LOCALIZED + " ON "
+                + HomeEntry.TABLE_NAME + " ("
+                + HomeEntry.COLUMN_HOME_COUNTY + " COLLATE LOCALIZED, "
+                + HomeEntry.COLUMN_HOME_ADDRESS + " COLLATE LOCALIZED);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_COUNTY_NOCASE + " ON "
+                + HomeEntry.TABLE_NAME + " ("
+                + HomeEntry.COLUMN_HOME_COUNTY + " COLLATE NOCASE, "
+                + HomeEntry.COLUMN_HOME_ADDRESS + " COLLATE NOCASE);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_INCOME + " ON "
+                + HomeEntry.TABLE_NAME + " ("
+                + HomeEntry.COLUMN_HOME_INCOME + ");");
+    }
+
+    /**
+     * Create the table recording every deletion that can still be undone, and the index used
+     * to find the tombstones of one deletion.
+     */
+    private static void createDeletionsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + DeletionEntry.TABLE_NAME + " ("
+                + DeletionEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + DeletionEntry.COLUMN_DELETION_TIME + " INTEGER NOT NULL, "
+                + DeletionEntry.COLUMN_DELETION_MAX_HOME_ID + " INTEGER NOT NULL DEFAULT 0, "
+                + DeletionEntry.COLUMN_DELETION_COUNT + " INTEGER NOT NULL DEFAULT 0);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_DELETED + " ON "
+                + HomeEntry.TABLE_NAME + " ("
+                + HomeEntry.COLUMN_HOME_DELETED + ");");
+    }
+
+    private static void createCanonicalAddressIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_CANONICAL_ADDRESS + " ON "
+                + HomeEntry.TABLE_NAME + " ("
+                + HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS + ");");
+    }
+
+    /**
+     * Create the trigger bumping the version of a home when its address, county, type or income
+     * is written, whoever writes it. Writing the photo version, the tombstone or the canonical
+     * address alone leaves the version as is, none of them is something a user edits.
+     *
+     * The WHEN clause keeps the UPDATE of the trigger from firing it again.
+     */
+    private static void createVersionTrigger(SQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TRIGGER_VERSION
+                + " AFTER UPDATE OF "
+                + HomeEntry.COLUMN_HOME_ADDRESS + ", "
+                + HomeEntry.COLUMN_HOME_COUNTY + ", "
+                + HomeEntry.COLUMN_HOME_TYPE + ", "
+                + HomeEntry.COLUMN_HOME_INCOME
+                + " ON " + HomeEntry.TABLE_NAME
+                + " WHEN new." + HomeEntry.COLUMN_HOME_VERSION
+                + " = old." + HomeEntry.COLUMN_HOME_VERSION
+                + " BEGIN UPDATE " + HomeEntry.TABLE_NAME
+                + " SET " + HomeEntry.COLUMN_HOME_VERSION
+                + " = old." + HomeEntry.COLUMN_HOME_VERSION + " + 1"
+                + " WHERE " + HomeEntry._ID + " = new." + HomeEntry._ID + "; END;");
+    }
+
+    /**
+     * Compute the canonical address of every existing home. The normalization is done in Java,
+     * so it can't be a single UPDATE statement.
+     */
+    private static void fillCanonicalAddresses(SQLiteDatabase db) {
+        SQLiteStatement statement = db.compileStatement("UPDATE " + HomeEntry.TABLE_NAME
+                + " SET " + HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS + " = ?"
+                + " WHERE " + HomeEntry._ID + " = ?");
+        Cursor cursor = db.query(HomeEntry.TABLE_NAME,
+                new String[] { HomeEntry._ID, HomeEntry.COLUMN_HOME_ADDRESS },
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                statement.bindString(1, AddressNormalizer.normalize(cursor.getString(1)));
+                statement.bindLong(2, cursor.getLong(0));
+                statement.executeUpdateDelete();
+            }
+        } finally {
+            cursor.close();
+            statement.close();
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,772 @@
+package com.example.homes.data;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.BatteryManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.homes.data.HomeContract.BackupEntry;
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background maintenance of the homes database.
+ *
+ * Once the provider has been idle for {@link #IDLE_DELAY_MILLIS}, the jobs that are due run one
+ * after the other on a single background thread: refreshing the planner statistics, giving free
+ * pages back to the file system, checkpointing the write-ahead log, checking integrity and
+ * backing up the databases that changed, see {@link HomeBackup}. Every
+ * job works in small steps within its own time budget, and stops at the next step as soon as a
+ * foreground query or write reaches the provider; it is retried in the next idle period. Each
+ * run is logged with the page counts and the timing of a probe query before and after it.
+ *
+ * With sharded storage the jobs run on every shard in turn, see {@link HomeShards}.
+ *
+ * The same thread also runs the other background work of the data layer, like the purge of
+ * deleted homes, so that at most one background writer competes with the foreground.
+ */
+class HomeDbMaintenance {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = HomeDbMaintenance.class.getSimpleName();
+
+    /** How long the provider must go without any call before maintenance starts */
+    static final long IDLE_DELAY_MILLIS = 30 * 1000;
+
+    /** Name of the preferences file remembering when each job last completed */
+    private static final String PREFS_NAME = "home_db_maintenance";
+    private static final String PREF_LAST_RUN = "last_run_";
+
+    /** Number of reports kept in memory for {@link #getRecentReports()} */
+    private static final int MAX_REPORTS = 20;
+
+    /** Directory of the backups, next to the databases */
+    private static final String BACKUP_DIRECTORY = "backups";
+
+    /** Shard of {@link #noteWrite} for a write that may have changed every shard */
+    static final int ALL_SHARDS = -1;
+
+    /** Value of PRAGMA auto_vacuum when the database supports incremental vacuum */
+    static final long AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final Context mContext;
+    private final HomeDbHelper[] mDbHelpers;
+
+    /** Single background thread for maintenance and other background work of the data layer */
+    private final ScheduledExecutorService mExecutor;
+
+    /** Jobs in the order they run when several are due */
+    private final List<Job> mJobs = new ArrayList<>();
+
+    /** Uptime of the last foreground call to the provider */
+    private volatile long mLastActivity;
+
+    /** Whether an idle check is already scheduled */
+    private final AtomicBoolean mIdleCheckPending = new AtomicBoolean();
+
+    /** What the jobs need to know of the writes to each database, by shard */
+    private final ShardState[] mShardStates;
+
+    private final HomeBackup mBackup;
+
+    private final Deque<Report> mReports = new ArrayDeque<>();
+
+    HomeDbMaintenance(Context context, HomeDbHelper... dbHelpers) {
+        mContext = context;
+        mDbHelpers = dbHelpers;
+        mShardStates = new ShardState[dbHelpers.length];
+        for (int shard = 0; shard < dbHelpers.length; shard++) {
+            mShardStates[shard] = new ShardState();
+        }
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "HomeDbMaintenance");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        mJobs.add(new CheckpointJob());
+        mJobs.add(new VacuumJob());
+        mJobs.add(new AnalyzeJob());
+        mJobs.add(new IntegrityCheckJob());
+        mJobs.add(new BackupJob());
+        mBackup = new HomeBackup(context, new File(context.getDatabasePath(
+                HomeShards.DATABASE_BASE_NAME).getParentFile(), BACKUP_DIRECTORY));
+
+        mLastActivity = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Run a task on the background thread of the data layer after the given delay. Tasks
+     * scheduled after {@link #shutdown} are dropped.
+     */
+    void schedule(final Runnable task, long delayMillis) {
+        if (!mExecutor.isShutdown()) {
+            mExecutor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop the background thread, interrupting the running job, and drop the scheduled tasks.
+     * For tests, which make a maintenance per test and would leave its thread behind.
+     */
+    void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Called for every foreground query. Stops the running job at its next step and pushes
+     * maintenance back until the provider is idle again.
+     */
+    void noteQuery() {
+        mLastActivity = SystemClock.uptimeMillis();
+        scheduleIdleCheck(IDLE_DELAY_MILLIS);
+    }
+
+    /**
+     * Called for every foreground write, with the shard it wrote to and the number of rows it
+     * changed. A write that may have changed rows of every shard passes {@link #ALL_SHARDS},
+     * and counts in full for each of them.
+     */
+    void noteWrite(int shard, int rowCount) {
+        if (shard == ALL_SHARDS) {
+            for (ShardState state : mShardStates) {
+                state.noteWrite(rowCount);
+            }
+        } else {
+            mShardStates[shard].noteWrite(rowCount);
+        }
+        noteQuery();
+    }
+
+    /**
+     * Ask for an incremental vacuum of the shard in the next idle period, e.g. after rows were
+     * purged.
+     */
+    void requestVacuum(int shard) {
+        mShardStates[shard].mVacuumRequested = true;
+        scheduleIdleCheck(IDLE_DELAY_MILLIS);
+    }
+
+    /**
+     * Back up every database on the background thread, without stopping for foreground work,
+     * and wait for it.
+     *
+     * @return the report of each database
+     */
+    List<HomeBackup.Report> backUpNow() throws IOException {
+        return runNow(new Callable<List<HomeBackup.Report>>() {
+            @Override
+            public List<HomeBackup.Report> call() throws IOException {
+                List<HomeBackup.Report> reports = new ArrayList<>();
+                for (HomeDbHelper dbHelper : mDbHelpers) {
+                    SQLiteDatabase database = dbHelper.getWritableDatabase();
+                    if (HomeBackup.canBackUp(database)) {
+                        reports.add(backUp(database, null));
+                    }
+                }
+                return reports;
+            }
+        });
+    }
+
+    /**
+     * Replace the rows of every database with those of its backup on the background thread,
+     * and wait for it. The caller forgets whatever it read from the databases before.
+     *
+     * @return the number of rows restored
+     * @throws java.io.FileNotFoundException if a database has no backup
+     */
+    long restoreNow() throws IOException {
+        return runNow(new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                long rows = mBackup.restore(mDbHelpers);
+                // The next backups have to catch up with every row
+                for (ShardState state : mShardStates) {
+                    state.mWriteCountAtBackup = 0;
+                }
+                return rows;
+            }
+        });
+    }
+
+    /**
+     * Back up the database, and remember the write count as of the start when it completes.
+     */
+    private HomeBackup.Report backUp(SQLiteDatabase database, HomeBackup.Pacer pacer)
+            throws IOException {
+        ShardState state = stateOf(database);
+        long writeCount = state.mWriteCount.get();
+        HomeBackup.Report report = mBackup.backUp(database, pacer);
+        if (report.mCompleted) {
+            state.mWriteCountAtBackup = writeCount;
+        }
+        return report;
+    }
+
+    /**
+     * Returns the state of the shard of the given database, one of those being maintained.
+     */
+    private ShardState stateOf(SQLiteDatabase database) {
+        for (int shard = 0; shard < mDbHelpers.length; shard++) {
+            if (mDbHelpers[shard].getWritableDatabase() == database) {
+                return mShardStates[shard];
+            }
+        }
+        throw new IllegalArgumentException(database.getPath() + " is not maintained here");
+    }
+
+    /**
+     * Run a task on the background thread, after the work already queued, and wait for it.
+     */
+    private <T> T runNow(Callable<T> task) throws IOException {
+        try {
+            return mExecutor.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the data layer");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Returns the reports of the most recent maintenance runs, the oldest one first.
+     */
+    List<Report> getRecentReports() {
+        synchronized (mReports) {
+            return new ArrayList<>(mReports);
+        }
+    }
+
+    private void scheduleIdleCheck(long delayMillis) {
+        if (mIdleCheckPending.compareAndSet(false, true)) {
+            schedule(mIdleCheck, delayMillis);
+        }
+    }
+
+    private final Runnable mIdleCheck = new Runnable() {
+        @Override
+        public void run() {
+            mIdleCheckPending.set(false);
+
+            // The provider was used while this check was waiting, wait for the rest of the delay
+            long idleFor = SystemClock.uptimeMillis() - mLastActivity;
+            if (idleFor < IDLE_DELAY_MILLIS) {
+                scheduleIdleCheck(IDLE_DELAY_MILLIS - idleFor);
+                return;
+            }
+
+            try {
+                runDueJobs();
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Database maintenance failed", e);
+            }
+        }
+    };
+
+    /**
+     * Run every job that is due on every database, until one of them is stopped by foreground
+     * activity.
+     */
+    private void runDueJobs() {
+        SharedPreferences preferences =
+                mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        long now = System.currentTimeMillis();
+
+        for (int i = 0; i < mDbHelpers.length; i++) {
+            SQLiteDatabase database = mDbHelpers[i].getWritableDatabase();
+            // The first database keeps the keys it had before there were shards
+            String prefix = i == 0 ? PREF_LAST_RUN
+                    : PREF_LAST_RUN + mDbHelpers[i].getDatabaseName() + "_";
+
+            for (Job job : mJobs) {
+                long lastRun = preferences.getLong(prefix + job.mName, 0);
+                if (!job.isDue(database, now - lastRun)) {
+                    continue;
+                }
+
+                Report report = runJob(mDbHelpers[i].getDatabaseName(), database, job);
+                if (!report.mCompleted) {
+                    // Foreground work came in, the remaining jobs wait for the next idle period
+                    scheduleIdleCheck(IDLE_DELAY_MILLIS);
+                    return;
+                }
+                preferences.edit().putLong(prefix + job.mName, now).apply();
+            }
+        }
+    }
+
+    /**
+     * Returns the job of the given name, see {@link Job#mName}.
+     */
+    Job getJob(String name) {
+        for (Job job : mJobs) {
+            if (job.mName.equals(name)) {
+                return job;
+            }
+        }
+        throw new IllegalArgumentException("No maintenance job named " + name);
+    }
+
+    /**
+     * Returns whether the device is plugged in. The one-off full vacuum of a database that
+     * predates incremental vacuum only runs then.
+     */
+    boolean isCharging() {
+        // The battery broadcast is sticky, reading it needs no receiver nor permission
+        Intent battery = mContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    /**
+     * Run one job within its budget and report what it did.
+     */
+    Report runJob(String databaseName, SQLiteDatabase database, Job job) {
+        return runJob(databaseName, database, job,
+                new Session(SystemClock.uptimeMillis(), job.mBudgetMillis));
+    }
+
+    /**
+     * Run one job in the given session and report what it did.
+     */
+    Report runJob(String databaseName, SQLiteDatabase database, Job job, Session session) {
+        Report report = new Report(job.mName, databaseName);
+        report.mPagesBefore = pragmaLong(database, "page_count");
+        report.mFreePagesBefore = pragmaLong(database, "freelist_count");
+        report.mProbeMillisBefore = timeProbeQuery(database);
+
+        long start = SystemClock.uptimeMillis();
+        try {
+            job.run(database, session);
+            report.mCompleted = !session.isInterrupted();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        report.mDurationMillis = SystemClock.uptimeMillis() - start;
+
+        report.mPagesAfter = pragmaLong(database, "page_count");
+        report.mFreePagesAfter = pragmaLong(database, "freelist_count");
+        report.mProbeMillisAfter = timeProbeQuery(database);
+
+        Log.i(LOG_TAG, report.toString());
+        synchronized (mReports) {
+            if (mReports.size() == MAX_REPORTS) {
+                mReports.removeFirst();
+            }
+            mReports.addLast(report);
+        }
+        return report;
+    }
+
+    /**
+     * Time the catalog query sorted by address, as a yardstick for the effect of a job.
+     */
+    private static long timeProbeQuery(SQLiteDatabase database) {
+        long start = SystemClock.uptimeMillis();
+        Cursor cursor = database.rawQuery("SELECT " + HomeEntry._ID + ", "
+                + HomeEntry.COLUMN_HOME_ADDRESS + ", " + HomeEntry.COLUMN_HOME_COUNTY + ", "
+                + HomeEntry.COLUMN_HOME_INCOME + " FROM " + HomeEntry.TABLE_NAME
+                + " ORDER BY " + HomeProvider.resolveSortOrder(HomeEntry.SORT_ADDRESS)
+                + " LIMIT 200", null);
+        try {
+            while (cursor.moveToNext()) {
+                // Step through every row, the rows themselves don't matter
+            }
+        } finally {
+            cursor.close();
+        }
+        return SystemClock.uptimeMillis() - start;
+    }
+
+    private static long pragmaLong(SQLiteDatabase database, String pragma) {
+        return DatabaseUtils.longForQuery(database, "PRAGMA " + pragma, null);
+    }
+
+    /**
+     * State of one job run, telling the job when to stop.
+     */
+    class Session {
+        private final long mStart;
+        private final long mDeadline;
+        private boolean mInterrupted;
+
+        Session(long start, long budgetMillis) {
+            mStart = start;
+            mDeadline = start + budgetMillis;
+        }
+
+        /**
+         * Returns true when the job should stop before its next step, because its budget is
+         * spent or because the provider got a foreground call since the job started.
+         */
+        boolean shouldStop() {
+            if (mLastActivity > mStart || SystemClock.uptimeMillis() > mDeadline) {
+                mInterrupted = true;
+            }
+            return mInterrupted;
+        }
+
+        boolean isInterrupted() {
+            return mInterrupted;
+        }
+    }
+
+    /**
+     * What the jobs know of the writes to one database. Every database keeps its own, as the
+     * jobs run on each in turn.
+     */
+    private static final class ShardState {
+        /** Rows written since the planner statistics were last refreshed */
+        final AtomicInteger mWritesSinceAnalyze = new AtomicInteger();
+
+        /** Set when free pages are known to be waiting, e.g. after a purge */
+        volatile boolean mVacuumRequested;
+
+        /** Rows written since the process started */
+        final AtomicLong mWriteCount = new AtomicLong();
+
+        /**
+         * Value of {@link #mWriteCount} when the database was last backed up. Only used on the
+         * background thread.
+         */
+        long mWriteCountAtBackup;
+
+        void noteWrite(int rowCount) {
+            mWritesSinceAnalyze.addAndGet(rowCount);
+            mWriteCount.addAndGet(rowCount);
+        }
+    }
+
+    /**
+     * One kind of maintenance work.
+     */
+    abstract static class Job {
+        /** Name of the job, used in the reports and to remember its last run */
+        final String mName;
+
+        /** Time the job may run for before it stops at the next step */
+        final long mBudgetMillis;
+
+        Job(String name, long budgetMillis) {
+            mName = name;
+            mBudgetMillis = budgetMillis;
+        }
+
+        /**
+         * Returns whether the job should run, given the time since it last completed.
+         */
+        abstract boolean isDue(SQLiteDatabase database, long sinceLastRunMillis);
+
+        /**
+         * Do the work, checking {@link Session#shouldStop()} between steps.
+         */
+        abstract void run(SQLiteDatabase database, Session session) throws InterruptedException;
+    }
+
+    /**
+     * Copies the write-ahead log back into the database, so the log doesn't keep growing and
+     * readers don't have to look through it. PASSIVE never waits for readers or writers.
+     */
+    private static final class CheckpointJob extends Job {
+        private static final long INTERVAL_MILLIS = 5 * 60 * 1000;
+
+        CheckpointJob() {
+            super("checkpoint", 500);
+        }
+
+        @Override
+        boolean isDue(SQLiteDatabase database, long sinceLastRunMillis) {
+            return sinceLastRunMillis >= INTERVAL_MILLIS && "wal".equalsIgnoreCase(
+                    DatabaseUtils.stringForQuery(database, "PRAGMA journal_mode", null));
+        }
+
+        @Override
+        void run(SQLiteDatabase database, Session session) {
+            Cursor cursor = database.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+            try {
+                // Columns are busy, frames in the log and frames checkpointed
+                if (cursor.moveToFirst() && cursor.getLong(2) < cursor.getLong(1)) {
+                    Log.d(LOG_TAG, "Checkpointed " + cursor.getLong(2) + " of "
+                            + cursor.getLong(1) + " log frames, readers still hold the rest");
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Gives free pages back to the file system, a few pages per step.
+     *
+     * Databases created since incremental vacuum was introduced have it from the start, see
+     * {@link HomeDbHelper#onConfigure}. Older ones need one full VACUUM to switch over, which
+     * can't be cut into steps nor stopped, so it only runs in an idle period while the device
+     * is charging; until then the job leaves them alone and says so in the log.
+     */
+    private final class VacuumJob extends Job {
+        /** Free pages tolerated before a vacuum is worth it */
+        private static final long MIN_FREE_PAGES = 64;
+
+        /** Number of free pages given back per step */
+        private static final int PAGES_PER_STEP = 64;
+
+        VacuumJob() {
+            super("vacuum", 1000);
+        }
+
+        @Override
+        boolean isDue(SQLiteDatabase database, long sinceLastRunMillis) {
+            return stateOf(database).mVacuumRequested
+                    || pragmaLong(database, "freelist_count") >= MIN_FREE_PAGES;
+        }
+
+        @Override
+        void run(SQLiteDatabase database, Session session) throws InterruptedException {
+            ShardState state = stateOf(database);
+            if (pragmaLong(database, "auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+                if (session.shouldStop()) {
+                    return;
+                }
+                if (!isCharging()) {
+                    Log.i(LOG_TAG, database.getPath() + " predates incremental vacuum, its "
+                            + pragmaLong(database, "freelist_count")
+                            + " free pages wait for the device to charge");
+                    state.mVacuumRequested = false;
+                    return;
+                }
+                // Switching over takes one full VACUUM, beyond the budget of the job
+                database.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                database.execSQL("VACUUM");
+                state.mVacuumRequested = false;
+                return;
+            }
+
+            while (pragmaLong(database, "freelist_count") > 0) {
+                if (session.shouldStop()) {
+                    return;
+                }
+                // Each step of incremental_vacuum frees a single page, so run it through a
+                // cursor that steps the statement to the end instead of through execSQL().
+                Cursor cursor = database.rawQuery(
+                        "PRAGMA incremental_vacuum(" + PAGES_PER_STEP + ")", null);
+                try {
+                    cursor.getCount();
+                } finally {
+                    cursor.close();
+                }
+            }
+            state.mVacuumRequested = false;
+        }
+    }
+
+    /**
+     * Refreshes the statistics the query planner uses to pick indexes. Uses PRAGMA optimize
+     * where SQLite supports it, which only analyzes what changed; otherwise analyzes one index
+     * per step.
+     */
+    private final class AnalyzeJob extends Job {
+        private static final long INTERVAL_MILLIS = 24 * 60 * 60 * 1000;
+
+        /** Rows written after which the statistics are refreshed without waiting a day */
+        private static final int WRITE_THRESHOLD = 1000;
+
+        AnalyzeJob() {
+            super("analyze", 2000);
+        }
+
+        @Override
+        boolean isDue(SQLiteDatabase database, long sinceLastRunMillis) {
+            int writes = stateOf(database).mWritesSinceAnalyze.get();
+            return writes >= WRITE_THRESHOLD || (writes > 0 && sinceLastRunMillis >= INTERVAL_MILLIS);
+        }
+
+        @Override
+        void run(SQLiteDatabase database, Session session) {
+            AtomicInteger writesSinceAnalyze = stateOf(database).mWritesSinceAnalyze;
+            int writes = writesSinceAnalyze.get();
+            if (supportsOptimize(database)) {
+                database.execSQL("PRAGMA optimize");
+            } else {
+                List<String> indexes = new ArrayList<>();
+                Cursor cursor = database.rawQuery("SELECT name FROM sqlite_master"
+                        + " WHERE type = 'index' AND tbl_name = ?",
+                        new String[] { HomeEntry.TABLE_NAME });
+                try {
+                    while (cursor.moveToNext()) {
+                        indexes.add(cursor.getString(0));
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                for (String index : indexes) {
+                    if (session.shouldStop()) {
+                        return;
+                    }
+                    database.execSQL("ANALYZE " + index);
+                }
+            }
+            writesSinceAnalyze.addAndGet(-writes);
+        }
+
+        /**
+         * PRAGMA optimize was added in SQLite 3.18.0.
+         */
+        private boolean supportsOptimize(SQLiteDatabase database) {
+            String[] version = DatabaseUtils.stringForQuery(database,
+                    "SELECT sqlite_version()", null).split("\\.");
+            int major = Integer.parseInt(version[0]);
+            int minor = version.length > 1 ? Integer.parseInt(version[1]) : 0;
+            return major > 3 || (major == 3 && minor >= 18);
+        }
+    }
+
+    /**
+     * Checks the database for corruption. quick_check is a single statement, so it can only
+     * be skipped when foreground work is waiting, not cut short.
+     */
+    private static final class IntegrityCheckJob extends Job {
+        private static final long INTERVAL_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+        IntegrityCheckJob() {
+            super("integrity_check", 5000);
+        }
+
+        @Override
+        boolean isDue(SQLiteDatabase database, long sinceLastRunMillis) {
+            return sinceLastRunMillis >= INTERVAL_MILLIS;
+        }
+
+        @Override
+        void run(SQLiteDatabase database, Session session) {
+            if (session.shouldStop()) {
+                return;
+            }
+            Cursor cursor = database.rawQuery("PRAGMA quick_check", null);
+            try {
+                while (cursor.moveToNext()) {
+                    String result = cursor.getString(0);
+                    if (!"ok".equals(result)) {
+                        Log.e(LOG_TAG, "Integrity check of " + database.getPath() + ": " + result);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Backs up the databases with enough writes since their last backup, or with any write
+     * after a day. A database without a backup is backed up right away.
+     */
+    private final class BackupJob extends Job {
+        private static final long INTERVAL_MILLIS = 24 * 60 * 60 * 1000;
+
+        /** Rows written after which a database is backed up without waiting a day */
+        private static final long WRITE_THRESHOLD = BackupEntry.BACKUP_WRITE_THRESHOLD;
+
+        BackupJob() {
+            super("backup", 3000);
+        }
+
+        @Override
+        boolean isDue(SQLiteDatabase database, long sinceLastRunMillis) {
+            if (!HomeBackup.canBackUp(database)) {
+                return false;
+            }
+            if (!mBackup.getBackupFile(new File(database.getPath()).getName()).isFile()) {
+                return true;
+            }
+            ShardState state = stateOf(database);
+            long writes = state.mWriteCount.get() - state.mWriteCountAtBackup;
+            return writes >= WRITE_THRESHOLD
+                    || (writes > 0 && sinceLastRunMillis >= INTERVAL_MILLIS);
+        }
+
+        @Override
+        void run(SQLiteDatabase database, final Session session) {
+            try {
+                backUp(database, new HomeBackup.Pacer() {
+                    @Override
+                    public boolean shouldContinue() {
+                        return !session.shouldStop();
+                    }
+                });
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Backup of " + database.getPath() + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * What one run of a job did.
+     */
+    static final class Report {
+        final String mJobName;
+        final String mDatabaseName;
+        boolean mCompleted;
+        long mDurationMillis;
+        long mPagesBefore;
+        long mPagesAfter;
+        long mFreePagesBefore;
+        long mFreePagesAfter;
+        long mProbeMillisBefore;
+        long mProbeMillisAfter;
+
+        Report(String jobName, String databaseName) {
+            mJobName = jobName;
+            mDatabaseName = databaseName;
+        }
+
+        @Override
+        public String toString() {
+            return mJobName + " on " + mDatabaseName + (mCompleted ? " completed" : " interrupted")
+                    + " in " + mDurationMillis + " ms"
+                    + ", pages " + mPagesBefore + " -> " + mPagesAfter
+                    + ", free pages " + mFreePagesBefore + " -> " + mFreePagesAfter
+                    + ", probe query " + mProbeMillisBefore + " -> " + mProbeMillisAfter + " ms";
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.homes.data;
+
+import android.database.Cursor;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the homes that share their canonical address with an older live home.
+ *
+ * Instead of comparing every home with every other one, the live homes are read once in the
+ * order of the canonical address index, where duplicates end up next to each other. Within a
+ * run of equal canonical addresses the home with the lowest id is kept and the others are
+ * duplicates, which makes the whole pass linear in the number of homes.
+ */
+final class HomeDeduplicator {
+
+    /** Columns to query for {@link #findDuplicates(Cursor)} */
+    static final String[] PROJECTION = {
+            HomeEntry._ID,
+            HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS };
+
+    /** Selection of the homes that can have duplicates */
+    static final String SELECTION = HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS + " IS NOT NULL AND "
+            + HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS + " != ''";
+
+    /** Walks the canonical address index, which ends with the rowid, so no sort is needed */
+    static final String ORDER_BY = HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS + " ASC, "
+            + HomeEntry._ID + " ASC";
+
+    private HomeDeduplicator() {}
+
+    /**
+     * Returns the ids of the duplicate homes in the cursor, which must hold the live homes
+     * queried with {@link #PROJECTION}, {@link #SELECTION} and {@link #ORDER_BY}.
+     */
+    static List<Long> findDuplicates(Cursor cursor) {
+        List<Long> duplicates = new ArrayList<>();
+        String previous = null;
+        while (cursor.moveToNext()) {
+            String canonical = cursor.getString(1);
+            if (canonical.equals(previous)) {
+                duplicates.add(cursor.getLong(0));
+            }
+            previous = canonical;
+        }
+        return duplicates;
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.homes.data;
+
+import android.content.ContentValues;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The change of the result of a {@link HomeLiveQuery} since the previous delta: the homes
+ * that now match, the matching homes whose columns changed, and the homes that no longer
+ * match or were deleted.
+ *
+ * The first delta of a subscription is the initial result, with every matching home added.
+ * Rows hold the columns of the projection of the query, and always the _ID.
+ */
+public final class HomeDelta {
+
+    private final boolean mInitial;
+    private final List<ContentValues> mAdded;
+    private final List<ContentValues> mChanged;
+    private final List<Long> mRemovedIds;
+
+    HomeDelta(boolean initial, List<ContentValues> added, List<ContentValues> changed,
+              List<Long> removedIds) {
+        mInitial = initial;
+        mAdded = Collections.unmodifiableList(added);
+        mChanged = Collections.unmodifiableList(changed);
+        mRemovedIds = Collections.unmodifiableList(removedIds);
+    }
+
+    /**
+     * Whether this is the initial result of the subscription.
+     */
+    public boolean isInitial() {
+        return mInitial;
+    }
+
+    /**
+     * Returns the homes that match the query now but didn't before.
+     */
+    public List<ContentValues> getAdded() {
+        return mAdded;
+    }
+
+    /**
+     * Returns the homes that still match the query, with their new values.
+     */
+    public List<ContentValues> getChanged() {
+        return mChanged;
+    }
+
+    /**
+     * Returns the ids of the homes that matched the query before but don't anymore.
+     */
+    public List<Long> getRemovedIds() {
+        return mRemovedIds;
+    }
+
+    public boolean isEmpty() {
+        return mAdded.isEmpty() && mChanged.isEmpty() && mRemovedIds.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "HomeDelta{initial=" + mInitial + ", added=" + mAdded.size()
+                + ", changed=" + mChanged.size() + ", removed=" + mRemovedIds.size() + "}";
+    }
+}
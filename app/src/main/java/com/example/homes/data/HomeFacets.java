@@ -0,0 +1,189 @@
+package com.example.homes.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.homes.data.HomeContract.FacetEntry;
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import java.util.Map;
+
+/**
+ * The facet counts table of one database, see {@link FacetEntry}.
+ *
+ * The counts are kept by triggers on the homes table, so every write path keeps them right,
+ * the purge and undo included, and a write only touches the few rows of its own facet
+ * values. Reading the counts is then a scan of a table with a row per county, type and band,
+ * whatever the number of homes.
+ *
+ * The triggers count the homes whose deleted flag is 0. A deletion of all homes doesn't flag
+ * any home though, it hides every id up to a bound (see {@link HomeTombstones}), so while one
+ * is pending the counts table still includes the hidden homes. The live homes are then only
+ * those above the bound, added since, and they are counted directly instead.
+ */
+final class HomeFacets {
+
+    /** Indexes backing the filtered queries of the catalog */
+    static final String INDEX_COUNTY_TYPE_INCOME = "homes_county_type_income_idx";
+    static final String INDEX_TYPE_INCOME = "homes_type_income_idx";
+
+    private HomeFacets() {
+    }
+
+    /**
+     * Create the facet counts table, the triggers keeping it and the indexes for filtering,
+     * and count the existing homes.
+     */
+    static void create(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + FacetEntry.TABLE_NAME + " ("
+                + FacetEntry.COLUMN_FACET + " TEXT NOT NULL, "
+                + FacetEntry.COLUMN_FACET_VALUE + " TEXT NOT NULL, "
+                + FacetEntry.COLUMN_FACET_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+                + "PRIMARY KEY (" + FacetEntry.COLUMN_FACET + ", "
+                + FacetEntry.COLUMN_FACET_VALUE + "));");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS homes_facets_insert AFTER INSERT ON "
+                + HomeEntry.TABLE_NAME + " WHEN new." + HomeEntry.COLUMN_HOME_DELETED + " = 0"
+                + " BEGIN " + countStatements("new", 1) + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS homes_facets_delete AFTER DELETE ON "
+                + HomeEntry.TABLE_NAME + " WHEN old." + HomeEntry.COLUMN_HOME_DELETED + " = 0"
+                + " BEGIN " + countStatements("old", -1) + " END;");
+
+        // An update moves a home from the values it had to the values it has, tombstoning
+        // and restoring included. Each half only applies to a home counted on that side.
+        String updateOf = " AFTER UPDATE OF " + HomeEntry.COLUMN_HOME_COUNTY + ", "
+                + HomeEntry.COLUMN_HOME_TYPE + ", " + HomeEntry.COLUMN_HOME_INCOME + ", "
+                + HomeEntry.COLUMN_HOME_DELETED + " ON " + HomeEntry.TABLE_NAME;
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS homes_facets_update_old" + updateOf
+                + " WHEN old." + HomeEntry.COLUMN_HOME_DELETED + " = 0"
+                + " BEGIN " + countStatements("old", -1) + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS homes_facets_update_new" + updateOf
+                + " WHEN new." + HomeEntry.COLUMN_HOME_DELETED + " = 0"
+                + " BEGIN " + countStatements("new", 1) + " END;");
+
+        // County first, so the type and income filters can follow it within one county
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_COUNTY_TYPE_INCOME + " ON "
+                + HomeEntry.TABLE_NAME + " (" + HomeEntry.COLUMN_HOME_COUNTY + ", "
+                + HomeEntry.COLUMN_HOME_TYPE + ", " + HomeEntry.COLUMN_HOME_INCOME + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_TYPE_INCOME + " ON "
+                + HomeEntry.TABLE_NAME + " (" + HomeEntry.COLUMN_HOME_TYPE + ", "
+                + HomeEntry.COLUMN_HOME_INCOME + ");");
+
+        // Start from the homes that are already there
+        db.execSQL("DELETE FROM " + FacetEntry.TABLE_NAME + ";");
+        db.execSQL("INSERT INTO " + FacetEntry.TABLE_NAME + " (" + FacetEntry.COLUMN_FACET + ", "
+                + FacetEntry.COLUMN_FACET_VALUE + ", " + FacetEntry.COLUMN_FACET_COUNT + ") "
+                + groupBySql(HomeEntry.COLUMN_HOME_DELETED + " = 0") + ";");
+    }
+
+    /**
+     * Returns the trigger statements adding the given amount to the counts of the values of
+     * the home referred to by the given prefix, "new" or "old". SQLite before 3.24 has no
+     * upsert, so a count is created empty first if missing, and removed once it drops to 0.
+     */
+    private static String countStatements(String prefix, int amount) {
+        String[][] facets = {
+                { FacetEntry.FACET_COUNTY, countyExpression(prefix + ".") },
+                { FacetEntry.FACET_TYPE, typeExpression(prefix + ".") },
+                { FacetEntry.FACET_INCOME_BAND, incomeBandExpression(prefix + ".") } };
+        StringBuilder statements = new StringBuilder();
+        for (String[] facet : facets) {
+            String where = " WHERE " + FacetEntry.COLUMN_FACET + " = '" + facet[0] + "' AND "
+                    + FacetEntry.COLUMN_FACET_VALUE + " = " + facet[1];
+            if (amount > 0) {
+                statements.append("INSERT OR IGNORE INTO ").append(FacetEntry.TABLE_NAME)
+                        .append(" (").append(FacetEntry.COLUMN_FACET).append(", ")
+                        .append(FacetEntry.COLUMN_FACET_VALUE).append(") VALUES ('")
+                        .append(facet[0]).append("', ").append(facet[1]).append("); ");
+            }
+            statements.append("UPDATE ").append(FacetEntry.TABLE_NAME).append(" SET ")
+                    .append(FacetEntry.COLUMN_FACET_COUNT).append(" = ")
+                    .append(FacetEntry.COLUMN_FACET_COUNT).append(" + (").append(amount)
+                    .append(')').append(where).append("; ");
+            if (amount < 0) {
+                statements.append("DELETE FROM ").append(FacetEntry.TABLE_NAME).append(where)
+                        .append(" AND ").append(FacetEntry.COLUMN_FACET_COUNT)
+                        .append(" <= 0; ");
+            }
+        }
+        return statements.toString();
+    }
+
+    private static String countyExpression(String prefix) {
+        return "IFNULL(" + prefix + HomeEntry.COLUMN_HOME_COUNTY + ", '')";
+    }
+
+    private static String typeExpression(String prefix) {
+        return "CAST(" + prefix + HomeEntry.COLUMN_HOME_TYPE + " AS TEXT)";
+    }
+
+    /**
+     * Returns the SQL expression of the index of the income band, as text.
+     */
+    private static String incomeBandExpression(String prefix) {
+        StringBuilder expression = new StringBuilder("CASE");
+        for (int band = 0; band < FacetEntry.INCOME_BAND_BOUNDS.length; band++) {
+            expression.append(" WHEN ").append(prefix).append(HomeEntry.COLUMN_HOME_INCOME)
+                    .append(" < ").append(FacetEntry.INCOME_BAND_BOUNDS[band])
+                    .append(" THEN '").append(band).append('\'');
+        }
+        return expression.append(" ELSE '").append(FacetEntry.INCOME_BAND_BOUNDS.length)
+                .append("' END").toString();
+    }
+
+    /**
+     * Returns the query counting the homes matching the selection per facet value, with the
+     * facet, value and count columns.
+     */
+    private static String groupBySql(String selection) {
+        String[][] facets = {
+                { FacetEntry.FACET_COUNTY, countyExpression("") },
+                { FacetEntry.FACET_TYPE, typeExpression("") },
+                { FacetEntry.FACET_INCOME_BAND, incomeBandExpression("") } };
+        StringBuilder sql = new StringBuilder();
+        for (String[] facet : facets) {
+            if (sql.length() > 0) {
+                sql.append(" UNION ALL ");
+            }
+            sql.append("SELECT '").append(facet[0]).append("', ").append(facet[1])
+                    .append(", COUNT(*) FROM ").append(HomeEntry.TABLE_NAME)
+                    .append(" WHERE ").append(selection)
+                    .append(" GROUP BY 2");
+        }
+        return sql.toString();
+    }
+
+    /**
+     * Add the counts of the live homes of the database to the given counts, keyed by facet
+     * and then by value.
+     *
+     * @param deletedThroughId the highest id hidden by a pending deletion of all homes, or 0
+     */
+    static void addCounts(SQLiteDatabase db, long deletedThroughId,
+                          Map<String, Map<String, Long>> counts) {
+        Cursor cursor;
+        if (deletedThroughId > 0) {
+            // Only the homes added since are live, a range of the rowid
+            cursor = db.rawQuery(groupBySql(HomeEntry._ID + " > " + deletedThroughId + " AND "
+                    + HomeEntry.COLUMN_HOME_DELETED + " = 0"), null);
+        } else {
+            cursor = db.query(FacetEntry.TABLE_NAME, new String[] {
+                            FacetEntry.COLUMN_FACET,
+                            FacetEntry.COLUMN_FACET_VALUE,
+                            FacetEntry.COLUMN_FACET_COUNT },
+                    FacetEntry.COLUMN_FACET_COUNT + " > 0", null, null, null, null);
+        }
+        try {
+            while (cursor.moveToNext()) {
+                Map<String, Long> values = counts.get(cursor.getString(0));
+                if (values == null) {
+                    continue;
+                }
+                Long count = values.get(cursor.getString(1));
+                values.put(cursor.getString(1), (count == null ? 0 : count) + cursor.getLong(2));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
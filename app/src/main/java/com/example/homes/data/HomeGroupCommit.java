@@ -0,0 +1,275 @@
+package com.example.homes.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Group commit for the writes to one database.
+ *
+ * Every write on its own is a transaction, and committing a transaction waits for the disk.
+ * With many threads writing a row at a time, that wait is what limits the rate. Here the
+ * writes are handed to a single writer thread instead, which gathers the writes that arrive
+ * within a short window and applies them all in one transaction, so they share one commit.
+ * Every caller blocks until the transaction holding its write has committed, so when
+ * {@link #write(Write)} returns the write is as durable as it would have been on its own.
+ *
+ * If a write fails, the transaction of its batch is rolled back, and every write of the batch
+ * is applied again in a transaction of its own, so only the failing write sees the failure.
+ *
+ * The writer thread is started by the first write and goes away after a while without writes.
+ */
+class HomeGroupCommit {
+
+    /** Writes applied in one transaction at most */
+    static final int MAX_BATCH_WRITES = 256;
+
+    /** How long the writer thread waits for writes before it goes away */
+    private static final long KEEP_ALIVE_MILLIS = 30000;
+
+    /**
+     * A write to the database, applied on the writer thread.
+     */
+    interface Write {
+        /**
+         * Apply the write, inside the transaction of its batch. Returns the result for the
+         * caller, e.g. the id of an inserted row or the number of rows updated.
+         */
+        long apply(SQLiteDatabase database);
+    }
+
+    private final HomeDbHelper mDbHelper;
+    private final long mWindowNanos;
+    private final LinkedBlockingQueue<PendingWrite> mQueue = new LinkedBlockingQueue<>();
+
+    /** The writer thread, null while there is none. Guarded by this. */
+    private Thread mWriter;
+
+    private final AtomicLong mBatchCount = new AtomicLong();
+    private final AtomicLong mWriteCount = new AtomicLong();
+
+    /**
+     * @param dbHelper the database to write to
+     * @param windowMillis how long the writer waits for more writes after the first one of a
+     *                     batch. With 0 a batch holds the writes that queued up while the
+     *                     previous batch committed.
+     */
+    HomeGroupCommit(HomeDbHelper dbHelper, long windowMillis) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("Invalid group commit window " + windowMillis);
+        }
+        mDbHelper = dbHelper;
+        mWindowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    }
+
+    /**
+     * Apply the write in the next batch and wait until it has committed. Returns the result of
+     * the write, or throws the exception it failed with.
+     */
+    long write(Write write) {
+        // A thread already in a transaction holds the database, the writer would wait for it
+        // forever. The write becomes part of that transaction instead.
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        if (database.inTransaction()) {
+            return write.apply(database);
+        }
+
+        PendingWrite pending = new PendingWrite(write);
+        synchronized (this) {
+            mQueue.add(pending);
+            if (mWriter == null) {
+                mWriter = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runWriter();
+                    }
+                }, "HomeGroupCommit-" + mDbHelper.getDatabaseName());
+                mWriter.setDaemon(true);
+                mWriter.start();
+            }
+        }
+        return pending.await();
+    }
+
+    long getBatchCount() {
+        return mBatchCount.get();
+    }
+
+    long getWriteCount() {
+        return mWriteCount.get();
+    }
+
+    private void runWriter() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (true) {
+            PendingWrite first;
+            try {
+                first = mQueue.poll(KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                first = null;
+            }
+            if (first == null) {
+                // Go away, unless a write arrived just now
+                synchronized (this) {
+                    if (mQueue.isEmpty()) {
+                        mWriter = null;
+                        return;
+                    }
+                }
+                continue;
+            }
+
+            batch.add(first);
+            gather(batch);
+            commit(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Add the writes arriving within the window to the batch.
+     */
+    private void gather(List<PendingWrite> batch) {
+        long deadline = System.nanoTime() + mWindowNanos;
+        while (batch.size() < MAX_BATCH_WRITES) {
+            PendingWrite next = mQueue.poll();
+            if (next == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return;
+                }
+                try {
+                    next = mQueue.poll(remaining, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (next == null) {
+                    return;
+                }
+            }
+            batch.add(next);
+        }
+    }
+
+    /**
+     * Apply the batch in one transaction. If that fails, apply every write in a transaction
+     * of its own.
+     */
+    private void commit(List<PendingWrite> batch) {
+        mBatchCount.incrementAndGet();
+        mWriteCount.addAndGet(batch.size());
+
+        if (batch.size() > 1) {
+            boolean committed;
+            try {
+                committed = apply(batch);
+            } catch (RuntimeException e) {
+                // E.g. the database can't be opened, every write will tell its caller below
+                committed = false;
+            }
+            if (committed) {
+                for (PendingWrite pending : batch) {
+                    pending.complete();
+                }
+                return;
+            }
+        }
+
+        for (PendingWrite pending : batch) {
+            List<PendingWrite> single = new ArrayList<>(1);
+            single.add(pending);
+            try {
+                if (apply(single)) {
+                    pending.complete();
+                }
+            } catch (RuntimeException e) {
+                pending.fail(e);
+            }
+        }
+    }
+
+    /**
+     * Apply the writes in one transaction. Returns whether it committed. With a single
+     * write, its failure is thrown instead.
+     */
+    private boolean apply(List<PendingWrite> writes) {
+        RuntimeException failure = null;
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            for (PendingWrite pending : writes) {
+                pending.mResult = pending.mWrite.apply(database);
+            }
+            database.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            failure = e;
+        } finally {
+            try {
+                database.endTransaction();
+            } catch (RuntimeException e) {
+                // The commit itself failed
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+
+        if (failure != null && writes.size() == 1) {
+            throw failure;
+        }
+        return failure == null;
+    }
+
+    /**
+     * A write waiting for the commit of its batch.
+     */
+    private static final class PendingWrite {
+        final Write mWrite;
+        final CountDownLatch mDone = new CountDownLatch(1);
+
+        /** Set on the writer thread, read by the caller once {@link #mDone} opened */
+        long mResult;
+        RuntimeException mFailure;
+
+        PendingWrite(Write write) {
+            mWrite = write;
+        }
+
+        void complete() {
+            mDone.countDown();
+        }
+
+        void fail(RuntimeException failure) {
+            mFailure = failure;
+            mDone.countDown();
+        }
+
+        /**
+         * Wait for the commit. An interrupt doesn't stop the wait, the write may commit
+         * anyway, so the caller has to learn how it went.
+         */
+        long await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mDone.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (mFailure != null) {
+                throw mFailure;
+            }
+            return mResult;
+        }
+    }
+}
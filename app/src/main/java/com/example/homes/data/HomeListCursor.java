@@ -0,0 +1,449 @@
+package com.example.homes.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.util.Log;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-only cursor for the list of homes in the catalog, holding its rows in windows of
+ * primitive arrays instead of the generic cursor window of SQLite.
+ *
+ * The rows are copied from the query cursor one window of a few hundred rows at a time: the
+ * integer columns into a long[] each, the text columns into a String[] each whose values come
+ * from a string pool, so the county shared by thousands of homes is one String. Reading a row
+ * is then an array access with no type conversion, which is what the list binds on the UI
+ * thread. Only a few windows around the current position are kept.
+ *
+ * When the position comes within a quarter window of the end of its window, the next window
+ * (or the previous one, when moving back) is copied on a background thread, so scrolling at a
+ * steady pace never waits for a copy. Jumping far away still copies on the calling thread.
+ *
+ * A result of at most {@link #MAX_RESIDENT_WINDOWS} windows is copied completely once its
+ * last window is, so the query cursor is closed then. A longer one keeps it open, to copy the
+ * windows that were let go again.
+ *
+ * Only the columns of the list are supported, see {@link #supports(String[])}.
+ */
+class HomeListCursor extends AbstractCursor {
+
+    private static final String LOG_TAG = HomeListCursor.class.getSimpleName();
+
+    /** Rows per window unless the query asks for another size */
+    static final int DEFAULT_WINDOW_ROWS = 256;
+
+    /** Bounds of the window size that can be asked for */
+    static final int MIN_WINDOW_ROWS = 16;
+    static final int MAX_WINDOW_ROWS = 4096;
+
+    /** Windows kept at most: the ones on screen, and the one being prefetched */
+    static final int MAX_RESIDENT_WINDOWS = 4;
+
+    /** Strings pooled at most, later new values are kept as they are */
+    private static final int MAX_POOLED_STRINGS = 4096;
+
+    /** Columns stored as long[], they are all NOT NULL in the table */
+    private static final Set<String> LONG_COLUMNS = new HashSet<>(Arrays.asList(
+            HomeEntry._ID,
+            HomeEntry.COLUMN_HOME_TYPE,
+            HomeEntry.COLUMN_HOME_INCOME,
+            HomeEntry.COLUMN_HOME_PHOTO_VERSION,
+            HomeEntry.COLUMN_HOME_VERSION));
+
+    /** Columns stored as String[] */
+    private static final Set<String> STRING_COLUMNS = new HashSet<>(Arrays.asList(
+            HomeEntry.COLUMN_HOME_ADDRESS,
+            HomeEntry.COLUMN_HOME_COUNTY));
+
+    /**
+     * Single thread copying the windows ahead of the list, shared by every cursor. It goes
+     * away after a while without work.
+     */
+    private static final ThreadPoolExecutor sPrefetchExecutor;
+
+    static {
+        sPrefetchExecutor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "HomeListCursor-prefetch");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        sPrefetchExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final String[] mColumnNames;
+    private final boolean[] mLongColumns;
+    private final int mCount;
+    private final int mWindowRows;
+    private final int mWindowCount;
+    private final int mPrefetchDistance;
+    private final Executor mPrefetchExecutor;
+
+    /** The query cursor, only used while holding its own lock */
+    private final Cursor mSource;
+
+    /** Whether every row was copied and the source closed, guarded by {@link #mSource} */
+    private boolean mSourceClosed;
+
+    /** Pool of the strings copied so far, only used while holding the lock of the source */
+    private final Map<String, String> mStringPool = new HashMap<>();
+
+    /** Resident windows by index, least recently used first, guarded by itself */
+    private final LinkedHashMap<Integer, Window> mWindows =
+            new LinkedHashMap<Integer, Window>(MAX_RESIDENT_WINDOWS * 2, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Window> eldest) {
+                    return size() > MAX_RESIDENT_WINDOWS;
+                }
+            };
+
+    /** Windows being prefetched, guarded by {@link #mWindows} */
+    private final Set<Integer> mPending = new HashSet<>();
+
+    /** Window of the current row, and the row in it */
+    private Window mCurrent;
+    private int mRow;
+
+    /** Windows the caller had to wait for, guarded by {@link #mWindows} */
+    private int mSynchronousLoadCount;
+
+    private volatile boolean mClosed;
+
+    /**
+     * Wrap the result of a query on homes, copying its first window right away.
+     *
+     * @param source the result, with columns that {@link #supports(String[])}
+     * @param windowRows the number of rows per window, see {@link #checkWindowRows(int)}
+     */
+    HomeListCursor(Cursor source, int windowRows) {
+        this(source, windowRows, sPrefetchExecutor);
+    }
+
+    HomeListCursor(Cursor source, int windowRows, Executor prefetchExecutor) {
+        checkWindowRows(windowRows);
+        mSource = source;
+        mColumnNames = source.getColumnNames();
+        mLongColumns = new boolean[mColumnNames.length];
+        for (int i = 0; i < mColumnNames.length; i++) {
+            mLongColumns[i] = LONG_COLUMNS.contains(mColumnNames[i]);
+        }
+        mCount = source.getCount();
+        mWindowRows = windowRows;
+        mWindowCount = (mCount + windowRows - 1) / windowRows;
+        mPrefetchDistance = windowRows / 4;
+        mPrefetchExecutor = prefetchExecutor;
+
+        // The query runs on a background thread already, copy what the list shows first there
+        if (mCount > 0) {
+            loadWindow(0);
+        } else {
+            synchronized (mSource) {
+                closeSource();
+            }
+        }
+    }
+
+    /**
+     * Checks that a window size is within {@link #MIN_WINDOW_ROWS} and
+     * {@link #MAX_WINDOW_ROWS}.
+     */
+    static void checkWindowRows(int windowRows) {
+        if (windowRows < MIN_WINDOW_ROWS || windowRows > MAX_WINDOW_ROWS) {
+            throw new IllegalArgumentException("Window size must be between " + MIN_WINDOW_ROWS
+                    + " and " + MAX_WINDOW_ROWS + " rows, not " + windowRows);
+        }
+    }
+
+    /**
+     * Whether the cursor can hold the result of a query with the given projection.
+     */
+    static boolean supports(String[] projection) {
+        if (projection == null || projection.length == 0) {
+            return false;
+        }
+        for (String column : projection) {
+            if (!LONG_COLUMNS.contains(column) && !STRING_COLUMNS.contains(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of windows that were not resident when a row of them was needed, so
+     * the caller copied them itself. The first window doesn't count.
+     */
+    int getSynchronousLoadCount() {
+        synchronized (mWindows) {
+            return mSynchronousLoadCount;
+        }
+    }
+
+    /**
+     * Returns whether every row was copied, so the query cursor is closed already.
+     */
+    boolean isSourceClosed() {
+        synchronized (mSource) {
+            return mSourceClosed;
+        }
+    }
+
+    private Window getResidentWindow(int index) {
+        synchronized (mWindows) {
+            return mWindows.get(index);
+        }
+    }
+
+    /**
+     * Returns the window with the given index, copying it from the source unless it's
+     * resident. Waits for a prefetch of the same window that is already copying it.
+     */
+    private Window loadWindow(int index) {
+        synchronized (mSource) {
+            Window window = getResidentWindow(index);
+            if (window != null) {
+                return window;
+            }
+            if (mClosed || mSourceClosed) {
+                throw new IllegalStateException("Cursor is closed");
+            }
+
+            int start = index * mWindowRows;
+            int count = Math.min(mWindowRows, mCount - start);
+            window = new Window(start, count, mLongColumns);
+            for (int row = 0; row < count; row++) {
+                if (!mSource.moveToPosition(start + row)) {
+                    throw new IllegalStateException("Row " + (start + row) + " of " + mCount
+                            + " is missing");
+                }
+                for (int column = 0; column < mLongColumns.length; column++) {
+                    if (mLongColumns[column]) {
+                        window.mLongs[column][row] = mSource.getLong(column);
+                    } else {
+                        window.mStrings[column][row] = pool(mSource.getString(column));
+                    }
+                }
+            }
+
+            boolean copied;
+            synchronized (mWindows) {
+                mWindows.put(index, window);
+                // None is let go before the last one is copied if they all fit
+                copied = mWindows.size() == mWindowCount;
+            }
+            if (copied) {
+                closeSource();
+            }
+            return window;
+        }
+    }
+
+    /**
+     * Close the query cursor, while holding its lock.
+     */
+    private void closeSource() {
+        if (!mSourceClosed) {
+            mSourceClosed = true;
+            mSource.close();
+        }
+    }
+
+    private String pool(String value) {
+        if (value == null) {
+            return null;
+        }
+        String pooled = mStringPool.get(value);
+        if (pooled != null) {
+            return pooled;
+        }
+        if (mStringPool.size() < MAX_POOLED_STRINGS) {
+            mStringPool.put(value, value);
+        }
+        return value;
+    }
+
+    /**
+     * Copy the window with the given index on the background thread, unless it's resident,
+     * already on its way or out of range.
+     */
+    private void prefetch(final int index) {
+        if (index < 0 || (long) index * mWindowRows >= mCount) {
+            return;
+        }
+        synchronized (mWindows) {
+            if (mWindows.containsKey(index) || !mPending.add(index)) {
+                return;
+            }
+        }
+        mPrefetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!mClosed) {
+                        loadWindow(index);
+                    }
+                } catch (RuntimeException e) {
+                    // The cursor may have been closed meanwhile, the caller will copy the
+                    // window itself if it still needs it
+                    Log.w(LOG_TAG, "Prefetch of window " + index + " failed", e);
+                } finally {
+                    synchronized (mWindows) {
+                        mPending.remove(index);
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        int index = newPosition / mWindowRows;
+        Window window = mCurrent != null && mCurrent.mStart == index * mWindowRows
+                ? mCurrent : getResidentWindow(index);
+        if (window == null) {
+            synchronized (mWindows) {
+                mSynchronousLoadCount++;
+            }
+            window = loadWindow(index);
+        }
+        mCurrent = window;
+        mRow = newPosition - window.mStart;
+
+        // Copy the window the list is heading into before it gets there
+        if (newPosition > oldPosition && window.mCount - mRow <= mPrefetchDistance) {
+            prefetch(index + 1);
+        } else if (newPosition < oldPosition && mRow < mPrefetchDistance) {
+            prefetch(index - 1);
+        }
+        return true;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public int getType(int column) {
+        if (mLongColumns[column]) {
+            return FIELD_TYPE_INTEGER;
+        }
+        return mCurrent.mStrings[column][mRow] == null ? FIELD_TYPE_NULL : FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public String getString(int column) {
+        if (mLongColumns[column]) {
+            return Long.toString(mCurrent.mLongs[column][mRow]);
+        }
+        return mCurrent.mStrings[column][mRow];
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        if (mLongColumns[column]) {
+            return mCurrent.mLongs[column][mRow];
+        }
+        // Like SQLite, text that isn't a number reads as 0
+        String value = mCurrent.mStrings[column][mRow];
+        try {
+            return value == null ? 0 : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        if (mLongColumns[column]) {
+            return mCurrent.mLongs[column][mRow];
+        }
+        String value = mCurrent.mStrings[column][mRow];
+        try {
+            return value == null ? 0 : Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return !mLongColumns[column] && mCurrent.mStrings[column][mRow] == null;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        mClosed = true;
+        synchronized (mSource) {
+            closeSource();
+        }
+        synchronized (mWindows) {
+            mWindows.clear();
+        }
+    }
+
+    /**
+     * Consecutive rows of the result, one array per column.
+     */
+    private static final class Window {
+        final int mStart;
+        final int mCount;
+
+        /** Values of the integer columns, null for the text columns */
+        final long[][] mLongs;
+
+        /** Values of the text columns, null for the integer columns */
+        final String[][] mStrings;
+
+        Window(int start, int count, boolean[] longColumns) {
+            mStart = start;
+            mCount = count;
+            mLongs = new long[longColumns.length][];
+            mStrings = new String[longColumns.length][];
+            for (int column = 0; column < longColumns.length; column++) {
+                if (longColumns[column]) {
+                    mLongs[column] = new long[count];
+                } else {
+                    mStrings[column] = new String[count];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package com.example.homes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A query on homes whose subscribers get the initial result, and then only what changed as
+ * {@link HomeProvider} commits writes, as {@link HomeDelta}s.
+ *
+ * For example, the homes in a county with an income over 1000:
+ *
+ * <pre>
+ * HomeLiveQuery query = new HomeLiveQuery(getContentResolver(),
+ *         new String[] { HomeEntry.COLUMN_HOME_ADDRESS, HomeEntry.COLUMN_HOME_INCOME },
+ *         HomeEntry.COLUMN_HOME_COUNTY + "=? AND " + HomeEntry.COLUMN_HOME_INCOME + "&gt;?",
+ *         new String[] { "Springfield", "1000" });
+ * query.setMinIntervalMillis(500);
+ * HomeLiveQuery.Subscription subscription = query.subscribe(listener);
+ * ...
+ * subscription.cancel();
+ * </pre>
+ *
+ * The provider tells the live queries of its process which homes every write touched. A
+ * subscription then queries just those homes with its selection, and compares them with the
+ * rows it already delivered: the result is never queried again in full, unless a write
+ * touched homes it can't name, like a delete by selection.
+ *
+ * Subscribers are never flooded: a subscription has at most one delta on its way. Writes
+ * arriving while the subscriber is still handling a delta, or within the minimum interval
+ * after it, are collected and delivered as one delta once it's ready for the next. A slow
+ * subscriber gets fewer, bigger deltas, and the memory held for it stays bounded by the size
+ * of its result.
+ *
+ * The deltas are computed on a background thread, and delivered on the thread of the
+ * given handler.
+ */
+public final class HomeLiveQuery {
+
+    private static final String LOG_TAG = HomeLiveQuery.class.getSimpleName();
+
+    /** Ids per query when querying the homes touched by writes, within SQLite's 999 arguments */
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    /**
+     * Receives the deltas of a subscription.
+     */
+    public interface Listener {
+        /**
+         * Called on the thread of the subscription's handler, with the initial result first.
+         * The next delta is only computed once this returns.
+         */
+        void onDelta(HomeDelta delta);
+    }
+
+    /** The open subscriptions of the process, told about every write of the provider */
+    private static final CopyOnWriteArrayList<Subscription> sSubscriptions =
+            new CopyOnWriteArrayList<>();
+
+    /** Single thread computing the deltas of every subscription */
+    private static final ScheduledThreadPoolExecutor sExecutor;
+
+    static {
+        sExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, LOG_TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sExecutor.setKeepAliveTime(30, TimeUnit.SECONDS);
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final ContentResolver mResolver;
+    private final ScheduledExecutorService mExecutor;
+    private final String[] mProjection;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private long mMinIntervalMillis;
+
+    /**
+     * @param resolver the resolver to query the homes with
+     * @param projection the columns of the rows to deliver, or null for all of them. The _ID
+     *                   is added if missing.
+     * @param selection the homes to deliver, as for a query on {@link HomeEntry#CONTENT_URI}
+     * @param selectionArgs the arguments of the selection
+     */
+    public HomeLiveQuery(ContentResolver resolver, String[] projection, String selection,
+                         String[] selectionArgs) {
+        this(resolver, projection, selection, selectionArgs, sExecutor);
+    }
+
+    HomeLiveQuery(ContentResolver resolver, String[] projection, String selection,
+                  String[] selectionArgs, ScheduledExecutorService executor) {
+        mResolver = resolver;
+        mExecutor = executor;
+        if (projection != null && !Arrays.asList(projection).contains(HomeEntry._ID)) {
+            projection = Arrays.copyOf(projection, projection.length + 1);
+            projection[projection.length - 1] = HomeEntry._ID;
+        }
+        mProjection = projection;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs == null ? new String[0] : selectionArgs;
+    }
+
+    /**
+     * Set the shortest time between two deltas of a subscription, 0 by default. The writes
+     * of a burst within the interval are delivered as one delta. Applies to the
+     * subscriptions made afterwards.
+     */
+    public HomeLiveQuery setMinIntervalMillis(long minIntervalMillis) {
+        if (minIntervalMillis < 0) {
+            throw new IllegalArgumentException("Invalid interval " + minIntervalMillis);
+        }
+        mMinIntervalMillis = minIntervalMillis;
+        return this;
+    }
+
+    /**
+     * Subscribe to the query, delivering the deltas on the main thread.
+     */
+    public Subscription subscribe(Listener listener) {
+        return subscribe(listener, new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * Subscribe to the query, delivering the deltas on the thread of the handler.
+     */
+    public Subscription subscribe(Listener listener, Handler handler) {
+        Subscription subscription = new Subscription(this, mMinIntervalMillis, listener, handler);
+        sSubscriptions.add(subscription);
+        subscription.onWrite(null);
+        return subscription;
+    }
+
+    /**
+     * Tell the subscriptions that a write touched the home with the given id. Called by the
+     * provider once the write has committed.
+     */
+    static void publishChange(long id) {
+        if (sSubscriptions.isEmpty()) {
+            return;
+        }
+        List<Long> ids = new ArrayList<>(1);
+        ids.add(id);
+        for (Subscription subscription : sSubscriptions) {
+            subscription.onWrite(ids);
+        }
+    }
+
+    /**
+     * Tell the subscriptions that a write touched homes it can't name. Called by the provider
+     * once the write has committed.
+     */
+    static void publishChangeAll() {
+        for (Subscription subscription : sSubscriptions) {
+            subscription.onWrite(null);
+        }
+    }
+
+    /**
+     * Query the homes matching the selection, all of them or only those with the given ids.
+     */
+    private List<ContentValues> query(Collection<Long> ids) {
+        List<ContentValues> rows = new ArrayList<>();
+        if (ids == null) {
+            readRows(mResolver.query(HomeEntry.CONTENT_URI, mProjection, mSelection,
+                    mSelectionArgs, null), rows);
+            return rows;
+        }
+
+        List<Long> remaining = new ArrayList<>(ids);
+        int chunkSize = Math.max(1, MAX_IDS_PER_QUERY - mSelectionArgs.length);
+        for (int start = 0; start < remaining.size(); start += chunkSize) {
+            List<Long> chunk = remaining.subList(start, Math.min(remaining.size(), start + chunkSize));
+            StringBuilder selection = new StringBuilder(HomeEntry._ID).append(" IN (");
+            String[] selectionArgs = new String[chunk.size() + mSelectionArgs.length];
+            for (int i = 0; i < chunk.size(); i++) {
+                selection.append(i == 0 ? "?" : ",?");
+                selectionArgs[i] = String.valueOf(chunk.get(i));
+            }
+            selection.append(')');
+            if (mSelection != null) {
+                selection.append(" AND (").append(mSelection).append(')');
+            }
+            System.arraycopy(mSelectionArgs, 0, selectionArgs, chunk.size(), mSelectionArgs.length);
+            readRows(mResolver.query(HomeEntry.CONTENT_URI, mProjection, selection.toString(),
+                    selectionArgs, null), rows);
+        }
+        return rows;
+    }
+
+    private static void readRows(Cursor cursor, List<ContentValues> rows) {
+        if (cursor == null) {
+            return;
+        }
+        try {
+            String[] columns = cursor.getColumnNames();
+            while (cursor.moveToNext()) {
+                ContentValues row = new ContentValues(columns.length);
+                for (int i = 0; i < columns.length; i++) {
+                    switch (cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_NULL:
+                            row.putNull(columns[i]);
+                            break;
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row.put(columns[i], cursor.getLong(i));
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            row.put(columns[i], cursor.getDouble(i));
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            row.put(columns[i], cursor.getBlob(i));
+                            break;
+                        default:
+                            row.put(columns[i], cursor.getString(i));
+                    }
+                }
+                rows.add(row);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Compare the queried rows with the rows delivered so far, and update those to match.
+     *
+     * @param known the rows delivered so far by id, updated in place
+     * @param checkedIds the ids that were queried, or null if the whole result was
+     * @param rows the rows that were queried
+     */
+    static HomeDelta diff(boolean initial, Map<Long, ContentValues> known,
+                          Collection<Long> checkedIds, List<ContentValues> rows) {
+        List<ContentValues> added = new ArrayList<>();
+        List<ContentValues> changed = new ArrayList<>();
+        List<Long> removedIds = new ArrayList<>();
+
+        Set<Long> found = new HashSet<>();
+        for (ContentValues row : rows) {
+            long id = row.getAsLong(HomeEntry._ID);
+            found.add(id);
+            ContentValues previous = known.put(id, row);
+            if (previous == null) {
+                added.add(row);
+            } else if (!previous.equals(row)) {
+                changed.add(row);
+            }
+        }
+
+        Iterator<Long> candidates = (checkedIds == null ? known.keySet() : checkedIds).iterator();
+        List<Long> gone = new ArrayList<>();
+        while (candidates.hasNext()) {
+            long id = candidates.next();
+            if (!found.contains(id) && known.containsKey(id)) {
+                gone.add(id);
+            }
+        }
+        for (long id : gone) {
+            known.remove(id);
+            removedIds.add(id);
+        }
+        return new HomeDelta(initial, added, changed, removedIds);
+    }
+
+    /**
+     * A subscriber of a live query.
+     */
+    public static final class Subscription {
+        private final HomeLiveQuery mQuery;
+        private final long mMinIntervalMillis;
+        private final Listener mListener;
+        private final Handler mHandler;
+
+        /** The rows delivered so far by id, only used by the delta computation */
+        private final Map<Long, ContentValues> mKnown = new HashMap<>();
+
+        // Guarded by this
+        /** Ids touched by writes since the last delta, unless all homes need a look */
+        private final Set<Long> mDirtyIds = new HashSet<>();
+        private boolean mDirtyAll;
+        /** Whether a delta computation is scheduled, or a delta on its way to the listener */
+        private boolean mScheduled;
+        private boolean mInFlight;
+        private boolean mDelivered;
+        private long mLastDeliveryMillis;
+        private boolean mCancelled;
+
+        private Subscription(HomeLiveQuery query, long minIntervalMillis, Listener listener,
+                             Handler handler) {
+            mQuery = query;
+            mMinIntervalMillis = minIntervalMillis;
+            mListener = listener;
+            mHandler = handler;
+        }
+
+        /**
+         * Stop the deltas. A delta already on its way to the listener is dropped.
+         */
+        public void cancel() {
+            synchronized (this) {
+                mCancelled = true;
+                mDirtyIds.clear();
+            }
+            sSubscriptions.remove(this);
+        }
+
+        /**
+         * Note the ids a write touched, or null for all homes, and schedule the next delta
+         * unless one is already coming.
+         */
+        synchronized void onWrite(List<Long> ids) {
+            if (mCancelled) {
+                return;
+            }
+            if (ids == null) {
+                mDirtyAll = true;
+                mDirtyIds.clear();
+            } else if (!mDirtyAll) {
+                mDirtyIds.addAll(ids);
+            }
+            scheduleLocked();
+        }
+
+        private void scheduleLocked() {
+            if (mScheduled || mInFlight || mCancelled || (!mDirtyAll && mDirtyIds.isEmpty())) {
+                return;
+            }
+            mScheduled = true;
+            long delay = mDelivered
+                    ? mLastDeliveryMillis + mMinIntervalMillis - SystemClock.uptimeMillis() : 0;
+            mQuery.mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    compute();
+                }
+            }, Math.max(0, delay), TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Compute the delta of the writes noted so far, on the background thread.
+         */
+        private void compute() {
+            List<Long> ids;
+            boolean initial;
+            synchronized (this) {
+                mScheduled = false;
+                if (mCancelled) {
+                    return;
+                }
+                ids = mDirtyAll ? null : new ArrayList<>(mDirtyIds);
+                initial = !mDelivered;
+                mDirtyAll = false;
+                mDirtyIds.clear();
+                mInFlight = true;
+            }
+
+            final HomeDelta delta;
+            try {
+                delta = diff(initial, mKnown, ids, mQuery.query(ids));
+            } catch (RuntimeException e) {
+                // Try again with the next write, as a look at every home
+                Log.e(LOG_TAG, "Failed to compute the delta of " + mQuery.mSelection, e);
+                synchronized (this) {
+                    mInFlight = false;
+                    mDirtyAll = true;
+                }
+                return;
+            }
+
+            if (delta.isEmpty() && !initial) {
+                // The writes didn't touch the result, there is nothing to deliver
+                synchronized (this) {
+                    mInFlight = false;
+                    scheduleLocked();
+                }
+                return;
+            }
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(delta);
+                }
+            });
+        }
+
+        private void deliver(HomeDelta delta) {
+            synchronized (this) {
+                if (mCancelled) {
+                    return;
+                }
+            }
+            try {
+                mListener.onDelta(delta);
+            } finally {
+                // Only now is the subscriber ready for the next delta
+                synchronized (this) {
+                    mInFlight = false;
+                    mDelivered = true;
+                    mLastDeliveryMillis = SystemClock.uptimeMillis();
+                    scheduleLocked();
+                }
+            }
+        }
+    }
+}
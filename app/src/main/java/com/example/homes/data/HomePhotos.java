@@ -0,0 +1,444 @@
+package com.example.homes.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.util.Log;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Files of the photos of the homes and of their thumbnails.
+ *
+ * A photo is kept as a file named after the id of its home in the photos directory of the app,
+ * never in the database: a blob of a few megabytes would be copied through the cursor window
+ * and the write-ahead log on every read and write. The database only holds the version of the
+ * photo, see {@link HomeEntry#COLUMN_HOME_PHOTO_VERSION}.
+ *
+ * A photo is written through a pipe: the caller gets the write end and a background thread
+ * copies the other end into a temporary file, checks that it decodes as an image and then
+ * renames it into place, so readers never see half a photo. The thumbnail shown by the list
+ * is generated right away, so it is ready by the time the list asks for it.
+ *
+ * Thumbnails of any other size are generated on demand, on the thread asking for them, and
+ * kept in a {@link HomeThumbnailCache} in the cache directory of the app.
+ */
+final class HomePhotos {
+
+    private static final String LOG_TAG = HomePhotos.class.getSimpleName();
+
+    /** Directory of the photos, in the files directory of the app */
+    static final String PHOTOS_DIRECTORY = "photos";
+
+    /** Directory of the thumbnails, in the cache directory of the app */
+    static final String THUMBNAILS_DIRECTORY = "thumbnails";
+
+    /** Largest photo accepted, larger writes are dropped */
+    static final long MAX_PHOTO_BYTES = 20L * 1024 * 1024;
+
+    /** Bounds of the size of a thumbnail, in pixels */
+    static final int MIN_THUMBNAIL_SIZE = 16;
+    static final int MAX_THUMBNAIL_SIZE = 1024;
+
+    /** Bytes of thumbnails kept on disk, about a thousand list thumbnails */
+    static final long THUMBNAIL_CACHE_BYTES = 32L * 1024 * 1024;
+
+    /** Quality of the JPEG compression of the thumbnails */
+    private static final int THUMBNAIL_QUALITY = 85;
+
+    /** Suffix of the photos being written */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** Age after which a photo still being written was left by a process that went away */
+    private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000;
+
+    /** Delay of the sweep for orphaned photos after startup, once the app has settled */
+    private static final long SWEEP_DELAY_MILLIS = 60 * 1000;
+
+    /**
+     * Threads copying the photos written through a pipe into their files, shared by every
+     * provider. They go away after a while without work.
+     */
+    private static final ThreadPoolExecutor sWriteExecutor;
+
+    static {
+        sWriteExecutor = new ThreadPoolExecutor(2, 2, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                // Decoding and compressing shouldn't take the CPU from the UI
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "HomePhotos-write");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        sWriteExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Receives the new version of a photo, 0 once it is deleted, so the database can follow.
+     */
+    interface Listener {
+        void onPhotoChanged(long id, long version);
+    }
+
+    private final File mPhotoDirectory;
+    private final HomeThumbnailCache mThumbnails;
+    private final int mListThumbnailSize;
+    private final HomeShards mShards;
+    private final HomeDbMaintenance mMaintenance;
+    private final Listener mListener;
+
+    /**
+     * @param listThumbnailSize size of the thumbnails shown by the list, generated ahead
+     */
+    HomePhotos(Context context, HomeShards shards, HomeDbMaintenance maintenance,
+               int listThumbnailSize, Listener listener) {
+        this(new File(context.getFilesDir(), PHOTOS_DIRECTORY),
+                new HomeThumbnailCache(new File(context.getCacheDir(), THUMBNAILS_DIRECTORY),
+                        THUMBNAIL_CACHE_BYTES),
+                shards, maintenance, listThumbnailSize, listener);
+    }
+
+    HomePhotos(File photoDirectory, HomeThumbnailCache thumbnails, HomeShards shards,
+               HomeDbMaintenance maintenance, int listThumbnailSize, Listener listener) {
+        mPhotoDirectory = photoDirectory;
+        mThumbnails = thumbnails;
+        mShards = shards;
+        mMaintenance = maintenance;
+        mListThumbnailSize = listThumbnailSize;
+        mListener = listener;
+    }
+
+    HomeThumbnailCache getThumbnails() {
+        return mThumbnails;
+    }
+
+    private File getPhotoFile(long id) {
+        return new File(mPhotoDirectory, String.valueOf(id));
+    }
+
+    /**
+     * Open the photo of the given home for reading.
+     */
+    ParcelFileDescriptor openPhoto(long id) throws FileNotFoundException {
+        File photo = getPhotoFile(id);
+        if (!photo.exists()) {
+            throw new FileNotFoundException("No photo for home " + id);
+        }
+        return ParcelFileDescriptor.open(photo, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * Returns the write end of a pipe replacing the photo of the given home once it is closed.
+     * A write that isn't an image, or is larger than {@link #MAX_PHOTO_BYTES}, is dropped.
+     */
+    ParcelFileDescriptor openPhotoForWrite(final long id) throws FileNotFoundException {
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            FileNotFoundException exception =
+                    new FileNotFoundException("Cannot open a pipe for the photo of home " + id);
+            exception.initCause(e);
+            throw exception;
+        }
+        sWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]);
+                try {
+                    writePhoto(id, in);
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Dropped the photo written for home " + id, e);
+                } finally {
+                    closeQuietly(in);
+                }
+            }
+        });
+        return pipe[1];
+    }
+
+    /**
+     * Replace the photo of the given home with the image read from the stream, and return its
+     * version. Runs on the calling thread, {@link #openPhotoForWrite} calls it in the
+     * background.
+     *
+     * @throws IOException if the stream failed, isn't an image, or is too large
+     */
+    long writePhoto(long id, InputStream in) throws IOException {
+        if (!mPhotoDirectory.isDirectory() && !mPhotoDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + mPhotoDirectory);
+        }
+        File temp = File.createTempFile(id + "-", TEMP_SUFFIX, mPhotoDirectory);
+        try {
+            copy(in, temp, MAX_PHOTO_BYTES);
+
+            // Only decode the header, an image that can't be read would only fail later when
+            // every list scrolling by tries to make a thumbnail of it
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(temp.getPath(), options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                throw new IOException("The photo of home " + id + " is not an image");
+            }
+
+            long version;
+            synchronized (this) {
+                File photo = getPhotoFile(id);
+                if (!temp.renameTo(photo)) {
+                    throw new IOException("Cannot rename " + temp + " to " + photo);
+                }
+                version = System.currentTimeMillis();
+                // The thumbnails of the previous photo are named after its modification time,
+                // and would only go once they are the least recently used
+                mThumbnails.removeAll(thumbnailPrefix(id));
+            }
+            mListener.onPhotoChanged(id, version);
+
+            if (mListThumbnailSize > 0) {
+                try {
+                    getThumbnail(id, mListThumbnailSize);
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Failed to make the list thumbnail of home " + id, e);
+                }
+            }
+            return version;
+        } finally {
+            // Still there if anything failed
+            temp.delete();
+        }
+    }
+
+    /**
+     * Delete the photo of the given home and its thumbnails. Returns whether there was one.
+     */
+    synchronized boolean deletePhoto(long id) {
+        mThumbnails.removeAll(thumbnailPrefix(id));
+        return getPhotoFile(id).delete();
+    }
+
+    /**
+     * Open a thumbnail of the given size of the photo of the given home for reading,
+     * generating it if it isn't cached yet.
+     */
+    ParcelFileDescriptor openThumbnail(long id, int size) throws FileNotFoundException {
+        File thumbnail;
+        try {
+            thumbnail = getThumbnail(id, size);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            FileNotFoundException exception =
+                    new FileNotFoundException("Cannot make a thumbnail of home " + id);
+            exception.initCause(e);
+            throw exception;
+        }
+        return ParcelFileDescriptor.open(thumbnail, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * Returns the file of the thumbnail of the given size of the photo of the given home,
+     * generating it on the calling thread if it isn't cached yet.
+     */
+    File getThumbnail(long id, int size) throws IOException {
+        if (size < MIN_THUMBNAIL_SIZE || size > MAX_THUMBNAIL_SIZE) {
+            throw new IllegalArgumentException("Thumbnail size must be from "
+                    + MIN_THUMBNAIL_SIZE + " to " + MAX_THUMBNAIL_SIZE + ": " + size);
+        }
+        File photo = getPhotoFile(id);
+        long modified = photo.lastModified();
+        if (modified == 0) {
+            throw new FileNotFoundException("No photo for home " + id);
+        }
+
+        // Named after the modification time of the photo, so a thumbnail generated from the
+        // previous photo while it was being replaced is never served
+        String name = thumbnailPrefix(id) + modified + "_" + size + ".jpg";
+        File thumbnail = mThumbnails.get(name);
+        if (thumbnail != null) {
+            return thumbnail;
+        }
+
+        Bitmap bitmap = decodeThumbnail(photo, size);
+        if (bitmap == null) {
+            throw new IOException("Cannot decode the photo of home " + id);
+        }
+        File temp = mThumbnails.createTempFile();
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        } finally {
+            bitmap.recycle();
+        }
+        return mThumbnails.put(name, temp);
+    }
+
+    private static String thumbnailPrefix(long id) {
+        return id + "_";
+    }
+
+    /**
+     * Decode the given image into a square bitmap of the given size, cropped from its center.
+     * The image is subsampled while decoding, so a photo of many megapixels never needs more
+     * memory than a few times the thumbnail. Returns null if it can't be decoded.
+     */
+    static Bitmap decodeThumbnail(File image, int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(image.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        // The largest power of 2 keeping the short side at least as large as the thumbnail
+        int shortSide = Math.min(options.outWidth, options.outHeight);
+        int sampleSize = 1;
+        while (shortSide / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        Bitmap decoded = BitmapFactory.decodeFile(image.getPath(), options);
+        if (decoded == null) {
+            return null;
+        }
+
+        int side = Math.min(decoded.getWidth(), decoded.getHeight());
+        Bitmap cropped = Bitmap.createBitmap(decoded, (decoded.getWidth() - side) / 2,
+                (decoded.getHeight() - side) / 2, side, side);
+        if (cropped != decoded) {
+            decoded.recycle();
+        }
+        if (side == size) {
+            return cropped;
+        }
+        Bitmap scaled = Bitmap.createScaledBitmap(cropped, size, size, true);
+        if (scaled != cropped) {
+            cropped.recycle();
+        }
+        return scaled;
+    }
+
+    /**
+     * Sweep the photos left behind on the background thread of the data layer, once the app
+     * has settled.
+     */
+    void scheduleSweep() {
+        mMaintenance.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep();
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to sweep the photos", e);
+                }
+            }
+        }, SWEEP_DELAY_MILLIS);
+    }
+
+    /**
+     * Delete the photos of the homes that were purged, and the photos left half written by a
+     * process that went away. Photos of homes that are deleted but can still be undone are
+     * kept. Returns the number of files deleted.
+     */
+    int sweep() {
+        File[] files = mPhotoDirectory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int deleted = 0;
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                if (now - file.lastModified() > STALE_TEMP_MILLIS && file.delete()) {
+                    deleted++;
+                }
+                continue;
+            }
+            long id;
+            try {
+                id = Long.parseLong(name);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (!homeExists(id) && deletePhoto(id)) {
+                Log.v(LOG_TAG, "Deleted the photo of purged home " + id);
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Whether the given home is still in its table, live or deleted.
+     */
+    private boolean homeExists(long id) {
+        SQLiteDatabase database = mShards.getDbHelper(mShards.shardOfId(id)).getReadableDatabase();
+        Cursor cursor = database.query(HomeEntry.TABLE_NAME, new String[] { HomeEntry._ID },
+                HomeEntry._ID + "=?", new String[] { String.valueOf(id) }, null, null, null);
+        try {
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Copy the stream into the file, failing once more than the given bytes were read.
+     */
+    private static void copy(InputStream in, File file, long maxBytes) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            long total = 0;
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                total += count;
+                if (total > maxBytes) {
+                    throw new IOException("Photo is larger than " + maxBytes + " bytes");
+                }
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+    }
+}
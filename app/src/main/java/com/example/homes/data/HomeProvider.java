@@ -5,11 +5,34 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.example.homes.R;
+import com.example.homes.data.HomeContract.BackupEntry;
+import com.example.homes.data.HomeContract.BatchEntry;
+import com.example.homes.data.HomeContract.DebugEntry;
+import com.example.homes.data.HomeContract.DeletionEntry;
+import com.example.homes.data.HomeContract.FacetEntry;
 import com.example.homes.data.HomeContract.HomeEntry;
+import com.example.homes.data.HomeContract.StatsEntry;
+import com.example.homes.data.HomeContract.ValuationEntry;
+import com.example.homes.watchdog.UiWatchdog;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * {@link ContentProvider} for Homes app.
@@ -22,6 +45,57 @@ public class HomeProvider extends ContentProvider {
     /** URI matcher code for the content URI for a single home in the homes table */
     private static final int HOME_ID = 101;
 
+    /** URI matcher code for the content URI for the duplicate homes */
+    private static final int HOME_DUPLICATES = 102;
+
+    /** URI matcher code for the content URI for the facet counts of the homes */
+    private static final int HOME_FACETS = 103;
+
+    /** URI matcher code for the content URI for the valuations of the homes */
+    private static final int HOME_VALUATIONS = 104;
+
+    /** URI matcher code for the content URI for the valuations per county */
+    private static final int HOME_VALUATION_COUNTIES = 105;
+
+    /** URI matcher code for the content URI for the photo of a home */
+    private static final int HOME_PHOTO = 106;
+
+    /** URI matcher code for the content URI for a thumbnail of the photo of a home */
+    private static final int HOME_THUMBNAIL = 107;
+
+    /** URI matcher code for the content URI for the statistics of the homes */
+    private static final int HOME_STATS = 108;
+
+    /** URI matcher code for the content URI for the counties with the most homes */
+    private static final int HOME_STATS_COUNTIES = 109;
+
+    /** URI matcher code for the content URI for the deletions that can still be undone */
+    private static final int DELETIONS = 200;
+
+    /** URI matcher code for the content URI for a single deletion */
+    private static final int DELETION_ID = 201;
+
+    /** URI matcher code for the statistics of the query result cache */
+    private static final int DEBUG_QUERY_CACHE = 900;
+
+    /** URI matcher code for the log of slow selections */
+    private static final int DEBUG_SLOW_QUERIES = 901;
+
+    /** Shard argument of {@link #updateHome} for updating the homes of every shard */
+    private static final int ALL_SHARDS = -1;
+
+    /** Expected version of a write that doesn't expect any, versions start at 1 */
+    private static final long ANY_VERSION = -1;
+
+    /** Most ids bound to one query of a batch lookup, below the SQLite limit of 999 */
+    private static final int MAX_IDS_PER_LOOKUP_QUERY = 500;
+
+    /**
+     * Most bytes of encoded rows returned inline by a batch. The Binder buffer of a process is
+     * 1 MB, shared by all of its transactions in flight, so larger results are streamed.
+     */
+    private static final int MAX_INLINE_BATCH_BYTES = 256 * 1024;
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -37,6 +111,28 @@ public class HomeProvider extends ContentProvider {
 
         sUriMatcher.addURI(HomeContract.CONTENT_AUTHORITY, HomeContract.PATH_HOMES, HOMES);
         sUriMatcher.addURI(HomeContract.CONTENT_AUTHORITY, HomeContract.PATH_HOMES + "/#", HOME_ID);
+        sUriMatcher.addURI(HomeContract.CONTENT_AUTHORITY, HomeContract.PATH_HOMES + "/duplicates",
+                HOME_DUPLICATES);
+        sUriMatcher.addURI(HomeContract.CONTENT_AUTHORITY, HomeContract.PATH_HOMES + "/facets",
+                HOME_FACETS);
+        sUriMatcher.addURI(HomeContract.CONTENT_AUTHORITY, HomeContract.PATH_HOMES + "/valuations",
+                HOME_VALUATIONS);
+        sUriMatcher.addURI(HomeContract.CONTENT_AUTHORITY,
+                HomeContract.PATH_HOMES + "/valuations/counties", HOME_VALUATION_COUNTIES);
+        sUriMatcher.addURI(HomeContract.CONTENT_AUTHORITY,
+                HomeContract.PATH_HOMES + "/#/" + HomeEntry.PATH_PHOTO, HOME_PHOTO);
+        sUriMatcher.addURI(HomeContract.CONTENT_AUTHORITY,
+                HomeContract.PATH_HOMES + "/#/" + HomeEntry.PATH_THUMBNAIL, HOME_THUMBNAIL);
+        sUriMatcher.addURI(HomeContract.CONTENT_AUTHORITY, HomeContract.PATH_HOMES + "/stats",
+                HOME_STATS);
+        sUriMatcher.addURI(HomeContract.CONTENT_AUTHORITY,
+                HomeContract.PATH_HOMES + "/stats/counties", HOME_STATS_COUNTIES);
+        sUriMatcher.addURI(HomeContract.CONTENT_AUTHORITY, HomeContract.PATH_DELETIONS, DELETIONS);
+        sUriMatcher.addURI(HomeContract.CONTENT_AUTHORITY, HomeContract.PATH_DELETIONS + "/#", DELETION_ID);
+        sUriMatcher.addURI(HomeContract.CONTENT_AUTHORITY, HomeContract.PATH_DEBUG + "/query_cache",
+                DEBUG_QUERY_CACHE);
+        sUriMatcher.addURI(HomeContract.CONTENT_AUTHORITY, HomeContract.PATH_DEBUG + "/slow_queries",
+                DEBUG_SLOW_QUERIES);
     }
 
 
@@ -44,15 +140,66 @@ public class HomeProvider extends ContentProvider {
     /** Tag for the log messages */
     public static final String LOG_TAG = HomeProvider.class.getSimpleName();
 
-    /** Database helper object */
-    private HomeDbHelper mDbHelper;
+    /** Database files holding the homes, a single one unless sharding is configured */
+    private HomeShards mShards;
+
+    /** Background maintenance of the database, runs while the provider is idle */
+    private HomeDbMaintenance mMaintenance;
+
+    /** Valuations derived from the incomes, updated in the background after every write */
+    private HomeValuations mValuations;
+
+    /** Sketches the statistics are estimated from, updated in the background after every write */
+    private HomeSketches mSketches;
+
+    /** Files of the photos of the homes and of their thumbnails */
+    private HomePhotos mPhotos;
+
+    /** Results of recent queries on homes, valid until the next write */
+    private final HomeQueryCache mQueryCache = new HomeQueryCache();
+
+    /** Plans of the selections of callers, and the full scans and slow runs among them */
+    private HomeQueryGovernor mGovernor;
 
     /**
-     * Initialize the provider and the database helper object.
+     * Initialize the provider and the database helper objects.
      */
     @Override
     public boolean onCreate() {
-        mDbHelper = new HomeDbHelper(getContext());
+        int shardCount = getContext().getResources().getInteger(R.integer.home_shard_count);
+        HomeDbHelper[] dbHelpers = HomeShards.createDbHelpers(getContext(),
+                HomeShards.DATABASE_BASE_NAME, shardCount);
+        mMaintenance = new HomeDbMaintenance(getContext(), dbHelpers);
+        mShards = new HomeShards(dbHelpers, mMaintenance,
+                getContext().getResources().getInteger(R.integer.home_group_commit_window_millis));
+
+        mGovernor = new HomeQueryGovernor(mShards,
+                getContext().getResources().getInteger(R.integer.home_full_scan_policy),
+                getContext().getResources().getInteger(R.integer.home_slow_query_millis));
+
+        // Finish any purge that was still pending when the process last went away
+        mShards.schedulePurge(DeletionEntry.UNDO_WINDOW_MILLIS);
+
+        // Value what was still queued when the process last went away, or every home the
+        // first time
+        mValuations = new HomeValuations(getContext(), mShards, mMaintenance);
+        mValuations.scheduleUpdate();
+
+        // The same for the sketches of the statistics
+        mSketches = new HomeSketches(getContext(), mShards, mMaintenance);
+        mSketches.scheduleUpdate();
+
+        // Photos are files next to the database, whose versions are kept in the homes table
+        mPhotos = new HomePhotos(getContext(), mShards, mMaintenance,
+                getContext().getResources().getDimensionPixelSize(R.dimen.list_item_photo_size),
+                new HomePhotos.Listener() {
+                    @Override
+                    public void onPhotoChanged(long id, long version) {
+                        setPhotoVersion(id, version);
+                    }
+                });
+        // Delete the photos of the homes purged since the last sweep
+        mPhotos.scheduleSweep();
         return true;
     }
 
@@ -62,21 +209,56 @@ public class HomeProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
-        // Get readable database
-        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        // Report the call if it blocks the main thread
+        UiWatchdog.onProviderCall("query", uri);
+
+        // Hold back background maintenance while the app is busy
+        mMaintenance.noteQuery();
+
+        // Only whitelisted sort modes are accepted, translate the key into its ORDER BY clause
+        String orderBy = resolveSortOrder(sortOrder);
 
         // This cursor will hold the result of the query
         Cursor cursor;
 
         // Figure out if the URI matcher can match the URI to a specific code
         int match = sUriMatcher.match(uri);
+
+        // Rejected up front, even when the result ends up in another kind of cursor
+        int windowRows = match == HOMES ? parseWindowRows(uri) : 0;
+
+        // Serve a query on homes from the cache if it already ran since the last write.
+        // Otherwise remember the write generation, so the result is cached as of that
+        // generation even if a write commits while the query runs.
+        String cacheKey = null;
+        long generation = 0;
+        if (match == HOMES || match == HOME_ID) {
+            cacheKey = HomeQueryCache.key(match,
+                    match == HOME_ID ? ContentUris.parseId(uri) : -1,
+                    projection, selection, selectionArgs, orderBy);
+            cursor = mQueryCache.get(cacheKey);
+            if (cursor != null) {
+                cursor.setNotificationUri(getContext().getContentResolver(), uri);
+                return cursor;
+            }
+            generation = mQueryCache.getGeneration();
+        }
+
         switch (match) {
             case HOMES:
-                // For the HOMES code, query the homes table directly with the given
+                // For the HOMES code, query the homes table of every shard with the given
                 // projection, selection, selection arguments, and sort order. The cursor
-                // could contain multiple rows of the homes table.
-                cursor = database.query(HomeEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                // could contain multiple rows of the homes table. Deleted homes are left out.
+                HomeQueryGovernor.Run run = startRun("query", selection, selectionArgs, orderBy);
+                try {
+                    cursor = mShards.query(projection, selection, selectionArgs, orderBy, true);
+                    if (run != null) {
+                        // Run the query now, so its duration is the one logged
+                        cursor.getCount();
+                    }
+                } finally {
+                    finishRun(run);
+                }
                 break;
             case HOME_ID:
                 // For the HOME_ID code, extract out the ID from the URI.
@@ -87,18 +269,73 @@ public class HomeProvider extends ContentProvider {
                 // For every "?" in the selection, we need to have an element in the selection
                 // arguments that will fill in the "?". Since we have 1 question mark in the
                 // selection, we have 1 String in the selection arguments' String array.
+                long id = ContentUris.parseId(uri);
                 selection = HomeEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
+                selectionArgs = new String[] { String.valueOf(id) };
 
-                // This will perform a query on the homes table where the _id equals 3 to return a
-                // Cursor containing that row of the table.
+                // This will perform a query on the homes table of the shard holding the home
+                // where the _id equals 3 to return a Cursor containing that row of the table,
+                // unless the home has been deleted.
+                int shard = mShards.shardOfId(id);
+                SQLiteDatabase database = mShards.getDbHelper(shard).getReadableDatabase();
+                selection = HomeTombstones.appendSelection(selection,
+                        mShards.getTombstones(shard).liveSelection(database));
                 cursor = database.query(HomeEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                        null, null, orderBy);
+                break;
+            case HOME_FACETS:
+                // The number of live homes per county, type and income band. The counts
+                // change with any home, not just with this URI.
+                cursor = mShards.queryFacets();
+                cursor.setNotificationUri(getContext().getContentResolver(), HomeEntry.CONTENT_URI);
+                return cursor;
+            case HOME_VALUATIONS:
+                // The valuations of the homes, in the order of their ids
+                cursor = mValuations.queryHomes(projection, selection, selectionArgs);
+                break;
+            case HOME_VALUATION_COUNTIES:
+                // The valuations per county, the county with the highest value first
+                cursor = mValuations.queryCounties(projection);
+                break;
+            case HOME_STATS:
+                // The statistics of all homes, estimated in constant time
+                cursor = mSketches.queryStats(projection);
+                break;
+            case HOME_STATS_COUNTIES:
+                // The counties with the most homes, the heaviest first
+                cursor = mSketches.queryCounties(projection);
+                break;
+            case DELETIONS:
+                // The deletions that can still be undone, the most recent one first
+                cursor = mShards.queryDeletions(projection, selection, selectionArgs);
+                break;
+            case DEBUG_QUERY_CACHE:
+                cursor = queryCacheStats();
+                break;
+            case DEBUG_SLOW_QUERIES:
+                cursor = querySlowQueries();
                 break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
 
+        if (cacheKey != null) {
+            cursor = mQueryCache.put(cacheKey, generation, cursor);
+        }
+
+        // A list of homes too big for the cache is read through compact windows instead of
+        // the cursor of SQLite, copied ahead of the scroll position
+        if (match == HOMES && !(cursor instanceof HomeQueryCache.SnapshotCursor)
+                && HomeListCursor.supports(projection)) {
+            Cursor result = cursor;
+            try {
+                cursor = new HomeListCursor(result, windowRows);
+            } catch (RuntimeException e) {
+                result.close();
+                throw e;
+            }
+        }
+
         // Set notification URI on the Cursor,
         // so we know what content URI the Cursor was created for.
         // If the data at this URI changes, then we know we need to update the Cursor.
@@ -107,8 +344,189 @@ public class HomeProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * Returns the window size asked for by the query parameter of the URI, or the default.
+     *
+     * @throws IllegalArgumentException if it is not a number from 16 to 4096
+     */
+    private static int parseWindowRows(Uri uri) {
+        String windowRows = uri.getQueryParameter(HomeEntry.QUERY_PARAMETER_WINDOW_ROWS);
+        if (windowRows == null) {
+            return HomeListCursor.DEFAULT_WINDOW_ROWS;
+        }
+        int rows;
+        try {
+            rows = Integer.parseInt(windowRows);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Window size is not a number: " + windowRows);
+        }
+        HomeListCursor.checkWindowRows(rows);
+        return rows;
+    }
+
+    /**
+     * Returns a single row with the statistics of the query result cache.
+     */
+    private Cursor queryCacheStats() {
+        long hits = mQueryCache.getHitCount();
+        long misses = mQueryCache.getMissCount();
+        MatrixCursor cursor = new MatrixCursor(new String[] {
+                DebugEntry.COLUMN_HITS,
+                DebugEntry.COLUMN_MISSES,
+                DebugEntry.COLUMN_HIT_RATE,
+                DebugEntry.COLUMN_EVICTIONS,
+                DebugEntry.COLUMN_ENTRIES,
+                DebugEntry.COLUMN_SIZE_BYTES,
+                DebugEntry.COLUMN_GENERATION }, 1);
+        cursor.addRow(new Object[] {
+                hits,
+                misses,
+                hits + misses == 0 ? 0.0 : (double) hits / (hits + misses),
+                mQueryCache.getEvictionCount(),
+                mQueryCache.getEntryCount(),
+                mQueryCache.getSizeBytes(),
+                mQueryCache.getGeneration() });
+        return cursor;
+    }
+
+    /**
+     * Returns the slow runs of selections, one row each, the oldest first.
+     */
+    private Cursor querySlowQueries() {
+        List<HomeQueryGovernor.SlowQuery> slowQueries = mGovernor.getSlowQueries();
+        MatrixCursor cursor = new MatrixCursor(new String[] {
+                DebugEntry.COLUMN_OPERATION,
+                DebugEntry.COLUMN_SELECTION_SHAPE,
+                DebugEntry.COLUMN_PLAN,
+                DebugEntry.COLUMN_FULL_SCAN,
+                DebugEntry.COLUMN_EXTERNAL,
+                DebugEntry.COLUMN_DURATION_MILLIS,
+                DebugEntry.COLUMN_TIME }, slowQueries.size());
+        for (HomeQueryGovernor.SlowQuery slowQuery : slowQueries) {
+            cursor.addRow(new Object[] {
+                    slowQuery.mOperation,
+                    slowQuery.mShape,
+                    slowQuery.mPlan,
+                    slowQuery.mFullScan ? 1 : 0,
+                    slowQuery.mExternal ? 1 : 0,
+                    slowQuery.mDurationMillis,
+                    slowQuery.mTimeMillis });
+        }
+        return cursor;
+    }
+
+    /**
+     * Let the governor check a selection of a caller on the homes table before it runs, see
+     * {@link HomeQueryGovernor#start}. Returns null for no selection, which lists or deletes
+     * every home on purpose.
+     */
+    private HomeQueryGovernor.Run startRun(String operation, String selection,
+                                           String[] selectionArgs, String orderBy) {
+        if (TextUtils.isEmpty(selection)) {
+            return null;
+        }
+        return mGovernor.start(operation, selection, selectionArgs, orderBy,
+                Binder.getCallingPid() != Process.myPid());
+    }
+
+    /**
+     * Let the governor check the selections of the queries and aggregates of a batch, see
+     * {@link #startRun}. If one of them is refused, those already started are finished.
+     */
+    private List<HomeQueryGovernor.Run> startBatchRuns(List<Bundle> operations) {
+        List<HomeQueryGovernor.Run> runs = new ArrayList<>();
+        boolean started = false;
+        try {
+            for (Bundle operation : operations) {
+                String kind = operation.getString(BatchEntry.KEY_OPERATION);
+                String orderBy;
+                if (BatchEntry.OPERATION_QUERY.equals(kind)) {
+                    orderBy = resolveSortOrder(operation.getString(BatchEntry.KEY_SORT_ORDER));
+                } else if (BatchEntry.OPERATION_AGGREGATE.equals(kind)) {
+                    orderBy = null;
+                } else {
+                    continue;
+                }
+                HomeQueryGovernor.Run run = startRun(kind,
+                        operation.getString(BatchEntry.KEY_SELECTION),
+                        operation.getStringArray(BatchEntry.KEY_SELECTION_ARGS), orderBy);
+                if (run != null) {
+                    runs.add(run);
+                }
+            }
+            started = true;
+        } finally {
+            if (!started) {
+                for (HomeQueryGovernor.Run run : runs) {
+                    finishRun(run);
+                }
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * Tell the governor the selection started by {@link #startRun} is done.
+     */
+    private void finishRun(HomeQueryGovernor.Run run) {
+        if (run != null) {
+            mGovernor.finish(run);
+        }
+    }
+
+    /**
+     * Drop the cached query results when the system runs low on memory.
+     */
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        mQueryCache.evictAll();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mQueryCache.evictAll();
+    }
+
+    /**
+     * Translate one of the sort keys from {@link HomeEntry} into the ORDER BY clause for it.
+     * Every clause matches the collation of an index created by {@link HomeDbHelper} and ends
+     * with the _ID as a tie-breaker, so SQLite can walk the index in order instead of sorting
+     * the whole table in a temporary B-tree.
+     */
+    static String resolveSortOrder(String sortOrder) {
+        if (sortOrder == null || HomeEntry.SORT_DEFAULT.equals(sortOrder)) {
+            return HomeEntry._ID + " ASC";
+        }
+        switch (sortOrder) {
+            case HomeEntry.SORT_ADDRESS:
+                return HomeEntry.COLUMN_HOME_ADDRESS + " COLLATE LOCALIZED ASC, "
+                        + HomeEntry._ID + " ASC";
+            case HomeEntry.SORT_ADDRESS_NOCASE:
+                return HomeEntry.COLUMN_HOME_ADDRESS + " COLLATE NOCASE ASC, "
+                        + HomeEntry._ID + " ASC";
+            case HomeEntry.SORT_COUNTY:
+                return HomeEntry.COLUMN_HOME_COUNTY + " COLLATE LOCALIZED ASC, "
+                        + HomeEntry.COLUMN_HOME_ADDRESS + " COLLATE LOCALIZED ASC, "
+                        + HomeEntry._ID + " ASC";
+            case HomeEntry.SORT_COUNTY_NOCASE:
+                return HomeEntry.COLUMN_HOME_COUNTY + " COLLATE NOCASE ASC, "
+                        + HomeEntry.COLUMN_HOME_ADDRESS + " COLLATE NOCASE ASC, "
+                        + HomeEntry._ID + " ASC";
+            case HomeEntry.SORT_INCOME_HIGH:
+                return HomeEntry.COLUMN_HOME_INCOME + " DESC, " + HomeEntry._ID + " DESC";
+            case HomeEntry.SORT_INCOME_LOW:
+                return HomeEntry.COLUMN_HOME_INCOME + " ASC, " + HomeEntry._ID + " ASC";
+            default:
+                throw new IllegalArgumentException("Unsupported sort order " + sortOrder);
+        }
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
+        UiWatchdog.onProviderCall("insert", uri);
+
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case HOMES:
@@ -123,41 +541,126 @@ public class HomeProvider extends ContentProvider {
      * for that specific row in the database.
      */
     private Uri insertHome(Uri uri, ContentValues values) {
-        // Check that the name is not null
-        String name = values.getAsString(HomeEntry.COLUMN_HOME_ADDRESS);
-        if (name == null) {
-            throw new IllegalArgumentException("Home requires an address");
+        long id = insertHomeValues(values,
+                uri.getBooleanQueryParameter(HomeEntry.QUERY_PARAMETER_UPSERT, false));
+        // If the ID is -1, then the insertion failed. Log an error and return null.
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
         }
 
-        // Check if type is valid
-        Integer type = values.getAsInteger(HomeEntry.COLUMN_HOME_TYPE);
-        if (type == null || !HomeEntry.isValidType(type)) {
-            throw new IllegalArgumentException("Home requires valid type");
-        }
+        // Cached results are stale now. Notify all listeners that the data has changed for
+        // the home content URI
+        notifyHomesChanged(HomeEntry.CONTENT_URI, id, 1, false);
 
-        // If the income is provided, check that it's greater than or equal to 0 /mo
+        // Once we know the ID of the new row in the table,
+        // return the new URI with the ID appended to the end of it
+        return ContentUris.withAppendedId(HomeEntry.CONTENT_URI, id);
+    }
+
+    /**
+     * Check the values of a new home and insert it, or merge it into the live home with the
+     * same address for an upsert. Return the id of the home, or -1 if the insertion failed.
+     * Listeners are left for the caller to notify.
+     */
+    private long insertHomeValues(ContentValues values, boolean upsert) {
+        // Check that the name is not null, that the type is valid, and if the income is
+        // provided, that it's greater than or equal to 0 /mo
+        checkAddress(values.getAsString(HomeEntry.COLUMN_HOME_ADDRESS));
+        checkType(values.getAsInteger(HomeEntry.COLUMN_HOME_TYPE));
         Integer income = values.getAsInteger(HomeEntry.COLUMN_HOME_INCOME);
-        if (income != null && income < 0) {
-            throw new IllegalArgumentException("Home requires valid income");
+        if (income != null) {
+            checkIncome(income);
         }
 
-        // Get writeable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        // Leave the caller's values alone, and fill in the columns the provider manages itself
+        values = withManagedColumns(values);
 
-        // Insert the new home with the given values
-        long id = database.insert(HomeEntry.TABLE_NAME, null, values);
-        // If the ID is -1, then the insertion failed. Log an error and return null.
-        if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
-            return null;
+        // New homes go to the shard of their county
+        int shard = mShards.shardOfCounty(values.getAsString(HomeEntry.COLUMN_HOME_COUNTY));
+
+        // Insert the new home with the given values, or merge it into the existing home with
+        // the same address when the caller asked for an upsert
+        if (upsert) {
+            return upsertHome(shard, values);
         }
+        return mShards.insert(shard, values);
+    }
 
-        // Notify all listeners that the data has changed for the home content URI
-        getContext().getContentResolver().notifyChange(uri, null);
+    /**
+     * Merge the home into the live home with the same canonical address, or insert it into the
+     * given shard if there is none. The lookup is a single probe of the canonical address index
+     * per shard, whatever the number of homes. Return the id of the merged or inserted home, or
+     * -1 if the insertion failed.
+     */
+    private long upsertHome(int insertShard, ContentValues values) {
+        // The home may be in any shard, if its county changed since it was placed
+        for (int shard = 0; shard < mShards.getCount(); shard++) {
+            if (shard != insertShard) {
+                long id = upsertHome(shard, values, false);
+                if (id != -1) {
+                    return id;
+                }
+            }
+        }
+        return upsertHome(insertShard, values, true);
+    }
 
-        // Once we know the ID of the new row in the table,
-        // return the new URI with the ID appended to the end of it
-        return ContentUris.withAppendedId(uri, id);
+    /**
+     * Merge the home into the live home with the same canonical address in the given shard.
+     * If there is none, insert the home there if asked to. Return the id of the merged or
+     * inserted home, or -1 if there was none or the insertion failed.
+     */
+    private long upsertHome(int shard, ContentValues values, boolean insertIfMissing) {
+        String canonicalAddress = values.getAsString(HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS);
+        SQLiteDatabase database = mShards.getDbHelper(shard).getWritableDatabase();
+
+        database.beginTransaction();
+        try {
+            long id = -1;
+            Cursor cursor = database.query(HomeEntry.TABLE_NAME, new String[] { HomeEntry._ID },
+                    HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS + "=? AND "
+                            + mShards.getTombstones(shard).liveSelection(database),
+                    new String[] { canonicalAddress }, null, null, null, "1");
+            try {
+                if (cursor.moveToFirst()) {
+                    id = cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (id == -1) {
+                if (insertIfMissing) {
+                    id = database.insert(HomeEntry.TABLE_NAME, null, values);
+                }
+            } else {
+                database.update(HomeEntry.TABLE_NAME, values, HomeEntry._ID + "=?",
+                        new String[] { String.valueOf(id) });
+            }
+            database.setTransactionSuccessful();
+            return id;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Returns a copy of the values with the columns managed by the provider filled in: the
+     * deleted flag, the photo version and the version can't be written by callers, and the
+     * canonical address always follows the address.
+     */
+    private static ContentValues withManagedColumns(ContentValues values) {
+        ContentValues managed = new ContentValues(values);
+        managed.remove(HomeEntry.COLUMN_HOME_DELETED);
+        managed.remove(HomeEntry.COLUMN_HOME_PHOTO_VERSION);
+        managed.remove(HomeEntry.COLUMN_HOME_VERSION);
+        managed.remove(HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS);
+        if (managed.containsKey(HomeEntry.COLUMN_HOME_ADDRESS)) {
+            managed.put(HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS,
+                    AddressNormalizer.normalize(managed.getAsString(HomeEntry.COLUMN_HOME_ADDRESS)));
+        }
+        return managed;
     }
 
     /**
@@ -166,17 +669,22 @@ public class HomeProvider extends ContentProvider {
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection,
                       String[] selectionArgs) {
+        UiWatchdog.onProviderCall("update", uri);
+
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case HOMES:
-                return updateHome(uri, contentValues, selection, selectionArgs);
+                return updateHome(uri, contentValues, selection, selectionArgs, ALL_SHARDS);
             case HOME_ID:
                 // For the HOME_ID code, extract out the ID from the URI,
                 // so we know which row to update. Selection will be "_id=?" and selection
-                // arguments will be a String array containing the actual ID.
-                selection = HomeEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                return updateHome(uri, contentValues, selection, selectionArgs);
+                // arguments will be a String array containing the actual ID, and the version
+                // if the caller expects one.
+                long id = ContentUris.parseId(uri);
+                selection = homeIdSelection(uri);
+                selectionArgs = homeIdSelectionArgs(uri, id);
+                return updateHome(uri, contentValues, selection, selectionArgs,
+                        mShards.shardOfId(id));
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
@@ -184,88 +692,895 @@ public class HomeProvider extends ContentProvider {
 
     /**
      * Update homes in the database with the given content values. Apply the changes to the rows
-     * specified in the selection and selection arguments (which could be 0 or 1 or more homes).
+     * specified in the selection and selection arguments (which could be 0 or 1 or more homes),
+     * in the given shard or in {@link #ALL_SHARDS}.
      * Return the number of rows that were successfully updated.
      */
-    private int updateHome(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    private int updateHome(Uri uri, ContentValues values, String selection, String[] selectionArgs,
+                           int shard) {
+        // Check the values, and fill in the columns the provider manages itself
+        values = checkUpdateValues(values);
+
+        // If there are no values to update, then don't try to update the database
+        if (values.size() == 0) {
+            return 0;
+        }
+
+        // Perform the update on the database and get the number of rows affected.
+        // Deleted homes can't be updated anymore. Selections of callers go past the governor.
+        int rowsUpdated;
+        if (shard == ALL_SHARDS) {
+            HomeQueryGovernor.Run run = startRun("update", selection, selectionArgs, null);
+            try {
+                rowsUpdated = mShards.update(values, selection, selectionArgs);
+            } finally {
+                finishRun(run);
+            }
+        } else {
+            rowsUpdated = mShards.update(shard, values, selection, selectionArgs);
+        }
+
+        // If 1 or more rows were updated, then notify all listeners that the data at the
+        // given URI has changed. An update by selection may have touched any home.
+        notifyHomesChanged(uri, shard == ALL_SHARDS ? -1 : ContentUris.parseId(uri),
+                rowsUpdated, false);
+
+        // Return the number of rows updated
+        return rowsUpdated;
+    }
+
+    /**
+     * Check the values written into existing homes, and return a copy of them with the columns
+     * managed by the provider filled in.
+     */
+    private static ContentValues checkUpdateValues(ContentValues values) {
         // Check if key exists to update
         if (values.containsKey(HomeEntry.COLUMN_HOME_ADDRESS)) {
-            String name = values.getAsString(HomeEntry.COLUMN_HOME_ADDRESS);
-            if (name == null) {
-                throw new IllegalArgumentException("Home requires a name");
-            }
+            checkAddress(values.getAsString(HomeEntry.COLUMN_HOME_ADDRESS));
         }
 
         if (values.containsKey(HomeEntry.COLUMN_HOME_TYPE)) {
-            Integer type = values.getAsInteger(HomeEntry.COLUMN_HOME_TYPE);
-            if (type == null || !HomeEntry.isValidType(type)) {
-                throw new IllegalArgumentException("Home requires valid type");
-            }
+            checkType(values.getAsInteger(HomeEntry.COLUMN_HOME_TYPE));
         }
 
         if (values.containsKey(HomeEntry.COLUMN_HOME_INCOME)) {
-            // Check that the income is greater than or equal to 0 /mo
             Integer income = values.getAsInteger(HomeEntry.COLUMN_HOME_INCOME);
-            if (income != null && income < 0) {
-                throw new IllegalArgumentException("Home requires valid income");
+            if (income != null) {
+                checkIncome(income);
             }
         }
 
-        // If there are no values to update, then don't try to update the database
-        if (values.size() == 0) {
-            return 0;
+        return withManagedColumns(values);
+    }
+
+    /**
+     * Checks the address of a home, for every write through the provider or
+     * {@link HomeRepository}.
+     */
+    static void checkAddress(String address) {
+        if (address == null) {
+            throw new IllegalArgumentException("Home requires an address");
+        }
+    }
+
+    /**
+     * Checks the type of a home, which every home has.
+     */
+    static void checkType(Integer type) {
+        if (type == null) {
+            throw new IllegalArgumentException("Home requires valid type");
+        }
+        checkType(type.intValue());
+    }
+
+    static void checkType(int type) {
+        if (!HomeEntry.isValidType(type)) {
+            throw new IllegalArgumentException("Home requires valid type");
         }
+    }
 
-        // Get writeable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+    /**
+     * Checks that the income of a home is greater than or equal to 0 /mo.
+     */
+    static void checkIncome(int income) {
+        if (income < 0) {
+            throw new IllegalArgumentException("Home requires valid income");
+        }
+    }
 
-        // Perform the update on the database and get the number of rows affected
-        int rowsUpdated = database.update(HomeEntry.TABLE_NAME, values, selection, selectionArgs);
+    /**
+     * Returns the selection of the home of a single home URI, which also matches its version
+     * when the URI has {@link HomeEntry#QUERY_PARAMETER_EXPECTED_VERSION}.
+     */
+    private static String homeIdSelection(Uri uri) {
+        if (parseExpectedVersion(uri) == ANY_VERSION) {
+            return HomeEntry._ID + "=?";
+        }
+        return HomeEntry._ID + "=? AND " + HomeEntry.COLUMN_HOME_VERSION + "=?";
+    }
 
-        // If 1 or more rows were updated, then notify all listeners that the data at the
-        // given URI has changed
-        if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+    /**
+     * Returns the arguments of {@link #homeIdSelection(Uri)} for the home with the given id.
+     */
+    private static String[] homeIdSelectionArgs(Uri uri, long id) {
+        long expectedVersion = parseExpectedVersion(uri);
+        if (expectedVersion == ANY_VERSION) {
+            return new String[] { String.valueOf(id) };
         }
+        return new String[] { String.valueOf(id), String.valueOf(expectedVersion) };
+    }
 
-        // Return the number of rows updated
-        return rowsUpdated;
+    /**
+     * Returns the version expected by the query parameter of the URI, or {@link #ANY_VERSION}.
+     */
+    private static long parseExpectedVersion(Uri uri) {
+        String version = uri.getQueryParameter(HomeEntry.QUERY_PARAMETER_EXPECTED_VERSION);
+        if (version == null) {
+            return ANY_VERSION;
+        }
+        try {
+            long expectedVersion = Long.parseLong(version);
+            if (expectedVersion < 1) {
+                throw new IllegalArgumentException("Invalid expected version " + version);
+            }
+            return expectedVersion;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected version is not a number: " + version);
+        }
     }
 
+    /**
+     * Delete the homes at the given URI. Homes are only tombstoned, and the deletion can be
+     * undone by deleting its {@link DeletionEntry} URI until its undo window has passed.
+     */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        // Get writeable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        UiWatchdog.onProviderCall("delete", uri);
 
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case HOME_PHOTO:
+                // Delete the photo of a home, the home itself stays
+                return deletePhoto(parsePhotoId(uri));
+            case DELETION_ID:
+                // Deleting a deletion undoes it and brings its homes back. An undo changes
+                // the homes rather than the URI of its deletion.
+                int rowsUndone = mShards.undo(ContentUris.parseId(uri));
+                notifyHomesChanged(HomeEntry.CONTENT_URI, -1, rowsUndone, true);
+                return rowsUndone;
+            default:
+                return deleteHomes(uri, match, selection, selectionArgs,
+                        mShards.nextDeletionId());
+        }
+    }
+
+    /**
+     * Delete the homes at the given URI as the deletion with the given id, see
+     * {@link DeletionEntry#METHOD_DELETE}. Return the number of homes deleted.
+     */
+    private int deleteHomes(Uri uri, int match, String selection, String[] selectionArgs,
+                            long deletionId) {
         // Track the number of rows that were deleted
         int rowsDeleted;
 
-        final int match = sUriMatcher.match(uri);
         switch (match) {
-            case HOMES:
+            case HOMES: {
                 // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(HomeEntry.TABLE_NAME, selection, selectionArgs);
+                HomeQueryGovernor.Run run = startRun("delete", selection, selectionArgs, null);
+                try {
+                    rowsDeleted = mShards.delete(selection, selectionArgs, deletionId);
+                } finally {
+                    finishRun(run);
+                }
                 break;
+            }
             case HOME_ID:
-                // Delete a single row given by the ID in the URI
-                selection = HomeEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                rowsDeleted = database.delete(HomeEntry.TABLE_NAME, selection, selectionArgs);
+                // Delete a single row given by the ID in the URI, at the version the caller
+                // expects if any
+                long id = ContentUris.parseId(uri);
+                selection = homeIdSelection(uri);
+                selectionArgs = homeIdSelectionArgs(uri, id);
+                rowsDeleted = mShards.delete(mShards.shardOfId(id), selection, selectionArgs,
+                        deletionId);
+                break;
+            case HOME_DUPLICATES:
+                // Delete every home that has the same address as an older one
+                rowsDeleted = deleteDuplicateHomes(deletionId);
                 break;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
 
         // If 1 or more rows were deleted, then notify all listeners that the data at the
-        // given URI has changed
-        if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
-        }
+        // given URI has changed, and that there is a new deletion to undo
+        notifyHomesChanged(uri, match == HOME_ID ? ContentUris.parseId(uri) : -1, rowsDeleted,
+                true);
 
         // Return the number of rows deleted
         return rowsDeleted;
     }
 
+    /**
+     * Delete the homes at the URI given as the argument of the call, and return the id of the
+     * deletion with the number of homes deleted.
+     */
+    private Bundle deleteForUndo(String arg, Bundle extras) {
+        if (arg == null) {
+            throw new IllegalArgumentException("Delete requires the URI of the homes");
+        }
+        Uri uri = Uri.parse(arg);
+        int match = sUriMatcher.match(uri);
+        if (match != HOMES && match != HOME_ID && match != HOME_DUPLICATES) {
+            throw new IllegalArgumentException("Deletion is not supported for " + uri);
+        }
+        String selection = extras == null ? null : extras.getString(DeletionEntry.KEY_SELECTION);
+        String[] selectionArgs = extras == null
+                ? null : extras.getStringArray(DeletionEntry.KEY_SELECTION_ARGS);
+
+        long deletionId = mShards.nextDeletionId();
+        Bundle response = new Bundle();
+        response.putLong(DeletionEntry.KEY_DELETION_ID, deletionId);
+        response.putInt(DeletionEntry.KEY_COUNT,
+                deleteHomes(uri, match, selection, selectionArgs, deletionId));
+        return response;
+    }
+
+    /**
+     * Let everything that read the homes know that some of them were written: the query
+     * cache, the observers of the URI and, for deletes, of the deletions, the live queries of
+     * the home or of every home, the valuations and the maintenance. Writes through
+     * {@link HomeRepository} are told the same way as writes through URIs.
+     *
+     * @param id the home written, or -1 if it may have been any home
+     * @param rowCount the number of homes written, nothing is told if none
+     */
+    void notifyHomesChanged(Uri uri, long id, int rowCount, boolean deleted) {
+        if (rowCount != 0) {
+            mQueryCache.invalidate();
+            getContext().getContentResolver().notifyChange(uri, null);
+            if (deleted) {
+                getContext().getContentResolver().notifyChange(DeletionEntry.CONTENT_URI, null);
+            }
+            if (id == -1) {
+                HomeLiveQuery.publishChangeAll();
+            } else {
+                HomeLiveQuery.publishChange(id);
+            }
+            mValuations.scheduleUpdate();
+            mSketches.scheduleUpdate();
+        }
+        mMaintenance.noteWrite(id == -1 ? HomeDbMaintenance.ALL_SHARDS : mShards.shardOfId(id),
+                rowCount);
+    }
+
+    /**
+     * Returns the shards holding the homes, for {@link HomeRepository}.
+     */
+    HomeShards getShards() {
+        return mShards;
+    }
+
+    /**
+     * Returns the maintenance of the databases, for {@link HomeRepository}.
+     */
+    HomeDbMaintenance getMaintenance() {
+        return mMaintenance;
+    }
+
+    /**
+     * Delete the photo of the given home. Returns 1 if it had one, 0 otherwise.
+     */
+    private int deletePhoto(long id) {
+        if (!mPhotos.deletePhoto(id)) {
+            return 0;
+        }
+        setPhotoVersion(id, 0);
+        return 1;
+    }
+
+    /**
+     * Open the photo of a home for reading or writing, or a thumbnail of it for reading.
+     * Photos are kept as files next to the database, see {@link HomePhotos}. A photo written
+     * replaces the previous one once the stream is closed.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        UiWatchdog.onProviderCall("openFile", uri);
+
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case HOME_PHOTO: {
+                long id = parsePhotoId(uri);
+                if (!"r".equals(mode) && !"w".equals(mode) && !"wt".equals(mode)) {
+                    throw new IllegalArgumentException("Photos are opened with r or w, not "
+                            + mode);
+                }
+                // Deleted homes keep their photo for undo, but nobody can see it
+                if (!isLiveHome(id)) {
+                    throw new FileNotFoundException("No home for " + uri);
+                }
+                return "r".equals(mode) ? mPhotos.openPhoto(id) : mPhotos.openPhotoForWrite(id);
+            }
+            case HOME_THUMBNAIL: {
+                long id = parsePhotoId(uri);
+                if (!"r".equals(mode)) {
+                    throw new IllegalArgumentException("Thumbnails are read only: " + uri);
+                }
+                if (!isLiveHome(id)) {
+                    throw new FileNotFoundException("No home for " + uri);
+                }
+                return mPhotos.openThumbnail(id, parseThumbnailSize(uri));
+            }
+            default:
+                throw new IllegalArgumentException("Cannot open unknown URI " + uri);
+        }
+    }
+
+    /**
+     * Returns the id of the home of a photo or thumbnail URI, e.g. 3 for
+     * "content://com.example.android.homes/homes/3/photo".
+     */
+    private static long parsePhotoId(Uri uri) {
+        return Long.parseLong(uri.getPathSegments().get(1));
+    }
+
+    /**
+     * Returns the thumbnail size asked for by the query parameter of the URI.
+     */
+    private static int parseThumbnailSize(Uri uri) {
+        String size = uri.getQueryParameter(HomeEntry.QUERY_PARAMETER_SIZE);
+        if (size == null) {
+            throw new IllegalArgumentException("Thumbnail size is missing: " + uri);
+        }
+        try {
+            return Integer.parseInt(size);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Thumbnail size is not a number: " + size);
+        }
+    }
+
+    /**
+     * Whether the given home exists and isn't deleted.
+     */
+    private boolean isLiveHome(long id) {
+        int shard = mShards.shardOfId(id);
+        return queryVersion(shard, mShards.getDbHelper(shard).getReadableDatabase(), id) != -1;
+    }
+
+    /**
+     * Returns the version of the given home in the database of its shard, or -1 if it doesn't
+     * exist or is deleted. Inside a transaction of the database, the version stays as
+     * returned until the transaction ends.
+     */
+    private long queryVersion(int shard, SQLiteDatabase database, long id) {
+        String selection = HomeTombstones.appendSelection(HomeEntry._ID + "=?",
+                mShards.getTombstones(shard).liveSelection(database));
+        Cursor cursor = database.query(HomeEntry.TABLE_NAME,
+                new String[] { HomeEntry.COLUMN_HOME_VERSION },
+                selection, new String[] { String.valueOf(id) }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Record the new version of the photo of the given home, 0 once it is deleted, and tell
+     * the lists showing the home, so they load the new thumbnail.
+     */
+    private void setPhotoVersion(long id, long version) {
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_PHOTO_VERSION, version);
+        int rowsUpdated = mShards.update(mShards.shardOfId(id), values, HomeEntry._ID + "=?",
+                new String[] { String.valueOf(id) });
+        if (rowsUpdated != 0) {
+            mQueryCache.invalidate();
+            getContext().getContentResolver().notifyChange(
+                    ContentUris.withAppendedId(HomeEntry.CONTENT_URI, id), null);
+            HomeLiveQuery.publishChange(id);
+        }
+        mMaintenance.noteWrite(mShards.shardOfId(id), rowsUpdated);
+    }
+
+    /**
+     * Delete the homes whose canonical address duplicates an older live home, as the deletion
+     * with the given id, which can be undone. Return the number of homes deleted.
+     */
+    private int deleteDuplicateHomes(long deletionId) {
+        // Find and delete in one transaction per shard, so a home can't change its address in
+        // between. The shards are always locked in the same order, so two writers holding
+        // several shards can't wait for each other.
+        int shardCount = mShards.getCount();
+        int locked = 0;
+        try {
+            for (; locked < shardCount; locked++) {
+                mShards.getDbHelper(locked).getWritableDatabase().beginTransaction();
+            }
+
+            // Query on this thread, the pool threads would wait for the transactions
+            Cursor cursor = mShards.query(HomeDeduplicator.PROJECTION, HomeDeduplicator.SELECTION,
+                    null, HomeDeduplicator.ORDER_BY, false);
+            List<Long> duplicates;
+            try {
+                duplicates = HomeDeduplicator.findDuplicates(cursor);
+            } finally {
+                cursor.close();
+            }
+            int rowsDeleted = mShards.delete(duplicates, deletionId);
+
+            for (int shard = 0; shard < shardCount; shard++) {
+                mShards.getDbHelper(shard).getWritableDatabase().setTransactionSuccessful();
+            }
+            return rowsDeleted;
+        } finally {
+            while (locked > 0) {
+                mShards.getDbHelper(--locked).getWritableDatabase().endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Run a batch of operations sent by {@link HomeBatch}, see {@link BatchEntry} for the
+     * protocol.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        UiWatchdog.onProviderCall("call", BatchEntry.CONTENT_URI);
+
+        // The framework checks the permission of the provider for every method but this one.
+        // The app itself always holds it.
+        boolean self = Binder.getCallingUid() == Process.myUid();
+        if (!self) {
+            getContext().enforceCallingOrSelfPermission(HomeContract.PERMISSION_ACCESS,
+                    "Calling the homes provider requires " + HomeContract.PERMISSION_ACCESS);
+        }
+
+        if (BackupEntry.METHOD_BACKUP.equals(method)
+                || BackupEntry.METHOD_RESTORE.equals(method)) {
+            // A restore replaces every home, only the app decides when
+            if (!self) {
+                throw new SecurityException("Only the app itself may call " + method);
+            }
+            return BackupEntry.METHOD_BACKUP.equals(method) ? backUp() : restore();
+        }
+        if (DeletionEntry.METHOD_DELETE.equals(method)) {
+            return deleteForUndo(arg, extras);
+        }
+        if (!BatchEntry.METHOD_BATCH.equals(method)) {
+            throw new IllegalArgumentException("Unknown method " + method);
+        }
+        List<Bundle> operations = extras == null
+                ? null : extras.<Bundle>getParcelableArrayList(BatchEntry.KEY_OPERATIONS);
+        if (operations == null) {
+            throw new IllegalArgumentException("Batch requires operations");
+        }
+        if (operations.size() > BatchEntry.MAX_OPERATIONS) {
+            throw new IllegalArgumentException("Batch has " + operations.size()
+                    + " operations, at most " + BatchEntry.MAX_OPERATIONS + " are allowed");
+        }
+
+        mMaintenance.noteQuery();
+
+        // A batch that writes runs in one transaction per shard, so it applies completely or
+        // not at all. The shards are locked in order, like for deleting duplicates, and the
+        // reads of the batch run on this thread, as the pool threads would wait for them.
+        boolean writes = false;
+        boolean deletes = false;
+        for (Bundle operation : operations) {
+            String kind = operation.getString(BatchEntry.KEY_OPERATION);
+            deletes |= BatchEntry.OPERATION_DELETE.equals(kind);
+            writes |= deletes || BatchEntry.OPERATION_UPSERT.equals(kind)
+                    || BatchEntry.OPERATION_UPDATE.equals(kind);
+        }
+
+        ArrayList<Bundle> results = new ArrayList<>(operations.size());
+        List<HomeBatchRows> rows = new ArrayList<>(operations.size());
+        List<Long> writtenIds = new ArrayList<>();
+        boolean conflict = false;
+        int shardCount = mShards.getCount();
+        int locked = 0;
+        // Before the shards are locked, so a throttled batch waits without blocking writers
+        List<HomeQueryGovernor.Run> runs = startBatchRuns(operations);
+        try {
+            if (writes) {
+                for (; locked < shardCount; locked++) {
+                    mShards.getDbHelper(locked).getWritableDatabase().beginTransaction();
+                }
+            }
+            for (Bundle operation : operations) {
+                Bundle result = new Bundle();
+                rows.add(runBatchOperation(operation, !writes, result, writtenIds));
+                results.add(result);
+                conflict |= result.getBoolean(BatchEntry.KEY_CONFLICT);
+            }
+            // A home written since the caller read it rolls back every write of the batch
+            if (!conflict) {
+                for (int shard = 0; shard < locked; shard++) {
+                    mShards.getDbHelper(shard).getWritableDatabase().setTransactionSuccessful();
+                }
+            }
+        } finally {
+            while (locked > 0) {
+                mShards.getDbHelper(--locked).getWritableDatabase().endTransaction();
+            }
+            for (HomeQueryGovernor.Run run : runs) {
+                finishRun(run);
+            }
+        }
+
+        if (conflict) {
+            writtenIds.clear();
+            describeRollback(operations, results);
+        }
+
+        if (!writtenIds.isEmpty()) {
+            mQueryCache.invalidate();
+            getContext().getContentResolver().notifyChange(HomeEntry.CONTENT_URI, null);
+            if (deletes) {
+                getContext().getContentResolver().notifyChange(DeletionEntry.CONTENT_URI, null);
+            }
+            for (long id : writtenIds) {
+                HomeLiveQuery.publishChange(id);
+            }
+            mValuations.scheduleUpdate();
+            mSketches.scheduleUpdate();
+            for (long id : writtenIds) {
+                mMaintenance.noteWrite(mShards.shardOfId(id), 1);
+            }
+        }
+
+        Bundle response = encodeBatchResults(results, rows);
+        if (conflict) {
+            response.putBoolean(BatchEntry.KEY_CONFLICT, true);
+        }
+        return response;
+    }
+
+    /**
+     * Back up every shard right away, on the maintenance thread, and report what it took.
+     */
+    private Bundle backUp() {
+        long start = SystemClock.uptimeMillis();
+        List<HomeBackup.Report> reports;
+        try {
+            reports = mMaintenance.backUpNow();
+        } catch (IOException e) {
+            throw new IllegalStateException("Backup failed: " + e.getMessage(), e);
+        }
+
+        Bundle response = new Bundle();
+        long rowsRead = 0;
+        long rowsWritten = 0;
+        long bytes = 0;
+        long lockMillis = 0;
+        long maxLockMillis = 0;
+        for (HomeBackup.Report report : reports) {
+            rowsRead += report.mRowsRead;
+            rowsWritten += report.mRowsWritten;
+            bytes += report.mBytes;
+            lockMillis += report.mLockMillis;
+            maxLockMillis = Math.max(maxLockMillis, report.mMaxLockMillis);
+        }
+        response.putLong(BackupEntry.KEY_ROWS_READ, rowsRead);
+        response.putLong(BackupEntry.KEY_ROWS_WRITTEN, rowsWritten);
+        response.putLong(BackupEntry.KEY_BYTES, bytes);
+        response.putLong(BackupEntry.KEY_LOCK_MILLIS, lockMillis);
+        response.putLong(BackupEntry.KEY_MAX_LOCK_MILLIS, maxLockMillis);
+        response.putLong(BackupEntry.KEY_DURATION_MILLIS, SystemClock.uptimeMillis() - start);
+        return response;
+    }
+
+    /**
+     * Replace every home with those of the last backup, on the maintenance thread, and let
+     * everything that read the homes before know.
+     */
+    private Bundle restore() {
+        long start = SystemClock.uptimeMillis();
+        long rows;
+        try {
+            rows = mMaintenance.restoreNow();
+        } catch (IOException e) {
+            // A shard that failed to commit may have left the others restored
+            forgetRestoredHomes();
+            throw new IllegalStateException("Restore failed: " + e.getMessage(), e);
+        }
+        forgetRestoredHomes();
+        mMaintenance.noteWrite(HomeDbMaintenance.ALL_SHARDS,
+                (int) Math.min(rows, Integer.MAX_VALUE));
+
+        Bundle response = new Bundle();
+        response.putLong(BackupEntry.KEY_ROWS_WRITTEN, rows);
+        response.putLong(BackupEntry.KEY_DURATION_MILLIS, SystemClock.uptimeMillis() - start);
+        return response;
+    }
+
+    /**
+     * Let everything that read the homes know that a restore may have replaced them.
+     */
+    private void forgetRestoredHomes() {
+        // The deletions were replaced too, with their undo windows and what they hide
+        mShards.reload();
+        mShards.schedulePurge(DeletionEntry.UNDO_WINDOW_MILLIS);
+        mQueryCache.invalidate();
+        getContext().getContentResolver().notifyChange(HomeEntry.CONTENT_URI, null);
+        getContext().getContentResolver().notifyChange(DeletionEntry.CONTENT_URI, null);
+        HomeLiveQuery.publishChangeAll();
+        mValuations.scheduleUpdate();
+        mSketches.reload();
+        mSketches.scheduleUpdate();
+    }
+
+    /**
+     * Fix up the results of the writes of a batch that was rolled back: nothing was written,
+     * upserts have no home, and updates and deletes report the versions the homes have now
+     * that the transaction is over.
+     */
+    private void describeRollback(List<Bundle> operations, List<Bundle> results) {
+        for (int i = 0; i < operations.size(); i++) {
+            String kind = operations.get(i).getString(BatchEntry.KEY_OPERATION);
+            Bundle result = results.get(i);
+            if (BatchEntry.OPERATION_UPSERT.equals(kind)) {
+                result.putLong(BatchEntry.KEY_ID, -1);
+            } else if (BatchEntry.OPERATION_UPDATE.equals(kind)
+                    || BatchEntry.OPERATION_DELETE.equals(kind)) {
+                long id = result.getLong(BatchEntry.KEY_ID);
+                int shard = mShards.shardOfId(id);
+                result.putLong(BatchEntry.KEY_COUNT, 0);
+                result.putLong(BatchEntry.KEY_VERSION,
+                        queryVersion(shard, mShards.getDbHelper(shard).getReadableDatabase(), id));
+            }
+        }
+    }
+
+    /**
+     * Run one operation of a batch and put its result into the given Bundle. Return the rows of
+     * a lookup or query, or null for other operations. The ids of the homes written are added
+     * to the given list.
+     */
+    private HomeBatchRows runBatchOperation(Bundle operation, boolean parallel, Bundle result,
+                                            List<Long> writtenIds) {
+        String kind = operation.getString(BatchEntry.KEY_OPERATION);
+        if (kind == null) {
+            throw new IllegalArgumentException("Batch operation requires a kind");
+        }
+        switch (kind) {
+            case BatchEntry.OPERATION_LOOKUP: {
+                long[] ids = operation.getLongArray(BatchEntry.KEY_IDS);
+                if (ids == null) {
+                    throw new IllegalArgumentException("Lookup requires ids");
+                }
+                return lookupHomes(ids);
+            }
+            case BatchEntry.OPERATION_QUERY: {
+                int limit = operation.getInt(BatchEntry.KEY_LIMIT, -1);
+                if (operation.containsKey(BatchEntry.KEY_LIMIT) && limit < 0) {
+                    throw new IllegalArgumentException("Invalid limit " + limit);
+                }
+                HomeBatchRows rows = new HomeBatchRows();
+                Cursor cursor = mShards.query(BatchEntry.ROW_COLUMNS,
+                        operation.getString(BatchEntry.KEY_SELECTION),
+                        operation.getStringArray(BatchEntry.KEY_SELECTION_ARGS),
+                        resolveSortOrder(operation.getString(BatchEntry.KEY_SORT_ORDER)),
+                        parallel);
+                try {
+                    rows.addAll(cursor, limit);
+                } finally {
+                    cursor.close();
+                }
+                return rows;
+            }
+            case BatchEntry.OPERATION_UPSERT: {
+                ContentValues values = operation.getParcelable(BatchEntry.KEY_VALUES);
+                if (values == null) {
+                    throw new IllegalArgumentException("Upsert requires values");
+                }
+                long id = insertHomeValues(values, true);
+                if (id != -1) {
+                    writtenIds.add(id);
+                }
+                result.putLong(BatchEntry.KEY_ID, id);
+                return null;
+            }
+            case BatchEntry.OPERATION_AGGREGATE:
+                aggregateHomes(operation.getString(BatchEntry.KEY_SELECTION),
+                        operation.getStringArray(BatchEntry.KEY_SELECTION_ARGS), result);
+                return null;
+            case BatchEntry.OPERATION_UPDATE: {
+                ContentValues values = operation.getParcelable(BatchEntry.KEY_VALUES);
+                if (values == null) {
+                    throw new IllegalArgumentException("Update requires values");
+                }
+                writeHomeVersion(operation, checkUpdateValues(values), result, writtenIds);
+                return null;
+            }
+            case BatchEntry.OPERATION_DELETE:
+                writeHomeVersion(operation, null, result, writtenIds);
+                return null;
+            default:
+                throw new IllegalArgumentException("Unknown batch operation " + kind);
+        }
+    }
+
+    /**
+     * Run an update of a batch, or a delete if there are no values, on the home it names if it
+     * still has the version the operation expects. Runs inside the transactions of the batch,
+     * so the version read can't change before the write. Puts the number of homes written, the
+     * version of the home and whether it had another one than expected into the result.
+     */
+    private void writeHomeVersion(Bundle operation, ContentValues values, Bundle result,
+                                  List<Long> writtenIds) {
+        if (!operation.containsKey(BatchEntry.KEY_ID)) {
+            throw new IllegalArgumentException("Update and delete require an id");
+        }
+        long id = operation.getLong(BatchEntry.KEY_ID);
+        long expectedVersion = operation.getLong(BatchEntry.KEY_EXPECTED_VERSION, ANY_VERSION);
+        int shard = mShards.shardOfId(id);
+        SQLiteDatabase database = mShards.getDbHelper(shard).getWritableDatabase();
+
+        long version = queryVersion(shard, database, id);
+        result.putLong(BatchEntry.KEY_ID, id);
+        // A home deleted since it was read is a conflict too, unless the caller expects none
+        boolean conflict = expectedVersion != ANY_VERSION && version != expectedVersion;
+        if (conflict || version == -1 || (values != null && values.size() == 0)) {
+            result.putLong(BatchEntry.KEY_COUNT, 0);
+            result.putLong(BatchEntry.KEY_VERSION, version);
+            result.putBoolean(BatchEntry.KEY_CONFLICT, conflict);
+            return;
+        }
+
+        String[] idArgs = new String[] { String.valueOf(id) };
+        if (values != null) {
+            // The group commit can't be used from inside the transactions of the batch
+            database.update(HomeEntry.TABLE_NAME, values, HomeEntry._ID + "=?", idArgs);
+            version = queryVersion(shard, database, id);
+        } else {
+            // The home is live, so the tombstone is written and its transaction kept
+            mShards.getTombstones(shard).delete(mShards.nextDeletionId(),
+                    HomeEntry._ID + "=?", idArgs);
+            version = -1;
+        }
+        writtenIds.add(id);
+        result.putLong(BatchEntry.KEY_COUNT, 1);
+        result.putLong(BatchEntry.KEY_VERSION, version);
+        result.putBoolean(BatchEntry.KEY_CONFLICT, false);
+    }
+
+    /**
+     * Returns the live homes with the given ids, in the order of the ids. Each shard is read
+     * with a single query per chunk of ids, on the id index.
+     */
+    private HomeBatchRows lookupHomes(long[] ids) {
+        // Group the ids by shard
+        Map<Integer, List<Long>> idsOfShards = new HashMap<>();
+        for (long id : ids) {
+            int shard = mShards.shardOfId(id);
+            List<Long> idsOfShard = idsOfShards.get(shard);
+            if (idsOfShard == null) {
+                idsOfShard = new ArrayList<>();
+                idsOfShards.put(shard, idsOfShard);
+            }
+            idsOfShard.add(id);
+        }
+
+        HomeBatchRows found = new HomeBatchRows();
+        for (Map.Entry<Integer, List<Long>> idsOfShard : idsOfShards.entrySet()) {
+            int shard = idsOfShard.getKey();
+            SQLiteDatabase database = mShards.getDbHelper(shard).getReadableDatabase();
+            String live = mShards.getTombstones(shard).liveSelection(database);
+            List<Long> shardIds = idsOfShard.getValue();
+            for (int start = 0; start < shardIds.size(); start += MAX_IDS_PER_LOOKUP_QUERY) {
+                List<Long> chunk = shardIds.subList(start,
+                        Math.min(start + MAX_IDS_PER_LOOKUP_QUERY, shardIds.size()));
+                StringBuilder selection = new StringBuilder(HomeEntry._ID).append(" IN (");
+                String[] selectionArgs = new String[chunk.size()];
+                for (int i = 0; i < chunk.size(); i++) {
+                    selection.append(i == 0 ? "?" : ",?");
+                    selectionArgs[i] = String.valueOf(chunk.get(i));
+                }
+                selection.append(')');
+                Cursor cursor = database.query(HomeEntry.TABLE_NAME, BatchEntry.ROW_COLUMNS,
+                        HomeTombstones.appendSelection(selection.toString(), live),
+                        selectionArgs, null, null, null);
+                try {
+                    found.addAll(cursor, -1);
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+
+        // Put the homes found back into the order asked for
+        Map<Long, Integer> positions = new HashMap<>();
+        for (int position = 0; position < found.size(); position++) {
+            positions.put(found.getId(position), position);
+        }
+        HomeBatchRows rows = new HomeBatchRows();
+        for (long id : ids) {
+            Integer position = positions.get(id);
+            if (position != null) {
+                rows.add(found, position);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Put the number of live homes matching the selection, and the sum, lowest and highest of
+     * their incomes into the result, summarized per shard and combined.
+     */
+    private void aggregateHomes(String selection, String[] selectionArgs, Bundle result) {
+        long count = 0;
+        long sum = 0;
+        long min = 0;
+        long max = 0;
+        for (int shard = 0; shard < mShards.getCount(); shard++) {
+            SQLiteDatabase database = mShards.getDbHelper(shard).getReadableDatabase();
+            Cursor cursor = database.query(HomeEntry.TABLE_NAME, new String[] {
+                            "COUNT(*)",
+                            "IFNULL(SUM(" + HomeEntry.COLUMN_HOME_INCOME + "), 0)",
+                            "MIN(" + HomeEntry.COLUMN_HOME_INCOME + ")",
+                            "MAX(" + HomeEntry.COLUMN_HOME_INCOME + ")" },
+                    HomeTombstones.appendSelection(selection,
+                            mShards.getTombstones(shard).liveSelection(database)),
+                    selectionArgs, null, null, null);
+            try {
+                if (cursor.moveToFirst() && cursor.getLong(0) > 0) {
+                    min = count == 0 ? cursor.getLong(2) : Math.min(min, cursor.getLong(2));
+                    max = count == 0 ? cursor.getLong(3) : Math.max(max, cursor.getLong(3));
+                    count += cursor.getLong(0);
+                    sum += cursor.getLong(1);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        result.putLong(BatchEntry.KEY_COUNT, count);
+        result.putLong(BatchEntry.KEY_SUM, sum);
+        result.putLong(BatchEntry.KEY_MIN, min);
+        result.putLong(BatchEntry.KEY_MAX, max);
+    }
+
+    /**
+     * Returns the response of a batch: the results, with the encoded rows of the lookups and
+     * queries either inline or, when they don't fit in a Binder transaction, streamed through
+     * a pipe.
+     */
+    private static Bundle encodeBatchResults(ArrayList<Bundle> results,
+                                             List<HomeBatchRows> rows) {
+        List<byte[]> encodedRows = new ArrayList<>();
+        long encodedBytes = 0;
+        for (HomeBatchRows rowsOfResult : rows) {
+            if (rowsOfResult != null) {
+                byte[] encoded = rowsOfResult.encode();
+                encodedRows.add(encoded);
+                encodedBytes += encoded.length;
+            }
+        }
+
+        Bundle response = new Bundle();
+        if (encodedBytes <= MAX_INLINE_BATCH_BYTES) {
+            int next = 0;
+            for (int i = 0; i < results.size(); i++) {
+                if (rows.get(i) != null) {
+                    results.get(i).putByteArray(BatchEntry.KEY_ROWS, encodedRows.get(next++));
+                }
+            }
+        } else {
+            // A caller in this process gets the very same descriptor, only one in another
+            // process gets a copy and leaves ours to close
+            boolean remote = Binder.getCallingPid() != Process.myPid();
+            try {
+                response.putParcelable(BatchEntry.KEY_PIPE,
+                        HomeBatchRows.stream(encodedRows, remote));
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to open a pipe for the batch results", e);
+            }
+        }
+        response.putParcelableArrayList(BatchEntry.KEY_RESULTS, results);
+        return response;
+    }
+
     @Override
     public String getType(Uri uri) {
         final int match = sUriMatcher.match(uri);
@@ -274,6 +1589,30 @@ public class HomeProvider extends ContentProvider {
                 return HomeEntry.CONTENT_LIST_TYPE;
             case HOME_ID:
                 return HomeEntry.CONTENT_ITEM_TYPE;
+            case HOME_DUPLICATES:
+                return HomeEntry.CONTENT_LIST_TYPE;
+            case HOME_FACETS:
+                return FacetEntry.CONTENT_LIST_TYPE;
+            case HOME_VALUATIONS:
+                return ValuationEntry.CONTENT_LIST_TYPE;
+            case HOME_VALUATION_COUNTIES:
+                return ValuationEntry.COUNTIES_LIST_TYPE;
+            case HOME_STATS:
+                return StatsEntry.CONTENT_ITEM_TYPE;
+            case HOME_STATS_COUNTIES:
+                return StatsEntry.COUNTIES_LIST_TYPE;
+            case HOME_PHOTO:
+                return HomeEntry.PHOTO_TYPE;
+            case HOME_THUMBNAIL:
+                return HomeEntry.THUMBNAIL_TYPE;
+            case DELETIONS:
+                return DeletionEntry.CONTENT_LIST_TYPE;
+            case DELETION_ID:
+                return DeletionEntry.CONTENT_ITEM_TYPE;
+            case DEBUG_QUERY_CACHE:
+                return DebugEntry.CONTENT_ITEM_TYPE;
+            case DEBUG_SLOW_QUERIES:
+                return DebugEntry.SLOW_QUERIES_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
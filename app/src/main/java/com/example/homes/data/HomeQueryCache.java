@@ -0,0 +1,382 @@
+package com.example.homes.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.util.LruCache;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of query results for {@link HomeProvider}.
+ *
+ * Results are kept as immutable snapshots, column by column: integer columns without nulls
+ * (like _ID and income) as a plain long[], any other column as an Object[]. Entries are keyed
+ * by the URI code and the normalized projection, selection, arguments and sort order, evicted
+ * least recently used first once {@link #MAX_SIZE_BYTES} is reached, and tagged with the write
+ * generation they were read at. Every write bumps the generation, which makes all older
+ * entries stale at once without having to find them.
+ */
+class HomeQueryCache {
+
+    /** Memory budget for all snapshots together */
+    private static final int MAX_SIZE_BYTES = 2 * 1024 * 1024;
+
+    /** Results bigger than this are not cached, so one huge result can't flush everything */
+    private static final int MAX_ENTRY_BYTES = MAX_SIZE_BYTES / 4;
+
+    /** Estimated overhead of one object on the heap, for the size of the snapshots */
+    private static final int OBJECT_OVERHEAD_BYTES = 16;
+
+    private final LruCache<String, Snapshot> mSnapshots = new LruCache<String, Snapshot>(MAX_SIZE_BYTES) {
+        @Override
+        protected int sizeOf(String key, Snapshot snapshot) {
+            return snapshot.mSizeBytes;
+        }
+    };
+
+    /** Bumped after every committed write */
+    private final AtomicLong mGeneration = new AtomicLong();
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * Build the cache key for a query. Whitespace in the selection is collapsed, so the same
+     * query written differently still hits the same entry.
+     *
+     * @param match the URI matcher code of the query
+     * @param id the id in the URI, or -1 for a URI without one
+     */
+    static String key(int match, long id, String[] projection, String selection,
+                      String[] selectionArgs, String orderBy) {
+        StringBuilder key = new StringBuilder();
+        key.append(match).append('\u0001').append(id).append('\u0001');
+        if (projection == null) {
+            key.append('*');
+        } else {
+            for (String column : projection) {
+                key.append(column.trim()).append(',');
+            }
+        }
+        key.append('\u0001');
+        if (selection != null) {
+            key.append(selection.trim().replaceAll("\\s+", " "));
+        }
+        key.append('\u0001');
+        if (selectionArgs != null) {
+            for (String arg : selectionArgs) {
+                key.append(arg).append('\u0000');
+            }
+        }
+        key.append('\u0001').append(orderBy);
+        return key.toString();
+    }
+
+    /**
+     * Returns the current write generation. Read it before running a query whose result is
+     * going to be cached.
+     */
+    long getGeneration() {
+        return mGeneration.get();
+    }
+
+    /**
+     * Make every cached result stale. Call this after a write has been committed, never
+     * before, or a query racing with the write could cache the old rows under the new
+     * generation.
+     */
+    void invalidate() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * Returns a cursor over the cached result for the key, or null if there is no result
+     * from the current generation.
+     */
+    Cursor get(String key) {
+        Snapshot snapshot = mSnapshots.get(key);
+        if (snapshot == null || snapshot.mGeneration != mGeneration.get()) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mHits.incrementAndGet();
+        return new SnapshotCursor(snapshot);
+    }
+
+    /**
+     * Cache the result of a query read at the given generation. Returns a cursor over the
+     * cached copy, or the given cursor rewound to its start if the result is too big to cache.
+     */
+    Cursor put(String key, long generation, Cursor cursor) {
+        Snapshot snapshot = Snapshot.read(cursor, generation, MAX_ENTRY_BYTES);
+        if (snapshot == null) {
+            cursor.moveToPosition(-1);
+            return cursor;
+        }
+        cursor.close();
+        mSnapshots.put(key, snapshot);
+        return new SnapshotCursor(snapshot);
+    }
+
+    /**
+     * Drop all cached results, e.g. when the system is low on memory.
+     */
+    void evictAll() {
+        mSnapshots.evictAll();
+    }
+
+    long getHitCount() {
+        return mHits.get();
+    }
+
+    long getMissCount() {
+        return mMisses.get();
+    }
+
+    int getEvictionCount() {
+        return mSnapshots.evictionCount();
+    }
+
+    int getEntryCount() {
+        return mSnapshots.snapshot().size();
+    }
+
+    int getSizeBytes() {
+        return mSnapshots.size();
+    }
+
+    /**
+     * Immutable copy of a query result.
+     */
+    static final class Snapshot {
+        final String[] mColumnNames;
+        final int mRowCount;
+        final long mGeneration;
+        final int mSizeBytes;
+
+        /** One long[] or Object[] per column */
+        private final Object[] mColumns;
+
+        private Snapshot(String[] columnNames, Object[] columns, int rowCount, long generation,
+                         int sizeBytes) {
+            mColumnNames = columnNames;
+            mColumns = columns;
+            mRowCount = rowCount;
+            mGeneration = generation;
+            mSizeBytes = sizeBytes;
+        }
+
+        /**
+         * Copy every row of the cursor, or return null as soon as the copy grows beyond the
+         * given size.
+         */
+        static Snapshot read(Cursor cursor, long generation, int maxSizeBytes) {
+            String[] columnNames = cursor.getColumnNames();
+            int columnCount = columnNames.length;
+            int rowCount = cursor.getCount();
+
+            // Even with nothing but integers the result would be too big, don't copy anything
+            if ((long) rowCount * columnCount * 8 > maxSizeBytes) {
+                return null;
+            }
+            int capacity = Math.max(rowCount, 1);
+
+            // Every column starts out as a long[] and turns into an Object[] at its first value
+            // that isn't an integer.
+            Object[] columns = new Object[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                columns[i] = new long[capacity];
+            }
+
+            int sizeBytes = OBJECT_OVERHEAD_BYTES * (columnCount + 1);
+            int row = 0;
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < columnCount; i++) {
+                    int type = cursor.getType(i);
+                    if (type == Cursor.FIELD_TYPE_INTEGER && columns[i] instanceof long[]) {
+                        ((long[]) columns[i])[row] = cursor.getLong(i);
+                        sizeBytes += 8;
+                        continue;
+                    }
+                    if (columns[i] instanceof long[]) {
+                        columns[i] = toObjects((long[]) columns[i], row, capacity);
+                    }
+                    Object value = readValue(cursor, i, type);
+                    ((Object[]) columns[i])[row] = value;
+                    sizeBytes += sizeOf(value);
+                }
+                row++;
+                if (sizeBytes > maxSizeBytes) {
+                    return null;
+                }
+            }
+            return new Snapshot(columnNames, columns, row, generation, sizeBytes);
+        }
+
+        private static Object[] toObjects(long[] values, int count, int capacity) {
+            Object[] objects = new Object[capacity];
+            for (int i = 0; i < count; i++) {
+                objects[i] = values[i];
+            }
+            return objects;
+        }
+
+        private static Object readValue(Cursor cursor, int column, int type) {
+            switch (type) {
+                case Cursor.FIELD_TYPE_NULL:
+                    return null;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    return cursor.getLong(column);
+                case Cursor.FIELD_TYPE_FLOAT:
+                    return cursor.getDouble(column);
+                case Cursor.FIELD_TYPE_BLOB:
+                    return cursor.getBlob(column);
+                default:
+                    return cursor.getString(column);
+            }
+        }
+
+        private static int sizeOf(Object value) {
+            if (value == null) {
+                return 4;
+            } else if (value instanceof String) {
+                return 4 + OBJECT_OVERHEAD_BYTES * 2 + ((String) value).length() * 2;
+            } else if (value instanceof byte[]) {
+                return 4 + OBJECT_OVERHEAD_BYTES + ((byte[]) value).length;
+            }
+            return 4 + OBJECT_OVERHEAD_BYTES + 8;
+        }
+
+        boolean isLongColumn(int column) {
+            return mColumns[column] instanceof long[];
+        }
+
+        Object get(int row, int column) {
+            Object values = mColumns[column];
+            if (values instanceof long[]) {
+                return ((long[]) values)[row];
+            }
+            return ((Object[]) values)[row];
+        }
+
+        long getLong(int row, int column) {
+            Object values = mColumns[column];
+            if (values instanceof long[]) {
+                return ((long[]) values)[row];
+            }
+            Object value = ((Object[]) values)[row];
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            return value == null ? 0 : Long.parseLong(value.toString());
+        }
+
+        double getDouble(int row, int column) {
+            Object values = mColumns[column];
+            if (values instanceof long[]) {
+                return ((long[]) values)[row];
+            }
+            Object value = ((Object[]) values)[row];
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            return value == null ? 0 : Double.parseDouble(value.toString());
+        }
+    }
+
+    /**
+     * Read-only cursor over a snapshot. Every query gets its own cursor, the snapshot itself is
+     * shared.
+     */
+    static final class SnapshotCursor extends AbstractCursor {
+        private final Snapshot mSnapshot;
+
+        SnapshotCursor(Snapshot snapshot) {
+            mSnapshot = snapshot;
+        }
+
+        @Override
+        public int getCount() {
+            return mSnapshot.mRowCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mSnapshot.mColumnNames;
+        }
+
+        @Override
+        public int getType(int column) {
+            if (mSnapshot.isLongColumn(column)) {
+                return FIELD_TYPE_INTEGER;
+            }
+            Object value = mSnapshot.get(mPos, column);
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return FIELD_TYPE_FLOAT;
+            } else if (value instanceof byte[]) {
+                return FIELD_TYPE_BLOB;
+            }
+            return FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public String getString(int column) {
+            if (mSnapshot.isLongColumn(column)) {
+                return Long.toString(mSnapshot.getLong(mPos, column));
+            }
+            Object value = mSnapshot.get(mPos, column);
+            if (value == null) {
+                return null;
+            } else if (value instanceof byte[]) {
+                return new String((byte[]) value);
+            }
+            return value.toString();
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = mSnapshot.get(mPos, column);
+            if (value instanceof byte[]) {
+                byte[] blob = (byte[]) value;
+                return Arrays.copyOf(blob, blob.length);
+            }
+            return value == null ? null : value.toString().getBytes();
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) mSnapshot.getLong(mPos, column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) mSnapshot.getLong(mPos, column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            return mSnapshot.getLong(mPos, column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) mSnapshot.getDouble(mPos, column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return mSnapshot.getDouble(mPos, column);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return !mSnapshot.isLongColumn(column) && mSnapshot.get(mPos, column) == null;
+        }
+    }
+}
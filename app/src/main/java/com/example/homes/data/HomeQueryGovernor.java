@@ -0,0 +1,326 @@
+package com.example.homes.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * Watches the selections callers run against the homes table, which {@link HomeProvider}
+ * passes to SQLite as they are.
+ *
+ * The first time a selection shape is seen, that is the selection with its literals and
+ * whitespace normalized, its plan is sampled with EXPLAIN QUERY PLAN and the verdict kept, so
+ * later runs of the same shape cost a map lookup. A selection whose plan scans the whole
+ * table, instead of searching an index, can be allowed, throttled to one at a time, or
+ * rejected when it comes from another process: an app holding
+ * {@link HomeContract#PERMISSION_ACCESS}, or granted a permission on one of the URIs. Callers
+ * in the app itself are trusted to know what they run.
+ *
+ * Every run slower than the threshold is logged with its plan, and the most recent ones are
+ * kept for {@link HomeContract.DebugEntry#SLOW_QUERIES_URI}.
+ */
+final class HomeQueryGovernor {
+
+    private static final String LOG_TAG = HomeQueryGovernor.class.getSimpleName();
+
+    /** Policies for full scans from other processes */
+    static final int POLICY_ALLOW = 0;
+    static final int POLICY_THROTTLE = 1;
+    static final int POLICY_REJECT = 2;
+
+    /** Selection shapes whose verdict is kept, the least recently used is dropped first */
+    private static final int MAX_SHAPES = 256;
+
+    /** Slow runs kept for the debug URI */
+    private static final int MAX_SLOW_QUERIES = 32;
+
+    /** How long a throttled full scan waits for the one running before giving up */
+    static final long THROTTLE_TIMEOUT_MILLIS = 5000;
+
+    /** String literals, with quotes escaped by doubling them */
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+
+    /** Number literals, but not the digits at the end of a name */
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("(?<![\\w.])\\d+(?:\\.\\d+)?");
+
+    /**
+     * Step of a plan reading every row of the homes table, with or without walking an index.
+     * Older SQLite versions write "SCAN TABLE homes", newer ones "SCAN homes".
+     */
+    private static final Pattern FULL_SCAN = Pattern.compile(
+            "^SCAN (TABLE )?" + HomeEntry.TABLE_NAME + "( .*)?$");
+
+    private final HomeShards mShards;
+    private final int mPolicy;
+    private final long mSlowMillis;
+
+    /** Verdicts by shape and sort order, the least recently used first */
+    private final LinkedHashMap<String, Verdict> mVerdicts =
+            new LinkedHashMap<String, Verdict>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Verdict> eldest) {
+                    return size() > MAX_SHAPES;
+                }
+            };
+
+    /** The most recent slow runs, the oldest first */
+    private final ArrayDeque<SlowQuery> mSlowQueries = new ArrayDeque<>();
+
+    /**
+     * Held by the full scan of another process running, when throttled. Reentrant, as the
+     * selections of one batch are all started before any of them runs.
+     */
+    private final ReentrantLock mFullScanPermit = new ReentrantLock(true);
+
+    private long mPlanCount;
+    private long mRejectedCount;
+
+    /**
+     * @param policy for full scans from other processes, one of the POLICY_ values
+     * @param slowMillis duration from which a run is logged, negative to log none
+     */
+    HomeQueryGovernor(HomeShards shards, int policy, long slowMillis) {
+        if (policy != POLICY_ALLOW && policy != POLICY_THROTTLE && policy != POLICY_REJECT) {
+            throw new IllegalArgumentException("Unknown full scan policy " + policy);
+        }
+        mShards = shards;
+        mPolicy = policy;
+        mSlowMillis = slowMillis;
+    }
+
+    /**
+     * Returns the shape of a selection: its string and number literals replaced by "?", and
+     * its whitespace collapsed. Selections differing only by their values share a plan.
+     */
+    static String shapeOf(String selection) {
+        String shape = STRING_LITERAL.matcher(selection).replaceAll("?");
+        shape = NUMBER_LITERAL.matcher(shape).replaceAll("?");
+        return shape.trim().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * Get ready to run a selection on the homes table, with the given ORDER BY clause or null.
+     * Waits while another full scan of another process runs if throttled, or throws if full
+     * scans of other processes are rejected. The returned run has to be passed to
+     * {@link #finish} on the same thread once the selection ran, whether it succeeded or not.
+     *
+     * @param operation "query", "update" or "delete", for the log
+     * @param external whether the caller is in another process
+     * @throws IllegalArgumentException if the selection is rejected
+     * @throws IllegalStateException if a throttled selection waited too long
+     */
+    Run start(String operation, String selection, String[] selectionArgs, String orderBy,
+              boolean external) {
+        String shape = shapeOf(selection);
+        Verdict verdict = getVerdict(shape, selection, selectionArgs, orderBy);
+
+        boolean permit = false;
+        if (external && verdict.mFullScan) {
+            if (mPolicy == POLICY_REJECT) {
+                synchronized (this) {
+                    mRejectedCount++;
+                }
+                throw new IllegalArgumentException("Selection scans every home, use an indexed "
+                        + "column: " + shape);
+            }
+            if (mPolicy == POLICY_THROTTLE) {
+                try {
+                    permit = mFullScanPermit.tryLock(THROTTLE_TIMEOUT_MILLIS,
+                            TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (!permit) {
+                    synchronized (this) {
+                        mRejectedCount++;
+                    }
+                    throw new IllegalStateException("Another selection scanning every home is "
+                            + "still running: " + shape);
+                }
+            }
+        }
+        return new Run(operation, shape, verdict, external, permit);
+    }
+
+    /**
+     * Record the end of a run, logging it if it was slow, and let the next throttled full
+     * scan start.
+     */
+    void finish(Run run) {
+        long millis = SystemClock.uptimeMillis() - run.mStartMillis;
+        if (run.mPermit) {
+            mFullScanPermit.unlock();
+        }
+        if (mSlowMillis < 0 || millis < mSlowMillis) {
+            return;
+        }
+
+        Log.w(LOG_TAG, "Slow " + run.mOperation + " (" + millis + " ms"
+                + (run.mExternal ? ", other process" : "") + "): " + run.mShape
+                + "\n" + run.mVerdict.mPlan);
+        synchronized (this) {
+            if (mSlowQueries.size() == MAX_SLOW_QUERIES) {
+                mSlowQueries.removeFirst();
+            }
+            mSlowQueries.addLast(new SlowQuery(run, millis, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Returns the verdict of the shape with the given sort order, sampling its plan the first
+     * time. The plan is the same in every shard, they share the schema.
+     */
+    private Verdict getVerdict(String shape, String selection, String[] selectionArgs,
+                               String orderBy) {
+        String key = orderBy == null ? shape : shape + '\u0001' + orderBy;
+        synchronized (this) {
+            Verdict verdict = mVerdicts.get(key);
+            if (verdict != null) {
+                return verdict;
+            }
+        }
+
+        // Outside the lock, two threads seeing a new shape at once both sample it, which is
+        // cheaper than making every other shape wait for them
+        Verdict verdict = explain(selection, selectionArgs, orderBy);
+        synchronized (this) {
+            mPlanCount++;
+            mVerdicts.put(key, verdict);
+        }
+        if (verdict.mFullScan) {
+            Log.i(LOG_TAG, "Selection scans every home: " + shape + "\n" + verdict.mPlan);
+        }
+        return verdict;
+    }
+
+    /**
+     * Sample the plan SQLite picks for the selection, the way {@link HomeShards} runs it.
+     */
+    private Verdict explain(String selection, String[] selectionArgs, String orderBy) {
+        SQLiteDatabase database = mShards.getDbHelper(0).getReadableDatabase();
+        String where = HomeTombstones.appendSelection(selection,
+                mShards.getTombstones(0).liveSelection(database));
+        String sql = "EXPLAIN QUERY PLAN SELECT " + HomeEntry._ID + " FROM "
+                + HomeEntry.TABLE_NAME + " WHERE " + where
+                + (orderBy == null ? "" : " ORDER BY " + orderBy);
+
+        StringBuilder plan = new StringBuilder();
+        boolean fullScan = false;
+        Cursor cursor = database.rawQuery(sql, selectionArgs);
+        try {
+            int detailIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                String detail = cursor.getString(detailIndex);
+                if (plan.length() > 0) {
+                    plan.append('\n');
+                }
+                plan.append(detail);
+                fullScan |= FULL_SCAN.matcher(detail).matches();
+            }
+        } finally {
+            cursor.close();
+        }
+        return new Verdict(fullScan, plan.toString());
+    }
+
+    /**
+     * Returns whether the shape of the selection scans every home, sampling its plan if
+     * needed.
+     */
+    boolean isFullScan(String selection, String[] selectionArgs, String orderBy) {
+        return getVerdict(shapeOf(selection), selection, selectionArgs, orderBy).mFullScan;
+    }
+
+    /**
+     * Returns the most recent slow runs, the oldest first.
+     */
+    synchronized List<SlowQuery> getSlowQueries() {
+        return new ArrayList<>(mSlowQueries);
+    }
+
+    /**
+     * Returns the number of plans sampled so far.
+     */
+    synchronized long getPlanCount() {
+        return mPlanCount;
+    }
+
+    /**
+     * Returns the number of selections rejected or given up on while throttled.
+     */
+    synchronized long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /**
+     * What the plan of a selection shape does.
+     */
+    private static final class Verdict {
+        final boolean mFullScan;
+        /** The steps of the plan, one per line */
+        final String mPlan;
+
+        Verdict(boolean fullScan, String plan) {
+            mFullScan = fullScan;
+            mPlan = plan;
+        }
+    }
+
+    /**
+     * A selection running, from {@link #start} to {@link #finish}.
+     */
+    static final class Run {
+        final String mOperation;
+        final String mShape;
+        final Verdict mVerdict;
+        final boolean mExternal;
+        /** Whether the run holds the full scan permit */
+        final boolean mPermit;
+        final long mStartMillis = SystemClock.uptimeMillis();
+
+        private Run(String operation, String shape, Verdict verdict, boolean external,
+                    boolean permit) {
+            mOperation = operation;
+            mShape = shape;
+            mVerdict = verdict;
+            mExternal = external;
+            mPermit = permit;
+        }
+    }
+
+    /**
+     * A run that took at least the slow threshold.
+     */
+    static final class SlowQuery {
+        final String mOperation;
+        final String mShape;
+        final String mPlan;
+        final boolean mFullScan;
+        final boolean mExternal;
+        final long mDurationMillis;
+        /** When the run finished, in milliseconds since the epoch */
+        final long mTimeMillis;
+
+        private SlowQuery(Run run, long durationMillis, long timeMillis) {
+            mOperation = run.mOperation;
+            mShape = run.mShape;
+            mPlan = run.mVerdict.mPlan;
+            mFullScan = run.mVerdict.mFullScan;
+            mExternal = run.mExternal;
+            mDurationMillis = durationMillis;
+            mTimeMillis = timeMillis;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.example.homes.data;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderClient;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+import com.example.homes.watchdog.UiWatchdog;
+
+/**
+ * Typed access to the homes for the app itself, which runs in the process of
+ * {@link HomeProvider}.
+ *
+ * Going through the ContentResolver costs every call a URI match, the boxing of ContentValues
+ * and, for a single home, a selection with its id as a String, before the provider even gets
+ * to SQLite. The repository calls into the instance of the provider instead, with {@link Home}
+ * values bound to statements whose SQL never changes, so the statement cache of the connection
+ * keeps them prepared. The checks of the values, the group commit of the writes and everything
+ * told about them, the observers of the URIs, the live queries, the valuations and the
+ * maintenance, are the provider's own, so callers of the URIs see the same homes.
+ *
+ * Like the provider, the repository runs on the calling thread, which shouldn't be the main
+ * thread.
+ */
+public final class HomeRepository {
+
+    private static final String LOG_TAG = HomeRepository.class.getSimpleName();
+
+    /** Columns read into a {@link Home}, in the order of its constructor */
+    private static final String SELECT_HOME_SQL = "SELECT " + HomeEntry._ID + ", "
+            + HomeEntry.COLUMN_HOME_VERSION + ", " + HomeEntry.COLUMN_HOME_ADDRESS + ", "
+            + HomeEntry.COLUMN_HOME_COUNTY + ", " + HomeEntry.COLUMN_HOME_TYPE + ", "
+            + HomeEntry.COLUMN_HOME_INCOME + ", " + HomeEntry.COLUMN_HOME_PHOTO_VERSION
+            + " FROM " + HomeEntry.TABLE_NAME + " WHERE " + HomeEntry._ID + " = ? AND "
+            + HomeTombstones.liveSelection(0);
+
+    private static final String INSERT_SQL = "INSERT INTO " + HomeEntry.TABLE_NAME + " ("
+            + HomeEntry.COLUMN_HOME_ADDRESS + ", " + HomeEntry.COLUMN_HOME_COUNTY + ", "
+            + HomeEntry.COLUMN_HOME_TYPE + ", " + HomeEntry.COLUMN_HOME_INCOME + ", "
+            + HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS + ") VALUES (?, ?, ?, ?, ?)";
+
+    /**
+     * Writes the values of a live home, which bumps its version. Homes hidden by a deletion of
+     * all homes are left out before the statement runs.
+     */
+    private static final String UPDATE_SQL = "UPDATE " + HomeEntry.TABLE_NAME + " SET "
+            + HomeEntry.COLUMN_HOME_ADDRESS + " = ?, " + HomeEntry.COLUMN_HOME_COUNTY + " = ?, "
+            + HomeEntry.COLUMN_HOME_TYPE + " = ?, " + HomeEntry.COLUMN_HOME_INCOME + " = ?, "
+            + HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS + " = ? WHERE " + HomeEntry._ID + " = ? AND "
+            + HomeTombstones.liveSelection(0);
+
+    /** {@link #UPDATE_SQL} of a home that still has the version expected */
+    private static final String UPDATE_VERSION_SQL = UPDATE_SQL + " AND "
+            + HomeEntry.COLUMN_HOME_VERSION + " = ?";
+
+    private static final String SELECT_VERSION_SQL = "SELECT " + HomeEntry.COLUMN_HOME_VERSION
+            + " FROM " + HomeEntry.TABLE_NAME + " WHERE " + HomeEntry._ID + " = ?";
+
+    private static HomeRepository sInstance;
+
+    private final HomeProvider mProvider;
+
+    /** Keeps the provider acquired for the life of the process, null in tests */
+    private final ContentProviderClient mClient;
+
+    HomeRepository(HomeProvider provider, ContentProviderClient client) {
+        mProvider = provider;
+        mClient = client;
+    }
+
+    /**
+     * Returns the repository of the provider of the homes.
+     *
+     * @throws IllegalStateException if the provider runs in another process
+     */
+    public static synchronized HomeRepository get(Context context) {
+        if (sInstance == null) {
+            ContentProviderClient client = context.getContentResolver()
+                    .acquireContentProviderClient(HomeEntry.CONTENT_URI);
+            ContentProvider provider = client == null ? null : client.getLocalContentProvider();
+            if (!(provider instanceof HomeProvider)) {
+                if (client != null) {
+                    client.release();
+                }
+                throw new IllegalStateException("The provider of the homes isn't in this process");
+            }
+            sInstance = new HomeRepository((HomeProvider) provider, client);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the live home with the given id, or null if there is none.
+     */
+    public Home getHome(long id) {
+        // Report the call if it blocks the main thread, and hold back background maintenance
+        UiWatchdog.onProviderCall("getHome", HomeEntry.CONTENT_URI);
+        mProvider.getMaintenance().noteQuery();
+
+        HomeShards shards = mProvider.getShards();
+        int shard = shards.shardOfId(id);
+        SQLiteDatabase database = shards.getDbHelper(shard).getReadableDatabase();
+        if (id <= shards.getTombstones(shard).getDeletedThroughId(database)) {
+            return null;
+        }
+        Cursor cursor = database.rawQuery(SELECT_HOME_SQL, new String[] { Long.toString(id) });
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return new Home(cursor.getLong(0), cursor.getLong(1), cursor.getString(2),
+                    cursor.isNull(3) ? null : cursor.getString(3), cursor.getInt(4),
+                    cursor.getInt(5), cursor.getLong(6));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Insert the home, checked like an insert through {@link HomeEntry#CONTENT_URI}, into the
+     * shard of its county. Returns the id of the new home, or -1 if the insertion failed.
+     *
+     * @throws IllegalArgumentException if the values of the home aren't valid
+     */
+    public long insertHome(Home home) {
+        UiWatchdog.onProviderCall("insertHome", HomeEntry.CONTENT_URI);
+        checkValues(home);
+
+        final String address = home.getAddress();
+        final String county = home.getCounty();
+        final int type = home.getType();
+        final int income = home.getIncome();
+        final String canonicalAddress = AddressNormalizer.normalize(address);
+        HomeShards shards = mProvider.getShards();
+        long id = shards.write(shards.shardOfCounty(county), new HomeGroupCommit.Write() {
+            @Override
+            public long apply(SQLiteDatabase database) {
+                SQLiteStatement insert = database.compileStatement(INSERT_SQL);
+                try {
+                    bindValues(insert, address, county, type, income, canonicalAddress);
+                    return insert.executeInsert();
+                } finally {
+                    insert.close();
+                }
+            }
+        });
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert " + home);
+            return -1;
+        }
+
+        mProvider.notifyHomesChanged(HomeEntry.CONTENT_URI, id, 1, false);
+        return id;
+    }
+
+    /**
+     * Write the values of the home into the live home with its id, as long as it still has
+     * the version of the home, unless that is {@link HomeBatch#ANY_VERSION}. Checked like an
+     * update through the URI of the home.
+     *
+     * @return the new version of the home, or -1 if it wasn't written because it is gone or has
+     *         another version; {@link #getHome} tells which
+     * @throws IllegalArgumentException if the home has no id, or its values aren't valid
+     */
+    public long updateHome(Home home) {
+        UiWatchdog.onProviderCall("updateHome", HomeEntry.CONTENT_URI);
+        if (home.getId() == Home.NO_ID) {
+            throw new IllegalArgumentException("Home to update has no id");
+        }
+        checkValues(home);
+
+        final long id = home.getId();
+        final long expectedVersion = home.getVersion();
+        final String address = home.getAddress();
+        final String county = home.getCounty();
+        final int type = home.getType();
+        final int income = home.getIncome();
+        final String canonicalAddress = AddressNormalizer.normalize(address);
+        HomeShards shards = mProvider.getShards();
+        int shard = shards.shardOfId(id);
+        final HomeTombstones tombstones = shards.getTombstones(shard);
+        long version = shards.write(shard, new HomeGroupCommit.Write() {
+            @Override
+            public long apply(SQLiteDatabase database) {
+                if (id <= tombstones.getDeletedThroughId(database)) {
+                    return -1;
+                }
+                boolean anyVersion = expectedVersion == HomeBatch.ANY_VERSION;
+                SQLiteStatement update = database.compileStatement(
+                        anyVersion ? UPDATE_SQL : UPDATE_VERSION_SQL);
+                try {
+                    bindValues(update, address, county, type, income, canonicalAddress);
+                    update.bindLong(6, id);
+                    if (!anyVersion) {
+                        update.bindLong(7, expectedVersion);
+                    }
+                    if (update.executeUpdateDelete() == 0) {
+                        return -1;
+                    }
+                } finally {
+                    update.close();
+                }
+
+                // Inside the transaction of the write, the version is still the one written
+                SQLiteStatement select = database.compileStatement(SELECT_VERSION_SQL);
+                try {
+                    select.bindLong(1, id);
+                    return select.simpleQueryForLong();
+                } finally {
+                    select.close();
+                }
+            }
+        });
+
+        mProvider.notifyHomesChanged(ContentUris.withAppendedId(HomeEntry.CONTENT_URI, id), id,
+                version == -1 ? 0 : 1, false);
+        return version;
+    }
+
+    /**
+     * Delete the live home with the given id as long as it still has the expected version,
+     * unless that is {@link HomeBatch#ANY_VERSION}, as a deletion that can be undone like the
+     * deletions through the URI of the home. Returns whether the home was deleted.
+     */
+    public boolean deleteHome(long id, long expectedVersion) {
+        UiWatchdog.onProviderCall("deleteHome", HomeEntry.CONTENT_URI);
+
+        // Deletes go through the bookkeeping of the deletions, which takes a selection
+        String selection = HomeEntry._ID + "=?";
+        String[] selectionArgs = { String.valueOf(id) };
+        if (expectedVersion != HomeBatch.ANY_VERSION) {
+            selection += " AND " + HomeEntry.COLUMN_HOME_VERSION + "=?";
+            selectionArgs = new String[] { selectionArgs[0], String.valueOf(expectedVersion) };
+        }
+        HomeShards shards = mProvider.getShards();
+        int rowsDeleted = shards.delete(shards.shardOfId(id), selection, selectionArgs);
+
+        mProvider.notifyHomesChanged(ContentUris.withAppendedId(HomeEntry.CONTENT_URI, id), id,
+                rowsDeleted, true);
+        return rowsDeleted != 0;
+    }
+
+    private static void checkValues(Home home) {
+        HomeProvider.checkAddress(home.getAddress());
+        HomeProvider.checkType(home.getType());
+        HomeProvider.checkIncome(home.getIncome());
+    }
+
+    /**
+     * Bind the values of a home to the first five parameters of {@link #INSERT_SQL} or
+     * {@link #UPDATE_SQL}.
+     */
+    private static void bindValues(SQLiteStatement statement, String address, String county,
+                                   int type, int income, String canonicalAddress) {
+        statement.bindString(1, address);
+        if (county == null) {
+            statement.bindNull(2);
+        } else {
+            statement.bindString(2, county);
+        }
+        statement.bindLong(3, type);
+        statement.bindLong(4, income);
+        statement.bindString(5, canonicalAddress);
+    }
+}
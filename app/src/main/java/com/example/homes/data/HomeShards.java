@@ -0,0 +1,557 @@
+package com.example.homes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+import com.example.homes.data.HomeContract.DeletionEntry;
+import com.example.homes.data.HomeContract.FacetEntry;
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The homes storage, split across one or more database files.
+ *
+ * With a single shard everything goes to shelter.db, as it always did. With more shards, new
+ * homes are placed by the hash of their county, so the writes for different counties take
+ * different database locks and every B-tree stays a fraction of the size. Shard 0 is still
+ * shelter.db, so switching sharding on keeps the existing homes where they are.
+ *
+ * Every shard hands out the ids of its homes from its own range, see {@link #firstIdOf(int)},
+ * which keeps ids unique across shards and lets a home be found from its id alone. Homes never
+ * move: changing the county of a home leaves it in its shard, the county only places new homes.
+ * The number of shards can therefore grow, but must never shrink.
+ *
+ * Queries over all homes run on every shard in parallel, on a small bounded pool, and are
+ * merged by {@link ShardMergeCursor} in the requested order. Writes to several shards commit
+ * shard by shard, deletions get the same id in every shard they touch so they are undone
+ * together.
+ */
+class HomeShards {
+
+    /** Each shard has 2^40 ids for its homes */
+    static final int SHARD_ID_BITS = 40;
+
+    /** Shard 0 keeps the name of the database from before there were shards */
+    static final String DATABASE_BASE_NAME = "shelter";
+
+    /** Group commit window meaning every write commits on its own */
+    static final long GROUP_COMMIT_OFF = -1;
+
+    /** Queries waiting for a pool thread per shard, beyond that the caller runs them itself */
+    private static final int QUEUED_QUERIES_PER_SHARD = 4;
+
+    /** How long an idle pool thread is kept around */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final HomeDbHelper[] mDbHelpers;
+    private final HomeTombstones[] mTombstones;
+
+    /** Runs the queries of the shards in parallel, null with a single shard */
+    private final ThreadPoolExecutor mQueryExecutor;
+
+    /** Gathers the inserts and updates of every shard into shared commits, null if off */
+    private final HomeGroupCommit[] mGroupCommits;
+
+    /** Last deletion id handed out, or -1 until it has been read from the databases */
+    private long mLastDeletionId = -1;
+
+    /**
+     * Create the database helpers for the given number of shards. Shard 0 is
+     * "{baseName}.db", every other shard "{baseName}-shard{index}.db".
+     */
+    static HomeDbHelper[] createDbHelpers(Context context, String baseName, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Invalid shard count " + shardCount);
+        }
+        HomeDbHelper[] dbHelpers = new HomeDbHelper[shardCount];
+        for (int shard = 0; shard < shardCount; shard++) {
+            String name = shard == 0 ? baseName + ".db" : baseName + "-shard" + shard + ".db";
+            dbHelpers[shard] = new HomeDbHelper(context, name, shard);
+        }
+        return dbHelpers;
+    }
+
+    HomeShards(HomeDbHelper[] dbHelpers, HomeDbMaintenance maintenance) {
+        this(dbHelpers, maintenance, GROUP_COMMIT_OFF);
+    }
+
+    /**
+     * @param groupCommitWindowMillis how long the inserts and updates of a shard are gathered
+     *                                into one commit, see {@link HomeGroupCommit}, or
+     *                                {@link #GROUP_COMMIT_OFF} to commit every one on its own
+     */
+    HomeShards(HomeDbHelper[] dbHelpers, HomeDbMaintenance maintenance,
+               long groupCommitWindowMillis) {
+        mDbHelpers = dbHelpers;
+        mTombstones = new HomeTombstones[dbHelpers.length];
+        for (int shard = 0; shard < dbHelpers.length; shard++) {
+            mTombstones[shard] = new HomeTombstones(dbHelpers[shard], maintenance);
+        }
+
+        if (groupCommitWindowMillis == GROUP_COMMIT_OFF) {
+            mGroupCommits = null;
+        } else {
+            mGroupCommits = new HomeGroupCommit[dbHelpers.length];
+            for (int shard = 0; shard < dbHelpers.length; shard++) {
+                mGroupCommits[shard] = new HomeGroupCommit(dbHelpers[shard],
+                        groupCommitWindowMillis);
+            }
+        }
+
+        if (dbHelpers.length == 1) {
+            mQueryExecutor = null;
+        } else {
+            // One thread per shard at most, and never more than there are cores to run them
+            int threads = Math.min(dbHelpers.length,
+                    Math.max(2, Runtime.getRuntime().availableProcessors()));
+            mQueryExecutor = new ThreadPoolExecutor(threads, threads,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(dbHelpers.length * QUEUED_QUERIES_PER_SHARD),
+                    new QueryThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+            mQueryExecutor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Returns the first home id of the given shard.
+     */
+    static long firstIdOf(int shard) {
+        return ((long) shard << SHARD_ID_BITS) + 1;
+    }
+
+    int getCount() {
+        return mDbHelpers.length;
+    }
+
+    HomeDbHelper getDbHelper(int shard) {
+        return mDbHelpers[shard];
+    }
+
+    HomeTombstones getTombstones(int shard) {
+        return mTombstones[shard];
+    }
+
+    /**
+     * Returns the shard holding the home with the given id. Ids beyond the shards can't
+     * exist, looking them up in shard 0 finds nothing.
+     */
+    int shardOfId(long id) {
+        long shard = id >>> SHARD_ID_BITS;
+        return shard < mDbHelpers.length ? (int) shard : 0;
+    }
+
+    /**
+     * Returns the shard new homes in the given county go to. The county is compared without
+     * case and surrounding whitespace, homes without a county go to shard 0.
+     */
+    int shardOfCounty(String county) {
+        if (TextUtils.isEmpty(county) || mDbHelpers.length == 1) {
+            return 0;
+        }
+        int hash = county.trim().toLowerCase(Locale.US).hashCode();
+        return (hash & Integer.MAX_VALUE) % mDbHelpers.length;
+    }
+
+    /**
+     * Returns a new deletion id, unused in every shard.
+     */
+    synchronized long nextDeletionId() {
+        if (mLastDeletionId < 0) {
+            long last = 0;
+            for (HomeTombstones tombstones : mTombstones) {
+                last = Math.max(last, tombstones.loadLastDeletionId());
+            }
+            mLastDeletionId = last;
+        }
+        return ++mLastDeletionId;
+    }
+
+    /**
+     * Forget what was read from the databases, after their rows were replaced by a restore.
+     */
+    synchronized void reload() {
+        mLastDeletionId = -1;
+        for (HomeTombstones tombstones : mTombstones) {
+            tombstones.reload();
+        }
+    }
+
+    /**
+     * Purge the homes of every expired deletion in every shard, after the given delay.
+     */
+    void schedulePurge(long delayMillis) {
+        for (HomeTombstones tombstones : mTombstones) {
+            tombstones.schedulePurge(delayMillis);
+        }
+    }
+
+    /**
+     * Query the live homes of every shard and merge them in the given order.
+     *
+     * @param orderBy one of the ORDER BY clauses of {@link HomeProvider#resolveSortOrder(String)}
+     * @param parallel whether the shards may be queried on the pool. Pass false while holding
+     *                 a transaction, the pool threads would wait for it on databases without
+     *                 write-ahead logging.
+     */
+    Cursor query(String[] projection, final String selection, final String[] selectionArgs,
+                 final String orderBy, boolean parallel) {
+        if (mDbHelpers.length == 1) {
+            return queryShard(0, projection, selection, selectionArgs, orderBy);
+        }
+
+        // The merge needs the sort columns, even those the caller didn't ask for
+        final String[] shardProjection;
+        if (projection == null) {
+            shardProjection = null;
+        } else {
+            List<String> columns = new ArrayList<>(Arrays.asList(projection));
+            for (String column : ShardMergeCursor.getSortColumns(orderBy)) {
+                if (!containsIgnoreCase(columns, column)) {
+                    columns.add(column);
+                }
+            }
+            shardProjection = columns.toArray(new String[columns.size()]);
+        }
+
+        Cursor[] cursors = new Cursor[mDbHelpers.length];
+        try {
+            if (parallel) {
+                List<Future<Cursor>> futures = new ArrayList<>();
+                for (int shard = 0; shard < mDbHelpers.length; shard++) {
+                    final int index = shard;
+                    futures.add(mQueryExecutor.submit(new Callable<Cursor>() {
+                        @Override
+                        public Cursor call() {
+                            Cursor cursor = queryShard(index, shardProjection, selection,
+                                    selectionArgs, orderBy);
+                            // Run the query on this thread, not when the merge first reads it
+                            cursor.getCount();
+                            return cursor;
+                        }
+                    }));
+                }
+                for (int shard = 0; shard < cursors.length; shard++) {
+                    cursors[shard] = getResult(futures.get(shard));
+                }
+            } else {
+                for (int shard = 0; shard < cursors.length; shard++) {
+                    cursors[shard] = queryShard(shard, shardProjection, selection, selectionArgs,
+                            orderBy);
+                }
+            }
+
+            int columnCount = projection == null
+                    ? cursors[0].getColumnCount() : projection.length;
+            Cursor merged = new ShardMergeCursor(cursors, columnCount, orderBy);
+            cursors = null;
+            return merged;
+        } finally {
+            // Something failed, don't leak the cursors of the other shards
+            if (cursors != null) {
+                for (Cursor cursor : cursors) {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+            }
+        }
+    }
+
+    private Cursor queryShard(int shard, String[] projection, String selection,
+                              String[] selectionArgs, String orderBy) {
+        SQLiteDatabase database = mDbHelpers[shard].getReadableDatabase();
+        selection = HomeTombstones.appendSelection(selection,
+                mTombstones[shard].liveSelection(database));
+        return database.query(HomeEntry.TABLE_NAME, projection, selection, selectionArgs,
+                null, null, orderBy);
+    }
+
+    private static Cursor getResult(Future<Cursor> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new IllegalStateException("Interrupted while querying the shards", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static boolean containsIgnoreCase(List<String> columns, String column) {
+        for (String candidate : columns) {
+            if (candidate.trim().equalsIgnoreCase(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Update the live homes matching the selection in every shard. Return the number of homes
+     * updated.
+     */
+    int update(ContentValues values, String selection, String[] selectionArgs) {
+        int rowsUpdated = 0;
+        for (int shard = 0; shard < mDbHelpers.length; shard++) {
+            rowsUpdated += update(shard, values, selection, selectionArgs);
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Update the live homes matching the selection in the given shard. Return the number of
+     * homes updated.
+     */
+    int update(final int shard, final ContentValues values, final String selection,
+               final String[] selectionArgs) {
+        HomeGroupCommit.Write write = new HomeGroupCommit.Write() {
+            @Override
+            public long apply(SQLiteDatabase database) {
+                return database.update(HomeEntry.TABLE_NAME, values,
+                        HomeTombstones.appendSelection(selection,
+                                mTombstones[shard].liveSelection(database)),
+                        selectionArgs);
+            }
+        };
+        return (int) write(shard, write);
+    }
+
+    /**
+     * Insert a home into the given shard. Return its id, or -1 if the insertion failed.
+     */
+    long insert(int shard, final ContentValues values) {
+        return write(shard, new HomeGroupCommit.Write() {
+            @Override
+            public long apply(SQLiteDatabase database) {
+                return database.insert(HomeEntry.TABLE_NAME, null, values);
+            }
+        });
+    }
+
+    /**
+     * Apply the write to the given shard, in a commit shared with other writers when group
+     * commit is on, or on its own otherwise.
+     */
+    long write(int shard, HomeGroupCommit.Write write) {
+        if (mGroupCommits != null) {
+            return mGroupCommits[shard].write(write);
+        }
+        return write.apply(mDbHelpers[shard].getWritableDatabase());
+    }
+
+    /**
+     * Returns the group commit of the given shard, or null if group commit is off.
+     */
+    HomeGroupCommit getGroupCommit(int shard) {
+        return mGroupCommits == null ? null : mGroupCommits[shard];
+    }
+
+    /**
+     * Delete the live homes matching the selection in every shard, as one deletion that can
+     * be undone. Return the number of homes deleted.
+     */
+    int delete(String selection, String[] selectionArgs) {
+        return delete(selection, selectionArgs, nextDeletionId());
+    }
+
+    /**
+     * Delete the live homes matching the selection in every shard, as the deletion with the
+     * given id. Return the number of homes deleted.
+     */
+    int delete(String selection, String[] selectionArgs, long deletionId) {
+        int rowsDeleted = 0;
+        for (HomeTombstones tombstones : mTombstones) {
+            rowsDeleted += tombstones.delete(deletionId, selection, selectionArgs);
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Delete the live homes matching the selection in the given shard, as one deletion that
+     * can be undone. Return the number of homes deleted.
+     */
+    int delete(int shard, String selection, String[] selectionArgs) {
+        return delete(shard, selection, selectionArgs, nextDeletionId());
+    }
+
+    /**
+     * Delete the live homes matching the selection in the given shard, as the deletion with
+     * the given id. Return the number of homes deleted.
+     */
+    int delete(int shard, String selection, String[] selectionArgs, long deletionId) {
+        return mTombstones[shard].delete(deletionId, selection, selectionArgs);
+    }
+
+    /**
+     * Delete the live homes with the given ids, as the deletion with the given id, which can
+     * be undone. Return the number of homes deleted.
+     */
+    int delete(Collection<Long> ids, long deletionId) {
+        List<List<Long>> idsOfShards = new ArrayList<>();
+        for (int shard = 0; shard < mDbHelpers.length; shard++) {
+            idsOfShards.add(new ArrayList<Long>());
+        }
+        for (long id : ids) {
+            idsOfShards.get(shardOfId(id)).add(id);
+        }
+
+        int rowsDeleted = 0;
+        for (int shard = 0; shard < mDbHelpers.length; shard++) {
+            rowsDeleted += mTombstones[shard].delete(deletionId, idsOfShards.get(shard));
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Undo the given deletion in every shard it touched, if it is still inside its undo window.
+     * Return 1 if the deletion was undone, or 0 if it doesn't exist, has expired or is covered
+     * by a later deletion of all homes in any shard, in which case no shard undoes it.
+     */
+    int undo(long deletionId) {
+        for (HomeTombstones tombstones : mTombstones) {
+            if (tombstones.isCovered(deletionId)) {
+                return 0;
+            }
+        }
+        int undone = 0;
+        for (HomeTombstones tombstones : mTombstones) {
+            undone |= tombstones.undo(deletionId);
+        }
+        return undone;
+    }
+
+    /**
+     * Query the deletions that can still be undone, the most recent one first. A deletion
+     * that touched several shards is one row, with the homes of every shard counted.
+     */
+    Cursor queryDeletions(String[] projection, String selection, String[] selectionArgs) {
+        if (mDbHelpers.length == 1) {
+            return mTombstones[0].queryDeletions(projection, selection, selectionArgs);
+        }
+
+        String[] columns = {
+                DeletionEntry._ID,
+                DeletionEntry.COLUMN_DELETION_TIME,
+                DeletionEntry.COLUMN_DELETION_MAX_HOME_ID,
+                DeletionEntry.COLUMN_DELETION_COUNT };
+
+        // Deletion id to time, highest hidden home id and count, the most recent one first
+        Map<Long, long[]> deletions = new TreeMap<>(Collections.<Long>reverseOrder());
+        for (HomeTombstones tombstones : mTombstones) {
+            Cursor cursor = tombstones.queryDeletions(columns, selection, selectionArgs);
+            try {
+                while (cursor.moveToNext()) {
+                    long[] deletion = deletions.get(cursor.getLong(0));
+                    if (deletion == null) {
+                        deletion = new long[3];
+                        deletions.put(cursor.getLong(0), deletion);
+                    }
+                    deletion[0] = Math.max(deletion[0], cursor.getLong(1));
+                    deletion[1] = Math.max(deletion[1], cursor.getLong(2));
+                    deletion[2] += cursor.getLong(3);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        if (projection == null) {
+            projection = columns;
+        }
+        int[] sources = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            sources[i] = Arrays.asList(columns).indexOf(projection[i].trim());
+            if (sources[i] < 0) {
+                throw new IllegalArgumentException("Unknown deletion column " + projection[i]);
+            }
+        }
+
+        MatrixCursor cursor = new MatrixCursor(projection, deletions.size());
+        for (Map.Entry<Long, long[]> entry : deletions.entrySet()) {
+            Object[] row = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                row[i] = sources[i] == 0 ? entry.getKey() : entry.getValue()[sources[i] - 1];
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * Query the facet counts of the live homes of every shard, see {@link FacetEntry}.
+     */
+    Cursor queryFacets() {
+        // The facets in a fixed order, and their values with the most homes first
+        Map<String, Map<String, Long>> counts = new LinkedHashMap<>();
+        counts.put(FacetEntry.FACET_COUNTY, new HashMap<String, Long>());
+        counts.put(FacetEntry.FACET_TYPE, new HashMap<String, Long>());
+        counts.put(FacetEntry.FACET_INCOME_BAND, new HashMap<String, Long>());
+        for (int shard = 0; shard < mDbHelpers.length; shard++) {
+            SQLiteDatabase database = mDbHelpers[shard].getReadableDatabase();
+            HomeFacets.addCounts(database, mTombstones[shard].getDeletedThroughId(database),
+                    counts);
+        }
+
+        MatrixCursor cursor = new MatrixCursor(new String[] {
+                FacetEntry.COLUMN_FACET,
+                FacetEntry.COLUMN_FACET_VALUE,
+                FacetEntry.COLUMN_FACET_COUNT });
+        for (Map.Entry<String, Map<String, Long>> facet : counts.entrySet()) {
+            List<Map.Entry<String, Long>> values = new ArrayList<>(facet.getValue().entrySet());
+            Collections.sort(values, new Comparator<Map.Entry<String, Long>>() {
+                @Override
+                public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                    if (!a.getValue().equals(b.getValue())) {
+                        return a.getValue() > b.getValue() ? -1 : 1;
+                    }
+                    return a.getKey().compareTo(b.getKey());
+                }
+            });
+            for (Map.Entry<String, Long> value : values) {
+                cursor.addRow(new Object[] { facet.getKey(), value.getKey(), value.getValue() });
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Creates the background threads querying the shards.
+     */
+    private static final class QueryThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "HomeShards-query-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
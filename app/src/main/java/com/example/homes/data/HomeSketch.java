@@ -0,0 +1,473 @@
+package com.example.homes.data;
+
+import com.example.homes.data.HomeContract.StatsEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed-size summaries of the live homes of one shard, from which {@link StatsEntry} is
+ * answered without reading the homes, see {@link HomeSketches}:
+ *
+ * <ul>
+ * <li>a HyperLogLog of the counties, for the number of distinct counties,</li>
+ * <li>a Count-Min sketch of the counties with a short list of the heaviest ones, for the
+ * counties with the most homes,</li>
+ * <li>a histogram of the incomes in logarithmic buckets, for their percentiles.</li>
+ * </ul>
+ *
+ * Homes are added and removed one at a time. The Count-Min counters and the histogram take a
+ * removal back exactly, but a HyperLogLog can't forget a county and the list of heavy counties
+ * only sees a county again when a home is added to it, so both drift as homes are removed.
+ * {@link #getRemovedCount()} tells how far, and the shard is summarized from scratch again
+ * once it is too far.
+ *
+ * The percentiles are those of DDSketch: bucket i holds the incomes from gamma^(i-1) up to
+ * gamma^i, and is reported as the value between its bounds that is at most
+ * {@link StatsEntry#INCOME_RELATIVE_ERROR} away from either. 32-bit incomes need about 1100
+ * buckets, so unlike a t-digest or KLL sketch, a removal is as cheap and exact as an addition,
+ * and the sketches of the shards merge by adding up.
+ *
+ * Sketches are not thread safe, {@link HomeSketches} only changes copies of the sketches it
+ * publishes.
+ */
+final class HomeSketch {
+
+    /** Version of the encoding of {@link #encode}, older sketches are summarized again */
+    static final int FORMAT_VERSION = 2;
+
+    /** Registers of the HyperLogLog are indexed by the first bits of the hash */
+    private static final int HLL_INDEX_BITS = 12;
+    private static final int HLL_REGISTERS = 1 << HLL_INDEX_BITS;
+
+    /** Rows and counters per row of the Count-Min sketch, a power of 2 */
+    private static final int CM_DEPTH = 4;
+    private static final int CM_WIDTH = 1024;
+
+    /** Heavy counties kept per sketch, more than reported so that the last ones are right */
+    private static final int HEAVY_CAPACITY = 2 * StatsEntry.TOP_COUNTIES;
+
+    private static final double GAMMA =
+            (1 + StatsEntry.INCOME_RELATIVE_ERROR) / (1 - StatsEntry.INCOME_RELATIVE_ERROR);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+
+    /** Buckets of the incomes from 1 on, income 0 has a count of its own */
+    private static final int INCOME_BUCKETS = bucketOf(Integer.MAX_VALUE) + 1;
+
+    private long mHomeCount;
+    private long mRemovedCount;
+    private final byte[] mRegisters;
+    private final int[] mCounters;
+    private final Map<String, Integer> mHeavyCounties;
+    private long mZeroIncomeCount;
+    private final int[] mIncomeCounts;
+
+    HomeSketch() {
+        mRegisters = new byte[HLL_REGISTERS];
+        mCounters = new int[CM_DEPTH * CM_WIDTH];
+        mHeavyCounties = new HashMap<>();
+        mIncomeCounts = new int[INCOME_BUCKETS];
+    }
+
+    /**
+     * Returns a copy of the sketch, which can be changed without changing this one.
+     */
+    HomeSketch copy() {
+        HomeSketch copy = new HomeSketch();
+        copy.merge(this);
+        return copy;
+    }
+
+    /**
+     * Add a live home with the given county, null or "" if it has none, and income.
+     */
+    void add(String county, long income) {
+        mHomeCount++;
+        if (county != null && !county.isEmpty()) {
+            long hash = hash(county);
+            int index = (int) (hash >>> (64 - HLL_INDEX_BITS));
+            // The rank is the position of the first 1 in the remaining bits, the marker bit
+            // stops it when they are all 0
+            int rank = Long.numberOfLeadingZeros(
+                    (hash << HLL_INDEX_BITS) | (1L << (HLL_INDEX_BITS - 1))) + 1;
+            if (rank > mRegisters[index]) {
+                mRegisters[index] = (byte) rank;
+            }
+            offerHeavyCounty(county, addToCounters(hash, 1));
+        }
+        if (income <= 0) {
+            mZeroIncomeCount++;
+        } else {
+            mIncomeCounts[bucketOf(income)]++;
+        }
+    }
+
+    /**
+     * Remove a live home added before with the given county and income.
+     */
+    void remove(String county, long income) {
+        mHomeCount--;
+        if (county != null && !county.isEmpty()) {
+            mRemovedCount++;
+            int estimate = addToCounters(hash(county), -1);
+            if (mHeavyCounties.containsKey(county)) {
+                if (estimate > 0) {
+                    mHeavyCounties.put(county, estimate);
+                } else {
+                    mHeavyCounties.remove(county);
+                }
+            }
+        }
+        if (income <= 0) {
+            mZeroIncomeCount--;
+        } else {
+            mIncomeCounts[bucketOf(income)]--;
+        }
+    }
+
+    /**
+     * Add the homes of the other sketch to this one, e.g. to sum up the shards. The heavy
+     * counties of both are kept, and estimated again by {@link #getTopCounties}.
+     */
+    void merge(HomeSketch other) {
+        mHomeCount += other.mHomeCount;
+        mRemovedCount += other.mRemovedCount;
+        for (int i = 0; i < HLL_REGISTERS; i++) {
+            if (other.mRegisters[i] > mRegisters[i]) {
+                mRegisters[i] = other.mRegisters[i];
+            }
+        }
+        for (int i = 0; i < mCounters.length; i++) {
+            mCounters[i] += other.mCounters[i];
+        }
+        for (Map.Entry<String, Integer> heavy : other.mHeavyCounties.entrySet()) {
+            Integer count = mHeavyCounties.get(heavy.getKey());
+            mHeavyCounties.put(heavy.getKey(),
+                    count == null ? heavy.getValue() : count + heavy.getValue());
+        }
+        mZeroIncomeCount += other.mZeroIncomeCount;
+        for (int i = 0; i < INCOME_BUCKETS; i++) {
+            mIncomeCounts[i] += other.mIncomeCounts[i];
+        }
+    }
+
+    /**
+     * Returns the number of live homes, which is exact.
+     */
+    long getHomeCount() {
+        return mHomeCount;
+    }
+
+    /**
+     * Returns the number of homes with a county removed since the sketch was started.
+     */
+    long getRemovedCount() {
+        return mRemovedCount;
+    }
+
+    /**
+     * Returns the estimated number of distinct counties of the homes, counting every county
+     * a home had since the sketch was started.
+     */
+    long getDistinctCounties() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : mRegisters) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double m = HLL_REGISTERS;
+        double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+        // Linear counting is closer while many registers are still empty
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log(m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * Returns the income below which the given share of the homes are, between 0 and 1, or
+     * 0 without homes.
+     */
+    long getIncomeQuantile(double quantile) {
+        long homeCount = mZeroIncomeCount;
+        for (int count : mIncomeCounts) {
+            homeCount += count;
+        }
+        if (homeCount <= 0) {
+            return 0;
+        }
+        long rank = (long) (quantile * (homeCount - 1));
+        long seen = mZeroIncomeCount;
+        if (seen > rank) {
+            return 0;
+        }
+        for (int bucket = 0; bucket < INCOME_BUCKETS; bucket++) {
+            seen += mIncomeCounts[bucket];
+            if (seen > rank) {
+                return Math.round(2 * Math.pow(GAMMA, bucket) / (GAMMA + 1));
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns up to the given number of counties with the most homes and their estimated
+     * number of homes, which is never below the actual one, the heaviest first.
+     */
+    List<Map.Entry<String, Integer>> getTopCounties(int limit) {
+        List<Map.Entry<String, Integer>> counties = new ArrayList<>();
+        for (String county : mHeavyCounties.keySet()) {
+            int estimate = estimate(hash(county));
+            if (estimate > 0) {
+                counties.add(new AbstractMap.SimpleImmutableEntry<>(county, estimate));
+            }
+        }
+        Collections.sort(counties, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+                if (!a.getValue().equals(b.getValue())) {
+                    return a.getValue() > b.getValue() ? -1 : 1;
+                }
+                return a.getKey().compareTo(b.getKey());
+            }
+        });
+        return counties.size() > limit ? counties.subList(0, limit) : counties;
+    }
+
+    /**
+     * Encode the sketch for {@link #decode}. Only the registers, counters and buckets that
+     * aren't 0 are written, as variable-length numbers after the distance from the previous
+     * one, so a sketch of a few hundred counties takes a few kilobytes.
+     */
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            writeVarLong(out, mHomeCount);
+            writeVarLong(out, mRemovedCount);
+
+            int[] registers = new int[HLL_REGISTERS];
+            for (int i = 0; i < HLL_REGISTERS; i++) {
+                registers[i] = mRegisters[i];
+            }
+            writeSparse(out, registers);
+            writeSparse(out, mCounters);
+
+            writeVarLong(out, mHeavyCounties.size());
+            for (Map.Entry<String, Integer> heavy : mHeavyCounties.entrySet()) {
+                writeString(out, heavy.getKey());
+                writeVarLong(out, heavy.getValue());
+            }
+
+            writeVarLong(out, mZeroIncomeCount);
+            writeSparse(out, mIncomeCounts);
+            out.flush();
+        } catch (IOException e) {
+            // Never thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the sketch encoded by {@link #encode}.
+     *
+     * @throws IOException if the bytes aren't a sketch
+     */
+    static HomeSketch decode(byte[] encoded) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        HomeSketch sketch = new HomeSketch();
+        sketch.mHomeCount = readVarLong(in);
+        sketch.mRemovedCount = readVarLong(in);
+
+        int[] registers = new int[HLL_REGISTERS];
+        readSparse(in, registers);
+        for (int i = 0; i < HLL_REGISTERS; i++) {
+            sketch.mRegisters[i] = (byte) registers[i];
+        }
+        readSparse(in, sketch.mCounters);
+
+        long heavyCount = readVarLong(in);
+        for (long i = 0; i < heavyCount; i++) {
+            String county = readString(in);
+            sketch.mHeavyCounties.put(county, (int) readVarLong(in));
+        }
+
+        sketch.mZeroIncomeCount = readVarLong(in);
+        readSparse(in, sketch.mIncomeCounts);
+        return sketch;
+    }
+
+    /**
+     * Add the given amount to the counters of the county in every row, and return its
+     * estimated number of homes: the lowest of its counters, which collisions only raise.
+     */
+    private int addToCounters(long hash, int amount) {
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < CM_DEPTH; row++) {
+            int index = counterIndex(hash, row);
+            mCounters[index] += amount;
+            estimate = Math.min(estimate, mCounters[index]);
+        }
+        return estimate;
+    }
+
+    private int estimate(long hash) {
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < CM_DEPTH; row++) {
+            estimate = Math.min(estimate, mCounters[counterIndex(hash, row)]);
+        }
+        return estimate;
+    }
+
+    /**
+     * Returns the counter of the county in the given row. The rows hash with
+     * h1 + row * h2, two halves of one 64-bit hash, which is as good as independent hashes.
+     */
+    private static int counterIndex(long hash, int row) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        return row * CM_WIDTH + ((h1 + row * h2) & (CM_WIDTH - 1));
+    }
+
+    /**
+     * Keep the county among the heavy ones if it has more homes than the lightest of them.
+     */
+    private void offerHeavyCounty(String county, int estimate) {
+        if (mHeavyCounties.containsKey(county) || mHeavyCounties.size() < HEAVY_CAPACITY) {
+            mHeavyCounties.put(county, estimate);
+            return;
+        }
+        String lightest = null;
+        int lightestCount = Integer.MAX_VALUE;
+        for (Map.Entry<String, Integer> heavy : mHeavyCounties.entrySet()) {
+            if (heavy.getValue() < lightestCount) {
+                lightest = heavy.getKey();
+                lightestCount = heavy.getValue();
+            }
+        }
+        if (estimate > lightestCount) {
+            mHeavyCounties.remove(lightest);
+            mHeavyCounties.put(county, estimate);
+        }
+    }
+
+    /**
+     * Returns the bucket of the histogram holding a positive income.
+     */
+    private static int bucketOf(long income) {
+        return Math.max(0, (int) Math.ceil(Math.log(income) / LOG_GAMMA));
+    }
+
+    /**
+     * Returns a 64-bit hash of the county: FNV-1a over its chars, followed by the final mix
+     * of MurmurHash3 so that every bit depends on every char.
+     */
+    static long hash(String county) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < county.length(); i++) {
+            hash ^= county.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static void writeSparse(DataOutputStream out, int[] values) throws IOException {
+        int count = 0;
+        for (int value : values) {
+            if (value != 0) {
+                count++;
+            }
+        }
+        writeVarLong(out, count);
+        int previous = -1;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != 0) {
+                writeVarLong(out, i - previous);
+                writeVarLong(out, values[i]);
+                previous = i;
+            }
+        }
+    }
+
+    private static void readSparse(DataInputStream in, int[] values) throws IOException {
+        long count = readVarLong(in);
+        int index = -1;
+        for (long i = 0; i < count; i++) {
+            index += (int) readVarLong(in);
+            if (index < 0 || index >= values.length) {
+                throw new IOException("Sketch index out of range: " + index);
+            }
+            values[index] = (int) readVarLong(in);
+        }
+    }
+
+    /**
+     * Write a number that is usually small and never negative in as few bytes as it needs,
+     * 7 bits per byte.
+     */
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed number in sketch");
+    }
+
+    /**
+     * Write a string as its UTF-8 length and its UTF-8 bytes, so that a county of any length
+     * can be encoded.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        long length = readVarLong(in);
+        if (length > in.available()) {
+            throw new IOException("Sketch string length out of range: " + length);
+        }
+        byte[] bytes = new byte[(int) length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    @Override
+    public String toString() {
+        return "HomeSketch{homes=" + mHomeCount + ", removed=" + mRemovedCount
+                + ", counties=" + getDistinctCounties() + ", heavy=" + mHeavyCounties.size()
+                + ", p50=" + getIncomeQuantile(0.5) + "}";
+    }
+}
@@ -0,0 +1,572 @@
+package com.example.homes.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.homes.data.HomeContract.DeletionEntry;
+import com.example.homes.data.HomeContract.HomeEntry;
+import com.example.homes.data.HomeContract.StatsEntry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The statistics of {@link StatsEntry}, estimated from a {@link HomeSketch} of every shard,
+ * kept next to the homes.
+ *
+ * Triggers on the homes table log the county and income every home had and has after it is
+ * inserted, updated, deleted, restored or purged, on every write path and in the same
+ * transaction as the write. After a write the provider schedules an update on the background
+ * thread of {@link HomeDbMaintenance}, which applies the log to the sketch of the shard and
+ * stores the sketch and drops the log it applied in one transaction, so a change is counted
+ * exactly once even if the process goes away in between. The statistics are then worked out
+ * from the sketches of the shards once, and queries only copy them out.
+ *
+ * A shard is summarized from scratch by reading all of its homes: the first time, when the
+ * encoding of the sketch changes, after a deletion of all homes is made or undone (it hides
+ * or shows homes without touching them, see {@link HomeTombstones}), and when so many homes
+ * were removed that the counties have drifted, see {@link HomeSketch}. The homes are read in
+ * ranges of ids, each in a short transaction that also notes how far the log went, so
+ * writers are never held up for long. Of the log written during the scan, only the changes
+ * to homes of ranges read before are applied afterwards, the others were read as changed.
+ */
+final class HomeSketches {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = HomeSketches.class.getSimpleName();
+
+    /** Table of the changes to the live homes not in the sketch yet, filled by the triggers */
+    static final String LOG_TABLE_NAME = "sketch_log";
+    private static final String COLUMN_HOME_ID = "home_id";
+    /** 1 for a change that can only be applied by summarizing the shard from scratch */
+    private static final String COLUMN_REBUILD = "rebuild";
+    /** 1 if the home was live before the change, with its county and income */
+    private static final String COLUMN_OLD_LIVE = "old_live";
+    private static final String COLUMN_OLD_COUNTY = "old_county";
+    private static final String COLUMN_OLD_INCOME = "old_income";
+    /** 1 if the home is live after the change, with its county and income */
+    private static final String COLUMN_NEW_LIVE = "new_live";
+    private static final String COLUMN_NEW_COUNTY = "new_county";
+    private static final String COLUMN_NEW_INCOME = "new_income";
+
+    /** Table of a single row with the encoded sketch of the shard */
+    static final String STATE_TABLE_NAME = "sketch_state";
+    private static final String COLUMN_FORMAT_VERSION = "format_version";
+    private static final String COLUMN_SKETCH = "sketch";
+
+    private static final String[] LOG_COLUMNS = {
+            "_id",
+            COLUMN_HOME_ID,
+            COLUMN_REBUILD,
+            COLUMN_OLD_LIVE,
+            COLUMN_OLD_COUNTY,
+            COLUMN_OLD_INCOME,
+            COLUMN_NEW_LIVE,
+            COLUMN_NEW_COUNTY,
+            COLUMN_NEW_INCOME };
+
+    /** Highest home id hidden by a pending deletion of all homes, as seen by a trigger */
+    private static final String HIDDEN_THROUGH_ID = "(SELECT IFNULL(MAX("
+            + DeletionEntry.COLUMN_DELETION_MAX_HOME_ID + "), 0) FROM "
+            + DeletionEntry.TABLE_NAME + ")";
+
+    /** Delay before an update, so that a burst of writes is applied at once */
+    private static final long UPDATE_DELAY_MILLIS = 100;
+
+    /** Changes applied in one transaction of an update */
+    private static final int LOG_ROWS_PER_UPDATE = 1000;
+
+    /** Ids per range of a scan from scratch */
+    private static final int RANGE_IDS = 8192;
+
+    /**
+     * Homes with a county removed from a sketch after which the shard is summarized from
+     * scratch, as a share of its homes but at least {@link #MIN_REMOVED_FOR_REBUILD}
+     */
+    private static final double REMOVED_SHARE_FOR_REBUILD = 0.25;
+    private static final int MIN_REMOVED_FOR_REBUILD = 1000;
+
+    /** Columns of the statistics of all homes */
+    private static final String[] STATS_COLUMNS = {
+            StatsEntry.COLUMN_HOME_COUNT,
+            StatsEntry.COLUMN_DISTINCT_COUNTIES,
+            StatsEntry.COLUMN_INCOME_P50,
+            StatsEntry.COLUMN_INCOME_P90,
+            StatsEntry.COLUMN_INCOME_P99 };
+
+    /** Columns of the counties with the most homes */
+    private static final String[] COUNTY_COLUMNS = {
+            StatsEntry.COLUMN_COUNTY,
+            StatsEntry.COLUMN_HOME_COUNT };
+
+    private final Context mContext;
+    private final HomeShards mShards;
+    private final HomeDbMaintenance mMaintenance;
+
+    /** Sketch of every shard as stored, only used by updates */
+    private final HomeSketch[] mSketches;
+
+    /** Statistics of the sketches of the last update, or null until they are read */
+    private final AtomicReference<Stats> mStats = new AtomicReference<>();
+
+    /** Whether an update is already scheduled */
+    private final AtomicBoolean mUpdatePending = new AtomicBoolean();
+
+    /** Number of shards summarized from scratch so far */
+    private final AtomicInteger mRebuildCount = new AtomicInteger();
+
+    HomeSketches(Context context, HomeShards shards, HomeDbMaintenance maintenance) {
+        mContext = context;
+        mShards = shards;
+        mMaintenance = maintenance;
+        mSketches = new HomeSketch[shards.getCount()];
+    }
+
+    /**
+     * Create the sketch tables and the triggers logging the changes to the live homes. The
+     * existing homes are summarized by the first update, as the shard has no sketch yet.
+     */
+    static void create(SQLiteDatabase db) {
+        // Ids only grow, so the log written after a point in time is all above its last id
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + LOG_TABLE_NAME + " ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COLUMN_HOME_ID + " INTEGER NOT NULL, "
+                + COLUMN_REBUILD + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_OLD_LIVE + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_OLD_COUNTY + " TEXT, "
+                + COLUMN_OLD_INCOME + " INTEGER, "
+                + COLUMN_NEW_LIVE + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_NEW_COUNTY + " TEXT, "
+                + COLUMN_NEW_INCOME + " INTEGER);");
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + STATE_TABLE_NAME + " ("
+                + COLUMN_FORMAT_VERSION + " INTEGER NOT NULL, "
+                + COLUMN_SKETCH + " BLOB NOT NULL);");
+
+        String id = HomeEntry._ID;
+        String deleted = HomeEntry.COLUMN_HOME_DELETED;
+        String county = HomeEntry.COLUMN_HOME_COUNTY;
+        String income = HomeEntry.COLUMN_HOME_INCOME;
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS homes_sketches_insert AFTER INSERT ON "
+                + HomeEntry.TABLE_NAME + " WHEN new." + deleted + " = 0"
+                + " BEGIN " + logStatement("new." + id, null, "new") + " END;");
+        // Tombstoning and restoring a home change its deleted flag. Homes hidden by a
+        // deletion of all homes aren't in the sketch, whatever their flag.
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS homes_sketches_update AFTER UPDATE OF "
+                + county + ", " + income + ", " + deleted + " ON " + HomeEntry.TABLE_NAME
+                + " WHEN (old." + deleted + " = 0 OR new." + deleted + " = 0)"
+                + " AND ((old." + deleted + " = 0) <> (new." + deleted + " = 0)"
+                + " OR old." + county + " IS NOT new." + county
+                + " OR old." + income + " IS NOT new." + income + ")"
+                + " AND new." + id + " > " + HIDDEN_THROUGH_ID
+                + " BEGIN " + logStatement("new." + id, "old", "new") + " END;");
+        // Tombstoned homes were taken out when they were deleted, and homes hidden by a
+        // deletion of all homes when the shard was summarized again
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS homes_sketches_delete AFTER DELETE ON "
+                + HomeEntry.TABLE_NAME + " WHEN old." + deleted + " = 0"
+                + " AND old." + id + " > " + HIDDEN_THROUGH_ID
+                + " BEGIN " + logStatement("old." + id, "old", null) + " END;");
+
+        // No home row changes when all homes are deleted or brought back, so the log asks for
+        // the shard to be summarized again instead. The row of a deletion whose homes were
+        // purged already goes without a rebuild, as no home up to its bound is left.
+        String rebuild = "INSERT INTO " + LOG_TABLE_NAME + " (" + COLUMN_HOME_ID + ", "
+                + COLUMN_REBUILD + ") VALUES (0, 1);";
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS deletions_sketches_insert AFTER INSERT ON "
+                + DeletionEntry.TABLE_NAME + " WHEN new."
+                + DeletionEntry.COLUMN_DELETION_MAX_HOME_ID + " > 0"
+                + " BEGIN " + rebuild + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS deletions_sketches_delete AFTER DELETE ON "
+                + DeletionEntry.TABLE_NAME + " WHEN old."
+                + DeletionEntry.COLUMN_DELETION_MAX_HOME_ID + " > 0 AND EXISTS (SELECT 1 FROM "
+                + HomeEntry.TABLE_NAME + " WHERE " + id + " <= old."
+                + DeletionEntry.COLUMN_DELETION_MAX_HOME_ID + ")"
+                + " BEGIN " + rebuild + " END;");
+    }
+
+    /**
+     * Returns the statement logging a change to a home, from the values of the "old" row to
+     * those of the "new" row, either of which is null if the home isn't live on that side.
+     */
+    private static String logStatement(String homeId, String oldRow, String newRow) {
+        String oldLive = "0";
+        String newLive = "0";
+        if (oldRow != null && newRow != null) {
+            oldLive = "(" + oldRow + "." + HomeEntry.COLUMN_HOME_DELETED + " = 0)";
+            newLive = "(" + newRow + "." + HomeEntry.COLUMN_HOME_DELETED + " = 0)";
+        } else if (oldRow != null) {
+            oldLive = "1";
+        } else {
+            newLive = "1";
+        }
+        return "INSERT INTO " + LOG_TABLE_NAME + " (" + TextUtils.join(", ", new String[] {
+                COLUMN_HOME_ID, COLUMN_OLD_LIVE, COLUMN_OLD_COUNTY, COLUMN_OLD_INCOME,
+                COLUMN_NEW_LIVE, COLUMN_NEW_COUNTY, COLUMN_NEW_INCOME })
+                + ") VALUES (" + homeId + ", "
+                + oldLive + ", " + column(oldRow, HomeEntry.COLUMN_HOME_COUNTY) + ", "
+                + column(oldRow, HomeEntry.COLUMN_HOME_INCOME) + ", "
+                + newLive + ", " + column(newRow, HomeEntry.COLUMN_HOME_COUNTY) + ", "
+                + column(newRow, HomeEntry.COLUMN_HOME_INCOME) + ");";
+    }
+
+    private static String column(String row, String column) {
+        return row == null ? "NULL" : row + "." + column;
+    }
+
+    /**
+     * Apply the logged changes on the background thread, after a short delay. Called after
+     * every write, the writes of the delay are applied together.
+     */
+    void scheduleUpdate() {
+        if (mUpdatePending.compareAndSet(false, true)) {
+            mMaintenance.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    mUpdatePending.set(false);
+                    try {
+                        update();
+                    } catch (RuntimeException e) {
+                        Log.e(LOG_TAG, "Failed to update the sketches", e);
+                    }
+                }
+            }, UPDATE_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Apply the changes logged in every shard, summarizing the shards that need it from
+     * scratch. Return whether any sketch changed, the listeners of {@link StatsEntry} are
+     * then notified.
+     */
+    synchronized boolean update() {
+        boolean changed = false;
+        for (int shard = 0; shard < mSketches.length; shard++) {
+            changed |= updateShard(shard);
+        }
+        if (changed || mStats.get() == null) {
+            mStats.set(new Stats(mSketches));
+        }
+        if (changed) {
+            mContext.getContentResolver().notifyChange(StatsEntry.CONTENT_URI, null);
+        }
+        return changed;
+    }
+
+    /**
+     * Forget the sketches read from the databases, after their rows were replaced by a
+     * restore. The next update reads them again.
+     */
+    synchronized void reload() {
+        Arrays.fill(mSketches, null);
+        mStats.set(null);
+    }
+
+    /**
+     * Returns the number of shards summarized from scratch so far.
+     */
+    int getRebuildCount() {
+        return mRebuildCount.get();
+    }
+
+    private boolean updateShard(int shard) {
+        SQLiteDatabase db = mShards.getDbHelper(shard).getWritableDatabase();
+        HomeSketch sketch = mSketches[shard];
+        if (sketch == null) {
+            sketch = readSketch(db);
+            mSketches[shard] = sketch;
+        }
+        if (sketch != null && !hasDrifted(sketch)) {
+            int applied = applyLog(shard, db, sketch, null);
+            if (applied >= 0) {
+                return applied > 0;
+            }
+        }
+
+        long start = SystemClock.uptimeMillis();
+        // A deletion of all homes made or undone during the scan asks for another one
+        List<long[]> marks = new ArrayList<>();
+        do {
+            marks.clear();
+            sketch = scan(db, marks);
+        } while (applyLog(shard, db, sketch, marks) < 0);
+        mRebuildCount.incrementAndGet();
+        Log.i(LOG_TAG, "Summarized " + sketch.getHomeCount() + " homes of shard " + shard
+                + " in " + (SystemClock.uptimeMillis() - start) + " ms");
+        return true;
+    }
+
+    private static boolean hasDrifted(HomeSketch sketch) {
+        return sketch.getRemovedCount() > Math.max(MIN_REMOVED_FOR_REBUILD,
+                sketch.getHomeCount() * REMOVED_SHARE_FOR_REBUILD);
+    }
+
+    /**
+     * Returns the sketch stored in the database, or null if it has none or one of an older
+     * encoding.
+     */
+    private static HomeSketch readSketch(SQLiteDatabase db) {
+        Cursor cursor = db.query(STATE_TABLE_NAME,
+                new String[] { COLUMN_FORMAT_VERSION, COLUMN_SKETCH },
+                null, null, null, null, null, "1");
+        try {
+            if (!cursor.moveToFirst() || cursor.getInt(0) != HomeSketch.FORMAT_VERSION) {
+                return null;
+            }
+            return HomeSketch.decode(cursor.getBlob(1));
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Summarizing the shard again, its sketch is unreadable", e);
+            return null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Summarize the live homes of the shard from scratch, in ranges of ids. For every range,
+     * add the first id and the last id of the log when it was read to the marks.
+     */
+    private static HomeSketch scan(SQLiteDatabase db, List<long[]> marks) {
+        HomeSketch sketch = new HomeSketch();
+        String[] columns = { HomeEntry.COLUMN_HOME_COUNTY, HomeEntry.COLUMN_HOME_INCOME };
+        long firstId = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MIN(" + HomeEntry._ID
+                + "), 0) FROM " + HomeEntry.TABLE_NAME, null);
+        boolean last = false;
+        while (!last) {
+            long endId = firstId + RANGE_IDS;
+            db.beginTransaction();
+            try {
+                long logId = lastLogId(db);
+                // Homes inserted after this range was read are in the next ones
+                last = endId > DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX("
+                        + HomeEntry._ID + "), 0) FROM " + HomeEntry.TABLE_NAME, null);
+                String range = HomeEntry._ID + " >= " + firstId
+                        + (last ? "" : " AND " + HomeEntry._ID + " < " + endId);
+                Cursor cursor = db.query(HomeEntry.TABLE_NAME, columns,
+                        HomeTombstones.appendSelection(range, HomeTombstones.liveSelection(
+                                HomeTombstones.loadDeletedThroughId(db))),
+                        null, null, null, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        sketch.add(cursor.getString(0), cursor.getLong(1));
+                    }
+                } finally {
+                    cursor.close();
+                }
+                db.setTransactionSuccessful();
+                marks.add(new long[] { firstId, logId });
+            } finally {
+                db.endTransaction();
+            }
+            firstId = endId;
+        }
+        return sketch;
+    }
+
+    private static long lastLogId(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(_id), 0) FROM "
+                + LOG_TABLE_NAME, null);
+    }
+
+    /**
+     * Apply the log of the shard to the sketch, storing it with every
+     * {@link #LOG_ROWS_PER_UPDATE} changes. After a scan from scratch, the sketch is stored
+     * even without any change, and of the changes logged while it ran, only those to homes
+     * of a range read before are applied.
+     *
+     * @param marks of {@link #scan}, or null for a sketch that was stored already
+     * @return the number of changes applied, or -1 if the shard must be summarized from
+     *         scratch first, after the changes before that were stored
+     */
+    private int applyLog(int shard, SQLiteDatabase db, HomeSketch sketch, List<long[]> marks) {
+        boolean stored = marks == null;
+        int applied = 0;
+        while (true) {
+            HomeSketch next = sketch.copy();
+            long lastId = 0;
+            int rows = 0;
+            boolean rebuild = false;
+            Cursor cursor = db.query(LOG_TABLE_NAME, LOG_COLUMNS, null, null, null, null,
+                    "_id ASC", String.valueOf(LOG_ROWS_PER_UPDATE));
+            try {
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(0);
+                    if (cursor.getInt(2) != 0) {
+                        // Covered by the scan if it was logged before the scan began
+                        if (marks == null || id > marks.get(0)[1]) {
+                            rebuild = true;
+                            break;
+                        }
+                    } else if (marks == null || id > markOf(marks, cursor.getLong(1))) {
+                        if (cursor.getInt(3) != 0) {
+                            next.remove(cursor.getString(4), cursor.getLong(5));
+                        }
+                        if (cursor.getInt(6) != 0) {
+                            next.add(cursor.getString(7), cursor.getLong(8));
+                        }
+                        applied++;
+                    }
+                    lastId = id;
+                    rows++;
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (lastId > 0 || !stored) {
+                store(db, next, lastId);
+                stored = true;
+            }
+            mSketches[shard] = next;
+            sketch = next;
+            if (rebuild) {
+                return -1;
+            }
+            if (rows < LOG_ROWS_PER_UPDATE) {
+                return applied;
+            }
+        }
+    }
+
+    /**
+     * Returns the last id of the log when the range of the home was read. Homes inserted
+     * after the scan began have ids above every range, and belong to the last one.
+     */
+    private static long markOf(List<long[]> marks, long homeId) {
+        long mark = marks.get(0)[1];
+        for (long[] range : marks) {
+            if (range[0] > homeId) {
+                break;
+            }
+            mark = range[1];
+        }
+        return mark;
+    }
+
+    /**
+     * Store the sketch of the shard and drop the log it covers, up to the given id.
+     */
+    private static void store(SQLiteDatabase db, HomeSketch sketch, long throughLogId) {
+        byte[] encoded = sketch.encode();
+        db.beginTransaction();
+        try {
+            db.delete(STATE_TABLE_NAME, null, null);
+            db.execSQL("INSERT INTO " + STATE_TABLE_NAME + " (" + COLUMN_FORMAT_VERSION + ", "
+                    + COLUMN_SKETCH + ") VALUES (?, ?)",
+                    new Object[] { HomeSketch.FORMAT_VERSION, encoded });
+            db.delete(LOG_TABLE_NAME, "_id <= ?", new String[] { String.valueOf(throughLogId) });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the statistics of the last update, or of the sketches stored in the databases
+     * if no update ran yet.
+     */
+    private Stats getStats() {
+        Stats stats = mStats.get();
+        if (stats == null) {
+            HomeSketch[] sketches = new HomeSketch[mShards.getCount()];
+            for (int shard = 0; shard < sketches.length; shard++) {
+                sketches[shard] = readSketch(mShards.getDbHelper(shard).getReadableDatabase());
+            }
+            // Unless an update was quicker
+            mStats.compareAndSet(null, new Stats(sketches));
+            stats = mStats.get();
+        }
+        return stats;
+    }
+
+    /**
+     * Query the statistics of all homes, a single row.
+     *
+     * @param projection columns of {@link StatsEntry} for all homes, or null for all of them
+     */
+    Cursor queryStats(String[] projection) {
+        Stats stats = getStats();
+        return project(projection, STATS_COLUMNS, Arrays.<Object[]>asList(new Object[] {
+                stats.mHomeCount,
+                stats.mDistinctCounties,
+                stats.mIncomeP50,
+                stats.mIncomeP90,
+                stats.mIncomeP99 }));
+    }
+
+    /**
+     * Query the counties with the most homes, the heaviest first.
+     *
+     * @param projection columns of {@link StatsEntry} for counties, or null for all of them
+     */
+    Cursor queryCounties(String[] projection) {
+        Stats stats = getStats();
+        List<Object[]> rows = new ArrayList<>();
+        for (Map.Entry<String, Integer> county : stats.mTopCounties) {
+            rows.add(new Object[] { county.getKey(), county.getValue() });
+        }
+        return project(projection, COUNTY_COLUMNS, rows);
+    }
+
+    private static Cursor project(String[] projection, String[] columns, List<Object[]> rows) {
+        if (projection == null) {
+            projection = columns;
+        }
+        int[] sources = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            sources[i] = Arrays.asList(columns).indexOf(projection[i].trim());
+            if (sources[i] < 0) {
+                throw new IllegalArgumentException("Unknown stats column " + projection[i]);
+            }
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, rows.size());
+        for (Object[] row : rows) {
+            Object[] projected = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                projected[i] = row[sources[i]];
+            }
+            cursor.addRow(projected);
+        }
+        return cursor;
+    }
+
+    /**
+     * The statistics of the sketches of every shard, worked out once per update.
+     */
+    private static final class Stats {
+        final long mHomeCount;
+        final long mDistinctCounties;
+        final long mIncomeP50;
+        final long mIncomeP90;
+        final long mIncomeP99;
+        final List<Map.Entry<String, Integer>> mTopCounties;
+
+        /**
+         * @param sketches of the shards, null for a shard without one yet
+         */
+        Stats(HomeSketch[] sketches) {
+            HomeSketch all = new HomeSketch();
+            for (HomeSketch sketch : sketches) {
+                if (sketch != null) {
+                    all.merge(sketch);
+                }
+            }
+            mHomeCount = all.getHomeCount();
+            mDistinctCounties = all.getDistinctCounties();
+            mIncomeP50 = all.getIncomeQuantile(0.50);
+            mIncomeP90 = all.getIncomeQuantile(0.90);
+            mIncomeP99 = all.getIncomeQuantile(0.99);
+            mTopCounties = new ArrayList<>(all.getTopCounties(StatsEntry.TOP_COUNTIES));
+        }
+    }
+}
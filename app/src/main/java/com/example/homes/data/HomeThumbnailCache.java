@@ -0,0 +1,198 @@
+package com.example.homes.data;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Directory of thumbnail files bounded to a number of bytes, evicting the least recently used
+ * file first.
+ *
+ * The order of use is kept in memory, and on disk as the modification time of the files, which
+ * is touched on every hit. The index is built from the directory the first time it is needed,
+ * so a cache surviving a restart evicts in about the same order as before.
+ *
+ * Evicting a file only unlinks it, a reader that opened it before keeps reading it.
+ */
+final class HomeThumbnailCache {
+
+    private static final String LOG_TAG = HomeThumbnailCache.class.getSimpleName();
+
+    /** Suffix of the files being written, which are never served */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+
+    private final long mMaxBytes;
+
+    /** Size of every file in the cache by name, the least recently used one first */
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long mSizeBytes;
+
+    private boolean mLoaded;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+    HomeThumbnailCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the file cached under the given name and marks it as used, or null if there is
+     * none.
+     */
+    synchronized File get(String name) {
+        load();
+        if (mEntries.get(name) == null) {
+            mMissCount++;
+            return null;
+        }
+        File file = new File(mDirectory, name);
+        if (!file.exists()) {
+            // Removed behind the back of the cache, e.g. by the system clearing the cache dir
+            mSizeBytes -= mEntries.remove(name);
+            mMissCount++;
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        mHitCount++;
+        return file;
+    }
+
+    /**
+     * Returns a new file for writing an entry, to be handed to {@link #put} once complete.
+     */
+    synchronized File createTempFile() throws IOException {
+        // Loading deletes the temporary files found, so it can't happen after this one exists
+        load();
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + mDirectory);
+        }
+        return File.createTempFile("thumbnail", TEMP_SUFFIX, mDirectory);
+    }
+
+    /**
+     * Move the complete temporary file into the cache under the given name, replacing the
+     * entry with that name if any, and evict the least recently used files over the budget.
+     * Returns the file of the entry.
+     */
+    synchronized File put(String name, File tempFile) throws IOException {
+        load();
+        File file = new File(mDirectory, name);
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Cannot rename " + tempFile + " to " + file);
+        }
+        Long previous = mEntries.put(name, file.length());
+        if (previous != null) {
+            mSizeBytes -= previous;
+        }
+        mSizeBytes += file.length();
+        trimTo(mMaxBytes);
+        return file;
+    }
+
+    /**
+     * Remove every entry whose name starts with the given prefix.
+     */
+    synchronized void removeAll(String prefix) {
+        load();
+        Iterator<Map.Entry<String, Long>> entries = mEntries.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Long> entry = entries.next();
+            if (entry.getKey().startsWith(prefix)) {
+                new File(mDirectory, entry.getKey()).delete();
+                mSizeBytes -= entry.getValue();
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * Evict the least recently used files until the cache holds at most the given bytes.
+     */
+    synchronized void trimTo(long maxBytes) {
+        load();
+        Iterator<Map.Entry<String, Long>> entries = mEntries.entrySet().iterator();
+        while (mSizeBytes > maxBytes && entries.hasNext()) {
+            Map.Entry<String, Long> entry = entries.next();
+            new File(mDirectory, entry.getKey()).delete();
+            mSizeBytes -= entry.getValue();
+            entries.remove();
+            mEvictionCount++;
+        }
+    }
+
+    synchronized long getSizeBytes() {
+        load();
+        return mSizeBytes;
+    }
+
+    synchronized int getEntryCount() {
+        load();
+        return mEntries.size();
+    }
+
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Build the index from the files in the directory, the least recently modified first,
+     * and delete the temporary files left by a write that never completed.
+     */
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            // Read each time once, it is a system call and the sort would repeat it
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return modified[a] < modified[b] ? -1 : (modified[a] == modified[b] ? 0 : 1);
+            }
+        });
+        for (Integer index : order) {
+            File file = files[index];
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                file.delete();
+                continue;
+            }
+            long length = file.length();
+            mEntries.put(file.getName(), length);
+            mSizeBytes += length;
+        }
+        Log.v(LOG_TAG, "Loaded " + mEntries.size() + " thumbnails, " + mSizeBytes + " bytes");
+        trimTo(mMaxBytes);
+    }
+}
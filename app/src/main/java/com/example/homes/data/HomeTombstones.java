@@ -0,0 +1,456 @@
+package com.example.homes.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.homes.data.HomeContract.DeletionEntry;
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Soft-delete bookkeeping for the homes table.
+ *
+ * Deleting homes never removes rows right away. Every delete is recorded as one row of the
+ * deletions table, and the deleted homes are tagged with its id in
+ * {@link HomeEntry#COLUMN_HOME_DELETED}. Deleting all homes doesn't even touch the homes: the
+ * deletion remembers the highest home id at that time, and every home up to it is hidden.
+ * Either way the delete is a short write and can be undone until
+ * {@link DeletionEntry#UNDO_WINDOW_MILLIS} has passed. A deletion followed by a deletion of all
+ * homes can't be undone on its own anymore: its homes are inside the id range of the later
+ * deletion, which would hide them again and purge them with its own.
+ *
+ * After that, the deleted homes are purged on the background thread of {@link HomeDbMaintenance}
+ * in small transactions, so that the write lock is never held for long, and the free pages are
+ * given back by its incremental vacuum.
+ *
+ * Deletion ids are handed out by the caller, see {@link HomeShards#nextDeletionId()}, so that
+ * a deletion spanning several shards has the same id in each of them.
+ */
+class HomeTombstones {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = HomeTombstones.class.getSimpleName();
+
+    /** Number of homes removed in one purge transaction */
+    private static final int PURGE_BATCH_SIZE = 500;
+
+    /** Pause between two purge transactions, to let foreground writers in */
+    private static final long PURGE_PAUSE_MILLIS = 20;
+
+    /**
+     * Extra delay before purging an expired deletion, so that an undo at the very end of the
+     * undo window can't race with the purge.
+     */
+    private static final long PURGE_GRACE_MILLIS = 2000;
+
+    /** Database helper object */
+    private final HomeDbHelper mDbHelper;
+
+    /** Runs the purges on the background thread and reclaims the space afterwards */
+    private final HomeDbMaintenance mMaintenance;
+
+    /**
+     * Highest home id hidden by a pending deletion of all homes (0 if there is none),
+     * or -1 until it has been read from the database.
+     */
+    private volatile long mDeletedThroughId = -1;
+
+    HomeTombstones(HomeDbHelper dbHelper, HomeDbMaintenance maintenance) {
+        mDbHelper = dbHelper;
+        mMaintenance = maintenance;
+    }
+
+    /**
+     * Returns the selection matching the live homes only.
+     */
+    String liveSelection(SQLiteDatabase db) {
+        return liveSelection(getDeletedThroughId(db));
+    }
+
+    /**
+     * Returns the selection matching the homes that are neither tombstoned nor hidden by a
+     * deletion of all homes up to the given id. Both columns are prefixed with a unary "+",
+     * which keeps SQLite from using the rowid or the deleted index for this filter instead of
+     * the index that serves the sort order.
+     */
+    static String liveSelection(long deletedThroughId) {
+        String selection = "+" + HomeEntry.COLUMN_HOME_DELETED + " = 0";
+        if (deletedThroughId > 0) {
+            selection += " AND +" + HomeEntry._ID + " > " + deletedThroughId;
+        }
+        return selection;
+    }
+
+    /**
+     * Combine the selection of a caller with the given filter.
+     */
+    static String appendSelection(String selection, String filter) {
+        if (TextUtils.isEmpty(selection)) {
+            return filter;
+        }
+        return "(" + selection + ") AND " + filter;
+    }
+
+    /**
+     * Delete the live homes matching the selection (or all live homes if there is no
+     * selection) as the deletion with the given id, which can be undone. Return the number of
+     * homes deleted.
+     */
+    int delete(long deletionId, String selection, String[] selectionArgs) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        String liveSelection = liveSelection(database);
+        long now = System.currentTimeMillis();
+
+        int rowsDeleted;
+        long hiddenAfterId = 0;
+        long deletedThroughId = 0;
+        database.beginTransaction();
+        try {
+            if (TextUtils.isEmpty(selection)) {
+                // Deleting all homes only records the highest id, so the write is a single
+                // row no matter how many homes there are. The homes aren't counted under the
+                // lock, finding one live home is enough to know there is something to delete.
+                hiddenAfterId = loadDeletedThroughId(database);
+                deletedThroughId = DatabaseUtils.longForQuery(database,
+                        "SELECT IFNULL(MAX(" + HomeEntry._ID + "), 0) FROM " + HomeEntry.TABLE_NAME,
+                        null);
+                rowsDeleted = (int) DatabaseUtils.longForQuery(database, "SELECT EXISTS (SELECT 1"
+                        + " FROM " + HomeEntry.TABLE_NAME + " WHERE " + hiddenRange(hiddenAfterId,
+                        deletedThroughId) + ")", null);
+                if (rowsDeleted > 0) {
+                    insertDeletion(database, deletionId, now, deletedThroughId, 0);
+                }
+            } else {
+                insertDeletion(database, deletionId, now, 0, 0);
+
+                ContentValues values = new ContentValues();
+                values.put(HomeEntry.COLUMN_HOME_DELETED, deletionId);
+                rowsDeleted = database.update(HomeEntry.TABLE_NAME, values,
+                        appendSelection(selection, liveSelection), selectionArgs);
+
+                ContentValues count = new ContentValues();
+                count.put(DeletionEntry.COLUMN_DELETION_COUNT, rowsDeleted);
+                database.update(DeletionEntry.TABLE_NAME, count, DeletionEntry._ID + "=?",
+                        new String[] { String.valueOf(deletionId) });
+            }
+
+            // Nothing matched, so leave the deletions table as it was
+            if (rowsDeleted > 0) {
+                database.setTransactionSuccessful();
+            }
+        } finally {
+            database.endTransaction();
+        }
+
+        if (rowsDeleted > 0) {
+            if (deletedThroughId > mDeletedThroughId) {
+                mDeletedThroughId = deletedThroughId;
+            }
+            if (deletedThroughId > 0) {
+                rowsDeleted = countHidden(database, deletionId, hiddenAfterId, deletedThroughId);
+            }
+            schedulePurge(DeletionEntry.UNDO_WINDOW_MILLIS + PURGE_GRACE_MILLIS);
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Count the homes hidden by the deletion of all homes with the given id, now committed,
+     * and record the count in its row.
+     *
+     * The count is a read outside of the write transaction. It can't change in the meantime:
+     * the homes in the range are hidden from any later write, and the earlier deletions inside
+     * the range can't be undone anymore.
+     */
+    private static int countHidden(SQLiteDatabase database, long deletionId, long hiddenAfterId,
+                                   long deletedThroughId) {
+        int count = (int) DatabaseUtils.queryNumEntries(database, HomeEntry.TABLE_NAME,
+                hiddenRange(hiddenAfterId, deletedThroughId));
+        ContentValues values = new ContentValues();
+        values.put(DeletionEntry.COLUMN_DELETION_COUNT, count);
+        database.update(DeletionEntry.TABLE_NAME, values, DeletionEntry._ID + "=?",
+                new String[] { String.valueOf(deletionId) });
+        return count;
+    }
+
+    /**
+     * Returns the selection of the live homes in the given id range. Unlike
+     * {@link #liveSelection(long)}, the id isn't prefixed, so the range is a seek on the rowid.
+     */
+    private static String hiddenRange(long hiddenAfterId, long deletedThroughId) {
+        return HomeEntry._ID + " > " + hiddenAfterId + " AND " + HomeEntry._ID + " <= "
+                + deletedThroughId + " AND " + HomeEntry.COLUMN_HOME_DELETED + " = 0";
+    }
+
+    /**
+     * Delete the live homes with the given ids as the deletion with the given id, which can be
+     * undone. Return the number of homes deleted.
+     */
+    int delete(long deletionId, Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        int rowsDeleted = 0;
+        database.beginTransaction();
+        try {
+            insertDeletion(database, deletionId, System.currentTimeMillis(), 0, 0);
+
+            SQLiteStatement statement = database.compileStatement("UPDATE "
+                    + HomeEntry.TABLE_NAME + " SET " + HomeEntry.COLUMN_HOME_DELETED + " = ?"
+                    + " WHERE " + HomeEntry._ID + " = ? AND " + liveSelection(database));
+            try {
+                statement.bindLong(1, deletionId);
+                for (long id : ids) {
+                    statement.bindLong(2, id);
+                    rowsDeleted += statement.executeUpdateDelete();
+                }
+            } finally {
+                statement.close();
+            }
+
+            ContentValues count = new ContentValues();
+            count.put(DeletionEntry.COLUMN_DELETION_COUNT, rowsDeleted);
+            database.update(DeletionEntry.TABLE_NAME, count, DeletionEntry._ID + "=?",
+                    new String[] { String.valueOf(deletionId) });
+
+            if (rowsDeleted > 0) {
+                database.setTransactionSuccessful();
+            }
+        } finally {
+            database.endTransaction();
+        }
+
+        if (rowsDeleted > 0) {
+            schedulePurge(DeletionEntry.UNDO_WINDOW_MILLIS + PURGE_GRACE_MILLIS);
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Undo the given deletion if it is still inside its undo window. Return 1 if the deletion
+     * was undone, or 0 if it doesn't exist, has expired or is covered by a later deletion of
+     * all homes, see {@link #isCovered}.
+     */
+    int undo(long deletionId) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        String[] deletionArgs = new String[] { String.valueOf(deletionId) };
+        long undoableAfter = System.currentTimeMillis() - DeletionEntry.UNDO_WINDOW_MILLIS;
+
+        long deletedThroughId;
+        database.beginTransaction();
+        try {
+            long found = DatabaseUtils.queryNumEntries(database, DeletionEntry.TABLE_NAME,
+                    DeletionEntry._ID + "=? AND " + DeletionEntry.COLUMN_DELETION_TIME + ">=?",
+                    new String[] { String.valueOf(deletionId), String.valueOf(undoableAfter) });
+            if (found == 0 || isCovered(database, deletionId)) {
+                return 0;
+            }
+
+            // Bring back the tombstoned homes. A deletion of all homes didn't tag any home,
+            // removing its row is enough to lower the hidden id range.
+            ContentValues values = new ContentValues();
+            values.put(HomeEntry.COLUMN_HOME_DELETED, 0);
+            database.update(HomeEntry.TABLE_NAME, values,
+                    HomeEntry.COLUMN_HOME_DELETED + "=?", deletionArgs);
+            database.delete(DeletionEntry.TABLE_NAME, DeletionEntry._ID + "=?", deletionArgs);
+
+            deletedThroughId = loadDeletedThroughId(database);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        mDeletedThroughId = deletedThroughId;
+        return 1;
+    }
+
+    /**
+     * Returns whether a deletion of all homes was made after the given deletion and is still
+     * pending. The homes of the given deletion are then hidden by its id range, and purged
+     * with it, whatever their tombstone says.
+     */
+    boolean isCovered(long deletionId) {
+        return isCovered(mDbHelper.getReadableDatabase(), deletionId);
+    }
+
+    private static boolean isCovered(SQLiteDatabase database, long deletionId) {
+        return DatabaseUtils.queryNumEntries(database, DeletionEntry.TABLE_NAME,
+                DeletionEntry._ID + ">? AND " + DeletionEntry.COLUMN_DELETION_MAX_HOME_ID + ">0",
+                new String[] { String.valueOf(deletionId) }) > 0;
+    }
+
+    /**
+     * Query the deletions that can still be undone, the most recent one first.
+     */
+    Cursor queryDeletions(String[] projection, String selection, String[] selectionArgs) {
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        long undoableAfter = System.currentTimeMillis() - DeletionEntry.UNDO_WINDOW_MILLIS;
+        String undoable = DeletionEntry.COLUMN_DELETION_TIME + " >= " + undoableAfter;
+        return database.query(DeletionEntry.TABLE_NAME, projection,
+                appendSelection(selection, undoable), selectionArgs,
+                null, null, DeletionEntry._ID + " DESC");
+    }
+
+    /**
+     * Purge the homes of every expired deletion on the background thread, after the given
+     * delay.
+     */
+    void schedulePurge(long delayMillis) {
+        mMaintenance.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    purge(System.currentTimeMillis() - DeletionEntry.UNDO_WINDOW_MILLIS
+                            - PURGE_GRACE_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to purge deleted homes", e);
+                }
+            }
+        }, delayMillis);
+    }
+
+    /**
+     * Remove the homes of every deletion made before the given time for good, the oldest
+     * first, then ask for the space they used to be reclaimed. Return the number of homes
+     * removed.
+     */
+    int purge(long expiredBefore) throws InterruptedException {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        List<long[]> expired = new ArrayList<>();
+        Cursor cursor = database.query(DeletionEntry.TABLE_NAME,
+                new String[] { DeletionEntry._ID, DeletionEntry.COLUMN_DELETION_MAX_HOME_ID },
+                DeletionEntry.COLUMN_DELETION_TIME + "<?",
+                new String[] { String.valueOf(expiredBefore) },
+                null, null, DeletionEntry._ID + " ASC");
+        try {
+            while (cursor.moveToNext()) {
+                expired.add(new long[] { cursor.getLong(0), cursor.getLong(1) });
+            }
+        } finally {
+            cursor.close();
+        }
+
+        int rowsPurged = 0;
+        for (long[] deletion : expired) {
+            rowsPurged += purgeDeletion(database, deletion[0], deletion[1]);
+        }
+        mDeletedThroughId = loadDeletedThroughId(database);
+
+        if (rowsPurged > 0) {
+            Log.i(LOG_TAG, "Purged " + rowsPurged + " deleted homes");
+            mMaintenance.requestVacuum(mDbHelper.getShard());
+        }
+        return rowsPurged;
+    }
+
+    /**
+     * Remove the homes of one deletion in transactions of {@link #PURGE_BATCH_SIZE} rows, and
+     * the deletion itself once no home is left. Return the number of homes removed.
+     */
+    private int purgeDeletion(SQLiteDatabase database, long deletionId, long maxHomeId)
+            throws InterruptedException {
+        // A deletion of all homes covers an id range, any other deletion its tombstones
+        String batch = "DELETE FROM " + HomeEntry.TABLE_NAME + " WHERE " + HomeEntry._ID
+                + " IN (SELECT " + HomeEntry._ID + " FROM " + HomeEntry.TABLE_NAME + " WHERE "
+                + (maxHomeId > 0 ? HomeEntry._ID + " <= ?" : HomeEntry.COLUMN_HOME_DELETED + " = ?")
+                + " LIMIT " + PURGE_BATCH_SIZE + ")";
+        String[] deletionArgs = new String[] { String.valueOf(deletionId) };
+
+        int rowsPurged = 0;
+        int rowsRemoved;
+        do {
+            database.beginTransaction();
+            try {
+                // The deletion could have been undone since the purge started
+                if (DatabaseUtils.queryNumEntries(database, DeletionEntry.TABLE_NAME,
+                        DeletionEntry._ID + "=?", deletionArgs) == 0) {
+                    return rowsPurged;
+                }
+
+                SQLiteStatement statement = database.compileStatement(batch);
+                try {
+                    statement.bindLong(1, maxHomeId > 0 ? maxHomeId : deletionId);
+                    rowsRemoved = statement.executeUpdateDelete();
+                } finally {
+                    statement.close();
+                }
+
+                if (rowsRemoved == 0) {
+                    database.delete(DeletionEntry.TABLE_NAME, DeletionEntry._ID + "=?",
+                            deletionArgs);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+
+            rowsPurged += rowsRemoved;
+            Thread.sleep(PURGE_PAUSE_MILLIS);
+        } while (rowsRemoved > 0);
+
+        return rowsPurged;
+    }
+
+    /**
+     * Return the highest home id hidden by a deletion of all homes, reading it from the
+     * database the first time.
+     */
+    long getDeletedThroughId(SQLiteDatabase database) {
+        long deletedThroughId = mDeletedThroughId;
+        if (deletedThroughId < 0) {
+            deletedThroughId = loadDeletedThroughId(database);
+            mDeletedThroughId = deletedThroughId;
+        }
+        return deletedThroughId;
+    }
+
+    /**
+     * Forget what was read from the database, after its rows were replaced by a restore.
+     */
+    void reload() {
+        mDeletedThroughId = -1;
+    }
+
+    /**
+     * Read the highest home id hidden by a deletion of all homes from the database, as of the
+     * transaction the caller may be in.
+     */
+    static long loadDeletedThroughId(SQLiteDatabase database) {
+        return DatabaseUtils.longForQuery(database,
+                "SELECT IFNULL(MAX(" + DeletionEntry.COLUMN_DELETION_MAX_HOME_ID + "), 0) FROM "
+                        + DeletionEntry.TABLE_NAME, null);
+    }
+
+    /**
+     * Returns the highest deletion id ever used in this database, even if the deletion has
+     * been purged since.
+     */
+    long loadLastDeletionId() {
+        return DatabaseUtils.longForQuery(mDbHelper.getReadableDatabase(),
+                "SELECT IFNULL(MAX(seq), 0) FROM sqlite_sequence WHERE name = '"
+                        + DeletionEntry.TABLE_NAME + "'", null);
+    }
+
+    private static void insertDeletion(SQLiteDatabase database, long deletionId, long time,
+                                       long maxHomeId, int count) {
+        ContentValues values = new ContentValues();
+        values.put(DeletionEntry._ID, deletionId);
+        values.put(DeletionEntry.COLUMN_DELETION_TIME, time);
+        values.put(DeletionEntry.COLUMN_DELETION_MAX_HOME_ID, maxHomeId);
+        values.put(DeletionEntry.COLUMN_DELETION_COUNT, count);
+        database.insertOrThrow(DeletionEntry.TABLE_NAME, null, values);
+    }
+}
@@ -0,0 +1,888 @@
+package com.example.homes.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Process;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.homes.data.HomeContract.DeletionEntry;
+import com.example.homes.data.HomeContract.HomeEntry;
+import com.example.homes.data.HomeContract.ValuationEntry;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The valuation engine: the valuations of the homes and their rollups per county, see
+ * {@link ValuationEntry}, kept in derived tables next to the homes of every shard.
+ *
+ * Triggers on the homes table queue the id of every home inserted, updated, deleted or
+ * restored, on every write path and in the same transaction as the write, so a change can't
+ * be missed even if the process goes away before the engine ran. After a write the provider
+ * schedules an update on the background thread of {@link HomeDbMaintenance}, which values the
+ * queued homes only and moves the rollups of their counties by the difference. The amounts
+ * are whole cents, so a rollup stays exactly the sum of its homes through any number of
+ * differences.
+ *
+ * A full pass values every home of a shard instead: the first time, when the model changes,
+ * after a deletion of all homes is made or undone (it hides or shows homes without touching
+ * them, see {@link HomeTombstones}), and when so many homes are queued, e.g. after a bulk
+ * import, that valuing them one by one would take longer. The shard is split into ranges of
+ * ids that are read and valued in parallel on a small pool, each range summing up its own
+ * rollups, and the engine thread writes the ranges as they complete and merges their rollups.
+ * Every range is written in its own short transaction, so foreground writers are never held up
+ * for the whole pass, and the rollups of the shard are replaced at the end.
+ */
+final class HomeValuations {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = HomeValuations.class.getSimpleName();
+
+    /**
+     * Version of the model of {@link ValuationEntry}. Changing the model must change the
+     * version, every shard is then valued again.
+     */
+    static final int MODEL_VERSION = 1;
+
+    /** Table of the ids of the homes to value again, filled by the triggers */
+    static final String QUEUE_TABLE_NAME = "valuation_queue";
+
+    /** Table of a single row with the version of the model the shard was valued with */
+    static final String STATE_TABLE_NAME = "valuation_state";
+    private static final String COLUMN_MODEL_VERSION = "model_version";
+
+    /** Id queued to ask for a full pass of the shard. Home ids start at 1. */
+    private static final long FULL_PASS_ID = 0;
+
+    /** Delay before an update, so that a burst of writes is valued at once */
+    private static final long UPDATE_DELAY_MILLIS = 100;
+
+    /** Homes valued in one transaction of an update, below the SQLite limit of 999 arguments */
+    private static final int IDS_PER_UPDATE = 500;
+
+    /** Queued homes from which a full pass of the shard is cheaper than valuing each one */
+    private static final int FULL_PASS_QUEUED_HOMES = 20000;
+
+    /** Ids per range of a full pass */
+    private static final int RANGE_IDS = 8192;
+
+    /** Ranges of a full pass read ahead of the writes, per pool thread */
+    private static final int RANGES_AHEAD_PER_THREAD = 2;
+
+    /** Positions of the amounts in the arrays of {@link #value} */
+    static final int AMOUNT_REVENUE = 0;
+    static final int AMOUNT_NET_INCOME = 1;
+    static final int AMOUNT_VALUE = 2;
+    static final int AMOUNT_PROJECTION = 3;
+    static final int AMOUNT_COUNT = 4;
+
+    /**
+     * A rollup is the number of homes followed by the sum of each of their amounts.
+     */
+    private static final int ROLLUP_SIZE = 1 + AMOUNT_COUNT;
+
+    /** Revenue of the projection per yearly revenue, the growth of every year compounded */
+    private static final double PROJECTION_FACTOR;
+
+    static {
+        double factor = 0;
+        double growth = 1;
+        for (int year = 1; year <= ValuationEntry.PROJECTION_YEARS; year++) {
+            growth *= 1 + ValuationEntry.REVENUE_GROWTH;
+            factor += growth;
+        }
+        PROJECTION_FACTOR = factor;
+    }
+
+    /** Columns of the homes the model reads */
+    private static final String[] VALUED_COLUMNS = {
+            HomeEntry._ID,
+            HomeEntry.COLUMN_HOME_COUNTY,
+            HomeEntry.COLUMN_HOME_TYPE,
+            HomeEntry.COLUMN_HOME_INCOME };
+
+    /** Columns of the amounts, in the order of the AMOUNT_ positions */
+    private static final String[] AMOUNT_COLUMNS = {
+            ValuationEntry.COLUMN_REVENUE,
+            ValuationEntry.COLUMN_NET_INCOME,
+            ValuationEntry.COLUMN_VALUE,
+            ValuationEntry.COLUMN_PROJECTION };
+
+    /** Default columns of the valuations of homes */
+    private static final String[] HOME_COLUMNS = {
+            ValuationEntry.COLUMN_HOME_ID,
+            ValuationEntry.COLUMN_COUNTY,
+            ValuationEntry.COLUMN_REVENUE,
+            ValuationEntry.COLUMN_NET_INCOME,
+            ValuationEntry.COLUMN_VALUE,
+            ValuationEntry.COLUMN_YIELD,
+            ValuationEntry.COLUMN_PROJECTION };
+
+    /** Default columns of the valuations per county */
+    private static final String[] COUNTY_COLUMNS = {
+            ValuationEntry.COLUMN_COUNTY,
+            ValuationEntry.COLUMN_HOME_COUNT,
+            ValuationEntry.COLUMN_REVENUE,
+            ValuationEntry.COLUMN_NET_INCOME,
+            ValuationEntry.COLUMN_VALUE,
+            ValuationEntry.COLUMN_YIELD,
+            ValuationEntry.COLUMN_PROJECTION };
+
+    /** The yield of a home, computed when read rather than stored */
+    private static final String YIELD_EXPRESSION = "CASE WHEN " + ValuationEntry.COLUMN_VALUE
+            + " > 0 THEN CAST(" + ValuationEntry.COLUMN_NET_INCOME + " AS REAL) / "
+            + ValuationEntry.COLUMN_VALUE + " END";
+
+    private static final String INSERT_HOME_SQL = "INSERT OR REPLACE INTO "
+            + ValuationEntry.TABLE_NAME + " (" + ValuationEntry.COLUMN_HOME_ID + ", "
+            + ValuationEntry.COLUMN_COUNTY + ", " + TextUtils.join(", ", AMOUNT_COLUMNS)
+            + ") VALUES (?, ?, ?, ?, ?, ?)";
+
+    /** Threads valuing the ranges of a full pass */
+    private static final int POOL_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Pool valuing the ranges of full passes, shared by every engine. ForkJoinPool would split
+     * the work the same way, but needs API 21, so the ranges are cut up front and joined by
+     * the engine thread. The threads go away after a while without work.
+     */
+    private static final ThreadPoolExecutor sPool;
+
+    static {
+        final AtomicInteger count = new AtomicInteger();
+        sPool = new ThreadPoolExecutor(POOL_THREADS, POOL_THREADS, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "HomeValuations-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        sPool.allowCoreThreadTimeOut(true);
+    }
+
+    private final Context mContext;
+    private final HomeShards mShards;
+    private final HomeDbMaintenance mMaintenance;
+
+    /** Whether an update is already scheduled */
+    private final AtomicBoolean mUpdatePending = new AtomicBoolean();
+
+    /** Number of full passes of a shard so far */
+    private final AtomicInteger mFullPassCount = new AtomicInteger();
+
+    HomeValuations(Context context, HomeShards shards, HomeDbMaintenance maintenance) {
+        mContext = context;
+        mShards = shards;
+        mMaintenance = maintenance;
+    }
+
+    /**
+     * Create the valuation tables and the triggers queuing the homes to value. The existing
+     * homes are valued by the first update, as the shard has no model version yet.
+     */
+    static void create(SQLiteDatabase db) {
+        StringBuilder amounts = new StringBuilder();
+        for (String column : AMOUNT_COLUMNS) {
+            amounts.append(", ").append(column).append(" INTEGER NOT NULL DEFAULT 0");
+        }
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + ValuationEntry.TABLE_NAME + " ("
+                + ValuationEntry.COLUMN_HOME_ID + " INTEGER PRIMARY KEY, "
+                + ValuationEntry.COLUMN_COUNTY + " TEXT NOT NULL" + amounts + ");");
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + ValuationEntry.COUNTY_TABLE_NAME + " ("
+                + ValuationEntry.COLUMN_COUNTY + " TEXT PRIMARY KEY NOT NULL, "
+                + ValuationEntry.COLUMN_HOME_COUNT + " INTEGER NOT NULL DEFAULT 0"
+                + amounts + ");");
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + QUEUE_TABLE_NAME + " ("
+                + ValuationEntry.COLUMN_HOME_ID + " INTEGER PRIMARY KEY);");
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + STATE_TABLE_NAME + " ("
+                + COLUMN_MODEL_VERSION + " INTEGER NOT NULL);");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS homes_valuations_insert AFTER INSERT ON "
+                + HomeEntry.TABLE_NAME + " BEGIN " + queueStatement("new." + HomeEntry._ID)
+                + " END;");
+        // Tombstoning and restoring a home change its deleted flag
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS homes_valuations_update AFTER UPDATE OF "
+                + TextUtils.join(", ", new String[] {
+                        HomeEntry.COLUMN_HOME_COUNTY,
+                        HomeEntry.COLUMN_HOME_TYPE,
+                        HomeEntry.COLUMN_HOME_INCOME,
+                        HomeEntry.COLUMN_HOME_DELETED })
+                + " ON " + HomeEntry.TABLE_NAME
+                + " BEGIN " + queueStatement("new." + HomeEntry._ID) + " END;");
+        // Purged homes were taken out when they were deleted, unless they were hidden by a
+        // deletion of all homes the engine hasn't seen yet
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS homes_valuations_delete AFTER DELETE ON "
+                + HomeEntry.TABLE_NAME + " WHEN EXISTS (SELECT 1 FROM "
+                + ValuationEntry.TABLE_NAME + " WHERE " + ValuationEntry.COLUMN_HOME_ID
+                + " = old." + HomeEntry._ID + ")"
+                + " BEGIN " + queueStatement("old." + HomeEntry._ID) + " END;");
+
+        // A deletion of all homes hides them all at once, and so does undoing it show them.
+        // Once purged, the homes it hid are gone and removing the deletion changes nothing.
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS deletions_valuations_insert AFTER INSERT ON "
+                + DeletionEntry.TABLE_NAME + " WHEN new."
+                + DeletionEntry.COLUMN_DELETION_MAX_HOME_ID + " > 0"
+                + " BEGIN " + queueStatement(String.valueOf(FULL_PASS_ID)) + " END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS deletions_valuations_delete AFTER DELETE ON "
+                + DeletionEntry.TABLE_NAME + " WHEN old."
+                + DeletionEntry.COLUMN_DELETION_MAX_HOME_ID + " > 0 AND EXISTS (SELECT 1 FROM "
+                + HomeEntry.TABLE_NAME + " WHERE " + HomeEntry._ID + " <= old."
+                + DeletionEntry.COLUMN_DELETION_MAX_HOME_ID + ")"
+                + " BEGIN " + queueStatement(String.valueOf(FULL_PASS_ID)) + " END;");
+    }
+
+    private static String queueStatement(String id) {
+        return "INSERT OR IGNORE INTO " + QUEUE_TABLE_NAME + " ("
+                + ValuationEntry.COLUMN_HOME_ID + ") VALUES (" + id + ");";
+    }
+
+    /**
+     * Compute the amounts of a home into the given array, at the AMOUNT_ positions.
+     *
+     * @param type of the home, one of the TYPE_ values of {@link HomeEntry}
+     * @param monthlyIncome income of the home, per month
+     */
+    static void value(int type, long monthlyIncome, long[] amounts) {
+        if (type < 0 || type >= ValuationEntry.OCCUPANCY_BY_TYPE.length) {
+            type = HomeEntry.TYPE_UNKNOWN;
+        }
+        // The income is in whole units a month, the amounts in cents a year
+        double rent = monthlyIncome * 12 * 100.0;
+        double revenue = rent * ValuationEntry.OCCUPANCY_BY_TYPE[type];
+        double netIncome = revenue * (1 - ValuationEntry.EXPENSE_RATIO_BY_TYPE[type])
+                - ValuationEntry.FIXED_EXPENSES_BY_TYPE[type];
+        amounts[AMOUNT_REVENUE] = Math.round(revenue);
+        amounts[AMOUNT_NET_INCOME] = Math.round(netIncome);
+        amounts[AMOUNT_VALUE] = Math.round(rent * ValuationEntry.GROSS_RENT_MULTIPLIER_BY_TYPE[type]);
+        amounts[AMOUNT_PROJECTION] = Math.round(revenue * PROJECTION_FACTOR);
+    }
+
+    /**
+     * Value the queued homes on the background thread, after a short delay. Called after
+     * every write, the writes of the delay are valued together.
+     */
+    void scheduleUpdate() {
+        if (mUpdatePending.compareAndSet(false, true)) {
+            mMaintenance.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    mUpdatePending.set(false);
+                    try {
+                        update();
+                    } catch (RuntimeException e) {
+                        Log.e(LOG_TAG, "Failed to update the valuations", e);
+                    }
+                }
+            }, UPDATE_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Value the homes queued in every shard, with a full pass of the shards that need one.
+     * Return whether any valuation changed, the listeners of {@link ValuationEntry} are then
+     * notified.
+     */
+    synchronized boolean update() {
+        List<Integer> fullPassShards = new ArrayList<>();
+        for (int shard = 0; shard < mShards.getCount(); shard++) {
+            if (needsFullPass(mShards.getDbHelper(shard).getReadableDatabase())) {
+                fullPassShards.add(shard);
+            }
+        }
+        boolean changed = false;
+        if (!fullPassShards.isEmpty()) {
+            valueShards(fullPassShards);
+            changed = true;
+        }
+        for (int shard = 0; shard < mShards.getCount(); shard++) {
+            changed |= valueQueuedHomes(mShards.getDbHelper(shard).getWritableDatabase());
+        }
+        if (changed) {
+            mContext.getContentResolver().notifyChange(ValuationEntry.CONTENT_URI, null);
+        }
+        return changed;
+    }
+
+    /**
+     * Value every home of every shard again, whatever is queued.
+     */
+    synchronized void recomputeAll() {
+        List<Integer> shards = new ArrayList<>();
+        for (int shard = 0; shard < mShards.getCount(); shard++) {
+            shards.add(shard);
+        }
+        valueShards(shards);
+        mContext.getContentResolver().notifyChange(ValuationEntry.CONTENT_URI, null);
+    }
+
+    /**
+     * Returns the number of full passes of a shard so far.
+     */
+    int getFullPassCount() {
+        return mFullPassCount.get();
+    }
+
+    private static boolean needsFullPass(SQLiteDatabase db) {
+        long modelVersion = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX("
+                + COLUMN_MODEL_VERSION + "), 0) FROM " + STATE_TABLE_NAME, null);
+        if (modelVersion != MODEL_VERSION) {
+            return true;
+        }
+        // The queue is ordered by id, so a full pass request is always its first row
+        Cursor cursor = db.query(QUEUE_TABLE_NAME, new String[] { ValuationEntry.COLUMN_HOME_ID },
+                null, null, null, null, ValuationEntry.COLUMN_HOME_ID + " ASC", "1");
+        try {
+            if (cursor.moveToFirst() && cursor.getLong(0) == FULL_PASS_ID) {
+                return true;
+            }
+        } finally {
+            cursor.close();
+        }
+        return DatabaseUtils.queryNumEntries(db, QUEUE_TABLE_NAME) >= FULL_PASS_QUEUED_HOMES;
+    }
+
+    /**
+     * Value the homes queued in the database, a transaction per {@link #IDS_PER_UPDATE}
+     * homes, until the queue is empty. Return whether any home was valued.
+     */
+    private boolean valueQueuedHomes(SQLiteDatabase db) {
+        boolean changed = false;
+        while (true) {
+            List<Long> ids = new ArrayList<>();
+            Cursor cursor = db.query(QUEUE_TABLE_NAME,
+                    new String[] { ValuationEntry.COLUMN_HOME_ID }, null, null, null, null,
+                    ValuationEntry.COLUMN_HOME_ID + " ASC", String.valueOf(IDS_PER_UPDATE));
+            try {
+                while (cursor.moveToNext()) {
+                    ids.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+            if (ids.isEmpty()) {
+                return changed;
+            }
+            if (ids.get(0) == FULL_PASS_ID) {
+                // A deletion of all homes came in since this update started, leave the shard
+                // to the full pass of the next update
+                scheduleUpdate();
+                return changed;
+            }
+            valueHomes(db, ids);
+            changed = true;
+        }
+    }
+
+    /**
+     * Value the homes with the given ids in one transaction, and move the rollups of their
+     * counties by the difference. Homes that aren't live anymore are taken out.
+     */
+    private static void valueHomes(SQLiteDatabase db, List<Long> ids) {
+        StringBuilder in = new StringBuilder(" IN (");
+        String[] idArgs = new String[ids.size()];
+        for (int i = 0; i < ids.size(); i++) {
+            in.append(i == 0 ? "?" : ",?");
+            idArgs[i] = String.valueOf(ids.get(i));
+        }
+        in.append(')');
+
+        Map<String, long[]> deltas = new HashMap<>();
+        long[] amounts = new long[AMOUNT_COUNT];
+        db.beginTransaction();
+        try {
+            // Take the homes out of the rollups as they were last valued
+            String[] columns = new String[1 + AMOUNT_COUNT];
+            columns[0] = ValuationEntry.COLUMN_COUNTY;
+            System.arraycopy(AMOUNT_COLUMNS, 0, columns, 1, AMOUNT_COUNT);
+            Cursor cursor = db.query(ValuationEntry.TABLE_NAME, columns,
+                    ValuationEntry.COLUMN_HOME_ID + in, idArgs, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    for (int i = 0; i < AMOUNT_COUNT; i++) {
+                        amounts[i] = cursor.getLong(1 + i);
+                    }
+                    addToRollup(deltas, cursor.getString(0), amounts, -1);
+                }
+            } finally {
+                cursor.close();
+            }
+            db.delete(ValuationEntry.TABLE_NAME, ValuationEntry.COLUMN_HOME_ID + in, idArgs);
+
+            // And put back those still live, as they are now
+            String live = HomeTombstones.liveSelection(HomeTombstones.loadDeletedThroughId(db));
+            SQLiteStatement insert = db.compileStatement(INSERT_HOME_SQL);
+            cursor = db.query(HomeEntry.TABLE_NAME, VALUED_COLUMNS,
+                    HomeTombstones.appendSelection(HomeEntry._ID + in, live), idArgs,
+                    null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    String county = cursor.isNull(1) ? "" : cursor.getString(1);
+                    value(cursor.getInt(2), cursor.getLong(3), amounts);
+                    insertHome(insert, cursor.getLong(0), county, amounts);
+                    addToRollup(deltas, county, amounts, 1);
+                }
+            } finally {
+                cursor.close();
+                insert.close();
+            }
+
+            applyDeltas(db, deltas);
+            db.delete(QUEUE_TABLE_NAME, ValuationEntry.COLUMN_HOME_ID + in, idArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Add the differences to the rollups of their counties. SQLite before 3.24 has no upsert,
+     * so a rollup is created empty first if missing, and removed once it has no home left.
+     */
+    private static void applyDeltas(SQLiteDatabase db, Map<String, long[]> deltas) {
+        StringBuilder set = new StringBuilder(ValuationEntry.COLUMN_HOME_COUNT).append(" = ")
+                .append(ValuationEntry.COLUMN_HOME_COUNT).append(" + ?");
+        for (String column : AMOUNT_COLUMNS) {
+            set.append(", ").append(column).append(" = ").append(column).append(" + ?");
+        }
+        String where = " WHERE " + ValuationEntry.COLUMN_COUNTY + " = ?";
+        SQLiteStatement create = db.compileStatement("INSERT OR IGNORE INTO "
+                + ValuationEntry.COUNTY_TABLE_NAME + " (" + ValuationEntry.COLUMN_COUNTY
+                + ") VALUES (?)");
+        SQLiteStatement add = db.compileStatement("UPDATE " + ValuationEntry.COUNTY_TABLE_NAME
+                + " SET " + set + where);
+        SQLiteStatement remove = db.compileStatement("DELETE FROM "
+                + ValuationEntry.COUNTY_TABLE_NAME + where + " AND "
+                + ValuationEntry.COLUMN_HOME_COUNT + " <= 0");
+        try {
+            for (Map.Entry<String, long[]> delta : deltas.entrySet()) {
+                long[] rollup = delta.getValue();
+                if (isZero(rollup)) {
+                    // Valued again to the same amounts
+                    continue;
+                }
+                create.bindString(1, delta.getKey());
+                create.executeInsert();
+                for (int i = 0; i < ROLLUP_SIZE; i++) {
+                    add.bindLong(1 + i, rollup[i]);
+                }
+                add.bindString(1 + ROLLUP_SIZE, delta.getKey());
+                add.executeUpdateDelete();
+                remove.bindString(1, delta.getKey());
+                remove.executeUpdateDelete();
+            }
+        } finally {
+            create.close();
+            add.close();
+            remove.close();
+        }
+    }
+
+    /**
+     * Value every home of the given shards in a full pass, see the class comment.
+     */
+    private void valueShards(List<Integer> shards) {
+        long start = SystemClock.uptimeMillis();
+        List<Pass> passes = new ArrayList<>();
+        List<Range> ranges = new ArrayList<>();
+        for (int shard : shards) {
+            Pass pass = startPass(shard);
+            passes.add(pass);
+            for (long first = pass.mFirstId; first < pass.mEndId; first += RANGE_IDS) {
+                ranges.add(new Range(pass, first, Math.min(first + RANGE_IDS, pass.mEndId)));
+            }
+        }
+
+        // Keep a few ranges ahead of the writes, so that only those are held in memory
+        int homes = 0;
+        Deque<Future<Range>> ahead = new ArrayDeque<>();
+        int next = 0;
+        try {
+            while (next < ranges.size() || !ahead.isEmpty()) {
+                while (next < ranges.size() && ahead.size() < POOL_THREADS * RANGES_AHEAD_PER_THREAD) {
+                    ahead.addLast(sPool.submit(ranges.get(next++)));
+                }
+                Range range = getResult(ahead.removeFirst());
+                writeRange(range);
+                for (Map.Entry<String, long[]> rollup : range.mRollups.entrySet()) {
+                    addToRollup(range.mPass.mRollups, rollup.getKey(), rollup.getValue());
+                }
+                homes += range.mCount;
+            }
+        } finally {
+            // Something failed, the shards keep asking for a full pass
+            for (Future<Range> future : ahead) {
+                future.cancel(true);
+            }
+        }
+
+        for (Pass pass : passes) {
+            finishPass(pass);
+            mFullPassCount.incrementAndGet();
+        }
+        Log.i(LOG_TAG, "Valued " + homes + " homes of " + shards.size() + " shards in "
+                + (SystemClock.uptimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Start a full pass of the shard: drop what is queued, which the pass covers, and find the
+     * range of its ids. Until the pass completes the shard has no model version, so a pass cut
+     * short, even by the process going away, is done again.
+     */
+    private Pass startPass(int shard) {
+        SQLiteDatabase db = mShards.getDbHelper(shard).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(QUEUE_TABLE_NAME, null, null);
+            db.delete(STATE_TABLE_NAME, null, null);
+            Pass pass;
+            Cursor cursor = db.rawQuery("SELECT IFNULL(MIN(" + HomeEntry._ID + "), 0), IFNULL(MAX("
+                    + HomeEntry._ID + "), -1) + 1 FROM " + HomeEntry.TABLE_NAME, null);
+            try {
+                cursor.moveToFirst();
+                pass = new Pass(shard, cursor.getLong(0), cursor.getLong(1),
+                        HomeTombstones.loadDeletedThroughId(db));
+            } finally {
+                cursor.close();
+            }
+            db.setTransactionSuccessful();
+            return pass;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Replace the valuations of the range with those of the pass.
+     */
+    private void writeRange(Range range) {
+        SQLiteDatabase db = mShards.getDbHelper(range.mPass.mShard).getWritableDatabase();
+        long[] amounts = new long[AMOUNT_COUNT];
+        db.beginTransaction();
+        SQLiteStatement insert = db.compileStatement(INSERT_HOME_SQL);
+        try {
+            db.delete(ValuationEntry.TABLE_NAME, ValuationEntry.COLUMN_HOME_ID + " >= ? AND "
+                    + ValuationEntry.COLUMN_HOME_ID + " < ?", new String[] {
+                    String.valueOf(range.mFirstId), String.valueOf(range.mEndId) });
+            for (int i = 0; i < range.mCount; i++) {
+                System.arraycopy(range.mAmounts, i * AMOUNT_COUNT, amounts, 0, AMOUNT_COUNT);
+                insertHome(insert, range.mIds[i], range.mCounties[i], amounts);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            insert.close();
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Complete the full pass of a shard: drop the valuations outside of its ranges, replace
+     * the rollups with those of the pass and record the model version.
+     */
+    private void finishPass(Pass pass) {
+        SQLiteDatabase db = mShards.getDbHelper(pass.mShard).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(ValuationEntry.TABLE_NAME, ValuationEntry.COLUMN_HOME_ID + " < ? OR "
+                    + ValuationEntry.COLUMN_HOME_ID + " >= ?", new String[] {
+                    String.valueOf(pass.mFirstId), String.valueOf(pass.mEndId) });
+
+            db.delete(ValuationEntry.COUNTY_TABLE_NAME, null, null);
+            StringBuilder columns = new StringBuilder(ValuationEntry.COLUMN_COUNTY).append(", ")
+                    .append(ValuationEntry.COLUMN_HOME_COUNT);
+            for (String column : AMOUNT_COLUMNS) {
+                columns.append(", ").append(column);
+            }
+            SQLiteStatement insert = db.compileStatement("INSERT INTO "
+                    + ValuationEntry.COUNTY_TABLE_NAME + " (" + columns
+                    + ") VALUES (?, ?, ?, ?, ?, ?)");
+            try {
+                for (Map.Entry<String, long[]> rollup : pass.mRollups.entrySet()) {
+                    insert.bindString(1, rollup.getKey());
+                    for (int i = 0; i < ROLLUP_SIZE; i++) {
+                        insert.bindLong(2 + i, rollup.getValue()[i]);
+                    }
+                    insert.executeInsert();
+                }
+            } finally {
+                insert.close();
+            }
+
+            db.execSQL("INSERT INTO " + STATE_TABLE_NAME + " (" + COLUMN_MODEL_VERSION
+                    + ") VALUES (" + MODEL_VERSION + ");");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void insertHome(SQLiteStatement insert, long id, String county,
+                                   long[] amounts) {
+        insert.bindLong(1, id);
+        insert.bindString(2, county);
+        for (int i = 0; i < AMOUNT_COUNT; i++) {
+            insert.bindLong(3 + i, amounts[i]);
+        }
+        insert.executeInsert();
+    }
+
+    /**
+     * Add the amounts of a home, times the sign, to the rollup of its county.
+     */
+    private static void addToRollup(Map<String, long[]> rollups, String county, long[] amounts,
+                                    int sign) {
+        long[] rollup = rollups.get(county);
+        if (rollup == null) {
+            rollup = new long[ROLLUP_SIZE];
+            rollups.put(county, rollup);
+        }
+        rollup[0] += sign;
+        for (int i = 0; i < AMOUNT_COUNT; i++) {
+            rollup[1 + i] += sign * amounts[i];
+        }
+    }
+
+    /**
+     * Add a rollup to the rollup of the same county.
+     */
+    private static void addToRollup(Map<String, long[]> rollups, String county, long[] other) {
+        long[] rollup = rollups.get(county);
+        if (rollup == null) {
+            rollups.put(county, other.clone());
+            return;
+        }
+        for (int i = 0; i < ROLLUP_SIZE; i++) {
+            rollup[i] += other[i];
+        }
+    }
+
+    private static boolean isZero(long[] values) {
+        for (long value : values) {
+            if (value != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Range getResult(Future<Range> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while valuing the homes", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Query the valuations of the homes of every shard, in the order of their ids.
+     *
+     * @param projection columns of {@link ValuationEntry} for homes, or null for all of them
+     * @param selection on any of the columns but the yield, which isn't stored
+     */
+    Cursor queryHomes(String[] projection, String selection, String[] selectionArgs) {
+        if (projection == null) {
+            projection = HOME_COLUMNS;
+        }
+        String[] columns = new String[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            String column = projection[i].trim();
+            if (ValuationEntry.COLUMN_YIELD.equals(column)) {
+                columns[i] = YIELD_EXPRESSION + " AS " + ValuationEntry.COLUMN_YIELD;
+            } else if (Arrays.asList(HOME_COLUMNS).contains(column)) {
+                columns[i] = column;
+            } else {
+                throw new IllegalArgumentException("Unknown valuation column " + projection[i]);
+            }
+        }
+
+        // The ids of every shard are above those of the shards before it
+        Cursor[] cursors = new Cursor[mShards.getCount()];
+        for (int shard = 0; shard < cursors.length; shard++) {
+            cursors[shard] = mShards.getDbHelper(shard).getReadableDatabase().query(
+                    ValuationEntry.TABLE_NAME, columns, selection, selectionArgs, null, null,
+                    ValuationEntry.COLUMN_HOME_ID + " ASC");
+        }
+        return cursors.length == 1 ? cursors[0] : new MergeCursor(cursors);
+    }
+
+    /**
+     * Query the valuations per county, summed over the shards, the county with the highest
+     * value first.
+     *
+     * @param projection columns of {@link ValuationEntry} for counties, or null for all of them
+     */
+    Cursor queryCounties(String[] projection) {
+        if (projection == null) {
+            projection = COUNTY_COLUMNS;
+        }
+        int[] sources = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            sources[i] = Arrays.asList(COUNTY_COLUMNS).indexOf(projection[i].trim());
+            if (sources[i] < 0) {
+                throw new IllegalArgumentException("Unknown valuation column " + projection[i]);
+            }
+        }
+
+        // A county can have homes in several shards, if their county changed after they
+        // were placed
+        String[] columns = new String[1 + ROLLUP_SIZE];
+        columns[0] = ValuationEntry.COLUMN_COUNTY;
+        columns[1] = ValuationEntry.COLUMN_HOME_COUNT;
+        System.arraycopy(AMOUNT_COLUMNS, 0, columns, 2, AMOUNT_COUNT);
+        Map<String, long[]> rollups = new HashMap<>();
+        for (int shard = 0; shard < mShards.getCount(); shard++) {
+            Cursor cursor = mShards.getDbHelper(shard).getReadableDatabase().query(
+                    ValuationEntry.COUNTY_TABLE_NAME, columns, null, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    long[] rollup = new long[ROLLUP_SIZE];
+                    for (int i = 0; i < ROLLUP_SIZE; i++) {
+                        rollup[i] = cursor.getLong(1 + i);
+                    }
+                    addToRollup(rollups, cursor.getString(0), rollup);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        List<Map.Entry<String, long[]>> sorted = new ArrayList<>(rollups.entrySet());
+        Collections.sort(sorted, new Comparator<Map.Entry<String, long[]>>() {
+            @Override
+            public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+                long valueA = a.getValue()[1 + AMOUNT_VALUE];
+                long valueB = b.getValue()[1 + AMOUNT_VALUE];
+                if (valueA != valueB) {
+                    return valueA > valueB ? -1 : 1;
+                }
+                return a.getKey().compareTo(b.getKey());
+            }
+        });
+
+        MatrixCursor cursor = new MatrixCursor(projection, sorted.size());
+        for (Map.Entry<String, long[]> entry : sorted) {
+            long[] rollup = entry.getValue();
+            long value = rollup[1 + AMOUNT_VALUE];
+            Object[] row = {
+                    entry.getKey(),
+                    rollup[0],
+                    rollup[1 + AMOUNT_REVENUE],
+                    rollup[1 + AMOUNT_NET_INCOME],
+                    value,
+                    value > 0 ? (double) rollup[1 + AMOUNT_NET_INCOME] / value : null,
+                    rollup[1 + AMOUNT_PROJECTION] };
+            Object[] projected = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                projected[i] = row[sources[i]];
+            }
+            cursor.addRow(projected);
+        }
+        return cursor;
+    }
+
+    /**
+     * The full pass of one shard: its range of ids, and the rollups of the ranges written so
+     * far.
+     */
+    private static final class Pass {
+        final int mShard;
+        final long mFirstId;
+        final long mEndId;
+        final long mDeletedThroughId;
+        final Map<String, long[]> mRollups = new HashMap<>();
+
+        Pass(int shard, long firstId, long endId, long deletedThroughId) {
+            mShard = shard;
+            mFirstId = firstId;
+            mEndId = endId;
+            mDeletedThroughId = deletedThroughId;
+        }
+    }
+
+    /**
+     * A range of ids of a full pass, valued on the pool: the valuations of its live homes and
+     * their rollups per county.
+     */
+    private final class Range implements Callable<Range> {
+        final Pass mPass;
+        final long mFirstId;
+        final long mEndId;
+
+        int mCount;
+        long[] mIds;
+        String[] mCounties;
+        long[] mAmounts;
+        final Map<String, long[]> mRollups = new HashMap<>();
+
+        Range(Pass pass, long firstId, long endId) {
+            mPass = pass;
+            mFirstId = firstId;
+            mEndId = endId;
+        }
+
+        @Override
+        public Range call() {
+            SQLiteDatabase db = mShards.getDbHelper(mPass.mShard).getReadableDatabase();
+            Cursor cursor = db.query(HomeEntry.TABLE_NAME, VALUED_COLUMNS,
+                    HomeTombstones.appendSelection(HomeEntry._ID + " >= ? AND " + HomeEntry._ID
+                                    + " < ?", HomeTombstones.liveSelection(mPass.mDeletedThroughId)),
+                    new String[] { String.valueOf(mFirstId), String.valueOf(mEndId) },
+                    null, null, null);
+            try {
+                int count = cursor.getCount();
+                mIds = new long[count];
+                mCounties = new String[count];
+                mAmounts = new long[count * AMOUNT_COUNT];
+                long[] amounts = new long[AMOUNT_COUNT];
+                while (cursor.moveToNext()) {
+                    String county = cursor.isNull(1) ? "" : cursor.getString(1);
+                    value(cursor.getInt(2), cursor.getLong(3), amounts);
+                    mIds[mCount] = cursor.getLong(0);
+                    mCounties[mCount] = county;
+                    System.arraycopy(amounts, 0, mAmounts, mCount * AMOUNT_COUNT, AMOUNT_COUNT);
+                    addToRollup(mRollups, county, amounts, 1);
+                    mCount++;
+                }
+            } finally {
+                cursor.close();
+            }
+            return this;
+        }
+    }
+}
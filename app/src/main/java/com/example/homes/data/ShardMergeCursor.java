@@ -0,0 +1,327 @@
+package com.example.homes.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Cursor merging the sorted results of every shard of {@link HomeShards} into one result in
+ * the same order.
+ *
+ * The merge is lazy: moving to a row merges just as far as that row, comparing the sort keys
+ * of the next row of every shard, which are read once and kept. For every merged row the
+ * cursor remembers its shard and its position there, so moving back is a lookup.
+ *
+ * The shard cursors may have more columns than this cursor: the columns the sort order needs
+ * but the caller didn't ask for are appended to the projection of the shards, and hidden here.
+ */
+class ShardMergeCursor extends AbstractCursor {
+
+    private static final int COLLATION_BINARY = 0;
+    private static final int COLLATION_NOCASE = 1;
+    private static final int COLLATION_LOCALIZED = 2;
+
+    private final Cursor[] mCursors;
+    private final String[] mColumnNames;
+    private final int mCount;
+
+    /** Sort keys, their column in the shard cursors and their collation and direction */
+    private final int[] mKeyColumns;
+    private final int[] mKeyCollations;
+    private final boolean[] mKeyDescending;
+    private final Collator mCollator;
+
+    /** Sort keys of the next row of every shard, or null once the shard is used up */
+    private final Object[][] mHeads;
+
+    /** Position of the next row of every shard */
+    private final int[] mNextRows;
+
+    /** Shard and position there of every merged row */
+    private byte[] mRowShards = new byte[16];
+    private int[] mRowPositions = new int[16];
+    private int mMergedCount;
+
+    /** Shard cursor positioned on the current row */
+    private Cursor mCurrent;
+
+    /**
+     * @param cursors the sorted result of every shard, with the same columns
+     * @param columnCount the number of columns to show, the remaining ones are hidden
+     * @param orderBy the ORDER BY clause the shards were sorted with, as made by
+     *                {@link HomeProvider#resolveSortOrder(String)}
+     */
+    ShardMergeCursor(Cursor[] cursors, int columnCount, String orderBy) {
+        if (cursors.length > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many shards " + cursors.length);
+        }
+        mCursors = cursors;
+        mColumnNames = Arrays.copyOf(cursors[0].getColumnNames(), columnCount);
+
+        int count = 0;
+        for (Cursor cursor : cursors) {
+            count += cursor.getCount();
+        }
+        mCount = count;
+
+        // Every term of the ORDER BY clause is "column [COLLATE name] [ASC|DESC]"
+        String[] terms = orderBy.split(",");
+        mKeyColumns = new int[terms.length];
+        mKeyCollations = new int[terms.length];
+        mKeyDescending = new boolean[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            String[] words = terms[i].trim().split("\\s+");
+            mKeyColumns[i] = cursors[0].getColumnIndexOrThrow(words[0]);
+            for (int j = 1; j < words.length; j++) {
+                String word = words[j].toUpperCase(Locale.US);
+                if (word.equals("DESC")) {
+                    mKeyDescending[i] = true;
+                } else if (word.equals("COLLATE")) {
+                    String collation = words[++j].toUpperCase(Locale.US);
+                    if (collation.equals("NOCASE")) {
+                        mKeyCollations[i] = COLLATION_NOCASE;
+                    } else if (collation.equals("LOCALIZED")) {
+                        mKeyCollations[i] = COLLATION_LOCALIZED;
+                    }
+                }
+            }
+        }
+        // SQLite's LOCALIZED collation compares with the collator of the default locale too
+        mCollator = Collator.getInstance();
+
+        mHeads = new Object[cursors.length][];
+        mNextRows = new int[cursors.length];
+        for (int shard = 0; shard < cursors.length; shard++) {
+            loadHead(shard);
+        }
+    }
+
+    /**
+     * Returns the sort columns of the ORDER BY clause, to add to the projection of the shards.
+     */
+    static List<String> getSortColumns(String orderBy) {
+        List<String> columns = new ArrayList<>();
+        for (String term : orderBy.split(",")) {
+            columns.add(term.trim().split("\\s+")[0]);
+        }
+        return columns;
+    }
+
+    private void loadHead(int shard) {
+        Cursor cursor = mCursors[shard];
+        if (!cursor.moveToPosition(mNextRows[shard])) {
+            mHeads[shard] = null;
+            return;
+        }
+        Object[] keys = new Object[mKeyColumns.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = readValue(cursor, mKeyColumns[i]);
+        }
+        mHeads[shard] = keys;
+    }
+
+    private static Object readValue(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            default:
+                return cursor.getString(column);
+        }
+    }
+
+    /**
+     * Merge the next row, taking it from the shard whose next row sorts first.
+     */
+    private void mergeNext() {
+        int next = -1;
+        for (int shard = 0; shard < mHeads.length; shard++) {
+            if (mHeads[shard] != null && (next == -1 || compareKeys(mHeads[shard], mHeads[next]) < 0)) {
+                next = shard;
+            }
+        }
+
+        if (mMergedCount == mRowShards.length) {
+            int capacity = Math.min(mCount, mMergedCount * 2);
+            mRowShards = Arrays.copyOf(mRowShards, capacity);
+            mRowPositions = Arrays.copyOf(mRowPositions, capacity);
+        }
+        mRowShards[mMergedCount] = (byte) next;
+        mRowPositions[mMergedCount] = mNextRows[next];
+        mMergedCount++;
+
+        mNextRows[next]++;
+        loadHead(next);
+    }
+
+    private int compareKeys(Object[] a, Object[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int result = compareValues(a[i], b[i], mKeyCollations[i]);
+            if (result != 0) {
+                return mKeyDescending[i] ? -result : result;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Compare two values the way SQLite does: NULL first, then numbers, then text in the
+     * given collation, then blobs.
+     */
+    private int compareValues(Object a, Object b, int collation) {
+        int rankA = rankOf(a);
+        int rankB = rankOf(b);
+        if (rankA != rankB) {
+            return rankA < rankB ? -1 : 1;
+        }
+        if (a instanceof Long && b instanceof Long) {
+            long x = (Long) a;
+            long y = (Long) b;
+            return x < y ? -1 : (x == y ? 0 : 1);
+        } else if (a instanceof Number) {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        } else if (a instanceof String) {
+            switch (collation) {
+                case COLLATION_NOCASE:
+                    return compareNoCase((String) a, (String) b);
+                case COLLATION_LOCALIZED:
+                    return mCollator.compare(a, b);
+                default:
+                    return ((String) a).compareTo((String) b);
+            }
+        } else if (a instanceof byte[]) {
+            byte[] x = (byte[]) a;
+            byte[] y = (byte[]) b;
+            for (int i = 0; i < Math.min(x.length, y.length); i++) {
+                int result = (x[i] & 0xff) - (y[i] & 0xff);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return x.length - y.length;
+        }
+        return 0;
+    }
+
+    private static int rankOf(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof Number) {
+            return 1;
+        } else if (value instanceof String) {
+            return 2;
+        }
+        return 3;
+    }
+
+    /**
+     * SQLite's NOCASE collation, which only folds ASCII letters.
+     */
+    private static int compareNoCase(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        for (int i = 0; i < length; i++) {
+            char x = a.charAt(i);
+            char y = b.charAt(i);
+            if (x >= 'A' && x <= 'Z') {
+                x += 'a' - 'A';
+            }
+            if (y >= 'A' && y <= 'Z') {
+                y += 'a' - 'A';
+            }
+            if (x != y) {
+                return x - y;
+            }
+        }
+        return a.length() - b.length();
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        while (mMergedCount <= newPosition) {
+            mergeNext();
+        }
+        mCurrent = mCursors[mRowShards[newPosition]];
+        return mCurrent.moveToPosition(mRowPositions[newPosition]);
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public int getType(int column) {
+        return mCurrent.getType(column);
+    }
+
+    @Override
+    public String getString(int column) {
+        return mCurrent.getString(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return mCurrent.getBlob(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return mCurrent.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return mCurrent.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return mCurrent.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return mCurrent.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return mCurrent.getDouble(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mCurrent.isNull(column);
+    }
+
+    @Override
+    public void deactivate() {
+        super.deactivate();
+        for (Cursor cursor : mCursors) {
+            cursor.deactivate();
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        for (Cursor cursor : mCursors) {
+            cursor.close();
+        }
+    }
+}
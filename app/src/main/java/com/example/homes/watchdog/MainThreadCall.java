@@ -0,0 +1,72 @@
+package com.example.homes.watchdog;
+
+/**
+ * Calls of one provider method on one kind of URI made on the main thread, with how often they
+ * happened and where the most recent sampled call came from.
+ */
+public final class MainThreadCall {
+
+    private final String mMethod;
+    private final String mUri;
+    private long mCount;
+    private long mSampleCount;
+    private String mCallSite;
+    private StackTraceElement[] mStack;
+
+    MainThreadCall(String method, String uri) {
+        mMethod = method;
+        mUri = uri;
+    }
+
+    /**
+     * Count one more call. Returns the number of calls so far.
+     */
+    synchronized long count() {
+        return ++mCount;
+    }
+
+    synchronized void sample(String callSite, StackTraceElement[] stack) {
+        mSampleCount++;
+        mCallSite = callSite;
+        mStack = stack;
+    }
+
+    /** The provider method that was called, e.g. "insert" */
+    public String getMethod() {
+        return mMethod;
+    }
+
+    /** The URI that was called, with ids replaced by "#", e.g. "content://.../homes/#" */
+    public String getUri() {
+        return mUri;
+    }
+
+    /** The number of calls, sampled or not */
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /** The number of calls whose stack was sampled */
+    public synchronized long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * The first frame of the last sampled stack outside the provider and the framework, e.g.
+     * "com.example.homes.EditorActivity.saveHome(EditorActivity.java:187)".
+     */
+    public synchronized String getCallSite() {
+        return mCallSite;
+    }
+
+    /** The last sampled stack */
+    public synchronized StackTraceElement[] getStack() {
+        return mStack == null ? null : mStack.clone();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mMethod + " " + mUri + " from " + mCallSite + " (" + mCount + " calls, "
+                + mSampleCount + " sampled)";
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.homes.watchdog;
+
+import java.util.Locale;
+
+/**
+ * Histogram of durations with one bucket per power of two microseconds, so recording a value
+ * is a couple of shifts and an increment, and the memory used never grows.
+ *
+ * Bucket 0 holds everything under 1 us, bucket i holds [2^(i-1), 2^i) us, and the last bucket
+ * holds everything from about 17 minutes on.
+ */
+public final class TimingHistogram {
+
+    private static final int BUCKET_COUNT = 32;
+
+    private final String mName;
+    private final long[] mBuckets = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mTotalNanos;
+    private long mMaxNanos;
+
+    public TimingHistogram(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Record one duration, in nanoseconds.
+     */
+    public synchronized void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        long micros = nanos / 1000;
+        int bucket = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+        mBuckets[Math.min(bucket, BUCKET_COUNT - 1)]++;
+        mCount++;
+        mTotalNanos += nanos;
+        mMaxNanos = Math.max(mMaxNanos, nanos);
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMaxNanos() {
+        return mMaxNanos;
+    }
+
+    public synchronized long getMeanNanos() {
+        return mCount == 0 ? 0 : mTotalNanos / mCount;
+    }
+
+    /**
+     * Returns an upper bound of the given percentile, between 0 and 100, in nanoseconds. The
+     * bound is the end of the bucket the percentile falls into, so it is at most twice the
+     * real value, and never more than the largest duration recorded.
+     */
+    public synchronized long getPercentileNanos(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile out of range " + percentile);
+        }
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(mCount * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets[i];
+            if (seen >= rank) {
+                return Math.min((1L << i) * 1000, mMaxNanos);
+            }
+        }
+        return mMaxNanos;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mTotalNanos = 0;
+        mMaxNanos = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%s: count=%d mean=%.2fms p50<=%.2fms p90<=%.2fms "
+                        + "p99<=%.2fms max=%.2fms",
+                mName, mCount, getMeanNanos() / 1e6, getPercentileNanos(50) / 1e6,
+                getPercentileNanos(90) / 1e6, getPercentileNanos(99) / 1e6, mMaxNanos / 1e6);
+    }
+}
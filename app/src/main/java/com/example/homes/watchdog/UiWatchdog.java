@@ -0,0 +1,254 @@
+package com.example.homes.watchdog;
+
+import android.net.Uri;
+import android.os.Build;
+import android.os.Looper;
+import android.os.Trace;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Watches the main thread for the work that makes the catalog drop frames.
+ *
+ * It has three parts:
+ * - Timing histograms of newView() and bindView() for every adapter, see
+ *   {@link #startTiming()} and {@link #recordBindView(String, long)}.
+ * - Detection of home provider calls made on the main looper, see
+ *   {@link #onProviderCall(String, Uri)}. Every call is counted, and the stack of the first call
+ *   and then of one call in {@link #SAMPLE_INTERVAL} is captured and logged, so a call site that
+ *   runs in a loop doesn't pay for a stack trace every time.
+ * - Systrace sections around the loader callbacks, see {@link #beginSection(String)}.
+ *
+ * The watchdog is off by default and can be switched on and off at any time with
+ * {@link #setEnabled(boolean)}. While it is off every hook returns after reading a single
+ * volatile flag, without allocating anything.
+ */
+public final class UiWatchdog {
+
+    private static final String LOG_TAG = UiWatchdog.class.getSimpleName();
+
+    /** After the first call from the main thread, capture the stack of one call in this many */
+    static final int SAMPLE_INTERVAL = 16;
+
+    /** Systrace rejects section names longer than this */
+    private static final int MAX_SECTION_NAME_LENGTH = 127;
+
+    /** Frames of these packages are skipped when looking for the call site of a provider call */
+    private static final String[] FRAMEWORK_PACKAGES = {
+            UiWatchdog.class.getPackage().getName() + ".",
+            "com.example.homes.data.",
+            "android.",
+            "com.android.",
+            "java.",
+            "dalvik.",
+            "libcore."
+    };
+
+    private static volatile boolean sEnabled;
+
+    /** Guards the histograms and the main thread calls */
+    private static final Object sLock = new Object();
+
+    private static final Map<String, TimingHistogram> sHistograms = new LinkedHashMap<>();
+
+    private static final Map<String, MainThreadCall> sMainThreadCalls = new LinkedHashMap<>();
+
+    private UiWatchdog() {}
+
+    /**
+     * Switch the watchdog on or off. Everything recorded so far is kept, use {@link #reset()}
+     * to drop it.
+     */
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Returns the start time to pass to one of the record methods, or 0 if the watchdog is off.
+     */
+    public static long startTiming() {
+        return sEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record how long newView() of the given adapter took since the given start time.
+     */
+    public static void recordNewView(String adapter, long startNanos) {
+        record(adapter, ".newView", startNanos);
+    }
+
+    /**
+     * Record how long bindView() of the given adapter took since the given start time.
+     */
+    public static void recordBindView(String adapter, long startNanos) {
+        record(adapter, ".bindView", startNanos);
+    }
+
+    private static void record(String adapter, String method, long startNanos) {
+        // The watchdog was off when the timing started
+        if (startNanos == 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - startNanos;
+        getOrCreateHistogram(adapter + method).record(nanos);
+    }
+
+    private static TimingHistogram getOrCreateHistogram(String name) {
+        synchronized (sLock) {
+            TimingHistogram histogram = sHistograms.get(name);
+            if (histogram == null) {
+                histogram = new TimingHistogram(name);
+                sHistograms.put(name, histogram);
+            }
+            return histogram;
+        }
+    }
+
+    /**
+     * Returns the histogram with the given name, like "HomeCursorAdapter.bindView", or null if
+     * nothing was recorded for it.
+     */
+    public static TimingHistogram getHistogram(String name) {
+        synchronized (sLock) {
+            return sHistograms.get(name);
+        }
+    }
+
+    public static List<TimingHistogram> getHistograms() {
+        synchronized (sLock) {
+            return new ArrayList<>(sHistograms.values());
+        }
+    }
+
+    /**
+     * Tell the watchdog that the given provider method was called with the given URI. Calls
+     * made on the main looper are counted, sampled and reported, all other calls are ignored.
+     */
+    public static void onProviderCall(String method, Uri uri) {
+        if (!sEnabled || Looper.myLooper() != Looper.getMainLooper()) {
+            return;
+        }
+
+        String uriPattern = toUriPattern(uri);
+        String key = method + " " + uriPattern;
+        MainThreadCall call;
+        synchronized (sLock) {
+            call = sMainThreadCalls.get(key);
+            if (call == null) {
+                call = new MainThreadCall(method, uriPattern);
+                sMainThreadCalls.put(key, call);
+            }
+        }
+
+        long count = call.count();
+        if (count != 1 && count % SAMPLE_INTERVAL != 0) {
+            return;
+        }
+
+        Throwable trace = new Throwable("Stack of the call");
+        StackTraceElement[] stack = trace.getStackTrace();
+        call.sample(findCallSite(stack), stack);
+        if (count == 1) {
+            // Log the whole stack only once per kind of call, the rest is in the report
+            Log.w(LOG_TAG, "Home provider called on the main thread: " + call, trace);
+        }
+    }
+
+    /**
+     * Returns the URI without its query, with every id replaced by "#".
+     */
+    static String toUriPattern(Uri uri) {
+        if (uri == null) {
+            return "null";
+        }
+        String pattern = uri.toString();
+        int query = pattern.indexOf('?');
+        if (query >= 0) {
+            pattern = pattern.substring(0, query);
+        }
+        return pattern.replaceAll("/\\d+(?=/|$)", "/#");
+    }
+
+    /**
+     * Returns the first frame that belongs to the app and not to the provider, the watchdog or
+     * the framework.
+     */
+    static String findCallSite(StackTraceElement[] stack) {
+        for (StackTraceElement frame : stack) {
+            if (!isFrameworkFrame(frame.getClassName())) {
+                return frame.toString();
+            }
+        }
+        return "unknown";
+    }
+
+    private static boolean isFrameworkFrame(String className) {
+        for (String prefix : FRAMEWORK_PACKAGES) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static List<MainThreadCall> getMainThreadCalls() {
+        synchronized (sLock) {
+            return new ArrayList<>(sMainThreadCalls.values());
+        }
+    }
+
+    /**
+     * Begin a systrace section with the given name, if the watchdog is on. Returns whether a
+     * section was started, pass that to {@link #endSection(boolean)} so the sections stay
+     * balanced even if the watchdog is switched in between.
+     */
+    public static boolean beginSection(String name) {
+        if (!sEnabled || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return false;
+        }
+        if (name.length() > MAX_SECTION_NAME_LENGTH) {
+            name = name.substring(0, MAX_SECTION_NAME_LENGTH);
+        }
+        Trace.beginSection(name);
+        return true;
+    }
+
+    /**
+     * End the systrace section started by {@link #beginSection(String)} on this thread.
+     */
+    public static void endSection(boolean started) {
+        if (started) {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Log everything recorded so far.
+     */
+    public static void dump() {
+        for (TimingHistogram histogram : getHistograms()) {
+            Log.i(LOG_TAG, histogram.toString());
+        }
+        for (MainThreadCall call : getMainThreadCalls()) {
+            Log.w(LOG_TAG, "Main thread provider call: " + call);
+        }
+    }
+
+    /**
+     * Drop everything recorded so far.
+     */
+    public static void reset() {
+        synchronized (sLock) {
+            sHistograms.clear();
+            sMainThreadCalls.clear();
+        }
+    }
+}
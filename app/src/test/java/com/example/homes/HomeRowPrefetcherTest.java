@@ -0,0 +1,267 @@
+package com.example.homes;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.text.Layout;
+import android.text.TextPaint;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.CursorAdapter;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Robolectric tests for {@link HomeRowPrefetcher}: how far ahead of the scroll and in which
+ * direction it lays out rows, and when the layouts it kept are used or laid out again.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class HomeRowPrefetcherTest {
+
+    private static final int ROW_COUNT = 200;
+
+    private Context mContext;
+    private DirectExecutor mExecutor;
+    private HomeRowPrefetcher mPrefetcher;
+    private CursorAdapter mAdapter;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mExecutor = new DirectExecutor();
+        mPrefetcher = new HomeRowPrefetcher(mContext, mExecutor);
+        mPrefetcher.setGeometry(paints(), new int[] { 300, 200, 100 });
+
+        MatrixCursor cursor = new MatrixCursor(new String[] {
+                HomeEntry._ID,
+                HomeEntry.COLUMN_HOME_ADDRESS,
+                HomeEntry.COLUMN_HOME_COUNTY,
+                HomeEntry.COLUMN_HOME_INCOME });
+        for (int i = 0; i < ROW_COUNT; i++) {
+            cursor.addRow(new Object[] { i + 1, address(i + 1), i % 3 == 0 ? null : "Springfield",
+                    1000 + i });
+        }
+        mAdapter = new CursorAdapter(mContext, cursor, 0) {
+            @Override
+            public View newView(Context context, Cursor cursor, ViewGroup parent) {
+                return null;
+            }
+
+            @Override
+            public void bindView(View view, Context context, Cursor cursor) {
+            }
+        };
+    }
+
+    @Test
+    public void lookahead_atRest_isTheRowsBelowTheScreen() {
+        assertEquals(0, mPrefetcher.getRowsPerSecond(), 0);
+        assertRange(20, 27, mPrefetcher.getRowsAhead(10, 10, ROW_COUNT));
+    }
+
+    @Test
+    public void lookahead_growsWithTheSpeedOfTheScroll() {
+        mPrefetcher.updateSpeed(0, 1000);
+        // 100 rows per second, smoothed to half of it the first time
+        mPrefetcher.updateSpeed(10, 1100);
+        assertEquals(50, mPrefetcher.getRowsPerSecond(), 0.01);
+        // 300 ms ahead at 50 rows per second
+        assertRange(20, 34, mPrefetcher.getRowsAhead(10, 10, ROW_COUNT));
+
+        // A fling, up to the most rows ahead
+        for (int i = 2; i < 10; i++) {
+            mPrefetcher.updateSpeed(i * 20, 1100 + i * 10);
+        }
+        assertTrue(mPrefetcher.getRowsPerSecond() > 1000);
+        assertRange(100, 163, mPrefetcher.getRowsAhead(80, 20, ROW_COUNT));
+
+        // The same first row doesn't count as a stop
+        mPrefetcher.updateSpeed(180, 5000);
+        assertTrue(mPrefetcher.getRowsPerSecond() > 1000);
+
+        mPrefetcher.onScrollStateChanged(null, AbsListView.OnScrollListener.SCROLL_STATE_IDLE);
+        assertEquals(0, mPrefetcher.getRowsPerSecond(), 0);
+    }
+
+    @Test
+    public void lookahead_towardsTheTop_isTheRowsAboveTheScreen() {
+        mPrefetcher.updateSpeed(100, 1000);
+        mPrefetcher.updateSpeed(90, 1100);
+        assertEquals(-50, mPrefetcher.getRowsPerSecond(), 0.01);
+        assertRange(75, 89, mPrefetcher.getRowsAhead(90, 10, ROW_COUNT));
+        // Not above the first row
+        assertRange(0, 4, mPrefetcher.getRowsAhead(5, 10, ROW_COUNT));
+        assertTrue(isEmpty(mPrefetcher.getRowsAhead(0, 10, ROW_COUNT)));
+    }
+
+    @Test
+    public void lookahead_stopsAtTheLastRow() {
+        assertRange(195, 199, mPrefetcher.getRowsAhead(185, 10, ROW_COUNT));
+        assertTrue(isEmpty(mPrefetcher.getRowsAhead(190, 10, ROW_COUNT)));
+    }
+
+    @Test
+    public void prefetchedRows_areUsedWhileTheirValuesMatch() {
+        mPrefetcher.prefetch(mAdapter, 0, 9);
+        ShadowLooper.idleMainLooper();
+
+        Layout[] layouts = mPrefetcher.getLayouts(1, address(1), null, 1000);
+        assertNotNull(layouts);
+        assertEquals(address(1), layouts[HomeRowPrefetcher.TEXT_ADDRESS].getText().toString());
+        assertEquals(mPrefetcher.getCountyText(null),
+                layouts[HomeRowPrefetcher.TEXT_COUNTY].getText().toString());
+        assertEquals(mPrefetcher.getIncomeText(1000),
+                layouts[HomeRowPrefetcher.TEXT_INCOME].getText().toString());
+        assertEquals(300, layouts[HomeRowPrefetcher.TEXT_ADDRESS].getWidth());
+        assertNotNull(mPrefetcher.getLayouts(2, address(2), "Springfield", 1001));
+
+        // The home changed since it was read
+        assertNull(mPrefetcher.getLayouts(1, "1 Elm St", null, 1000));
+        assertNull(mPrefetcher.getLayouts(1, address(1), "Shelbyville", 1000));
+        assertNull(mPrefetcher.getLayouts(1, address(1), null, 1200));
+        // Not read yet
+        assertNull(mPrefetcher.getLayouts(11, address(11), "Springfield", 1010));
+    }
+
+    @Test
+    public void prefetchedRows_areLaidOutOnce() {
+        mPrefetcher.prefetch(mAdapter, 0, 9);
+        ShadowLooper.idleMainLooper();
+        assertEquals(1, mExecutor.mBatches);
+
+        // Overlapping the rows read at the last scroll, only the new ones are read
+        mPrefetcher.prefetch(mAdapter, 5, 14);
+        ShadowLooper.idleMainLooper();
+        assertEquals(2, mExecutor.mBatches);
+        for (int id = 11; id <= 15; id++) {
+            assertNotNull(mPrefetcher.getLayouts(id, address(id),
+                    (id - 1) % 3 == 0 ? null : "Springfield", 999 + id));
+        }
+
+        // Read before and laid out, nothing left to do
+        mPrefetcher.prefetch(mAdapter, 0, 14);
+        ShadowLooper.idleMainLooper();
+        assertEquals(2, mExecutor.mBatches);
+    }
+
+    @Test
+    public void otherGeometry_laysOutTheRowsAgain() {
+        mPrefetcher.prefetch(mAdapter, 0, 9);
+        ShadowLooper.idleMainLooper();
+        assertNotNull(mPrefetcher.getLayouts(1, address(1), null, 1000));
+
+        // E.g. after a rotation
+        mPrefetcher.setGeometry(paints(), new int[] { 500, 300, 200 });
+        assertNull(mPrefetcher.getLayouts(1, address(1), null, 1000));
+
+        mPrefetcher.prefetch(mAdapter, 0, 9);
+        ShadowLooper.idleMainLooper();
+        Layout[] layouts = mPrefetcher.getLayouts(1, address(1), null, 1000);
+        assertNotNull(layouts);
+        assertEquals(500, layouts[HomeRowPrefetcher.TEXT_ADDRESS].getWidth());
+    }
+
+    @Test
+    public void evictedRows_areLaidOutAgain() {
+        mPrefetcher.prefetch(mAdapter, 0, 9);
+        ShadowLooper.idleMainLooper();
+        mPrefetcher.evictAll();
+        assertNull(mPrefetcher.getLayouts(1, address(1), null, 1000));
+
+        mPrefetcher.prefetch(mAdapter, 0, 9);
+        ShadowLooper.idleMainLooper();
+        assertEquals(2, mExecutor.mBatches);
+        assertNotNull(mPrefetcher.getLayouts(1, address(1), null, 1000));
+    }
+
+    @Test
+    public void rowsOfAnotherCursor_areReadAgain() {
+        mPrefetcher.prefetch(mAdapter, 0, 9);
+        ShadowLooper.idleMainLooper();
+
+        MatrixCursor cursor = new MatrixCursor(new String[] {
+                HomeEntry._ID,
+                HomeEntry.COLUMN_HOME_ADDRESS,
+                HomeEntry.COLUMN_HOME_COUNTY,
+                HomeEntry.COLUMN_HOME_INCOME });
+        cursor.addRow(new Object[] { 1, "1 Elm St", null, 1000 });
+        mAdapter.changeCursor(cursor);
+
+        mPrefetcher.prefetch(mAdapter, 0, 9);
+        ShadowLooper.idleMainLooper();
+        assertNotNull(mPrefetcher.getLayouts(1, "1 Elm St", null, 1000));
+        assertNull(mPrefetcher.getLayouts(1, address(1), null, 1000));
+    }
+
+    private static String address(int number) {
+        return number + " Main St";
+    }
+
+    private static TextPaint[] paints() {
+        return new TextPaint[] { new TextPaint(), new TextPaint(), new TextPaint() };
+    }
+
+    private static void assertRange(int first, int last, int[] range) {
+        assertEquals(first, range[0]);
+        assertEquals(last, range[1]);
+    }
+
+    private static boolean isEmpty(int[] range) {
+        return range[0] > range[1];
+    }
+
+    /**
+     * Runs every batch of layouts right away, on the calling thread.
+     */
+    private static final class DirectExecutor extends AbstractExecutorService {
+        int mBatches;
+        private boolean mShutdown;
+
+        @Override
+        public void execute(Runnable command) {
+            mBatches++;
+            command.run();
+        }
+
+        @Override
+        public void shutdown() {
+            mShutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            mShutdown = true;
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return mShutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return mShutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.homes;
+
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.view.View.MeasureSpec;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.*;
+
+/**
+ * Robolectric tests for {@link LayoutTextView}: its size and baseline with a layout made
+ * ahead, the switch back and forth with plain text as the view is recycled, and what
+ * accessibility services get to read.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class LayoutTextViewTest {
+
+    private static final int TEXT_WIDTH = 200;
+    private static final int PADDING_LEFT = 4;
+    private static final int PADDING_TOP = 6;
+    private static final int PADDING_RIGHT = 4;
+    private static final int PADDING_BOTTOM = 8;
+
+    private LayoutTextView mView;
+
+    @Before
+    public void setUp() {
+        mView = newView();
+    }
+
+    @Test
+    public void precomputedLayout_givesTheSizeAndBaseline() {
+        Layout layout = layOut("12 Main St", TEXT_WIDTH);
+        mView.setPrecomputedLayout(layout);
+        measureAndLayOut(mView, TEXT_WIDTH);
+
+        assertEquals(TEXT_WIDTH + PADDING_LEFT + PADDING_RIGHT, mView.getMeasuredWidth());
+        assertEquals(layout.getHeight() + PADDING_TOP + PADDING_BOTTOM,
+                mView.getMeasuredHeight());
+        assertEquals(PADDING_TOP + layout.getLineBaseline(0), mView.getBaseline());
+        assertEquals(TEXT_WIDTH, mView.getTextWidth());
+    }
+
+    @Test
+    public void precomputedLayout_ofAnotherWidth_isLaidOutAgain() {
+        mView.setPrecomputedLayout(layOut("12 Main St\nSpringfield", TEXT_WIDTH));
+        measureAndLayOut(mView, TEXT_WIDTH + 100);
+
+        Layout expected = layOut("12 Main St\nSpringfield", TEXT_WIDTH + 100);
+        assertEquals(expected.getHeight() + PADDING_TOP + PADDING_BOTTOM,
+                mView.getMeasuredHeight());
+        assertEquals(PADDING_TOP + expected.getLineBaseline(0), mView.getBaseline());
+    }
+
+    @Test
+    public void layoutOfTheSameSize_doesNotAskForALayoutPass() {
+        mView.setPrecomputedLayout(layOut("12 Main St", TEXT_WIDTH));
+        measureAndLayOut(mView, TEXT_WIDTH);
+        assertFalse(mView.isLayoutRequested());
+
+        mView.setPrecomputedLayout(layOut("14 Elm St", TEXT_WIDTH));
+        assertFalse(mView.isLayoutRequested());
+
+        // Taller
+        mView.setPrecomputedLayout(layOut("14 Elm St\nShelbyville", TEXT_WIDTH));
+        assertTrue(mView.isLayoutRequested());
+    }
+
+    @Test
+    public void recycledView_measuresPlainTextAsUsual() {
+        LayoutTextView plain = newView();
+        plain.setPlainText("14 Elm St\nShelbyville");
+        measureAndLayOut(plain, TEXT_WIDTH);
+
+        mView.setPlainText("12 Main St");
+        measureAndLayOut(mView, TEXT_WIDTH);
+        mView.setPrecomputedLayout(layOut("16 Oak St", TEXT_WIDTH));
+        measureAndLayOut(mView, TEXT_WIDTH);
+        // The plain text is gone with the layout
+        assertEquals(0, mView.getText().length());
+
+        mView.setPlainText("14 Elm St\nShelbyville");
+        assertTrue(mView.isLayoutRequested());
+        measureAndLayOut(mView, TEXT_WIDTH);
+        assertEquals(plain.getMeasuredHeight(), mView.getMeasuredHeight());
+        assertEquals(plain.getBaseline(), mView.getBaseline());
+        assertEquals("14 Elm St\nShelbyville", mView.getText().toString());
+    }
+
+    @Test
+    public void accessibility_readsTheTextOfTheLayout() {
+        mView.setPlainText("12 Main St");
+        mView.setPrecomputedLayout(layOut("14 Elm St", TEXT_WIDTH));
+        assertNull(mView.getContentDescription());
+
+        AccessibilityNodeInfo info = AccessibilityNodeInfo.obtain();
+        mView.onInitializeAccessibilityNodeInfo(info);
+        assertEquals("14 Elm St", info.getText().toString());
+
+        AccessibilityEvent event = AccessibilityEvent.obtain();
+        mView.onPopulateAccessibilityEvent(event);
+        assertEquals(1, event.getText().size());
+        assertEquals("14 Elm St", event.getText().get(0).toString());
+
+        mView.setPlainText("16 Oak St");
+        info = AccessibilityNodeInfo.obtain();
+        mView.onInitializeAccessibilityNodeInfo(info);
+        assertEquals("16 Oak St", info.getText().toString());
+        assertNull(mView.getContentDescription());
+    }
+
+    private static LayoutTextView newView() {
+        LayoutTextView view = new LayoutTextView(RuntimeEnvironment.application);
+        view.setPadding(PADDING_LEFT, PADDING_TOP, PADDING_RIGHT, PADDING_BOTTOM);
+        return view;
+    }
+
+    private Layout layOut(CharSequence text, int width) {
+        return new StaticLayout(text, mView.getPaint(), width, Layout.Alignment.ALIGN_NORMAL,
+                1, 0, true);
+    }
+
+    private static void measureAndLayOut(LayoutTextView view, int textWidth) {
+        int width = textWidth + PADDING_LEFT + PADDING_RIGHT;
+        view.measure(MeasureSpec.makeMeasureSpec(width, MeasureSpec.EXACTLY),
+                MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED));
+        view.layout(0, 0, view.getMeasuredWidth(), view.getMeasuredHeight());
+    }
+}
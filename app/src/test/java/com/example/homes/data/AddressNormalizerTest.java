@@ -0,0 +1,47 @@
+package com.example.homes.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link AddressNormalizer}.
+ */
+public class AddressNormalizerTest {
+
+    @Test
+    public void spellingsOfSameAddress_areEqual() {
+        assertEquals(AddressNormalizer.normalize("123 Fake St"),
+                AddressNormalizer.normalize("123 fake street"));
+        assertEquals(AddressNormalizer.normalize("123 Fake St"),
+                AddressNormalizer.normalize("  123   FAKE  Street. "));
+        assertEquals(AddressNormalizer.normalize("742 Evergreen Terrace, Apt #4"),
+                AddressNormalizer.normalize("742 evergreen ter apartment 4"));
+    }
+
+    @Test
+    public void directionsAndSuffixes_areAbbreviated() {
+        assertEquals("10 n main ave", AddressNormalizer.normalize("10 North Main Avenue"));
+        assertEquals("5 sw pine blvd", AddressNormalizer.normalize("5 Southwest Pine Boulevard"));
+    }
+
+    @Test
+    public void accentsAndPunctuation_areDropped() {
+        assertEquals("1 rue de la paix", AddressNormalizer.normalize("1, Rue-de-la-Paix"));
+        assertEquals("9 cafe ln", AddressNormalizer.normalize("9 Caf\u00e9 Lane"));
+    }
+
+    @Test
+    public void differentAddresses_stayDifferent() {
+        assertNotEquals(AddressNormalizer.normalize("123 Fake St"),
+                AddressNormalizer.normalize("124 Fake St"));
+        assertNotEquals(AddressNormalizer.normalize("123 Fake St"),
+                AddressNormalizer.normalize("123 Fake Ave"));
+    }
+
+    @Test
+    public void emptyAndNull() {
+        assertNull(AddressNormalizer.normalize(null));
+        assertEquals("", AddressNormalizer.normalize(" ,.# "));
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.homes.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import com.example.homes.data.HomeContract.BatchEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Robolectric tests for the encoding of the rows of batch results by {@link HomeBatchRows}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class HomeBatchRowsTest {
+
+    private static final Object[][] ROWS = {
+            { 42L, "12 Elm St", "Springfield", 1, 1200L },
+            { 7L, "3 Oak Ave", null, 0, 0L },
+            { 4000000000L, "Ch\u00e2teau Frontenac", "Qu\u00e9bec", 2, 99999L },
+            { 8L, "", "Springfield", 1, 5L } };
+
+    @Test
+    public void rows_roundTrip() throws IOException {
+        HomeBatchRows rows = new HomeBatchRows();
+        rows.addAll(source(), -1);
+        assertEquals(ROWS.length, rows.size());
+
+        Cursor cursor = decode(rows.encode());
+        assertArrayEquals(BatchEntry.ROW_COLUMNS, cursor.getColumnNames());
+        assertEquals(ROWS.length, cursor.getCount());
+        for (Object[] row : ROWS) {
+            assertTrue(cursor.moveToNext());
+            assertEquals((long) (Long) row[0], cursor.getLong(0));
+            assertEquals(row[1], cursor.getString(1));
+            assertEquals(row[2] == null, cursor.isNull(2));
+            assertEquals(row[2], cursor.getString(2));
+            assertEquals((int) (Integer) row[3], cursor.getInt(3));
+            assertEquals((long) (Long) row[4], cursor.getLong(4));
+        }
+    }
+
+    @Test
+    public void limit_stopsReading() {
+        HomeBatchRows rows = new HomeBatchRows();
+        Cursor source = source();
+        rows.addAll(source, 2);
+        assertEquals(2, rows.size());
+        assertEquals(1, source.getPosition());
+    }
+
+    @Test
+    public void rowsOfOtherRows_keepTheirValues() throws IOException {
+        HomeBatchRows found = new HomeBatchRows();
+        found.addAll(source(), -1);
+        HomeBatchRows reordered = new HomeBatchRows();
+        reordered.add(found, 3);
+        reordered.add(found, 0);
+
+        Cursor cursor = decode(reordered.encode());
+        assertTrue(cursor.moveToNext());
+        assertEquals(8L, cursor.getLong(0));
+        assertTrue(cursor.moveToNext());
+        assertEquals(42L, cursor.getLong(0));
+        assertEquals("Springfield", cursor.getString(2));
+    }
+
+    @Test
+    public void consecutiveResults_readFromOneStream() throws IOException {
+        HomeBatchRows first = new HomeBatchRows();
+        first.addAll(source(), 1);
+        HomeBatchRows empty = new HomeBatchRows();
+        HomeBatchRows all = new HomeBatchRows();
+        all.addAll(source(), -1);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(first.encode());
+        stream.write(empty.encode());
+        stream.write(all.encode());
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(stream.toByteArray()));
+        assertEquals(1, HomeBatchRows.read(in).getCount());
+        assertEquals(0, HomeBatchRows.read(in).getCount());
+        assertEquals(ROWS.length, HomeBatchRows.read(in).getCount());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void encoding_isSmallerThanTheValues() {
+        HomeBatchRows rows = new HomeBatchRows();
+        MatrixCursor source = new MatrixCursor(BatchEntry.ROW_COLUMNS);
+        for (int i = 0; i < 1000; i++) {
+            source.addRow(new Object[] { 1000L + i, i + " Elm St", "Springfield", 1, 1500L });
+        }
+        rows.addAll(source, -1);
+        // About 11 bytes of address and 5 of everything else per row
+        assertTrue(rows.encode().length < 1000 * 16);
+    }
+
+    private static Cursor source() {
+        MatrixCursor cursor = new MatrixCursor(BatchEntry.ROW_COLUMNS);
+        for (Object[] row : ROWS) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    private static Cursor decode(byte[] encoded) throws IOException {
+        return HomeBatchRows.read(new DataInputStream(new ByteArrayInputStream(encoded)));
+    }
+}
@@ -0,0 +1,180 @@
+package com.example.homes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.homes.data.HomeContract.DeletionEntry;
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.*;
+
+/**
+ * Robolectric tests for the homes with the same address, through the provider: inserts that
+ * upsert into the existing home, and the removal of the duplicates that are already there.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class HomeDuplicatesTest {
+
+    private static final Uri UPSERT_URI = HomeEntry.CONTENT_URI.buildUpon()
+            .appendQueryParameter(HomeEntry.QUERY_PARAMETER_UPSERT, "true")
+            .build();
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        Robolectric.buildContentProvider(HomeProvider.class).create(HomeContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @Test
+    public void upsert_mergesIntoTheHomeWithTheSameAddress() {
+        Uri uri = mResolver.insert(HomeEntry.CONTENT_URI, home("12 Main Street", 1000));
+        assertNotNull(uri);
+
+        // Another spelling of the same address
+        assertEquals(uri, mResolver.insert(UPSERT_URI, home("12 MAIN st.", 1800)));
+        assertEquals(1, countHomes());
+        assertEquals(1800, queryIncome(uri));
+        // The address of the caller replaces the old one
+        assertEquals("12 MAIN st.", queryAddress(uri));
+    }
+
+    @Test
+    public void upsert_insertsAHomeWithANewAddress() {
+        Uri uri = mResolver.insert(UPSERT_URI, home("12 Main St", 1000));
+        Uri other = mResolver.insert(UPSERT_URI, home("14 Main St", 1200));
+        assertNotNull(uri);
+        assertNotNull(other);
+        assertNotEquals(uri, other);
+        assertEquals(2, countHomes());
+    }
+
+    @Test
+    public void upsert_leavesDeletedHomesAlone() {
+        Uri uri = mResolver.insert(HomeEntry.CONTENT_URI, home("12 Main St", 1000));
+        assertEquals(1, mResolver.delete(uri, null, null));
+
+        Uri other = mResolver.insert(UPSERT_URI, home("12 Main St", 1800));
+        assertNotNull(other);
+        assertNotEquals(uri, other);
+        assertEquals(1, countHomes());
+
+        // Undone, the deleted home comes back as it was, next to the new one
+        undoLastDeletion();
+        assertEquals(2, countHomes());
+        assertEquals(1000, queryIncome(uri));
+    }
+
+    @Test
+    public void insert_withoutUpsert_keepsTheDuplicate() {
+        Uri uri = mResolver.insert(HomeEntry.CONTENT_URI, home("12 Main St", 1000));
+        Uri other = mResolver.insert(HomeEntry.CONTENT_URI, home("12 Main Street", 1800));
+        assertNotEquals(uri, other);
+        assertEquals(2, countHomes());
+        assertEquals(1000, queryIncome(uri));
+    }
+
+    @Test
+    public void removeDuplicates_keepsTheOldestHomeOfEachAddress() {
+        Uri oldest = mResolver.insert(HomeEntry.CONTENT_URI, home("12 Main St", 1000));
+        Uri duplicate = mResolver.insert(HomeEntry.CONTENT_URI, home("12 main street", 1200));
+        Uri unique = mResolver.insert(HomeEntry.CONTENT_URI, home("14 Main St", 1400));
+        Uri otherDuplicate = mResolver.insert(HomeEntry.CONTENT_URI, home("12 MAIN ST.", 1600));
+
+        assertEquals(2, mResolver.delete(HomeEntry.DUPLICATES_URI, null, null));
+        assertEquals(2, countHomes());
+        assertEquals(1000, queryIncome(oldest));
+        assertEquals(1400, queryIncome(unique));
+        assertEquals(-1, queryIncome(duplicate));
+        assertEquals(-1, queryIncome(otherDuplicate));
+
+        // Nothing left to remove
+        assertEquals(0, mResolver.delete(HomeEntry.DUPLICATES_URI, null, null));
+
+        // Removed as one deletion
+        undoLastDeletion();
+        assertEquals(4, countHomes());
+        assertEquals(1200, queryIncome(duplicate));
+    }
+
+    @Test
+    public void removeDuplicates_ignoresDeletedHomes() {
+        Uri deleted = mResolver.insert(HomeEntry.CONTENT_URI, home("12 Main St", 1000));
+        Uri live = mResolver.insert(HomeEntry.CONTENT_URI, home("12 Main Street", 1200));
+        assertEquals(1, mResolver.delete(deleted, null, null));
+
+        // The older home is deleted, so the newer one has no duplicate
+        assertEquals(0, mResolver.delete(HomeEntry.DUPLICATES_URI, null, null));
+        assertEquals(1200, queryIncome(live));
+    }
+
+    private static ContentValues home(String address, int income) {
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_ADDRESS, address);
+        values.put(HomeEntry.COLUMN_HOME_COUNTY, "Springfield");
+        values.put(HomeEntry.COLUMN_HOME_TYPE, HomeEntry.TYPE_SINGLE);
+        values.put(HomeEntry.COLUMN_HOME_INCOME, income);
+        return values;
+    }
+
+    private int countHomes() {
+        Cursor cursor = mResolver.query(HomeEntry.CONTENT_URI, new String[] { HomeEntry._ID },
+                null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the income of the home, or -1 if it is gone.
+     */
+    private long queryIncome(Uri uri) {
+        Cursor cursor = mResolver.query(uri, new String[] { HomeEntry.COLUMN_HOME_INCOME },
+                null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String queryAddress(Uri uri) {
+        Cursor cursor = mResolver.query(uri, new String[] { HomeEntry.COLUMN_HOME_ADDRESS },
+                null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void undoLastDeletion() {
+        Cursor deletions = mResolver.query(DeletionEntry.CONTENT_URI,
+                new String[] { DeletionEntry._ID }, null, null, null);
+        assertNotNull(deletions);
+        try {
+            assertTrue(deletions.moveToFirst());
+            assertTrue(mResolver.delete(ContentUris.withAppendedId(DeletionEntry.CONTENT_URI,
+                    deletions.getLong(0)), null, null) > 0);
+        } finally {
+            deletions.close();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.example.homes.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Robolectric tests for {@link HomeListCursor}. The prefetches run on the calling thread, so
+ * every one of them is done by the time the move that asked for it returns.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class HomeListCursorTest {
+
+    private static final int ROWS = 1000;
+    private static final int WINDOW_ROWS = 64;
+
+    private static final String[] PROJECTION = {
+            HomeEntry._ID,
+            HomeEntry.COLUMN_HOME_ADDRESS,
+            HomeEntry.COLUMN_HOME_COUNTY,
+            HomeEntry.COLUMN_HOME_INCOME };
+
+    private static final String[] COUNTIES = { "Springfield", "Shelbyville", "Ogdenville", null };
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    @Test
+    public void rows_matchSourceInAnyOrder() {
+        HomeListCursor cursor = new HomeListCursor(createSource(), WINDOW_ROWS, DIRECT_EXECUTOR);
+        try {
+            assertEquals(ROWS, cursor.getCount());
+            assertArrayEquals(PROJECTION, cursor.getColumnNames());
+
+            Random random = new Random(7);
+            for (int i = 0; i < 200; i++) {
+                int position = random.nextInt(ROWS);
+                assertTrue(cursor.moveToPosition(position));
+                assertEquals(position + 1, cursor.getLong(0));
+                assertEquals(position + " Elm St", cursor.getString(1));
+                assertEquals(COUNTIES[position % COUNTIES.length], cursor.getString(2));
+                assertEquals(position * 10, cursor.getInt(3));
+                assertEquals(String.valueOf(position * 10), cursor.getString(3));
+            }
+            assertFalse(cursor.moveToPosition(ROWS));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void nullText_readsAsNull() {
+        HomeListCursor cursor = new HomeListCursor(createSource(), WINDOW_ROWS, DIRECT_EXECUTOR);
+        try {
+            assertTrue(cursor.moveToPosition(3));
+            assertTrue(cursor.isNull(2));
+            assertEquals(Cursor.FIELD_TYPE_NULL, cursor.getType(2));
+            assertEquals(Cursor.FIELD_TYPE_INTEGER, cursor.getType(3));
+            assertFalse(cursor.isNull(3));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void repeatedText_isPooled() {
+        HomeListCursor cursor = new HomeListCursor(createSource(), WINDOW_ROWS, DIRECT_EXECUTOR);
+        try {
+            assertTrue(cursor.moveToPosition(0));
+            String county = cursor.getString(2);
+            assertTrue(cursor.moveToPosition(ROWS - COUNTIES.length));
+            assertSame(county, cursor.getString(2));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void scrolling_isPrefetchedBothWays() {
+        HomeListCursor cursor = new HomeListCursor(createSource(), WINDOW_ROWS, DIRECT_EXECUTOR);
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getString(1);
+            }
+            while (cursor.moveToPrevious()) {
+                cursor.getString(1);
+            }
+            assertEquals(0, cursor.getSynchronousLoadCount());
+
+            // A jump lands in a window nobody asked for yet
+            assertTrue(cursor.moveToPosition(ROWS / 2));
+            assertEquals(1, cursor.getSynchronousLoadCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void supports_onlyListColumns() {
+        assertTrue(HomeListCursor.supports(PROJECTION));
+        assertFalse(HomeListCursor.supports(null));
+        assertFalse(HomeListCursor.supports(new String[] {
+                HomeEntry._ID, HomeEntry.COLUMN_HOME_CANONICAL_ADDRESS }));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tinyWindow_isRejected() {
+        new HomeListCursor(createSource(), HomeListCursor.MIN_WINDOW_ROWS - 1, DIRECT_EXECUTOR);
+    }
+
+    @Test
+    public void windowSizeOutOfRange_isRejectedByTheProvider() {
+        Robolectric.buildContentProvider(HomeProvider.class).create(HomeContract.CONTENT_AUTHORITY);
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+
+        for (String windowRows : new String[] { "15", "4097", "-1", "many" }) {
+            Uri uri = HomeEntry.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(HomeEntry.QUERY_PARAMETER_WINDOW_ROWS, windowRows)
+                    .build();
+            // Also with columns that are not read through windows
+            for (String[] projection : new String[][] { PROJECTION, null }) {
+                try {
+                    resolver.query(uri, projection, null, null, null);
+                    fail("Queried with a window of " + windowRows + " rows");
+                } catch (IllegalArgumentException expected) {
+                }
+            }
+        }
+
+        Uri uri = HomeEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(HomeEntry.QUERY_PARAMETER_WINDOW_ROWS,
+                        String.valueOf(HomeListCursor.MAX_WINDOW_ROWS))
+                .build();
+        Cursor cursor = resolver.query(uri, PROJECTION, null, null, null);
+        assertNotNull(cursor);
+        cursor.close();
+    }
+
+    @Test
+    public void source_isClosedOnceEveryRowIsCopied() {
+        // Two windows, both resident
+        Cursor source = createSource(WINDOW_ROWS * 2 - 10);
+        HomeListCursor cursor = new HomeListCursor(source, WINDOW_ROWS, DIRECT_EXECUTOR);
+        try {
+            assertFalse(source.isClosed());
+            assertTrue(cursor.moveToPosition(WINDOW_ROWS + 5));
+            assertTrue(source.isClosed());
+            assertTrue(cursor.isSourceClosed());
+
+            // Read from the copies
+            assertTrue(cursor.moveToFirst());
+            assertEquals(1, cursor.getLong(0));
+            assertTrue(cursor.moveToLast());
+            assertEquals(WINDOW_ROWS * 2 - 10, cursor.getLong(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void source_ofAnEmptyResult_isClosedRightAway() {
+        Cursor source = createSource(0);
+        HomeListCursor cursor = new HomeListCursor(source, WINDOW_ROWS, DIRECT_EXECUTOR);
+        assertTrue(source.isClosed());
+        assertFalse(cursor.moveToFirst());
+        cursor.close();
+    }
+
+    @Test
+    public void source_ofALongResult_staysOpenForTheWindowsLetGo() {
+        Cursor source = createSource();
+        HomeListCursor cursor = new HomeListCursor(source, WINDOW_ROWS, DIRECT_EXECUTOR);
+        try {
+            while (cursor.moveToNext()) {
+                assertEquals(cursor.getPosition() + 1, cursor.getLong(0));
+            }
+            assertFalse(source.isClosed());
+            // The first window was let go, and is copied again
+            assertTrue(cursor.moveToFirst());
+            assertEquals(1, cursor.getLong(0));
+        } finally {
+            cursor.close();
+        }
+        assertTrue(source.isClosed());
+    }
+
+    private static Cursor createSource() {
+        return createSource(ROWS);
+    }
+
+    private static Cursor createSource(int rows) {
+        MatrixCursor source = new MatrixCursor(PROJECTION, rows);
+        for (int i = 0; i < rows; i++) {
+            String county = COUNTIES[i % COUNTIES.length];
+            // A new String for every row, as SQLite returns them
+            source.addRow(new Object[] {
+                    i + 1,
+                    i + " Elm St",
+                    county == null ? null : new String(county),
+                    i * 10 });
+        }
+        return source;
+    }
+}
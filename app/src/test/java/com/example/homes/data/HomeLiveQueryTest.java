@@ -0,0 +1,254 @@
+package com.example.homes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Robolectric tests for how {@link HomeLiveQuery} turns queried rows into deltas, and when it
+ * delivers them. The deltas are computed when the test runs them, on the main thread, at the
+ * time of the clock of Robolectric.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class HomeLiveQueryTest {
+
+    private static final long MIN_INTERVAL_MILLIS = 1000;
+    private static final String COUNTY = "Springfield";
+
+    private ManualExecutor mExecutor;
+    private ContentResolver mResolver;
+    private HomeLiveQuery.Subscription mSubscription;
+    private final List<HomeDelta> mDeltas = new ArrayList<>();
+    private final List<Long> mDeliveryMillis = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        if (mSubscription != null) {
+            mSubscription.cancel();
+        }
+        ShadowLooper.unPauseMainLooper();
+    }
+
+    @Test
+    public void initialResult_isAllAdded() {
+        Map<Long, ContentValues> known = new HashMap<>();
+        HomeDelta delta = HomeLiveQuery.diff(true, known, null, rows(row(1, 100), row(2, 200)));
+
+        assertTrue(delta.isInitial());
+        assertEquals(2, delta.getAdded().size());
+        assertTrue(delta.getChanged().isEmpty());
+        assertTrue(delta.getRemovedIds().isEmpty());
+        assertEquals(2, known.size());
+    }
+
+    @Test
+    public void touchedIds_yieldOnlyTheirChanges() {
+        Map<Long, ContentValues> known = new HashMap<>();
+        HomeLiveQuery.diff(true, known, null, rows(row(1, 100), row(2, 200), row(3, 300)));
+
+        // 1 changed, 2 stopped matching, 4 started matching, 3 wasn't touched
+        HomeDelta delta = HomeLiveQuery.diff(false, known, Arrays.asList(1L, 2L, 4L),
+                rows(row(1, 150), row(4, 400)));
+
+        assertFalse(delta.isInitial());
+        assertEquals(1, delta.getAdded().size());
+        assertEquals(4L, (long) delta.getAdded().get(0).getAsLong(HomeEntry._ID));
+        assertEquals(1, delta.getChanged().size());
+        assertEquals(150, (int) delta.getChanged().get(0).getAsInteger(HomeEntry.COLUMN_HOME_INCOME));
+        assertEquals(Arrays.asList(2L), delta.getRemovedIds());
+        assertTrue(known.containsKey(3L));
+        assertEquals(3, known.size());
+    }
+
+    @Test
+    public void unchangedRows_yieldAnEmptyDelta() {
+        Map<Long, ContentValues> known = new HashMap<>();
+        HomeLiveQuery.diff(true, known, null, rows(row(1, 100)));
+
+        // A write to a home that doesn't match, and a write that left the values alone
+        assertTrue(HomeLiveQuery.diff(false, known, Arrays.asList(1L, 9L), rows(row(1, 100)))
+                .isEmpty());
+    }
+
+    @Test
+    public void fullQuery_removesEveryMissingRow() {
+        Map<Long, ContentValues> known = new HashMap<>();
+        HomeLiveQuery.diff(true, known, null, rows(row(1, 100), row(2, 200), row(3, 300)));
+
+        HomeDelta delta = HomeLiveQuery.diff(false, known, null, rows(row(2, 200)));
+
+        assertTrue(delta.getAdded().isEmpty());
+        assertTrue(delta.getChanged().isEmpty());
+        assertEquals(2, delta.getRemovedIds().size());
+        assertTrue(delta.getRemovedIds().containsAll(Arrays.asList(1L, 3L)));
+        assertEquals(1, known.size());
+    }
+
+    @Test
+    public void burstOfWrites_isDeliveredAsOneDelta() {
+        subscribe();
+
+        for (int i = 0; i < 10; i++) {
+            insertHome(i + " Elm St", COUNTY);
+        }
+        // Not matching the selection, nothing to deliver
+        insertHome("1 Oak St", "Shelbyville");
+        assertEquals(1, mExecutor.mTasks.size());
+        runNextTask();
+
+        assertEquals(2, mDeltas.size());
+        HomeDelta delta = mDeltas.get(1);
+        assertFalse(delta.isInitial());
+        assertEquals(10, delta.getAdded().size());
+        assertTrue(mExecutor.mTasks.isEmpty());
+    }
+
+    @Test
+    public void deliveries_keepTheMinimumInterval() {
+        subscribe();
+
+        // Right after a delta, a little later, and long after
+        long[] pauses = { 0, 300, 2500, 999 };
+        for (int i = 0; i < pauses.length; i++) {
+            SystemClock.sleep(pauses[i]);
+            insertHome(i + " Elm St", COUNTY);
+            insertHome(i + " Oak St", COUNTY);
+            assertEquals(1, mExecutor.mTasks.size());
+            assertEquals(Math.max(0, MIN_INTERVAL_MILLIS - pauses[i]),
+                    (long) mExecutor.mDelays.get(0));
+            runNextTask();
+        }
+
+        assertEquals(pauses.length + 1, mDeltas.size());
+        for (int i = 1; i < mDeliveryMillis.size(); i++) {
+            assertTrue(mDeliveryMillis.get(i) - mDeliveryMillis.get(i - 1)
+                    >= MIN_INTERVAL_MILLIS);
+            assertEquals(2, mDeltas.get(i).getAdded().size());
+        }
+    }
+
+    @Test
+    public void writesWhileADeltaIsOnItsWay_comeInTheNextOne() {
+        subscribe();
+        ShadowLooper.pauseMainLooper();
+
+        insertHome("1 Elm St", COUNTY);
+        runNextTask();
+        // Computed, though not handled by the subscriber yet
+        assertEquals(1, mDeltas.size());
+        for (int i = 2; i <= 6; i++) {
+            insertHome(i + " Elm St", COUNTY);
+        }
+        assertTrue(mExecutor.mTasks.isEmpty());
+
+        ShadowLooper.runUiThreadTasks();
+        assertEquals(2, mDeltas.size());
+        assertEquals(1, mDeltas.get(1).getAdded().size());
+
+        // Once handled, the writes since are computed together after the interval
+        assertEquals(1, mExecutor.mTasks.size());
+        assertEquals(MIN_INTERVAL_MILLIS, (long) mExecutor.mDelays.get(0));
+        runNextTask();
+        ShadowLooper.runUiThreadTasks();
+        assertEquals(3, mDeltas.size());
+        assertEquals(5, mDeltas.get(2).getAdded().size());
+    }
+
+    /**
+     * Subscribe to the homes of the county, and deliver the initial result.
+     */
+    private void subscribe() {
+        Robolectric.buildContentProvider(HomeProvider.class).create(HomeContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mExecutor = new ManualExecutor();
+
+        HomeLiveQuery query = new HomeLiveQuery(mResolver,
+                new String[] { HomeEntry.COLUMN_HOME_ADDRESS, HomeEntry.COLUMN_HOME_INCOME },
+                HomeEntry.COLUMN_HOME_COUNTY + "=?", new String[] { COUNTY }, mExecutor)
+                .setMinIntervalMillis(MIN_INTERVAL_MILLIS);
+        mSubscription = query.subscribe(new HomeLiveQuery.Listener() {
+            @Override
+            public void onDelta(HomeDelta delta) {
+                mDeltas.add(delta);
+                mDeliveryMillis.add(SystemClock.uptimeMillis());
+            }
+        }, new Handler(Looper.getMainLooper()));
+
+        assertEquals(0, (long) mExecutor.mDelays.get(0));
+        runNextTask();
+        assertEquals(1, mDeltas.size());
+        assertTrue(mDeltas.get(0).isInitial());
+    }
+
+    /**
+     * Wait for the delay of the next scheduled computation, then run it.
+     */
+    private void runNextTask() {
+        assertFalse(mExecutor.mTasks.isEmpty());
+        SystemClock.sleep(mExecutor.mDelays.remove(0));
+        mExecutor.mTasks.remove(0).run();
+    }
+
+    private void insertHome(String address, String county) {
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_ADDRESS, address);
+        values.put(HomeEntry.COLUMN_HOME_COUNTY, county);
+        values.put(HomeEntry.COLUMN_HOME_TYPE, HomeEntry.TYPE_SINGLE);
+        values.put(HomeEntry.COLUMN_HOME_INCOME, 1000);
+        assertNotNull(mResolver.insert(HomeEntry.CONTENT_URI, values));
+    }
+
+    private static ContentValues row(long id, int income) {
+        ContentValues row = new ContentValues();
+        row.put(HomeEntry._ID, id);
+        row.put(HomeEntry.COLUMN_HOME_ADDRESS, id + " Elm St");
+        row.put(HomeEntry.COLUMN_HOME_INCOME, (long) income);
+        return row;
+    }
+
+    private static List<ContentValues> rows(ContentValues... rows) {
+        return new ArrayList<>(Arrays.asList(rows));
+    }
+
+    /**
+     * Keeps the scheduled computations for the test to run, with their delays.
+     */
+    private static final class ManualExecutor extends ScheduledThreadPoolExecutor {
+        final List<Runnable> mTasks = new ArrayList<>();
+        final List<Long> mDelays = new ArrayList<>();
+
+        ManualExecutor() {
+            super(1);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            mTasks.add(command);
+            mDelays.add(unit.toMillis(delay));
+            return null;
+        }
+    }
+}
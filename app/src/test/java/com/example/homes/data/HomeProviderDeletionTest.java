@@ -0,0 +1,100 @@
+package com.example.homes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Bundle;
+
+import com.example.homes.data.HomeContract.DeletionEntry;
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.*;
+
+/**
+ * Robolectric tests for deleting homes through {@link DeletionEntry#METHOD_DELETE}, which tells
+ * the caller which deletion to undo.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class HomeProviderDeletionTest {
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        Robolectric.buildContentProvider(HomeProvider.class).create(HomeContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @Test
+    public void delete_returnsItsOwnDeletion_evenWhenAnotherOneFollows() {
+        insertHome("1 Main St");
+        insertHome("2 Main St");
+        insertHome("3 Main St");
+
+        Bundle first = delete("1 Main St");
+        assertEquals(1, first.getInt(DeletionEntry.KEY_COUNT));
+        Bundle second = delete("2 Main St");
+        assertEquals(1, second.getInt(DeletionEntry.KEY_COUNT));
+        assertNotEquals(first.getLong(DeletionEntry.KEY_DELETION_ID),
+                second.getLong(DeletionEntry.KEY_DELETION_ID));
+        assertEquals(1, countHomes());
+
+        // Undoing the first deletion leaves the one made after it
+        assertEquals(1, mResolver.delete(ContentUris.withAppendedId(DeletionEntry.CONTENT_URI,
+                first.getLong(DeletionEntry.KEY_DELETION_ID)), null, null));
+        assertEquals(2, countHomes());
+        assertEquals(0, delete("2 Main St").getInt(DeletionEntry.KEY_COUNT));
+    }
+
+    @Test
+    public void delete_ofNoHome_countsNone() {
+        insertHome("1 Main St");
+
+        assertEquals(0, delete("4 Main St").getInt(DeletionEntry.KEY_COUNT));
+        assertEquals(1, countHomes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void delete_ofAnotherUri_isRejected() {
+        mResolver.call(DeletionEntry.CONTENT_URI, DeletionEntry.METHOD_DELETE,
+                DeletionEntry.CONTENT_URI.toString(), null);
+    }
+
+    private Bundle delete(String address) {
+        Bundle extras = new Bundle();
+        extras.putString(DeletionEntry.KEY_SELECTION, HomeEntry.COLUMN_HOME_ADDRESS + "=?");
+        extras.putStringArray(DeletionEntry.KEY_SELECTION_ARGS, new String[] { address });
+        Bundle result = mResolver.call(DeletionEntry.CONTENT_URI, DeletionEntry.METHOD_DELETE,
+                HomeEntry.CONTENT_URI.toString(), extras);
+        assertNotNull(result);
+        return result;
+    }
+
+    private void insertHome(String address) {
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_ADDRESS, address);
+        values.put(HomeEntry.COLUMN_HOME_COUNTY, "Springfield");
+        values.put(HomeEntry.COLUMN_HOME_TYPE, HomeEntry.TYPE_SINGLE);
+        values.put(HomeEntry.COLUMN_HOME_INCOME, 1000);
+        assertNotNull(mResolver.insert(HomeEntry.CONTENT_URI, values));
+    }
+
+    private int countHomes() {
+        Cursor cursor = mResolver.query(HomeEntry.CONTENT_URI, new String[] { HomeEntry._ID },
+                null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.homes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.Process;
+
+import com.example.homes.data.HomeContract.BackupEntry;
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowBinder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Robolectric tests for the calls to the provider of other apps, which the framework doesn't
+ * check the permission of the provider for.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class HomeProviderPermissionTest {
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        Robolectric.buildContentProvider(HomeProvider.class).create(HomeContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @After
+    public void tearDown() {
+        ShadowBinder.setCallingUid(Process.myUid());
+    }
+
+    @Test
+    public void batch_ofAnotherAppWithoutThePermission_isRefused() {
+        HomeBatch batch = new HomeBatch();
+        batch.upsert(home("12 Main St"));
+
+        ShadowBinder.setCallingUid(Process.myUid() + 1);
+        try {
+            batch.execute(mResolver);
+            fail("Ran the batch of an app without the permission");
+        } catch (SecurityException expected) {
+        }
+
+        ShadowBinder.setCallingUid(Process.myUid());
+        assertEquals(0, countHomes());
+        batch.execute(mResolver);
+        assertEquals(1, countHomes());
+    }
+
+    @Test
+    public void backupAndRestore_ofAnotherApp_areRefused() {
+        ShadowBinder.setCallingUid(Process.myUid() + 1);
+        for (String method : new String[] {
+                BackupEntry.METHOD_BACKUP, BackupEntry.METHOD_RESTORE }) {
+            try {
+                mResolver.call(BackupEntry.CONTENT_URI, method, null, new Bundle());
+                fail("Ran " + method + " for another app");
+            } catch (SecurityException expected) {
+            }
+        }
+    }
+
+    private static ContentValues home(String address) {
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_ADDRESS, address);
+        values.put(HomeEntry.COLUMN_HOME_COUNTY, "Springfield");
+        values.put(HomeEntry.COLUMN_HOME_TYPE, HomeEntry.TYPE_SINGLE);
+        values.put(HomeEntry.COLUMN_HOME_INCOME, 1000);
+        return values;
+    }
+
+    private int countHomes() {
+        Cursor cursor = mResolver.query(HomeEntry.CONTENT_URI, new String[] { HomeEntry._ID },
+                null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
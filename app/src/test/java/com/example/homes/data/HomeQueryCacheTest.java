@@ -0,0 +1,281 @@
+package com.example.homes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import com.example.homes.data.HomeContract.DebugEntry;
+import com.example.homes.data.HomeContract.DeletionEntry;
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Robolectric tests for {@link HomeQueryCache}: what makes two queries the same entry, the
+ * memory budget, the cursors handed out on a hit, and that every kind of write through the
+ * provider makes the cached results stale.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class HomeQueryCacheTest {
+
+    private static final String[] PROJECTION = {
+            HomeEntry._ID, HomeEntry.COLUMN_HOME_ADDRESS, HomeEntry.COLUMN_HOME_INCOME };
+    private static final String SELECTION = HomeEntry.COLUMN_HOME_COUNTY + " = ?";
+    private static final String[] ARGS = { "Springfield" };
+    private static final String ORDER_BY = HomeProvider.resolveSortOrder(HomeEntry.SORT_INCOME_LOW);
+
+    @Test
+    public void key_ignoresWhitespaceOfTheSelection() {
+        assertEquals(key(PROJECTION, SELECTION, ARGS, ORDER_BY),
+                key(PROJECTION, "  " + HomeEntry.COLUMN_HOME_COUNTY + "\n =   ? ", ARGS,
+                        ORDER_BY));
+        assertEquals(key(new String[] { " _id", "address " }, null, null, null),
+                key(new String[] { "_id", "address" }, null, null, null));
+    }
+
+    @Test
+    public void key_differsByEveryPartOfTheQuery() {
+        String key = key(PROJECTION, SELECTION, ARGS, ORDER_BY);
+        assertNotEquals(key, key(null, SELECTION, ARGS, ORDER_BY));
+        assertNotEquals(key, key(Arrays.copyOf(PROJECTION, 2), SELECTION, ARGS, ORDER_BY));
+        assertNotEquals(key, key(PROJECTION, HomeEntry.COLUMN_HOME_TYPE + " = ?", ARGS,
+                ORDER_BY));
+        assertNotEquals(key, key(PROJECTION, SELECTION, new String[] { "Shelbyville" },
+                ORDER_BY));
+        assertNotEquals(key, key(PROJECTION, SELECTION, ARGS,
+                HomeProvider.resolveSortOrder(HomeEntry.SORT_INCOME_HIGH)));
+        // Arguments are not run together
+        assertNotEquals(key(PROJECTION, "? || ?", new String[] { "ab", "c" }, null),
+                key(PROJECTION, "? || ?", new String[] { "a", "bc" }, null));
+        // Nor are a list and one of its homes
+        assertNotEquals(HomeQueryCache.key(1, -1, PROJECTION, null, null, null),
+                HomeQueryCache.key(2, 7, PROJECTION, null, null, null));
+    }
+
+    @Test
+    public void hit_returnsAnIndependentCursor() {
+        HomeQueryCache cache = new HomeQueryCache();
+        Cursor first = cache.put("homes", cache.getGeneration(), homes(3, 10));
+        Cursor second = cache.get("homes");
+        Cursor third = cache.get("homes");
+        assertNotNull(second);
+        assertEquals(2, cache.getHitCount());
+        assertNotSame(second, third);
+
+        assertTrue(second.moveToLast());
+        assertEquals(-1, third.getPosition());
+        assertTrue(third.moveToFirst());
+        assertEquals(1, third.getLong(0));
+        assertEquals(3, second.getLong(0));
+
+        // Closing or changing what one cursor returned leaves the others alone
+        second.close();
+        byte[] blob = third.getBlob(3);
+        blob[0] = 'x';
+        assertEquals(1, third.getLong(0));
+        assertArrayEquals("blob 1".getBytes(), third.getBlob(3));
+        assertTrue(first.moveToPosition(2));
+        assertEquals("3 Main St", first.getString(1));
+        first.close();
+        third.close();
+    }
+
+    @Test
+    public void invalidate_makesEveryEntryStale() {
+        HomeQueryCache cache = new HomeQueryCache();
+        long generation = cache.getGeneration();
+        cache.put("homes", generation, homes(3, 10)).close();
+        cache.invalidate();
+        assertNull(cache.get("homes"));
+        assertEquals(1, cache.getMissCount());
+
+        // Read before the write committed, cached under the generation it was read at
+        cache.put("homes", generation, homes(3, 10)).close();
+        assertNull(cache.get("homes"));
+        cache.put("homes", cache.getGeneration(), homes(3, 10)).close();
+        assertNotNull(cache.get("homes"));
+    }
+
+    @Test
+    public void entries_areEvictedLeastRecentlyUsedFirstWithinTheBudget() {
+        HomeQueryCache cache = new HomeQueryCache();
+        // About 330 KB each, so six fit in the 2 MB budget
+        for (int i = 0; i < 6; i++) {
+            cache.put("homes " + i, cache.getGeneration(), homes(100, 1600)).close();
+        }
+        assertEquals(6, cache.getEntryCount());
+        assertEquals(0, cache.getEvictionCount());
+
+        // Used again, so the second entry is the least recently used one
+        cache.get("homes 0").close();
+        cache.put("homes 6", cache.getGeneration(), homes(100, 1600)).close();
+        assertEquals(1, cache.getEvictionCount());
+        assertNotNull(cache.get("homes 0"));
+        assertNull(cache.get("homes 1"));
+        assertTrue(cache.getSizeBytes() <= 2 * 1024 * 1024);
+    }
+
+    @Test
+    public void result_overAQuarterOfTheBudget_isNotCached() {
+        HomeQueryCache cache = new HomeQueryCache();
+        cache.put("small", cache.getGeneration(), homes(3, 10)).close();
+        int sizeBytes = cache.getSizeBytes();
+
+        Cursor huge = homes(200, 1600);
+        huge.moveToLast();
+        Cursor result = cache.put("huge", cache.getGeneration(), huge);
+        // Handed back as it is, rewound
+        assertSame(huge, result);
+        assertEquals(-1, result.getPosition());
+        result.close();
+
+        assertNull(cache.get("huge"));
+        assertNotNull(cache.get("small"));
+        assertEquals(sizeBytes, cache.getSizeBytes());
+    }
+
+    @Test
+    public void everyWriteThroughTheProvider_makesTheCachedHomesStale() {
+        Robolectric.buildContentProvider(HomeProvider.class).create(HomeContract.CONTENT_AUTHORITY);
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+
+        // Insert
+        long generation = cachedGeneration(resolver);
+        Uri uri = resolver.insert(HomeEntry.CONTENT_URI, home("1 Cache St", 1000));
+        assertNotNull(uri);
+        generation = assertStaleAfterWrite(resolver, generation);
+        assertEquals(1, countHomes(resolver));
+
+        // Update
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_INCOME, 1500);
+        assertEquals(1, resolver.update(uri, values, null, null));
+        generation = assertStaleAfterWrite(resolver, generation);
+
+        // Delete
+        assertEquals(1, resolver.delete(uri, null, null));
+        generation = assertStaleAfterWrite(resolver, generation);
+        assertEquals(0, countHomes(resolver));
+
+        // Undo
+        Cursor deletions = resolver.query(DeletionEntry.CONTENT_URI,
+                new String[] { DeletionEntry._ID }, null, null, null);
+        assertNotNull(deletions);
+        long deletionId;
+        try {
+            assertTrue(deletions.moveToFirst());
+            deletionId = deletions.getLong(0);
+        } finally {
+            deletions.close();
+        }
+        assertEquals(1, resolver.delete(
+                ContentUris.withAppendedId(DeletionEntry.CONTENT_URI, deletionId), null, null));
+        generation = assertStaleAfterWrite(resolver, generation);
+        assertEquals(1, countHomes(resolver));
+
+        // Batch
+        HomeBatch batch = new HomeBatch();
+        batch.upsert(home("2 Cache St", 2000));
+        batch.execute(resolver);
+        assertStaleAfterWrite(resolver, generation);
+        assertEquals(2, countHomes(resolver));
+    }
+
+    private static String key(String[] projection, String selection, String[] selectionArgs,
+                              String orderBy) {
+        return HomeQueryCache.key(1, -1, projection, selection, selectionArgs, orderBy);
+    }
+
+    /**
+     * Returns a result of the given number of homes, with addresses padded to the given
+     * length.
+     */
+    private static Cursor homes(int count, int addressLength) {
+        MatrixCursor cursor = new MatrixCursor(new String[] {
+                HomeEntry._ID, HomeEntry.COLUMN_HOME_ADDRESS, HomeEntry.COLUMN_HOME_INCOME,
+                "blob" });
+        char[] padding = new char[Math.max(0, addressLength - 10)];
+        Arrays.fill(padding, ' ');
+        for (int i = 1; i <= count; i++) {
+            cursor.addRow(new Object[] {
+                    i, i + " Main St" + new String(padding), 1000 * i, ("blob " + i).getBytes() });
+        }
+        return cursor;
+    }
+
+    private static ContentValues home(String address, int income) {
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_ADDRESS, address);
+        values.put(HomeEntry.COLUMN_HOME_COUNTY, "Springfield");
+        values.put(HomeEntry.COLUMN_HOME_TYPE, HomeEntry.TYPE_SINGLE);
+        values.put(HomeEntry.COLUMN_HOME_INCOME, income);
+        return values;
+    }
+
+    /**
+     * Query the homes twice, the second time from the cache, and return the generation.
+     */
+    private static long cachedGeneration(ContentResolver resolver) {
+        countHomes(resolver);
+        long[] before = readStats(resolver);
+        countHomes(resolver);
+        long[] after = readStats(resolver);
+        assertEquals(before[0] + 1, after[0]);
+        return after[2];
+    }
+
+    /**
+     * Check that a write made the next query of the homes miss, then cache it again, and
+     * return the new generation.
+     */
+    private static long assertStaleAfterWrite(ContentResolver resolver, long generation) {
+        long[] before = readStats(resolver);
+        assertTrue(before[2] > generation);
+        countHomes(resolver);
+        long[] after = readStats(resolver);
+        assertEquals(before[0], after[0]);
+        assertEquals(before[1] + 1, after[1]);
+        return cachedGeneration(resolver);
+    }
+
+    private static int countHomes(ContentResolver resolver) {
+        Cursor cursor = resolver.query(HomeEntry.CONTENT_URI, PROJECTION, null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the hits, misses and generation of the cache of the provider.
+     */
+    private static long[] readStats(ContentResolver resolver) {
+        Cursor cursor = resolver.query(DebugEntry.QUERY_CACHE_URI, new String[] {
+                DebugEntry.COLUMN_HITS,
+                DebugEntry.COLUMN_MISSES,
+                DebugEntry.COLUMN_GENERATION }, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return new long[] {
+                    cursor.getLong(cursor.getColumnIndex(DebugEntry.COLUMN_HITS)),
+                    cursor.getLong(cursor.getColumnIndex(DebugEntry.COLUMN_MISSES)),
+                    cursor.getLong(cursor.getColumnIndex(DebugEntry.COLUMN_GENERATION)) };
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.homes.data;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Robolectric tests for how {@link HomeQueryGovernor} classifies selections by their plan, and
+ * what it does with the full scans of other processes.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class HomeQueryGovernorTest {
+
+    private static final String SCAN = HomeEntry.COLUMN_HOME_ADDRESS + " LIKE '%Main%'";
+    private static final String SEARCH = HomeEntry._ID + " = 12";
+
+    private HomeDbHelper[] mDbHelpers;
+    private HomeShards mShards;
+
+    @Before
+    public void setUp() {
+        mDbHelpers = new HomeDbHelper[] { new HomeDbHelper(RuntimeEnvironment.application, null) };
+        mShards = new HomeShards(mDbHelpers,
+                new HomeDbMaintenance(RuntimeEnvironment.application, mDbHelpers));
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelpers[0].close();
+    }
+
+    @Test
+    public void shape_replacesLiteralsAndCollapsesWhitespace() {
+        assertEquals("county = ? AND income > ?",
+                HomeQueryGovernor.shapeOf("  county = 'O''Brien'\n AND  income > 1500.5 "));
+        assertEquals("address LIKE ? AND _id IN (?, ?)",
+                HomeQueryGovernor.shapeOf("address LIKE '%2 Main%' AND _id IN (3, 14)"));
+        // Digits of names stay
+        assertEquals("col2 = ?", HomeQueryGovernor.shapeOf("col2 = 7"));
+    }
+
+    @Test
+    public void verdict_isSampledOncePerShape() {
+        HomeQueryGovernor governor = new HomeQueryGovernor(mShards,
+                HomeQueryGovernor.POLICY_ALLOW, -1);
+
+        assertTrue(governor.isFullScan(SCAN, null, null));
+        assertFalse(governor.isFullScan(SEARCH, null, null));
+        assertEquals(2, governor.getPlanCount());
+
+        // Other values, same shapes
+        assertTrue(governor.isFullScan(HomeEntry.COLUMN_HOME_ADDRESS + " LIKE '%Elm%'", null, null));
+        assertFalse(governor.isFullScan(HomeEntry._ID + "=?", new String[] { "40" }, null));
+        assertEquals(3, governor.getPlanCount());
+
+        // A sort order is part of the plan
+        governor.isFullScan(SEARCH, null, HomeProvider.resolveSortOrder(HomeEntry.SORT_INCOME_LOW));
+        assertEquals(4, governor.getPlanCount());
+    }
+
+    @Test
+    public void rejectPolicy_failsOnlyTheFullScansOfOtherProcesses() {
+        HomeQueryGovernor governor = new HomeQueryGovernor(mShards,
+                HomeQueryGovernor.POLICY_REJECT, -1);
+
+        governor.finish(governor.start("query", SCAN, null, null, false));
+        governor.finish(governor.start("query", SEARCH, null, null, true));
+        try {
+            governor.start("query", SCAN, null, null, true);
+            fail("Ran a full scan of another process");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(1, governor.getRejectedCount());
+    }
+
+    @Test
+    public void throttlePolicy_letsTheNextFullScanRunOnceFinished() {
+        HomeQueryGovernor governor = new HomeQueryGovernor(mShards,
+                HomeQueryGovernor.POLICY_THROTTLE, -1);
+
+        HomeQueryGovernor.Run run = governor.start("delete", SCAN, null, null, true);
+        assertTrue(run.mPermit);
+        // Searches and the app itself don't wait for it
+        assertFalse(governor.start("query", SEARCH, null, null, true).mPermit);
+        assertFalse(governor.start("query", SCAN, null, null, false).mPermit);
+        governor.finish(run);
+
+        run = governor.start("query", SCAN, null, null, true);
+        assertTrue(run.mPermit);
+        governor.finish(run);
+        assertEquals(0, governor.getRejectedCount());
+    }
+
+    @Test
+    public void throttlePolicy_letsTheFullScansOfOneBatchRunTogether() throws Exception {
+        final HomeQueryGovernor governor = new HomeQueryGovernor(mShards,
+                HomeQueryGovernor.POLICY_THROTTLE, -1);
+
+        // The selections of a batch are all started on its thread before any runs
+        HomeQueryGovernor.Run query = governor.start("query", SCAN, null, null, true);
+        HomeQueryGovernor.Run aggregate = governor.start("aggregate", SCAN, null, null, true);
+        assertTrue(query.mPermit);
+        assertTrue(aggregate.mPermit);
+        governor.finish(query);
+        governor.finish(aggregate);
+
+        // Once the batch is done, another thread runs its full scan right away
+        final HomeQueryGovernor.Run[] next = new HomeQueryGovernor.Run[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                next[0] = governor.start("query", SCAN, null, null, true);
+                governor.finish(next[0]);
+            }
+        });
+        thread.start();
+        thread.join();
+        assertTrue(next[0].mPermit);
+        assertEquals(0, governor.getRejectedCount());
+    }
+
+    @Test
+    public void slowRuns_areKeptWithTheirPlan() {
+        HomeQueryGovernor governor = new HomeQueryGovernor(mShards,
+                HomeQueryGovernor.POLICY_ALLOW, 0);
+
+        governor.finish(governor.start("update", SCAN, null, null, true));
+
+        List<HomeQueryGovernor.SlowQuery> slowQueries = governor.getSlowQueries();
+        assertEquals(1, slowQueries.size());
+        HomeQueryGovernor.SlowQuery slowQuery = slowQueries.get(0);
+        assertEquals("update", slowQuery.mOperation);
+        assertEquals(HomeEntry.COLUMN_HOME_ADDRESS + " LIKE ?", slowQuery.mShape);
+        assertTrue(slowQuery.mFullScan);
+        assertTrue(slowQuery.mExternal);
+        assertTrue(slowQuery.mPlan, slowQuery.mPlan.contains("SCAN"));
+    }
+}
@@ -0,0 +1,199 @@
+package com.example.homes.data;
+
+import com.example.homes.data.HomeContract.StatsEntry;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link HomeSketch}, against the exact statistics of the same homes.
+ */
+public class HomeSketchTest {
+
+    @Test
+    public void emptySketch_hasNoStatistics() {
+        HomeSketch sketch = new HomeSketch();
+        assertEquals(0, sketch.getHomeCount());
+        assertEquals(0, sketch.getDistinctCounties());
+        assertEquals(0, sketch.getIncomeQuantile(0.5));
+        assertTrue(sketch.getTopCounties(StatsEntry.TOP_COUNTIES).isEmpty());
+    }
+
+    @Test
+    public void distinctCounties_areWithinAFewPercent() {
+        for (int counties : new int[] { 1, 10, 300, 5000, 50000 }) {
+            HomeSketch sketch = new HomeSketch();
+            for (int i = 0; i < 3 * counties; i++) {
+                sketch.add("County " + (i % counties), 1000);
+            }
+            // 1.04 / sqrt(4096) is 1.6%, three standard errors
+            assertEquals(counties, sketch.getDistinctCounties(), Math.max(1, 0.05 * counties));
+        }
+    }
+
+    @Test
+    public void homesWithoutCounty_areCountedButNotAsCounty() {
+        HomeSketch sketch = new HomeSketch();
+        sketch.add(null, 1000);
+        sketch.add("", 1000);
+        sketch.add("Springfield", 1000);
+        assertEquals(3, sketch.getHomeCount());
+        assertEquals(1, sketch.getDistinctCounties());
+    }
+
+    @Test
+    public void incomeQuantiles_areWithinTheRelativeError() {
+        Random random = new Random(3);
+        HomeSketch sketch = new HomeSketch();
+        long[] incomes = new long[20000];
+        for (int i = 0; i < incomes.length; i++) {
+            // Mostly a few thousands, with a long tail
+            incomes[i] = (long) Math.exp(7 + 1.5 * random.nextGaussian());
+            sketch.add("Springfield", incomes[i]);
+        }
+        Arrays.sort(incomes);
+        for (double quantile : new double[] { 0, 0.1, 0.5, 0.9, 0.99, 1 }) {
+            long exact = incomes[(int) (quantile * (incomes.length - 1))];
+            assertEquals(exact, sketch.getIncomeQuantile(quantile),
+                    Math.max(1, exact * StatsEntry.INCOME_RELATIVE_ERROR));
+        }
+    }
+
+    @Test
+    public void removedHomes_leaveTheCountAndQuantilesExact() {
+        HomeSketch sketch = new HomeSketch();
+        HomeSketch expected = new HomeSketch();
+        for (int i = 0; i < 1000; i++) {
+            sketch.add("County " + (i % 7), i);
+            if (i % 2 == 0) {
+                expected.add("County " + (i % 7), i);
+            }
+        }
+        for (int i = 1; i < 1000; i += 2) {
+            sketch.remove("County " + (i % 7), i);
+        }
+        assertEquals(500, sketch.getHomeCount());
+        assertEquals(500, sketch.getRemovedCount());
+        for (double quantile : new double[] { 0, 0.25, 0.5, 0.75, 0.99, 1 }) {
+            assertEquals(expected.getIncomeQuantile(quantile),
+                    sketch.getIncomeQuantile(quantile));
+        }
+    }
+
+    @Test
+    public void topCounties_areTheHeaviestAndNeverUndercounted() {
+        Random random = new Random(5);
+        HomeSketch sketch = new HomeSketch();
+        int[] counts = new int[2000];
+        // County i is about twice as likely as county i + 1 among the first ones
+        for (int i = 0; i < 50000; i++) {
+            int county = random.nextInt(20) == 0 ? random.nextInt(counts.length)
+                    : Math.min(counts.length - 1, (int) (-Math.log(random.nextDouble())
+                            / Math.log(2)));
+            counts[county]++;
+            sketch.add("County " + county, 1000);
+        }
+
+        List<Map.Entry<String, Integer>> top = sketch.getTopCounties(5);
+        assertEquals(5, top.size());
+        for (int i = 0; i < top.size(); i++) {
+            assertEquals("County " + i, top.get(i).getKey());
+            assertTrue(top.get(i).getValue() >= counts[i]);
+            // A few collisions with the light counties at most
+            assertEquals(counts[i], top.get(i).getValue(), 0.01 * sketch.getHomeCount());
+        }
+    }
+
+    @Test
+    public void topCounties_dropCountiesWhoseHomesAreRemoved() {
+        HomeSketch sketch = new HomeSketch();
+        for (int i = 0; i < 100; i++) {
+            sketch.add("Springfield", 1000);
+            sketch.add("Shelbyville", 1000);
+        }
+        for (int i = 0; i < 100; i++) {
+            sketch.remove("Springfield", 1000);
+        }
+        List<Map.Entry<String, Integer>> top = sketch.getTopCounties(StatsEntry.TOP_COUNTIES);
+        assertEquals(1, top.size());
+        assertEquals("Shelbyville", top.get(0).getKey());
+        assertEquals(100, (int) top.get(0).getValue());
+    }
+
+    @Test
+    public void mergedSketches_equalOneSketchOfAllHomes() {
+        Random random = new Random(7);
+        HomeSketch[] shards = { new HomeSketch(), new HomeSketch(), new HomeSketch() };
+        HomeSketch all = new HomeSketch();
+        for (int i = 0; i < 5000; i++) {
+            // Skewed enough for the shards to agree on the heaviest counties
+            String county = "County " + Math.min(400, (int) (Math.log(random.nextDouble())
+                    / Math.log(0.7)));
+            long income = random.nextInt(10000);
+            shards[random.nextInt(shards.length)].add(county, income);
+            all.add(county, income);
+        }
+        HomeSketch merged = new HomeSketch();
+        for (HomeSketch shard : shards) {
+            merged.merge(shard);
+        }
+        assertSameStatistics(all, merged);
+    }
+
+    @Test
+    public void encodedSketch_decodesToTheSameStatistics() throws IOException {
+        Random random = new Random(9);
+        HomeSketch sketch = new HomeSketch();
+        for (int i = 0; i < 3000; i++) {
+            sketch.add("County " + random.nextInt(200), random.nextInt(50000));
+        }
+        sketch.remove("County 1", 10);
+        byte[] encoded = sketch.encode();
+        // Sparse, not the full arrays
+        assertTrue(encoded.length < 32 * 1024);
+
+        HomeSketch decoded = HomeSketch.decode(encoded);
+        assertSameStatistics(sketch, decoded);
+        assertEquals(sketch.getRemovedCount(), decoded.getRemovedCount());
+    }
+
+    @Test
+    public void encodedSketch_withACountyOverTheLimitOfWriteUtf_decodes() throws IOException {
+        StringBuilder county = new StringBuilder();
+        while (county.length() < 30000) {
+            // Three bytes each in UTF-8
+            county.append('\u20ac');
+        }
+        HomeSketch sketch = new HomeSketch();
+        sketch.add(county.toString(), 1000);
+        sketch.add("Springfield", 2000);
+
+        assertSameStatistics(sketch, HomeSketch.decode(sketch.encode()));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedSketch_isRejected() throws IOException {
+        HomeSketch sketch = new HomeSketch();
+        sketch.add("Springfield", 1000);
+        byte[] encoded = sketch.encode();
+        HomeSketch.decode(Arrays.copyOf(encoded, encoded.length / 2));
+    }
+
+    private static void assertSameStatistics(HomeSketch expected, HomeSketch actual) {
+        assertEquals(expected.getHomeCount(), actual.getHomeCount());
+        assertEquals(expected.getDistinctCounties(), actual.getDistinctCounties());
+        for (double quantile : new double[] { 0.5, 0.9, 0.99 }) {
+            assertEquals(expected.getIncomeQuantile(quantile),
+                    actual.getIncomeQuantile(quantile));
+        }
+        assertEquals(expected.getTopCounties(StatsEntry.TOP_COUNTIES),
+                actual.getTopCounties(StatsEntry.TOP_COUNTIES));
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.homes.watchdog;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Robolectric tests for {@link UiWatchdog}. Robolectric runs the tests on the main looper, so
+ * provider calls made directly from a test count as main thread calls.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class UiWatchdogTest {
+
+    private static final Uri HOME_URI = Uri.parse("content://com.example.homes/homes/42");
+
+    @Before
+    public void setUp() {
+        UiWatchdog.reset();
+        UiWatchdog.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        UiWatchdog.setEnabled(false);
+        UiWatchdog.reset();
+    }
+
+    @Test
+    public void disabled_recordsNothing() {
+        UiWatchdog.setEnabled(false);
+
+        long start = UiWatchdog.startTiming();
+        UiWatchdog.recordBindView("TestAdapter", start);
+        UiWatchdog.onProviderCall("query", HOME_URI);
+
+        assertEquals(0, start);
+        assertFalse(UiWatchdog.beginSection("test"));
+        assertTrue(UiWatchdog.getHistograms().isEmpty());
+        assertTrue(UiWatchdog.getMainThreadCalls().isEmpty());
+    }
+
+    @Test
+    public void bindAndNewView_areRecordedPerAdapter() {
+        for (int i = 0; i < 3; i++) {
+            UiWatchdog.recordBindView("TestAdapter", UiWatchdog.startTiming());
+        }
+        UiWatchdog.recordNewView("TestAdapter", UiWatchdog.startTiming());
+
+        assertEquals(3, UiWatchdog.getHistogram("TestAdapter.bindView").getCount());
+        assertEquals(1, UiWatchdog.getHistogram("TestAdapter.newView").getCount());
+        assertNull(UiWatchdog.getHistogram("OtherAdapter.bindView"));
+    }
+
+    @Test
+    public void mainThreadProviderCalls_areCountedAndSampled() {
+        int calls = UiWatchdog.SAMPLE_INTERVAL * 2;
+        for (int i = 0; i < calls; i++) {
+            UiWatchdog.onProviderCall("update", Uri.parse("content://com.example.homes/homes/" + i));
+        }
+
+        List<MainThreadCall> reported = UiWatchdog.getMainThreadCalls();
+        assertEquals(1, reported.size());
+        MainThreadCall call = reported.get(0);
+        assertEquals("update", call.getMethod());
+        assertEquals("content://com.example.homes/homes/#", call.getUri());
+        assertEquals(calls, call.getCount());
+        // The first call, and then one in every SAMPLE_INTERVAL
+        assertEquals(3, call.getSampleCount());
+        assertNotNull(call.getStack());
+    }
+
+    @Test
+    public void backgroundProviderCalls_areIgnored() throws InterruptedException {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                UiWatchdog.onProviderCall("query", HOME_URI);
+            }
+        });
+        thread.start();
+        thread.join();
+
+        assertTrue(UiWatchdog.getMainThreadCalls().isEmpty());
+    }
+
+    @Test
+    public void callSite_skipsFrameworkAndProviderFrames() {
+        StackTraceElement[] stack = {
+                new StackTraceElement("com.example.homes.watchdog.UiWatchdog", "onProviderCall", null, 1),
+                new StackTraceElement("com.example.homes.data.HomeProvider", "insert", null, 2),
+                new StackTraceElement("android.content.ContentResolver", "insert", null, 3),
+                new StackTraceElement("com.example.homes.EditorActivity", "saveHome", null, 4),
+        };
+
+        assertTrue(UiWatchdog.findCallSite(stack).startsWith("com.example.homes.EditorActivity.saveHome"));
+    }
+
+    @Test
+    public void histogramPercentiles_areBoundedByBuckets() {
+        TimingHistogram histogram = new TimingHistogram("test");
+        for (int i = 0; i < 99; i++) {
+            histogram.record(100000);
+        }
+        histogram.record(50000000);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(50000000, histogram.getMaxNanos());
+        // 100 us falls into the bucket ending at 128 us
+        assertEquals(128000, histogram.getPercentileNanos(50));
+        assertEquals(50000000, histogram.getPercentileNanos(100));
+    }
+}
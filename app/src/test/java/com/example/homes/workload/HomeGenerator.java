@@ -0,0 +1,198 @@
+package com.example.homes.workload;
+
+import android.content.ContentValues;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates homes that look like the catalog of a real agency, from a seed so every run
+ * creates the same homes.
+ *
+ * Counties follow a Zipf distribution, a few of them holding most of the homes like metro
+ * areas do, and some homes have no county at all. Incomes follow a log-normal distribution
+ * around a median, with a share of 0 for homes whose income isn't known. Every type occurs,
+ * single homes the most. Some addresses repeat an earlier one with different spelling, as
+ * entered by another agent, so the canonical address and upserts see realistic duplicates.
+ */
+public class HomeGenerator {
+
+    private static final String[] COUNTY_NAMES = {
+            "Springfield", "Shelbyville", "Ogdenville", "North Haverbrook", "Capital City",
+            "Brockway", "Cypress Creek", "Waverly Hills", "Monroe", "Dunkleburg" };
+
+    private static final String[] STREET_NAMES = {
+            "Elm", "Oak", "Maple", "Main", "Evergreen", "Pine", "Cedar", "Lake", "Hill",
+            "Washington", "Park", "Walnut", "Sunset", "River", "Church", "Highland" };
+
+    private static final String[] STREET_SUFFIXES = { "Street", "Avenue", "Road", "Drive", "Lane" };
+
+    /** Abbreviations of {@link #STREET_SUFFIXES}, as another agent would type them */
+    private static final String[] STREET_SUFFIX_ABBREVIATIONS = { "St", "Ave", "Rd", "Dr", "Ln" };
+
+    private final Random mRandom;
+    private final int mCountyCount;
+    private final double[] mCountyCumulative;
+
+    private double mZipfExponent = 1.1;
+    private double mNoCountyShare = 0.03;
+    private double mMedianIncome = 1800;
+    private double mIncomeSigma = 0.6;
+    private double mUnknownIncomeShare = 0.05;
+    private double mSingleShare = 0.7;
+    private double mMultiShare = 0.25;
+    private double mDuplicateShare = 0.02;
+
+    /** Street number, street and suffix of the last homes, to draw duplicates from */
+    private final int[][] mRecent = new int[64][];
+    private int mRecentCount;
+
+    public HomeGenerator(long seed, int countyCount) {
+        if (countyCount < 1) {
+            throw new IllegalArgumentException("Invalid county count " + countyCount);
+        }
+        mRandom = new Random(seed);
+        mCountyCount = countyCount;
+        mCountyCumulative = new double[countyCount];
+        setZipfExponent(mZipfExponent);
+    }
+
+    /**
+     * Set the skew of the counties: the k-th most common county holds a share proportional to
+     * 1 / k^exponent of the homes. 0 spreads them evenly.
+     */
+    public HomeGenerator setZipfExponent(double exponent) {
+        if (exponent < 0) {
+            throw new IllegalArgumentException("Invalid Zipf exponent " + exponent);
+        }
+        mZipfExponent = exponent;
+        double total = 0;
+        for (int k = 0; k < mCountyCount; k++) {
+            total += 1 / Math.pow(k + 1, exponent);
+            mCountyCumulative[k] = total;
+        }
+        for (int k = 0; k < mCountyCount; k++) {
+            mCountyCumulative[k] /= total;
+        }
+        return this;
+    }
+
+    /**
+     * Set the median and the spread of the log of the incomes, in dollars per month.
+     */
+    public HomeGenerator setIncome(double median, double sigma) {
+        if (median <= 0 || sigma < 0) {
+            throw new IllegalArgumentException("Invalid income distribution " + median + ", " + sigma);
+        }
+        mMedianIncome = median;
+        mIncomeSigma = sigma;
+        return this;
+    }
+
+    /**
+     * Set the share of the homes that repeat the address of a recent home, spelled differently.
+     */
+    public HomeGenerator setDuplicateShare(double share) {
+        if (share < 0 || share > 1) {
+            throw new IllegalArgumentException("Invalid duplicate share " + share);
+        }
+        mDuplicateShare = share;
+        return this;
+    }
+
+    /**
+     * Returns the name of the county of the given rank, 0 being the most common one.
+     */
+    public String countyOfRank(int rank) {
+        String name = COUNTY_NAMES[rank % COUNTY_NAMES.length];
+        return rank < COUNTY_NAMES.length ? name : name + " " + (rank / COUNTY_NAMES.length + 1);
+    }
+
+    /**
+     * Returns the values of the next home.
+     */
+    public ContentValues next() {
+        ContentValues values = new ContentValues();
+        values.put(HomeEntry.COLUMN_HOME_ADDRESS, nextAddress());
+        values.put(HomeEntry.COLUMN_HOME_COUNTY, nextCounty());
+        values.put(HomeEntry.COLUMN_HOME_TYPE, nextType());
+        values.put(HomeEntry.COLUMN_HOME_INCOME, nextIncome());
+        return values;
+    }
+
+    /**
+     * Returns a county, or null for a home without one.
+     */
+    public String nextCounty() {
+        if (mRandom.nextDouble() < mNoCountyShare) {
+            return null;
+        }
+        // Binary search of the rank whose cumulative share covers the draw
+        double draw = mRandom.nextDouble();
+        int low = 0;
+        int high = mCountyCount - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mCountyCumulative[middle] < draw) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return countyOfRank(low);
+    }
+
+    public int nextType() {
+        double draw = mRandom.nextDouble();
+        if (draw < mSingleShare) {
+            return HomeEntry.TYPE_SINGLE;
+        }
+        if (draw < mSingleShare + mMultiShare) {
+            return HomeEntry.TYPE_MULTI;
+        }
+        return HomeEntry.TYPE_UNKNOWN;
+    }
+
+    public int nextIncome() {
+        if (mRandom.nextDouble() < mUnknownIncomeShare) {
+            return 0;
+        }
+        double income = mMedianIncome * Math.exp(mIncomeSigma * mRandom.nextGaussian());
+        // Rounded to 10 dollars, as incomes are usually entered
+        return (int) Math.max(10, Math.round(income / 10) * 10);
+    }
+
+    public String nextAddress() {
+        int[] parts;
+        boolean duplicate = mRecentCount > 0 && mRandom.nextDouble() < mDuplicateShare;
+        if (duplicate) {
+            parts = mRecent[mRandom.nextInt(Math.min(mRecentCount, mRecent.length))];
+        } else {
+            parts = new int[] {
+                    1 + mRandom.nextInt(9999),
+                    mRandom.nextInt(STREET_NAMES.length),
+                    mRandom.nextInt(STREET_SUFFIXES.length) };
+            mRecent[mRecentCount % mRecent.length] = parts;
+            mRecentCount++;
+        }
+
+        String street = STREET_NAMES[parts[1]];
+        if (!duplicate) {
+            return parts[0] + " " + street + " " + STREET_SUFFIXES[parts[2]];
+        }
+        // The same address as typed by someone else
+        String suffix = STREET_SUFFIX_ABBREVIATIONS[parts[2]];
+        switch (mRandom.nextInt(3)) {
+            case 0:
+                return parts[0] + " " + street.toUpperCase(Locale.US) + " "
+                        + suffix.toUpperCase(Locale.US);
+            case 1:
+                return parts[0] + "  " + street + " " + suffix + ".";
+            default:
+                return " " + parts[0] + " " + street.toLowerCase(Locale.US) + " "
+                        + suffix.toLowerCase(Locale.US);
+        }
+    }
+}
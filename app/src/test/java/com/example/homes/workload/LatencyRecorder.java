@@ -0,0 +1,61 @@
+package com.example.homes.workload;
+
+import java.util.Arrays;
+
+/**
+ * Latencies of one kind of operation, for their percentiles. Every latency is kept, which
+ * takes 8 bytes per operation, so the percentiles are exact at any scale a trace reaches.
+ */
+public class LatencyRecorder {
+
+    private long[] mNanos = new long[1024];
+    private int mCount;
+    private int mErrorCount;
+    private boolean mSorted = true;
+
+    public synchronized void record(long nanos) {
+        if (mCount == mNanos.length) {
+            mNanos = Arrays.copyOf(mNanos, mCount * 2);
+        }
+        mNanos[mCount++] = nanos;
+        mSorted = false;
+    }
+
+    public synchronized void recordError() {
+        mErrorCount++;
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    public synchronized int getErrorCount() {
+        return mErrorCount;
+    }
+
+    /**
+     * Returns the latency below which the given share of the operations completed, in
+     * nanoseconds, or 0 if none was recorded.
+     *
+     * @param percentile from 0 to 100
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Invalid percentile " + percentile);
+        }
+        if (mCount == 0) {
+            return 0;
+        }
+        if (!mSorted) {
+            Arrays.sort(mNanos, 0, mCount);
+            mSorted = true;
+        }
+        // Nearest rank
+        int rank = (int) Math.ceil(percentile / 100 * mCount);
+        return mNanos[Math.max(0, rank - 1)];
+    }
+
+    public synchronized long getMax() {
+        return getPercentile(100);
+    }
+}
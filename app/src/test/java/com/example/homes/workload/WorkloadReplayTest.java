@@ -0,0 +1,207 @@
+package com.example.homes.workload;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.util.Log;
+
+import com.example.homes.data.AddressNormalizer;
+import com.example.homes.data.HomeContract;
+import com.example.homes.data.HomeContract.HomeEntry;
+import com.example.homes.data.HomeProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Robolectric tests for the workload generator, and a replay of a workload against the
+ * provider on the JVM, for capacity planning without a device.
+ *
+ * The replay runs at a small scale by default. System properties set another one, e.g.
+ * "./gradlew testDebugUnitTest --tests '*WorkloadReplayTest*' -Dworkload.homes=100000
+ * -Dworkload.operations=200000 -Dworkload.threads=8 -Drobolectric.logging=stdout", the last
+ * one for the report logged by the test:
+ *
+ * <ul>
+ * <li>workload.homes: homes preloaded before the replay</li>
+ * <li>workload.counties: number of counties, the most common ones holding most homes</li>
+ * <li>workload.operations: operations of the generated trace</li>
+ * <li>workload.threads: threads replaying the trace</li>
+ * <li>workload.mix: weights of the operations, see {@link WorkloadTrace#DEFAULT_MIX}</li>
+ * <li>workload.seed: seed of the homes and of the trace</li>
+ * <li>workload.trace: file of a trace to replay instead of generating one</li>
+ * <li>workload.traceOut: file to write the generated trace to, to replay it again later</li>
+ * <li>workload.maxP99Millis: the 99th percentile latency no kind of operation may exceed</li>
+ * <li>workload.minThroughput: the operations per second the replay must reach at least</li>
+ * </ul>
+ *
+ * Robolectric runs SQLite on the JVM, with every statement on one thread, so the latencies
+ * compare runs of this harness with each other rather than predict those of a device.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class WorkloadReplayTest {
+
+    private static final String LOG_TAG = WorkloadReplayTest.class.getSimpleName();
+
+    @Test
+    public void generator_skewsCounties() {
+        HomeGenerator generator = new HomeGenerator(1, 50);
+        Map<String, Integer> counts = new HashMap<>();
+        int noCounty = 0;
+        for (int i = 0; i < 20000; i++) {
+            String county = generator.nextCounty();
+            if (county == null) {
+                noCounty++;
+            } else {
+                Integer count = counts.get(county);
+                counts.put(county, count == null ? 1 : count + 1);
+            }
+        }
+        int first = counts.get(generator.countyOfRank(0));
+        int tenth = counts.get(generator.countyOfRank(9));
+        // Zipf with an exponent of 1.1 puts about 12 times as many homes in the first county
+        assertTrue(first > 8 * tenth);
+        assertTrue(noCounty > 0);
+        assertTrue(counts.size() > 40);
+    }
+
+    @Test
+    public void generator_coversTypesAndIncomes() {
+        HomeGenerator generator = new HomeGenerator(2, 10).setIncome(2000, 0.5);
+        Set<Integer> types = new HashSet<>();
+        List<Integer> incomes = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            ContentValues values = generator.next();
+            types.add(values.getAsInteger(HomeEntry.COLUMN_HOME_TYPE));
+            int income = values.getAsInteger(HomeEntry.COLUMN_HOME_INCOME);
+            assertTrue(income >= 0);
+            if (income > 0) {
+                incomes.add(income);
+            }
+        }
+        assertEquals(3, types.size());
+        assertTrue(types.contains(HomeEntry.TYPE_UNKNOWN));
+
+        Collections.sort(incomes);
+        int median = incomes.get(incomes.size() / 2);
+        assertTrue("Median income " + median, median > 1800 && median < 2200);
+    }
+
+    @Test
+    public void generator_duplicatesMatchEarlierAddresses() {
+        HomeGenerator generator = new HomeGenerator(3, 10).setDuplicateShare(0.5);
+        Set<String> canonical = new HashSet<>();
+        int duplicates = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (!canonical.add(AddressNormalizer.normalize(generator.nextAddress()))) {
+                duplicates++;
+            }
+        }
+        assertTrue(duplicates > 400);
+    }
+
+    @Test
+    public void trace_roundTripsThroughText() throws IOException {
+        WorkloadTrace trace = WorkloadTrace.generate(
+                WorkloadTrace.parseMix(WorkloadTrace.DEFAULT_MIX), 500, new HomeGenerator(4, 20), 4);
+        StringWriter text = new StringWriter();
+        trace.write(text);
+
+        WorkloadTrace read = WorkloadTrace.read(new StringReader(text.toString()));
+        assertEquals(trace.size(), read.size());
+        for (int i = 0; i < trace.size(); i++) {
+            assertEquals(trace.getKind(i), read.getKind(i));
+            assertEquals(trace.getArgument(i), read.getArgument(i));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void trace_rejectsUnknownOperations() throws IOException {
+        WorkloadTrace.read(new StringReader("read_list default\ndrop_table\n"));
+    }
+
+    @Test
+    public void replay_reportsEveryOperation() throws IOException, InterruptedException {
+        long seed = Long.getLong("workload.seed", 42);
+        int homes = Integer.getInteger("workload.homes", 2000);
+        int counties = Integer.getInteger("workload.counties", 100);
+        int operations = Integer.getInteger("workload.operations", 2000);
+        int threads = Integer.getInteger("workload.threads", 4);
+        // Loose by default, as the JVM runs slower on a busy build machine
+        long maxP99Millis = Long.getLong("workload.maxP99Millis", 2000);
+        double minThroughput = Double.parseDouble(System.getProperty("workload.minThroughput",
+                "0"));
+        String mix = System.getProperty("workload.mix", WorkloadTrace.DEFAULT_MIX);
+
+        WorkloadTrace trace;
+        String traceFile = System.getProperty("workload.trace");
+        if (traceFile != null) {
+            FileReader reader = new FileReader(traceFile);
+            try {
+                trace = WorkloadTrace.read(reader);
+            } finally {
+                reader.close();
+            }
+        } else {
+            trace = WorkloadTrace.generate(WorkloadTrace.parseMix(mix), operations,
+                    new HomeGenerator(seed + 1, counties), seed);
+        }
+        String traceOutFile = System.getProperty("workload.traceOut");
+        if (traceOutFile != null) {
+            FileWriter writer = new FileWriter(traceOutFile);
+            try {
+                trace.write(writer);
+            } finally {
+                writer.close();
+            }
+        }
+
+        Robolectric.buildContentProvider(HomeProvider.class).create(HomeContract.CONTENT_AUTHORITY);
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+        WorkloadReplayer replayer = new WorkloadReplayer(resolver, new HomeGenerator(seed, counties));
+
+        long preloadStart = System.nanoTime();
+        replayer.preload(homes);
+        Log.i(LOG_TAG, String.format(Locale.US, "Preloaded %d homes in %.2f s", homes,
+                (System.nanoTime() - preloadStart) / 1e9));
+
+        WorkloadReplayer.Report report = replayer.replay(trace, threads);
+        Log.i(LOG_TAG, report.toString());
+
+        if (report.getFirstError() != null) {
+            throw report.getFirstError();
+        }
+        assertEquals(trace.size(), report.getOperationCount());
+        Set<String> kinds = new HashSet<>();
+        for (int i = 0; i < trace.size(); i++) {
+            kinds.add(trace.getKind(i));
+        }
+        for (String kind : kinds) {
+            LatencyRecorder latencies = report.getLatencies(kind);
+            assertTrue(latencies.getCount() > 0);
+            long p99Millis = latencies.getPercentile(99) / 1000000;
+            assertTrue("p99 of " + kind + " is " + p99Millis + " ms, over " + maxP99Millis
+                    + " ms", p99Millis <= maxP99Millis);
+        }
+        assertTrue(String.format(Locale.US, "%.0f ops/s, under %.0f", report.getThroughput(),
+                minThroughput), report.getThroughput() >= minThroughput);
+    }
+}
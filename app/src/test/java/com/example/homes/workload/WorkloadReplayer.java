@@ -0,0 +1,300 @@
+package com.example.homes.workload;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.homes.data.HomeContract.FacetEntry;
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Replays a {@link WorkloadTrace} against the provider through a ContentResolver, from a
+ * number of threads at once, and reports the latency percentiles and throughput per kind of
+ * operation.
+ *
+ * The operations of the trace are dealt to the threads in turn, so each thread keeps the mix
+ * of the trace. The homes read, updated and deleted are drawn from the homes preloaded or
+ * inserted so far, with a seed per thread.
+ */
+public class WorkloadReplayer {
+
+    /** Rows read by a list or filter operation, about one screen of the catalog */
+    private static final int ROWS_PER_SCREEN = 50;
+
+    private static final String[] LIST_PROJECTION = {
+            HomeEntry._ID,
+            HomeEntry.COLUMN_HOME_ADDRESS,
+            HomeEntry.COLUMN_HOME_COUNTY,
+            HomeEntry.COLUMN_HOME_INCOME };
+
+    private final ContentResolver mResolver;
+    private final HomeGenerator mGenerator;
+
+    /** Ids of the homes that should be live, to draw the targets of operations from */
+    private final List<Long> mIds = new ArrayList<>();
+
+    public WorkloadReplayer(ContentResolver resolver, HomeGenerator generator) {
+        mResolver = resolver;
+        mGenerator = generator;
+    }
+
+    /**
+     * Insert the given number of generated homes, one provider call each.
+     */
+    public void preload(int homes) {
+        for (int i = 0; i < homes; i++) {
+            long id = insert();
+            if (id != -1) {
+                addId(id);
+            }
+        }
+    }
+
+    /**
+     * Replay the trace from the given number of threads, and return the report of the run.
+     */
+    public Report replay(final WorkloadTrace trace, final int threads) throws InterruptedException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid thread count " + threads);
+        }
+        final Map<String, LatencyRecorder> recorders = new LinkedHashMap<>();
+        for (String kind : WorkloadTrace.OPERATIONS) {
+            recorders.put(kind, new LatencyRecorder());
+        }
+        final AtomicReference<RuntimeException> firstError = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(thread);
+                    try {
+                        start.await();
+                        for (int i = thread; i < trace.size(); i += threads) {
+                            LatencyRecorder recorder = recorders.get(trace.getKind(i));
+                            long begin = System.nanoTime();
+                            try {
+                                runOperation(trace.getKind(i), trace.getArgument(i), random);
+                                recorder.record(System.nanoTime() - begin);
+                            } catch (RuntimeException e) {
+                                recorder.recordError();
+                                firstError.compareAndSet(null, e);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "WorkloadReplayer-" + t).start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        return new Report(recorders, threads, System.nanoTime() - begin, firstError.get());
+    }
+
+    private void runOperation(String kind, String argument, Random random) {
+        switch (kind) {
+            case WorkloadTrace.OP_READ_LIST:
+                readScreen(HomeEntry.CONTENT_URI, null, null, argument);
+                break;
+            case WorkloadTrace.OP_READ_HOME: {
+                long id = randomId(random);
+                if (id != -1) {
+                    readScreen(ContentUris.withAppendedId(HomeEntry.CONTENT_URI, id), null, null,
+                            null);
+                }
+                break;
+            }
+            case WorkloadTrace.OP_FILTER:
+                if (WorkloadTrace.NO_COUNTY.equals(argument)) {
+                    readScreen(HomeEntry.CONTENT_URI, HomeEntry.COLUMN_HOME_COUNTY + " IS NULL",
+                            null, null);
+                } else {
+                    readScreen(HomeEntry.CONTENT_URI, HomeEntry.COLUMN_HOME_COUNTY + " = ?",
+                            new String[] { argument }, null);
+                }
+                break;
+            case WorkloadTrace.OP_FACETS:
+                readScreen(FacetEntry.CONTENT_URI, null, null, null);
+                break;
+            case WorkloadTrace.OP_INSERT: {
+                long id = insert();
+                if (id != -1) {
+                    addId(id);
+                }
+                break;
+            }
+            case WorkloadTrace.OP_UPDATE: {
+                long id = randomId(random);
+                if (id != -1) {
+                    ContentValues values = new ContentValues();
+                    values.put(HomeEntry.COLUMN_HOME_INCOME, 10 + random.nextInt(10000));
+                    mResolver.update(ContentUris.withAppendedId(HomeEntry.CONTENT_URI, id),
+                            values, null, null);
+                }
+                break;
+            }
+            case WorkloadTrace.OP_DELETE: {
+                long id = removeRandomId(random);
+                if (id != -1) {
+                    mResolver.delete(ContentUris.withAppendedId(HomeEntry.CONTENT_URI, id),
+                            null, null);
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown operation " + kind);
+        }
+    }
+
+    private long insert() {
+        ContentValues values;
+        synchronized (mGenerator) {
+            values = mGenerator.next();
+        }
+        Uri uri = mResolver.insert(HomeEntry.CONTENT_URI, values);
+        return uri == null ? -1 : ContentUris.parseId(uri);
+    }
+
+    private void readScreen(Uri uri, String selection, String[] selectionArgs, String sortOrder) {
+        String[] projection = uri.equals(FacetEntry.CONTENT_URI) ? null : LIST_PROJECTION;
+        Cursor cursor = mResolver.query(uri, projection, selection, selectionArgs, sortOrder);
+        if (cursor == null) {
+            throw new IllegalStateException("No cursor for " + uri);
+        }
+        try {
+            for (int i = 0; i < ROWS_PER_SCREEN && cursor.moveToNext(); i++) {
+                for (int column = 0; column < cursor.getColumnCount(); column++) {
+                    cursor.getString(column);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void addId(long id) {
+        synchronized (mIds) {
+            mIds.add(id);
+        }
+    }
+
+    private long randomId(Random random) {
+        synchronized (mIds) {
+            return mIds.isEmpty() ? -1 : mIds.get(random.nextInt(mIds.size()));
+        }
+    }
+
+    /**
+     * Remove a random id, by moving the last one into its place.
+     */
+    private long removeRandomId(Random random) {
+        synchronized (mIds) {
+            if (mIds.isEmpty()) {
+                return -1;
+            }
+            int index = random.nextInt(mIds.size());
+            long id = mIds.get(index);
+            mIds.set(index, mIds.get(mIds.size() - 1));
+            mIds.remove(mIds.size() - 1);
+            return id;
+        }
+    }
+
+    /**
+     * The latencies and throughput of a replay.
+     */
+    public static class Report {
+        private final Map<String, LatencyRecorder> mRecorders;
+        private final int mThreads;
+        private final long mElapsedNanos;
+        private final RuntimeException mFirstError;
+
+        Report(Map<String, LatencyRecorder> recorders, int threads, long elapsedNanos,
+               RuntimeException firstError) {
+            mRecorders = recorders;
+            mThreads = threads;
+            mElapsedNanos = elapsedNanos;
+            mFirstError = firstError;
+        }
+
+        public LatencyRecorder getLatencies(String kind) {
+            return mRecorders.get(kind);
+        }
+
+        public int getOperationCount() {
+            int count = 0;
+            for (LatencyRecorder recorder : mRecorders.values()) {
+                count += recorder.getCount();
+            }
+            return count;
+        }
+
+        public int getErrorCount() {
+            int count = 0;
+            for (LatencyRecorder recorder : mRecorders.values()) {
+                count += recorder.getErrorCount();
+            }
+            return count;
+        }
+
+        /**
+         * Returns the first operation that failed, or null if none did.
+         */
+        public RuntimeException getFirstError() {
+            return mFirstError;
+        }
+
+        /**
+         * Returns the operations completed per second, all threads together.
+         */
+        public double getThroughput() {
+            return getOperationCount() / (mElapsedNanos / 1e9);
+        }
+
+        /**
+         * Returns a table of the latencies per kind of operation, in milliseconds.
+         */
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder();
+            report.append(String.format(Locale.US,
+                    "%d operations in %.2f s with %d threads: %.0f ops/s, %d errors%n",
+                    getOperationCount(), mElapsedNanos / 1e9, mThreads, getThroughput(),
+                    getErrorCount()));
+            report.append(String.format(Locale.US, "%-10s %8s %9s %9s %9s %9s %7s%n",
+                    "operation", "count", "p50 ms", "p90 ms", "p99 ms", "max ms", "errors"));
+            for (Map.Entry<String, LatencyRecorder> entry : mRecorders.entrySet()) {
+                LatencyRecorder recorder = entry.getValue();
+                if (recorder.getCount() == 0 && recorder.getErrorCount() == 0) {
+                    continue;
+                }
+                report.append(String.format(Locale.US,
+                        "%-10s %8d %9.3f %9.3f %9.3f %9.3f %7d%n",
+                        entry.getKey(), recorder.getCount(),
+                        recorder.getPercentile(50) / 1e6, recorder.getPercentile(90) / 1e6,
+                        recorder.getPercentile(99) / 1e6, recorder.getMax() / 1e6,
+                        recorder.getErrorCount()));
+            }
+            return report.toString();
+        }
+    }
+}
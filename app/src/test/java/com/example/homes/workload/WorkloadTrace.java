@@ -0,0 +1,205 @@
+package com.example.homes.workload;
+
+import com.example.homes.data.HomeContract.HomeEntry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A sequence of operations on homes to replay against the provider, see
+ * {@link WorkloadReplayer}.
+ *
+ * A trace is either generated from a mix of operations, or read from a text file with one
+ * operation per line: its kind, then its argument if it has one. Blank lines and lines
+ * starting with # are skipped. The homes an operation reads or writes aren't part of the
+ * trace, as their ids depend on the run, they are drawn from the live homes when replaying.
+ */
+public class WorkloadTrace {
+
+    /** Read the first screen of the catalog, argument: the sort mode */
+    public static final String OP_READ_LIST = "read_list";
+
+    /** Read a single home */
+    public static final String OP_READ_HOME = "read_home";
+
+    /**
+     * Read the first screen of the homes of a county, argument: the county, or
+     * {@link #NO_COUNTY} for the homes without one
+     */
+    public static final String OP_FILTER = "filter";
+
+    /** Argument of {@link #OP_FILTER} for the homes without a county */
+    public static final String NO_COUNTY = "-";
+
+    /** Read the facet counts */
+    public static final String OP_FACETS = "facets";
+
+    /** Insert a generated home */
+    public static final String OP_INSERT = "insert";
+
+    /** Change the income of a home */
+    public static final String OP_UPDATE = "update";
+
+    /** Delete a home */
+    public static final String OP_DELETE = "delete";
+
+    /** Every kind of operation, in the order of the reports */
+    public static final List<String> OPERATIONS = Collections.unmodifiableList(Arrays.asList(
+            OP_READ_LIST, OP_READ_HOME, OP_FILTER, OP_FACETS, OP_INSERT, OP_UPDATE, OP_DELETE));
+
+    /** Mix of a catalog mostly browsed, with a steady trickle of edits */
+    public static final String DEFAULT_MIX =
+            "read_list:40,read_home:20,filter:10,facets:5,insert:12,update:10,delete:3";
+
+    private static final String[] SORT_ORDERS = {
+            HomeEntry.SORT_DEFAULT,
+            HomeEntry.SORT_ADDRESS,
+            HomeEntry.SORT_COUNTY,
+            HomeEntry.SORT_INCOME_HIGH,
+            HomeEntry.SORT_INCOME_LOW };
+
+    private final List<String> mKinds = new ArrayList<>();
+    private final List<String> mArguments = new ArrayList<>();
+
+    public int size() {
+        return mKinds.size();
+    }
+
+    public String getKind(int index) {
+        return mKinds.get(index);
+    }
+
+    /**
+     * Returns the argument of the operation, or null if it has none.
+     */
+    public String getArgument(int index) {
+        return mArguments.get(index);
+    }
+
+    public void add(String kind, String argument) {
+        if (!OPERATIONS.contains(kind)) {
+            throw new IllegalArgumentException("Unknown operation " + kind);
+        }
+        boolean needsArgument = OP_READ_LIST.equals(kind) || OP_FILTER.equals(kind);
+        if (needsArgument != (argument != null)) {
+            throw new IllegalArgumentException(needsArgument
+                    ? "Operation " + kind + " requires an argument"
+                    : "Operation " + kind + " takes no argument");
+        }
+        mKinds.add(kind);
+        mArguments.add(argument);
+    }
+
+    /**
+     * Parse a mix of operations such as {@link #DEFAULT_MIX}: kinds with their weights.
+     */
+    public static Map<String, Integer> parseMix(String mix) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 2 || !OPERATIONS.contains(parts[0].trim())) {
+                throw new IllegalArgumentException("Invalid mix entry " + entry);
+            }
+            int weight;
+            try {
+                weight = Integer.parseInt(parts[1].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid weight in mix entry " + entry);
+            }
+            if (weight < 0) {
+                throw new IllegalArgumentException("Invalid weight in mix entry " + entry);
+            }
+            weights.put(parts[0].trim(), weight);
+        }
+        return weights;
+    }
+
+    /**
+     * Generate a trace of the given number of operations, drawn from the mix. Filters pick a
+     * county with the skew of the generator, so the big counties are filtered the most.
+     */
+    public static WorkloadTrace generate(Map<String, Integer> mix, int operations,
+                                         HomeGenerator generator, long seed) {
+        int total = 0;
+        for (int weight : mix.values()) {
+            total += weight;
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("Mix has no operations");
+        }
+
+        Random random = new Random(seed);
+        WorkloadTrace trace = new WorkloadTrace();
+        for (int i = 0; i < operations; i++) {
+            int draw = random.nextInt(total);
+            String kind = null;
+            for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+                draw -= entry.getValue();
+                if (draw < 0) {
+                    kind = entry.getKey();
+                    break;
+                }
+            }
+
+            String argument = null;
+            if (OP_READ_LIST.equals(kind)) {
+                argument = SORT_ORDERS[random.nextInt(SORT_ORDERS.length)];
+            } else if (OP_FILTER.equals(kind)) {
+                String county = generator.nextCounty();
+                argument = county == null ? NO_COUNTY : county;
+            }
+            trace.add(kind, argument);
+        }
+        return trace;
+    }
+
+    /**
+     * Read a trace written by {@link #write}, or by hand.
+     */
+    public static WorkloadTrace read(Reader reader) throws IOException {
+        WorkloadTrace trace = new WorkloadTrace();
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        int number = 0;
+        while ((line = lines.readLine()) != null) {
+            number++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int space = line.indexOf(' ');
+            try {
+                if (space == -1) {
+                    trace.add(line, null);
+                } else {
+                    trace.add(line.substring(0, space), line.substring(space + 1).trim());
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Line " + number + ": " + e.getMessage());
+            }
+        }
+        return trace;
+    }
+
+    public void write(Writer writer) throws IOException {
+        writer.write("# homes workload trace, " + size() + " operations\n");
+        for (int i = 0; i < size(); i++) {
+            writer.write(mKinds.get(i));
+            if (mArguments.get(i) != null) {
+                writer.write(' ');
+                writer.write(mArguments.get(i));
+            }
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+}